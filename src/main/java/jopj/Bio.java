@@ -0,0 +1,116 @@
+package jopj;
+
+/**
+ * Java port of bio.c / bio.h
+ *
+ * Individual bit input used by tier-2 to read packet headers. Only the
+ * decoding half is ported. A single OpjBio is meant to be re-initialised
+ * for every packet header with opj_bio_init_dec, so reading headers does
+ * not allocate.
+ */
+public final class Bio {
+
+    private Bio() {
+    }
+
+    /**
+     * Java equivalent of opj_bio_t.
+     */
+    public static final class OpjBio {
+        /** Buffer holding the packet header bytes. */
+        public byte[] data;
+        /** Index of the first byte of the header in data. */
+        public int start;
+        /** Index one past the last readable byte in data. */
+        public int end;
+        /** Index of the next byte to read. */
+        public int bp;
+        /** Temporary place where each byte is read. */
+        public int buf;
+        /** Number of bits still available in buf. */
+        public int ct;
+    }
+
+    /**
+     * C: opj_bio_t* opj_bio_create(void);
+     */
+    public static OpjBio opj_bio_create() {
+        return new OpjBio();
+    }
+
+    /**
+     * C: void opj_bio_destroy(opj_bio_t *bio);
+     */
+    public static void opj_bio_destroy(OpjBio bio) {
+        if (bio == null) return;
+        bio.data = null;
+    }
+
+    /**
+     * C: ptrdiff_t opj_bio_numbytes(opj_bio_t *bio);
+     *
+     * Number of bytes consumed since opj_bio_init_dec.
+     */
+    public static int opj_bio_numbytes(OpjBio bio) {
+        return bio.bp - bio.start;
+    }
+
+    /**
+     * C: void opj_bio_init_dec(opj_bio_t *bio, OPJ_BYTE *bp, OPJ_UINT32 len);
+     */
+    public static void opj_bio_init_dec(OpjBio bio, byte[] data, int offset, int len) {
+        bio.data  = data;
+        bio.start = offset;
+        bio.end   = offset + len;
+        bio.bp    = offset;
+        bio.buf   = 0;
+        bio.ct    = 0;
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_bio_read(opj_bio_t *bio, OPJ_UINT32 n);
+     *
+     * Reads n bits (n <= 32), most significant first.
+     */
+    public static int opj_bio_read(OpjBio bio, int n) {
+        int v = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            v |= opj_bio_getbit(bio) << i;
+        }
+        return v;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_bio_inalign(opj_bio_t *bio);
+     *
+     * Skips the stuffed bit after a 0xFF byte and moves to the next byte
+     * boundary.
+     */
+    public static boolean opj_bio_inalign(OpjBio bio) {
+        if ((bio.buf & 0xff) == 0xff) {
+            opj_bio_bytein(bio);
+        }
+        bio.ct = 0;
+        return true;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Local helpers                                                      */
+    /* ------------------------------------------------------------------ */
+
+    private static void opj_bio_bytein(OpjBio bio) {
+        bio.buf = (bio.buf << 8) & 0xffff;
+        bio.ct = bio.buf == 0xff00 ? 7 : 8;
+        if (bio.bp < bio.end) {
+            bio.buf |= bio.data[bio.bp++] & 0xff;
+        }
+    }
+
+    private static int opj_bio_getbit(OpjBio bio) {
+        if (bio.ct == 0) {
+            opj_bio_bytein(bio);
+        }
+        bio.ct--;
+        return (bio.buf >>> bio.ct) & 1;
+    }
+}
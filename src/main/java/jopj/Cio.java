@@ -236,21 +236,58 @@ public final class Cio {
     /* Stream creation / destruction                                      */
     /* ------------------------------------------------------------------ */
 
+    /** Buffer size for streams whose length is not known. */
+    static final int OPJ_STREAM_DEFAULT_BUFFER_SIZE = OPJ_J2K_STREAM_CHUNK_SIZE;
+    /** Streams up to this length are buffered whole, in a single fill. */
+    static final int OPJ_STREAM_SINGLE_FILL_SIZE = 64 * 1024;
+    /** Upper bound of an adaptively sized buffer. */
+    static final int OPJ_STREAM_MAX_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * C: opj_stream_t* opj_stream_create(OPJ_SIZE_T p_buffer_size, OPJ_BOOL l_is_input);
+     *
+     * A bufferSize of 0 sizes the buffer from the user data length once
+     * it is known, see opj_stream_default_create.
+     */
     public static OpjStreamPrivate opj_stream_create(int bufferSize,
                                                      boolean isInput) {
         OpjStreamPrivate s = new OpjStreamPrivate();
-        s.bufferSize = bufferSize > 0 ? bufferSize : OPJ_J2K_STREAM_CHUNK_SIZE;
-        s.storedData = new byte[s.bufferSize];
+        opj_stream_init(s, bufferSize, isInput);
+        if (s.bufferSize > 0) {
+            s.storedData = new byte[s.bufferSize];
+        }
+        return s;
+    }
+
+    /**
+     * C: opj_stream_t* opj_stream_default_create(OPJ_BOOL p_is_input);
+     *
+     * Unlike C, which always uses OPJ_J2K_STREAM_CHUNK_SIZE, the buffer is
+     * allocated on first use and sized from the user data length.
+     */
+    public static OpjStreamPrivate opj_stream_default_create(boolean isInput) {
+        return opj_stream_create(0, isInput);
+    }
+
+    /**
+     * Resets s to a freshly created stream with default callbacks, for
+     * subclasses of OpjStreamPrivate that cannot go through
+     * opj_stream_create. No buffer is allocated here.
+     */
+    public static void opj_stream_init(OpjStreamPrivate s, int bufferSize,
+                                       boolean isInput) {
+        s.bufferSize = Math.max(0, bufferSize);
+        s.storedData = null;
         s.currentDataOffset = 0;
         s.bytesInBuffer = 0;
         s.byteOffset = 0L;
         s.userDataLength = 0L;
         if (isInput) {
-            s.status |= OPJ_STREAM_STATUS_INPUT;
+            s.status = OPJ_STREAM_STATUS_INPUT;
             s.opjSkip = Cio::opj_stream_read_skip;
             s.opjSeek = Cio::opj_stream_read_seek;
         } else {
-            s.status |= OPJ_STREAM_STATUS_OUTPUT;
+            s.status = OPJ_STREAM_STATUS_OUTPUT;
             s.opjSkip = Cio::opj_stream_write_skip;
             s.opjSeek = Cio::opj_stream_write_seek;
         }
@@ -258,11 +295,31 @@ public final class Cio {
         s.writeFn = Cio::opj_stream_default_write;
         s.skipFn  = Cio::opj_stream_default_skip;
         s.seekFn  = Cio::opj_stream_default_seek;
-        return s;
     }
 
-    public static OpjStreamPrivate opj_stream_default_create(boolean isInput) {
-        return opj_stream_create(OPJ_J2K_STREAM_CHUNK_SIZE, isInput);
+    /**
+     * Buffer size for a stream of the given length: small streams fit in
+     * one fill, larger ones get about 1/256th of their length so big
+     * files take few callback round trips without pinning much memory.
+     */
+    static int opj_stream_buffer_size_for(long userDataLength) {
+        if (userDataLength <= 0) {
+            return OPJ_STREAM_DEFAULT_BUFFER_SIZE;
+        }
+        if (userDataLength <= OPJ_STREAM_SINGLE_FILL_SIZE) {
+            return (int) userDataLength;
+        }
+        return (int) Math.max(OPJ_STREAM_DEFAULT_BUFFER_SIZE,
+                Math.min(OPJ_STREAM_MAX_BUFFER_SIZE, userDataLength / 256));
+    }
+
+    /** Allocates the buffer on first use; it is never reallocated. */
+    private static void opj_stream_alloc_buffer(OpjStreamPrivate s) {
+        if (s.storedData != null) return;
+        if (s.bufferSize <= 0) {
+            s.bufferSize = opj_stream_buffer_size_for(s.userDataLength);
+        }
+        s.storedData = new byte[s.bufferSize];
     }
 
     public static void opj_stream_destroy(OpjStreamPrivate s) {
@@ -321,42 +378,146 @@ public final class Cio {
     /* High-level read / write / skip / seek                              */
     /* ------------------------------------------------------------------ */
 
+    /*
+     * Buffer layout. When reading, storedData[currentDataOffset ..
+     * currentDataOffset + bytesInBuffer) holds the bytes at logical
+     * positions [byteOffset, byteOffset + bytesInBuffer), and the user
+     * source is positioned just past them. When writing, storedData[0 ..
+     * bytesInBuffer) holds bytes not yet handed to writeFn. byteOffset is
+     * always the position seen by the codec, not the source's.
+     */
+
     public static long opj_stream_read_data(OpjStreamPrivate s,
                                             byte[] buffer,
                                             long size,
                                             OpjEventMgr mgr) {
-        if (s == null || buffer == null || size < 0) return -1;
-        if (size == 0) return 0;
+        return opj_stream_read_data(s, buffer, 0, size, mgr);
+    }
+
+    /**
+     * C: OPJ_SIZE_T opj_stream_read_data(opj_stream_private_t * p_stream,
+     *                                    OPJ_BYTE * p_buffer, OPJ_SIZE_T p_size,
+     *                                    opj_event_mgr_t * p_event_mgr);
+     *
+     * Reads into buffer[offset..]. Small reads are served from the
+     * stream's buffer; reads larger than it that start at offset 0 go
+     * straight from readFn into buffer (readFn always writes at index 0).
+     * Returns the number of bytes read, or -1 if none were left.
+     */
+    public static long opj_stream_read_data(OpjStreamPrivate s,
+                                            byte[] buffer,
+                                            int offset,
+                                            long size,
+                                            OpjEventMgr mgr) {
+        if (s == null || buffer == null || offset < 0 || size < 0) return -1;
+        size = Math.min(size, (long) buffer.length - offset);
+        if (size <= 0) return 0;
         if (s.readFn == null) return -1;
 
-        long toRead = Math.min(size, buffer.length);
-        long read = s.readFn.read(buffer, toRead, s.userData);
-        if (read == -1) {
-            s.status |= OPJ_STREAM_STATUS_END;
-            opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
-            return -1;
+        /* If the buffer holds enough bytes, the read is a plain copy. */
+        if (s.bytesInBuffer >= size) {
+            System.arraycopy(s.storedData, s.currentDataOffset, buffer, offset, (int) size);
+            s.currentDataOffset += (int) size;
+            s.bytesInBuffer -= (int) size;
+            s.byteOffset += size;
+            return size;
+        }
+
+        /* Hand out what is left, then refill. */
+        long readNb = s.bytesInBuffer;
+        if (readNb > 0) {
+            System.arraycopy(s.storedData, s.currentDataOffset, buffer, offset, (int) readNb);
+            offset += (int) readNb;
+            size -= readNb;
+            s.byteOffset += readNb;
+        }
+        s.currentDataOffset = 0;
+        s.bytesInBuffer = 0;
+
+        /* The source already reported its end: do not ask it again. */
+        if ((s.status & OPJ_STREAM_STATUS_END) != 0) {
+            return readNb > 0 ? readNb : -1;
+        }
+
+        opj_stream_alloc_buffer(s);
+        while (true) {
+            if (offset == 0 && size > s.bufferSize) {
+                long n = s.readFn.read(buffer, size, s.userData);
+                if (n <= 0) {
+                    opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
+                    s.status |= OPJ_STREAM_STATUS_END;
+                    return readNb > 0 ? readNb : -1;
+                }
+                readNb += n;
+                s.byteOffset += n;
+                if (n >= size) {
+                    return readNb;
+                }
+                offset += (int) n;
+                size -= n;
+            } else {
+                long n = s.readFn.read(s.storedData, s.bufferSize, s.userData);
+                if (n <= 0) {
+                    opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
+                    s.status |= OPJ_STREAM_STATUS_END;
+                    return readNb > 0 ? readNb : -1;
+                }
+                if (n >= size) {
+                    System.arraycopy(s.storedData, 0, buffer, offset, (int) size);
+                    s.currentDataOffset = (int) size;
+                    s.bytesInBuffer = (int) (n - size);
+                    s.byteOffset += size;
+                    return readNb + size;
+                }
+                System.arraycopy(s.storedData, 0, buffer, offset, (int) n);
+                readNb += n;
+                offset += (int) n;
+                size -= n;
+                s.byteOffset += n;
+            }
         }
-        s.byteOffset += read;
-        return read;
     }
 
+    /**
+     * C: OPJ_SIZE_T opj_stream_write_data(opj_stream_private_t * p_stream,
+     *                                     const OPJ_BYTE * p_buffer, OPJ_SIZE_T p_size,
+     *                                     opj_event_mgr_t * p_event_mgr);
+     */
     public static long opj_stream_write_data(OpjStreamPrivate s,
                                              byte[] buffer,
                                              long size,
                                              OpjEventMgr mgr) {
         if (s == null || buffer == null || size < 0) return -1;
+        if ((s.status & OPJ_STREAM_STATUS_ERROR) != 0) return -1;
+        size = Math.min(size, buffer.length);
         if (size == 0) return 0;
         if (s.writeFn == null) return -1;
 
-        long toWrite = Math.min(size, buffer.length);
-        long written = s.writeFn.write(buffer, toWrite, s.userData);
-        if (written == -1) {
-            s.status |= OPJ_STREAM_STATUS_ERROR;
-            opj_event_msg(mgr, EVT_INFO, "Stream error!\n");
-            return -1;
+        opj_stream_alloc_buffer(s);
+        int offset = 0;
+        long writeNb = 0;
+        while (true) {
+            int remaining = s.bufferSize - s.bytesInBuffer;
+            if (remaining >= size) {
+                System.arraycopy(buffer, offset, s.storedData, s.bytesInBuffer, (int) size);
+                s.bytesInBuffer += (int) size;
+                s.currentDataOffset = s.bytesInBuffer;
+                s.byteOffset += size;
+                return writeNb + size;
+            }
+            if (remaining > 0) {
+                System.arraycopy(buffer, offset, s.storedData, s.bytesInBuffer, remaining);
+                s.bytesInBuffer = s.bufferSize;
+                s.currentDataOffset = s.bytesInBuffer;
+                s.byteOffset += remaining;
+                offset += remaining;
+                size -= remaining;
+                writeNb += remaining;
+            }
+            if (!opj_stream_flush(s, mgr)) {
+                return -1;
+            }
         }
-        s.byteOffset += written;
-        return written;
     }
 
     public static long opj_stream_skip(OpjStreamPrivate s,
@@ -375,23 +536,32 @@ public final class Cio {
         return s.opjSeek.apply(s, offset, mgr);
     }
 
+    /**
+     * C: OPJ_BOOL opj_stream_flush(opj_stream_private_t * p_stream,
+     *                              opj_event_mgr_t * p_event_mgr);
+     *
+     * byteOffset already counts the buffered bytes. A short write moves
+     * the rest to the front of the buffer, since writeFn always reads
+     * from index 0.
+     */
     public static boolean opj_stream_flush(OpjStreamPrivate s,
                                            OpjEventMgr mgr) {
         if (s == null) return false;
-        if (s.bytesInBuffer == 0) return true;
-        if (s.writeFn == null) return false;
-
-        byte[] tmp = new byte[s.bytesInBuffer];
-        System.arraycopy(s.storedData, s.currentDataOffset, tmp, 0, s.bytesInBuffer);
-        long written = s.writeFn.write(tmp, s.bytesInBuffer, s.userData);
-        if (written != s.bytesInBuffer) {
-            s.status |= OPJ_STREAM_STATUS_ERROR;
-            opj_event_msg(mgr, EVT_INFO, "Stream error!\n");
-            return false;
+        while (s.bytesInBuffer > 0) {
+            if (s.writeFn == null) return false;
+            long written = s.writeFn.write(s.storedData, s.bytesInBuffer, s.userData);
+            if (written <= 0) {
+                s.status |= OPJ_STREAM_STATUS_ERROR;
+                opj_event_msg(mgr, EVT_INFO, "Error on writing stream!\n");
+                return false;
+            }
+            int n = (int) Math.min(written, s.bytesInBuffer);
+            s.bytesInBuffer -= n;
+            if (s.bytesInBuffer > 0) {
+                System.arraycopy(s.storedData, n, s.storedData, 0, s.bytesInBuffer);
+            }
         }
         s.currentDataOffset = 0;
-        s.bytesInBuffer = 0;
-        s.byteOffset += written;
         return true;
     }
 
@@ -399,10 +569,25 @@ public final class Cio {
     /* Read-/write-oriented skip/seek implementations                     */
     /* ------------------------------------------------------------------ */
 
+    /**
+     * C: OPJ_BOOL opj_stream_read_seek(opj_stream_private_t * p_stream,
+     *                                  OPJ_OFF_T p_size, opj_event_mgr_t * p_event_mgr);
+     *
+     * A target inside the buffered window (including bytes already handed
+     * out) only moves currentDataOffset; the source is left where it is.
+     */
     public static boolean opj_stream_read_seek(OpjStreamPrivate s,
                                                long offset,
                                                OpjEventMgr mgr) {
         if (s == null) return false;
+        long windowStart = s.byteOffset - s.currentDataOffset;
+        long windowEnd = s.byteOffset + s.bytesInBuffer;
+        if (s.storedData != null && offset >= windowStart && offset < windowEnd) {
+            s.currentDataOffset = (int) (offset - windowStart);
+            s.bytesInBuffer = (int) (windowEnd - offset);
+            s.byteOffset = offset;
+            return true;
+        }
         s.currentDataOffset = 0;
         s.bytesInBuffer = 0;
         if (s.seekFn == null || !s.seekFn.seek(offset, s.userData)) {
@@ -434,19 +619,55 @@ public final class Cio {
         return true;
     }
 
+    /**
+     * C: OPJ_OFF_T opj_stream_read_skip(opj_stream_private_t * p_stream,
+     *                                   OPJ_OFF_T p_size, opj_event_mgr_t * p_event_mgr);
+     *
+     * Skips buffered bytes first. As in C, a skip past userDataLength
+     * stops at the end of the stream and marks it ended.
+     */
     public static long opj_stream_read_skip(OpjStreamPrivate s,
                                             long size,
                                             OpjEventMgr mgr) {
         if (s == null || size < 0) return -1;
-        if (s.skipFn == null) return -1;
-        long skipped = s.skipFn.skip(size, s.userData);
-        if (skipped == -1) {
-            s.status |= OPJ_STREAM_STATUS_END;
-            opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
-            return -1;
+
+        if (s.bytesInBuffer >= size) {
+            s.currentDataOffset += (int) size;
+            s.bytesInBuffer -= (int) size;
+            s.byteOffset += size;
+            return size;
         }
-        s.byteOffset += skipped;
-        return skipped;
+
+        long skipNb = s.bytesInBuffer;
+        size -= skipNb;
+        s.byteOffset += skipNb;
+        s.currentDataOffset = 0;
+        s.bytesInBuffer = 0;
+
+        if ((s.status & OPJ_STREAM_STATUS_END) != 0) {
+            return skipNb > 0 ? skipNb : -1;
+        }
+
+        while (size > 0) {
+            if (s.userDataLength > 0 && s.byteOffset + size > s.userDataLength) {
+                opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
+                long left = s.userDataLength - s.byteOffset;
+                opj_stream_read_seek(s, s.userDataLength, mgr);
+                s.status |= OPJ_STREAM_STATUS_END;
+                skipNb += left;
+                return skipNb > 0 ? skipNb : -1;
+            }
+            long n = s.skipFn == null ? -1 : s.skipFn.skip(size, s.userData);
+            if (n <= 0) {
+                opj_event_msg(mgr, EVT_INFO, "Stream reached its end !\n");
+                s.status |= OPJ_STREAM_STATUS_END;
+                return skipNb > 0 ? skipNb : -1;
+            }
+            size -= n;
+            skipNb += n;
+            s.byteOffset += n;
+        }
+        return skipNb;
     }
 
     public static long opj_stream_write_skip(OpjStreamPrivate s,
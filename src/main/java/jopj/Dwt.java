@@ -4,13 +4,289 @@ package jopj;
  * Java skeleton for dwt.c / dwt.h
  *
  * Discrete wavelet transform routines used by jopj.J2K.
- * Only the public API from dwt.h is exposed here; implementations are stubs.
+ * The inverse 5-3 and 9-7 transforms work in place on the tile-component
+ * buffer, where tier-1 leaves each resolution as [low | high] columns
+ * over [low | high] rows.
  */
 public final class Dwt {
 
     private Dwt() {
     }
 
+    /* 9-7 lifting coefficients (C: opj_dwt_alpha .. opj_K) */
+    private static final float OPJ_DWT_ALPHA = -1.586134342f;
+    private static final float OPJ_DWT_BETA  = -0.052980118f;
+    private static final float OPJ_DWT_GAMMA = 0.882911075f;
+    private static final float OPJ_DWT_DELTA = 0.443506852f;
+    private static final float OPJ_K = 1.230174105f;
+    private static final float OPJ_TWO_INVK = 2.0f / OPJ_K;
+
+    /* ------------------------------------------------------------------ */
+    /* Inverse 5-3 (reversible)                                           */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: OPJ_BOOL opj_dwt_decode(opj_tcd_t *p_tcd, opj_tcd_tilecomp_t* tilec, OPJ_UINT32 numres);
+     *
+     * Inverse 5-3 transform of the first numres resolutions of tilec.data.
+     * The buffer stride is the width of resolution numres - 1, so levels
+     * discarded by the reduce factor are never touched.
+     */
+    public static boolean opj_dwt_decode(Tcd.OpjTcdTilecomp tilec, int numres) {
+        if (numres <= 1) {
+            return true;
+        }
+        Tcd.OpjTcdResolution[] resolutions = tilec.resolutions;
+        Tcd.OpjTcdResolution top = resolutions[numres - 1];
+        final int w = top.x1 - top.x0;
+        int[] tiledp = tilec.data;
+        int[] mem = OpjBufferPool.getDefault().acquireInts(opj_dwt_max_resolution(resolutions, numres));
+
+        Tcd.OpjTcdResolution tr = resolutions[0];
+        int rw = tr.x1 - tr.x0;
+        int rh = tr.y1 - tr.y0;
+
+        for (int resno = 1; resno < numres; ++resno) {
+            int hsn = rw;
+            int vsn = rh;
+            tr = resolutions[resno];
+            rw = tr.x1 - tr.x0;
+            rh = tr.y1 - tr.y0;
+
+            int hdn = rw - hsn;
+            int hcas = tr.x0 & 1;
+            for (int j = 0; j < rh; ++j) {
+                int row = j * w;
+                opj_dwt_interleave(mem, tiledp, row, 1, hsn, hdn, hcas);
+                opj_dwt_decode_1(mem, hdn, hsn, hcas);
+                System.arraycopy(mem, 0, tiledp, row, rw);
+            }
+
+            int vdn = rh - vsn;
+            int vcas = tr.y0 & 1;
+            for (int i = 0; i < rw; ++i) {
+                opj_dwt_interleave(mem, tiledp, i, w, vsn, vdn, vcas);
+                opj_dwt_decode_1(mem, vdn, vsn, vcas);
+                for (int k = 0, d = i; k < rh; ++k, d += w) {
+                    tiledp[d] = mem[k];
+                }
+            }
+        }
+        OpjBufferPool.getDefault().release(mem);
+        return true;
+    }
+
+    /**
+     * C: static void opj_dwt_interleave_h / opj_dwt_interleave_v
+     *
+     * Gathers sn low-pass then dn high-pass samples of one line of src
+     * into their interleaved positions in mem.
+     */
+    private static void opj_dwt_interleave(int[] mem, int[] src, int offset, int stride,
+                                           int sn, int dn, int cas) {
+        int s = offset;
+        for (int i = 0, d = cas; i < sn; ++i, d += 2, s += stride) {
+            mem[d] = src[s];
+        }
+        for (int i = 0, d = 1 - cas; i < dn; ++i, d += 2, s += stride) {
+            mem[d] = src[s];
+        }
+    }
+
+    /**
+     * C: static void opj_dwt_decode_1_(OPJ_INT32 *a, OPJ_INT32 dn, OPJ_INT32 sn, OPJ_INT32 cas);
+     *
+     * One-dimensional inverse 5-3 lifting, with symmetric extension at
+     * both ends. S(i) = a[2i], D(i) = a[2i + 1].
+     */
+    private static void opj_dwt_decode_1(int[] a, int dn, int sn, int cas) {
+        if (cas == 0) {
+            if (dn > 0 || sn > 1) {
+                for (int i = 0; i < sn; ++i) {
+                    int dPrev = a[1 + 2 * Math.max(0, Math.min(i - 1, dn - 1))];
+                    int dCur = a[1 + 2 * Math.max(0, Math.min(i, dn - 1))];
+                    a[2 * i] -= (dPrev + dCur + 2) >> 2;
+                }
+                for (int i = 0; i < dn; ++i) {
+                    int sCur = a[2 * Math.min(i, sn - 1)];
+                    int sNext = a[2 * Math.min(i + 1, sn - 1)];
+                    a[1 + 2 * i] += (sCur + sNext) >> 1;
+                }
+            }
+        } else {
+            if (sn == 0 && dn == 1) {
+                a[0] /= 2;
+            } else {
+                // Low-pass samples sit at odd positions: D(i) for i < sn
+                for (int i = 0; i < sn; ++i) {
+                    int sCur = a[2 * Math.max(0, Math.min(i, dn - 1))];
+                    int sNext = a[2 * Math.max(0, Math.min(i + 1, dn - 1))];
+                    a[1 + 2 * i] -= (sCur + sNext + 2) >> 2;
+                }
+                for (int i = 0; i < dn; ++i) {
+                    int dCur = a[1 + 2 * Math.max(0, Math.min(i, sn - 1))];
+                    int dPrev = a[1 + 2 * Math.max(0, Math.min(i - 1, sn - 1))];
+                    a[2 * i] += (dCur + dPrev) >> 1;
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Inverse 9-7 (irreversible)                                         */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: OPJ_BOOL opj_dwt_decode_real(opj_tcd_t *p_tcd, opj_tcd_tilecomp_t* tilec, OPJ_UINT32 numres);
+     *
+     * Inverse 9-7 transform of the first numres resolutions of
+     * tilec.dataReal, laid out as for opj_dwt_decode.
+     */
+    public static boolean opj_dwt_decode_real(Tcd.OpjTcdTilecomp tilec, int numres) {
+        if (numres <= 1) {
+            return true;
+        }
+        Tcd.OpjTcdResolution[] resolutions = tilec.resolutions;
+        Tcd.OpjTcdResolution top = resolutions[numres - 1];
+        final int w = top.x1 - top.x0;
+        float[] tiledp = tilec.dataReal;
+        float[] wavelet = OpjBufferPool.getDefault().acquireFloats(opj_dwt_max_resolution(resolutions, numres));
+
+        Tcd.OpjTcdResolution tr = resolutions[0];
+        int rw = tr.x1 - tr.x0;
+        int rh = tr.y1 - tr.y0;
+
+        for (int resno = 1; resno < numres; ++resno) {
+            int hsn = rw;
+            int vsn = rh;
+            tr = resolutions[resno];
+            rw = tr.x1 - tr.x0;
+            rh = tr.y1 - tr.y0;
+
+            int hdn = rw - hsn;
+            int hcas = tr.x0 & 1;
+            for (int j = 0; j < rh; ++j) {
+                int row = j * w;
+                opj_dwt_interleave_real(wavelet, tiledp, row, 1, hsn, hdn, hcas);
+                opj_dwt_decode_1_real(wavelet, hdn, hsn, hcas);
+                System.arraycopy(wavelet, 0, tiledp, row, rw);
+            }
+
+            int vdn = rh - vsn;
+            int vcas = tr.y0 & 1;
+            for (int i = 0; i < rw; ++i) {
+                opj_dwt_interleave_real(wavelet, tiledp, i, w, vsn, vdn, vcas);
+                opj_dwt_decode_1_real(wavelet, vdn, vsn, vcas);
+                for (int k = 0, d = i; k < rh; ++k, d += w) {
+                    tiledp[d] = wavelet[k];
+                }
+            }
+        }
+        OpjBufferPool.getDefault().release(wavelet);
+        return true;
+    }
+
+    private static void opj_dwt_interleave_real(float[] mem, float[] src, int offset, int stride,
+                                                int sn, int dn, int cas) {
+        int s = offset;
+        for (int i = 0, d = cas; i < sn; ++i, d += 2, s += stride) {
+            mem[d] = src[s];
+        }
+        for (int i = 0, d = 1 - cas; i < dn; ++i, d += 2, s += stride) {
+            mem[d] = src[s];
+        }
+    }
+
+    /**
+     * C: static void opj_v4dwt_decode(opj_v4dwt_t* OPJ_RESTRICT dwt);
+     *
+     * One-dimensional inverse 9-7 lifting on a single line. The lifting
+     * steps undo the forward ones, hence the negated coefficients.
+     */
+    private static void opj_dwt_decode_1_real(float[] w, int dn, int sn, int cas) {
+        int a, b;
+        if (cas == 0) {
+            if (!(dn > 0 || sn > 1)) {
+                return;
+            }
+            a = 0;
+            b = 1;
+        } else {
+            if (!(sn > 0 || dn > 1)) {
+                return;
+            }
+            a = 1;
+            b = 0;
+        }
+        opj_dwt_decode_step1(w, a, sn, OPJ_K);
+        opj_dwt_decode_step1(w, b, dn, OPJ_TWO_INVK);
+        opj_dwt_decode_step2(w, b, a + 1, sn, Math.min(sn, dn - a), -OPJ_DWT_DELTA);
+        opj_dwt_decode_step2(w, a, b + 1, dn, Math.min(dn, sn - b), -OPJ_DWT_GAMMA);
+        opj_dwt_decode_step2(w, b, a + 1, sn, Math.min(sn, dn - a), -OPJ_DWT_BETA);
+        opj_dwt_decode_step2(w, a, b + 1, dn, Math.min(dn, sn - b), -OPJ_DWT_ALPHA);
+    }
+
+    /** C: opj_v4dwt_decode_step1 - scales every other sample from start. */
+    private static void opj_dwt_decode_step1(float[] w, int start, int count, float c) {
+        for (int i = 0, k = start; i < count; ++i, k += 2) {
+            w[k] *= c;
+        }
+    }
+
+    /**
+     * C: opj_v4dwt_decode_step2 - lifting step: w[k - 1] += (l + w[k]) * c
+     * over k samples, the last k - m of which only see the left neighbour.
+     */
+    private static void opj_dwt_decode_step2(float[] w, int l, int start, int k, int m, float c) {
+        int fw = start;
+        int i = 0;
+        for (; i < m; ++i) {
+            w[fw - 1] += (w[l] + w[fw]) * c;
+            l = fw;
+            fw += 2;
+        }
+        if (m < k) {
+            float c1 = 2 * c * w[l];
+            for (; i < k; ++i) {
+                w[fw - 1] += c1;
+                fw += 2;
+            }
+        }
+    }
+
+    private static int opj_dwt_max_resolution(Tcd.OpjTcdResolution[] resolutions, int numres) {
+        int mr = 1;
+        for (int i = 0; i < numres; ++i) {
+            Tcd.OpjTcdResolution r = resolutions[i];
+            mr = Math.max(mr, Math.max(r.x1 - r.x0, r.y1 - r.y0));
+        }
+        return mr;
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_dwt_getgain(OPJ_UINT32 orient);
+     *
+     * Log2 gain of a subband for the reversible 5-3 wavelet.
+     */
+    public static int opj_dwt_getgain(int orient) {
+        if (orient == 0) {
+            return 0;
+        }
+        if (orient == 1 || orient == 2) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_dwt_getgain_real(OPJ_UINT32 orient);
+     *
+     * Log2 gain of a subband for the irreversible 9-7 wavelet (always 0).
+     */
+    public static int opj_dwt_getgain_real(int orient) {
+        return 0;
+    }
+
     /**
      * C: OPJ_FLOAT64 opj_dwt_getnorm(OPJ_UINT32 level, OPJ_UINT32 orient);
      *
@@ -3,8 +3,8 @@ package jopj;
 import java.util.Objects;
 
 /**
- * Minimal JP2 parser: just enough to locate and extract the embedded
- * JPEG 2000 code stream from a JP2 file (the "jp2c" box).
+ * Minimal JP2 parser: just enough to walk the box tree of a JP2 file and
+ * locate or extract the embedded JPEG 2000 code stream (the "jp2c" box).
  * This does NOT parse metadata, color profiles, or anything else.
  */
 public final class Jp2Parser {
@@ -12,6 +12,17 @@ public final class Jp2Parser {
     private Jp2Parser() {
     }
 
+    /** Position of the codestream (jp2c box contents) within a JP2 file. */
+    public static final class CodestreamRange {
+        public final long offset;
+        public final long length;
+
+        public CodestreamRange(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
     /** Basic classification of input bytes. */
     public enum J2kFormat {
         RAW_J2K,
@@ -49,6 +60,8 @@ public final class Jp2Parser {
 
     /**
      * Extract the raw jopj.J2K codestream from a JP2 file.
+     * This copies the whole box; to decode in place, use findCodestream
+     * and OpjStream.createFromByteArray(data, offset, length).
      *
      * @param jp2Bytes full bytes of a JP2 file
      * @return a new byte[] containing only the codestream (jp2c box contents)
@@ -56,77 +69,191 @@ public final class Jp2Parser {
      *                                  or no jp2c box is found.
      */
     public static byte[] extractCodestream(byte[] jp2Bytes) {
+        CodestreamRange range = findCodestream(jp2Bytes);
+        byte[] codestream = new byte[(int) range.length];
+        System.arraycopy(jp2Bytes, (int) range.offset, codestream, 0, (int) range.length);
+        return codestream;
+    }
+
+    /**
+     * Locate the jp2c box of a JP2 file held in memory, without copying
+     * it.
+     *
+     * @param jp2Bytes full bytes of a JP2 file
+     * @return offset and length of the codestream within jp2Bytes
+     * @throws IllegalArgumentException if this does not look like a valid JP2
+     *                                  or no jp2c box is found.
+     */
+    public static CodestreamRange findCodestream(byte[] jp2Bytes) {
         Objects.requireNonNull(jp2Bytes, "jp2Bytes must not be null");
 
         if (sniffFormat(jp2Bytes) != J2kFormat.JP2) {
             throw new IllegalArgumentException("Input is not recognized as JP2");
         }
+        return findCodestream(OpjStream.createFromByteArray(jp2Bytes));
+    }
 
-        int offset = 0;
-        final int len = jp2Bytes.length;
+    /**
+     * Locate the jp2c box of a JP2 file by walking its top-level boxes
+     * over a stream positioned at the start of the file. Only the 8- or
+     * 16-byte box headers are read; box contents are skipped, so files
+     * of any size are opened without reading them.
+     *
+     * @return offset and length of the codestream, relative to the
+     *         stream start
+     * @throws IllegalArgumentException if no valid jp2c box is found
+     */
+    public static CodestreamRange findCodestream(OpjStream stream) {
+        Box[] found = new Box[1];
+        walkBoxes(stream, box -> {
+            if (box.depth == 0 && box.type == BOX_JP2C) {
+                found[0] = box;
+                return false;
+            }
+            return true;
+        });
+        if (found[0] == null) {
+            throw new IllegalArgumentException("No jp2c (contiguous codestream) box found in JP2");
+        }
+        if (found[0].contentLength() == 0) {
+            throw new IllegalArgumentException("Empty jp2c box in JP2");
+        }
+        return new CodestreamRange(found[0].contentOffset(), found[0].contentLength());
+    }
+
+    /* ===================================================================== */
+    /* Box tree walk                                                         */
+    /* ===================================================================== */
+
+    static final int BOX_JP   = 0x6A502020; // "jP  "
+    static final int BOX_JP2C = 0x6A703263; // "jp2c"
+
+    /**
+     * Superboxes of ISO/IEC 15444-1 and -2: their contents are boxes, so
+     * walkBoxes descends into them instead of skipping them.
+     */
+    private static final int[] SUPER_BOXES = {
+            0x6A703268, // "jp2h"
+            0x72657320, // "res "
+            0x75696E66, // "uinf"
+            0x6A706368, // "jpch"
+            0x6A706C68, // "jplh"
+            0x63677270, // "cgrp"
+            0x6674626C, // "ftbl"
+            0x636F6D70, // "comp"
+            0x61736F63  // "asoc"
+    };
 
-        // --- 1. Parse signature box (must be first) ---
-        if (len < 12) {
-            throw new IllegalArgumentException("Truncated JP2 file (no signature box)");
+    /** A box header met by walkBoxes. Offsets are from the stream start. */
+    public static final class Box {
+        public final int type;
+        public final long offset;
+        public final long headerSize;
+        /** Header plus contents. */
+        public final long length;
+        /** 0 for top-level boxes, 1 for their children, ... */
+        public final int depth;
+
+        Box(int type, long offset, long headerSize, long length, int depth) {
+            this.type = type;
+            this.offset = offset;
+            this.headerSize = headerSize;
+            this.length = length;
+            this.depth = depth;
+        }
+
+        public long contentOffset() {
+            return offset + headerSize;
         }
-        int sigLength = readUInt32BE(jp2Bytes, offset);
-        int sigType = readUInt32BE(jp2Bytes, offset + 4);
-        if (sigLength != 12 || sigType != 0x6A502020) { // "jP  "
-            throw new IllegalArgumentException("Invalid JP2 signature box");
+
+        public long contentLength() {
+            return length - headerSize;
+        }
+
+        public boolean isSuperBox() {
+            for (int t : SUPER_BOXES) {
+                if (t == type) return true;
+            }
+            return false;
         }
-        // Optionally check signature contents (0D 0A 87 0A)
-        // but we can skip strict checking if we want.
-        offset += sigLength;
-
-        // --- 2. Iterate over boxes until we find "jp2c" ---
-        while (offset + 8 <= len) {
-            long boxLength = readUInt32BE(jp2Bytes, offset) & 0xFFFFFFFFL;
-            int boxType = readUInt32BE(jp2Bytes, offset + 4);
+    }
+
+    /** Receives boxes in file order; a superbox comes before its children. */
+    @FunctionalInterface
+    public interface BoxVisitor {
+        /** Returns false to end the walk. */
+        boolean visit(Box box);
+    }
+
+    /**
+     * Walks the box tree of a JP2 file over a stream positioned at the
+     * start of the file, with 64-bit offsets and lengths. Only box headers
+     * are read: superbox contents are walked, all other contents are
+     * skipped with opj_stream_skip. On return, after the visitor stopped
+     * the walk, the stream is positioned just after that box's header.
+     *
+     * @throws IllegalArgumentException if the signature box is missing or
+     *                                  a box header is truncated or invalid
+     */
+    public static void walkBoxes(OpjStream stream, BoxVisitor visitor) {
+        Objects.requireNonNull(stream, "stream must not be null");
+        Objects.requireNonNull(visitor, "visitor must not be null");
+        walkBoxes(stream, stream.byteOffset, stream.userDataLength, 0, visitor, new byte[8]);
+    }
+
+    /** Walks the boxes in [offset, end); returns false if the visitor stopped. */
+    private static boolean walkBoxes(OpjStream stream, long offset, long end, int depth,
+                                     BoxVisitor visitor, byte[] header) {
+        while (end - offset >= 8) {
+            if (Cio.opj_stream_read_data(stream, header, 8, null) != 8) {
+                throw new IllegalArgumentException("Truncated JP2 box header");
+            }
+            long boxLength = readUInt32BE(header, 0) & 0xFFFFFFFFL;
+            int boxType = readUInt32BE(header, 4);
             long headerSize = 8L;
-            long dataStart = offset + headerSize;
-            long dataLength;
+
+            if (depth == 0 && offset == 0 && (boxLength != 12 || boxType != BOX_JP)) {
+                throw new IllegalArgumentException("Invalid JP2 signature box");
+            }
 
             if (boxLength == 0) {
-                // Box extends to end of file
-                dataLength = len - (offset + headerSize);
-                boxLength = dataLength + headerSize;
+                // Box extends to end of its parent (the file, at top level)
+                boxLength = end - offset;
             } else if (boxLength == 1) {
                 // Extended length: 64-bit size in next 8 bytes
-                if (offset + 16 > len) {
+                if (Cio.opj_stream_read_data(stream, header, 8, null) != 8) {
                     throw new IllegalArgumentException("Truncated extended-length box");
                 }
-                long extLen = readUInt64BE(jp2Bytes, offset + 8);
+                boxLength = readUInt64BE(header, 0);
                 headerSize = 16L;
-                dataStart = offset + headerSize;
-                dataLength = extLen - headerSize;
-                boxLength = extLen;
-            } else {
-                dataLength = boxLength - headerSize;
             }
 
-            if (boxLength < headerSize || offset + boxLength > len) {
+            if (boxLength < headerSize || boxLength > end - offset) {
                 throw new IllegalArgumentException("Invalid box length in JP2");
             }
 
-            // If this is the Contiguous Codestream box ('jp2c'), grab it
-            if (boxType == 0x6A703263) { // 'j','p','2','c'
-                if (dataLength <= 0) {
-                    throw new IllegalArgumentException("Empty jp2c box in JP2");
+            Box box = new Box(boxType, offset, headerSize, boxLength, depth);
+            if (!visitor.visit(box)) {
+                return false;
+            }
+            if (box.isSuperBox()) {
+                if (!walkBoxes(stream, box.contentOffset(), offset + boxLength, depth + 1,
+                        visitor, header)) {
+                    return false;
                 }
-                if (dataStart + dataLength > len) {
-                    throw new IllegalArgumentException("Truncated jp2c box in JP2");
+            } else {
+                long toSkip = boxLength - headerSize;
+                if (toSkip > 0 && Cio.opj_stream_skip(stream, toSkip, null) != toSkip) {
+                    throw new IllegalArgumentException("Truncated JP2 box");
                 }
-
-                byte[] codestream = new byte[(int) dataLength];
-                System.arraycopy(jp2Bytes, (int) dataStart, codestream, 0, (int) dataLength);
-                return codestream;
             }
-
-            // Move to next box
-            offset += (int) boxLength;
+            offset += boxLength;
         }
-
-        throw new IllegalArgumentException("No jp2c (contiguous codestream) box found in JP2");
+        // Padding shorter than a box header
+        if (end > offset && Cio.opj_stream_skip(stream, end - offset, null) != end - offset) {
+            throw new IllegalArgumentException("Truncated JP2 box");
+        }
+        return true;
     }
 
     /* ===================================================================== */
@@ -44,11 +44,44 @@ public final class Mct {
     }
 
     /* ------------------------------------------------------------------ */
-    /* Placeholders for actual MCT forward/inverse routines                */
+    /* Inverse transforms                                                 */
     /* ------------------------------------------------------------------ */
 
-    // As you port mct.c, you will add methods like:
-    //  - forward MCT on int[]/float[]
-    //  - inverse MCT
-    //  and call them from jopj.J2K tier-1 / tile-level reconstruction.
+    /**
+     * C: void opj_mct_decode(OPJ_INT32* c0, OPJ_INT32* c1, OPJ_INT32* c2, OPJ_SIZE_T n);
+     *
+     * Inverse reversible component transform (YUV -> RGB), in place.
+     */
+    public static void opj_mct_decode(int[] c0, int[] c1, int[] c2, int n) {
+        for (int i = 0; i < n; ++i) {
+            int y = c0[i];
+            int u = c1[i];
+            int v = c2[i];
+            int g = y - ((u + v) >> 2);
+            int r = v + g;
+            int b = u + g;
+            c0[i] = r;
+            c1[i] = g;
+            c2[i] = b;
+        }
+    }
+
+    /**
+     * C: void opj_mct_decode_real(OPJ_FLOAT32* c0, OPJ_FLOAT32* c1, OPJ_FLOAT32* c2, OPJ_SIZE_T n);
+     *
+     * Inverse irreversible component transform (YCbCr -> RGB), in place.
+     */
+    public static void opj_mct_decode_real(float[] c0, float[] c1, float[] c2, int n) {
+        for (int i = 0; i < n; ++i) {
+            float y = c0[i];
+            float u = c1[i];
+            float v = c2[i];
+            float r = y + (v * 1.402f);
+            float g = y - (u * 0.34413f) - (v * (0.71414f));
+            float b = y + (u * 1.772f);
+            c0[i] = r;
+            c1[i] = g;
+            c2[i] = b;
+        }
+    }
 }
\ No newline at end of file
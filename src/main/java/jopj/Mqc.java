@@ -1,32 +1,103 @@
 package jopj;
 
+import java.util.Arrays;
+
 /**
- * Java skeleton for mqc.c / mqc.h
+ * Java port of mqc.c / mqc.h / mqc_inl.h
+ *
+ * MQ arithmetic coder used by tier-1 (jopj.T1). The decoding half is
+ * ported; the encoding functions are still stubs.
  *
- * MQ arithmetic coder used by tier-1 (jopj.T1). Here we expose only the
- * public functions from mqc.h and a stub for the opj_mqc_t state.
+ * The C decoder writes an artificial 0xFF 0xFF marker after the end of
+ * the code-block data (and restores the two bytes in opq_mqc_finish_dec)
+ * so that the byte-in routine stops there. Here the segment bytes belong
+ * to the tile data and are never written to: bytes at or past end read
+ * as 0xFF instead, which has the same effect.
  */
 public final class Mqc {
 
     private Mqc() {
     }
 
+    /** C: MQC_NUMCTXS */
+    public static final int MQC_NUMCTXS = 19;
+
+    /*
+     * C: mqc_states[]. A state is an index 2 * i + mps into these tables,
+     * i being the row of ISO 15444-1 Table C.2; they are built from the
+     * 47 rows of that table below.
+     */
+    private static final int[] QE = {
+        0x5601, 0x3401, 0x1801, 0x0ac1, 0x0521, 0x0221, 0x5601, 0x5401,
+        0x4801, 0x3801, 0x3001, 0x2401, 0x1c01, 0x1601, 0x5601, 0x5401,
+        0x5101, 0x4801, 0x3801, 0x3401, 0x3001, 0x2801, 0x2401, 0x2201,
+        0x1c01, 0x1801, 0x1601, 0x1401, 0x1201, 0x1101, 0x0ac1, 0x09c1,
+        0x08a1, 0x0521, 0x0441, 0x02a1, 0x0221, 0x0141, 0x0111, 0x0085,
+        0x0049, 0x0025, 0x0015, 0x0009, 0x0005, 0x0001, 0x5601
+    };
+    private static final int[] NMPS = {
+         1,  2,  3,  4,  5, 38,  7,  8,  9, 10, 11, 12, 13, 29, 15, 16,
+        17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32,
+        33, 34, 35, 36, 37, 38, 39, 40, 41, 42, 43, 44, 45, 45, 46
+    };
+    private static final int[] NLPS = {
+         1,  6,  9, 12, 29, 33,  6, 14, 14, 14, 17, 18, 20, 21, 14, 14,
+        15, 16, 17, 18, 19, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29,
+        30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40, 41, 42, 43, 46
+    };
+    private static final int[] SWITCH = {
+        1, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 1, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    /** Per state: probability estimate, MPS, next state after an MPS / an LPS. */
+    static final int[] STATE_QEVAL = new int[2 * QE.length];
+    static final int[] STATE_MPS = new int[2 * QE.length];
+    static final int[] STATE_NMPS = new int[2 * QE.length];
+    static final int[] STATE_NLPS = new int[2 * QE.length];
+
+    static {
+        for (int i = 0; i < QE.length; ++i) {
+            for (int mps = 0; mps < 2; ++mps) {
+                int state = 2 * i + mps;
+                STATE_QEVAL[state] = QE[i];
+                STATE_MPS[state] = mps;
+                STATE_NMPS[state] = 2 * NMPS[i] + mps;
+                STATE_NLPS[state] = 2 * NLPS[i] + (SWITCH[i] != 0 ? 1 - mps : mps);
+            }
+        }
+    }
+
     /**
      * Java equivalent of opj_mqc_t (MQ coder state).
-     * Expand this with fields for:
-     *  - current state index
-     *  - A/C registers
-     *  - buffer pointer, context states, etc.
      */
     public static final class OpjMqc {
-        // Placeholder fields; fill in as you port mqc.c.
+        /** C register (unsigned in C). */
         public int  c;
+        /** A register. */
         public int  a;
+        /** Number of bits still available in c before the next byte-in. */
         public int  ct;
+        /** Number of times the artificial end marker has been read. */
+        public int  endOfByteStreamCounter;
+        /** Index of the current context in ctxs. */
         public int  currentContext;
 
         public byte[] buffer;
         public int    bp;   // pointer into buffer
+        /** Index of the first byte of the segment in buffer. */
+        public int    start;
+        /** Index one past the last byte of the segment in buffer. */
+        public int    end;
+
+        /** State of each context. */
+        public final int[] ctxs = new int[MQC_NUMCTXS];
+        /**
+         * Offset of the zero coding contexts of the current band orientation
+         * in T1's zero coding lookup table (C: lut_ctxno_zc_orient).
+         */
+        public int lutCtxnoZcOrient;
     }
 
     /* ------------------------------------------------------------------ */
@@ -38,8 +109,7 @@ public final class Mqc {
      */
     public static long opj_mqc_numbytes(OpjMqc mqc) {
         if (mqc == null || mqc.buffer == null) return 0;
-        // Stub: return bytes written so far.
-        return mqc.bp;
+        return mqc.bp - mqc.start;
     }
 
     /**
@@ -47,11 +117,179 @@ public final class Mqc {
      */
     public static void opj_mqc_resetstates(OpjMqc mqc) {
         if (mqc == null) return;
-        // TODO: reset all context states to default.
-        mqc.c = 0;
+        Arrays.fill(mqc.ctxs, 0);
+    }
+
+    /**
+     * C: void opj_mqc_setstate(opj_mqc_t *mqc, OPJ_UINT32 ctxno, OPJ_UINT32 msb, OPJ_INT32 prob);
+     */
+    public static void opj_mqc_setstate(OpjMqc mqc, int ctxno, int msb, int prob) {
+        mqc.ctxs[ctxno] = msb + (prob << 1);
+    }
+
+    /**
+     * C: void opj_mqc_setcurctx(opj_mqc_t *mqc, OPJ_UINT32 ctxno);
+     */
+    public static void opj_mqc_setcurctx(OpjMqc mqc, int ctxno) {
+        mqc.currentContext = ctxno;
+    }
+
+    /**
+     * C: void opj_mqc_init_dec(opj_mqc_t *mqc, OPJ_BYTE *bp, OPJ_UINT32 len, ...);
+     *
+     * Starts decoding the len bytes of buffer at offset.
+     */
+    public static void opj_mqc_init_dec(OpjMqc mqc, byte[] buffer, int offset, int len) {
+        opj_mqc_init_dec_common(mqc, buffer, offset, len);
+        opj_mqc_setcurctx(mqc, 0);
+        mqc.endOfByteStreamCounter = 0;
+        if (len == 0) {
+            mqc.c = 0xff << 16;
+        } else {
+            mqc.c = opj_mqc_byte(mqc, mqc.bp) << 16;
+        }
+        opj_mqc_bytein(mqc);
+        mqc.c <<= 7;
+        mqc.ct -= 7;
         mqc.a = 0x8000;
+    }
+
+    /**
+     * C: void opj_mqc_raw_init_dec(opj_mqc_t *mqc, OPJ_BYTE *bp, OPJ_UINT32 len, ...);
+     *
+     * Starts reading the len raw (bypass) bytes of buffer at offset.
+     */
+    public static void opj_mqc_raw_init_dec(OpjMqc mqc, byte[] buffer, int offset, int len) {
+        opj_mqc_init_dec_common(mqc, buffer, offset, len);
+        mqc.c = 0;
         mqc.ct = 0;
-        mqc.currentContext = 0;
+    }
+
+    private static void opj_mqc_init_dec_common(OpjMqc mqc, byte[] buffer, int offset, int len) {
+        mqc.buffer = buffer;
+        mqc.start = offset;
+        mqc.end = offset + len;
+        mqc.bp = offset;
+    }
+
+    /**
+     * C: void opq_mqc_finish_dec(opj_mqc_t *mqc);
+     * (Note: header typo "opq"; keep the name to match usage.)
+     *
+     * Nothing to restore: the end marker is never written to the buffer.
+     */
+    public static void opq_mqc_finish_dec(OpjMqc mqc) {
+    }
+
+    /** The byte at index i of the segment, 0xFF at and past its end. */
+    private static int opj_mqc_byte(OpjMqc mqc, int i) {
+        return i < mqc.end ? mqc.buffer[i] & 0xff : 0xff;
+    }
+
+    /**
+     * C: opj_mqc_bytein_macro
+     *
+     * Reads the next byte into c, handling the bit stuffing after 0xFF
+     * and stopping at a marker (ISO 15444-1 C.3.4, BYTEIN).
+     */
+    private static void opj_mqc_bytein(OpjMqc mqc) {
+        int next = opj_mqc_byte(mqc, mqc.bp + 1);
+        if (opj_mqc_byte(mqc, mqc.bp) == 0xff) {
+            if (next > 0x8f) {
+                mqc.c += 0xff00;
+                mqc.ct = 8;
+                mqc.endOfByteStreamCounter++;
+            } else {
+                mqc.bp++;
+                mqc.c += next << 9;
+                mqc.ct = 7;
+            }
+        } else {
+            mqc.bp++;
+            mqc.c += next << 8;
+            mqc.ct = 8;
+        }
+    }
+
+    /** C: opj_mqc_renormd_macro */
+    private static void opj_mqc_renormd(OpjMqc mqc) {
+        do {
+            if (mqc.ct == 0) {
+                opj_mqc_bytein(mqc);
+            }
+            mqc.a <<= 1;
+            mqc.c <<= 1;
+            mqc.ct--;
+        } while (mqc.a < 0x8000);
+    }
+
+    /**
+     * C: opj_mqc_decode_macro
+     *
+     * Decodes a decision in the current context (ISO 15444-1 C.3.2, DECODE).
+     */
+    public static int opj_mqc_decode(OpjMqc mqc) {
+        final int[] ctxs = mqc.ctxs;
+        final int cx = mqc.currentContext;
+        final int state = ctxs[cx];
+        final int qeval = STATE_QEVAL[state];
+        int d;
+
+        mqc.a -= qeval;
+        if ((mqc.c >>> 16) < qeval) {
+            // LPS exchange
+            if (mqc.a < qeval) {
+                d = STATE_MPS[state];
+                ctxs[cx] = STATE_NMPS[state];
+            } else {
+                d = 1 - STATE_MPS[state];
+                ctxs[cx] = STATE_NLPS[state];
+            }
+            mqc.a = qeval;
+            opj_mqc_renormd(mqc);
+        } else {
+            mqc.c -= qeval << 16;
+            if ((mqc.a & 0x8000) == 0) {
+                // MPS exchange
+                if (mqc.a < qeval) {
+                    d = 1 - STATE_MPS[state];
+                    ctxs[cx] = STATE_NLPS[state];
+                } else {
+                    d = STATE_MPS[state];
+                    ctxs[cx] = STATE_NMPS[state];
+                }
+                opj_mqc_renormd(mqc);
+            } else {
+                d = STATE_MPS[state];
+            }
+        }
+        return d;
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_mqc_raw_decode(opj_mqc_t *mqc);
+     *
+     * Reads a raw bit in bypass mode (ISO 15444-1 D.6).
+     */
+    public static int opj_mqc_raw_decode(OpjMqc mqc) {
+        if (mqc.ct == 0) {
+            if (mqc.c == 0xff) {
+                if (opj_mqc_byte(mqc, mqc.bp) > 0x8f) {
+                    mqc.c = 0xff;
+                    mqc.ct = 8;
+                } else {
+                    mqc.c = opj_mqc_byte(mqc, mqc.bp);
+                    mqc.bp++;
+                    mqc.ct = 7;
+                }
+            } else {
+                mqc.c = opj_mqc_byte(mqc, mqc.bp);
+                mqc.bp++;
+                mqc.ct = 8;
+            }
+        }
+        mqc.ct--;
+        return (mqc.c >>> mqc.ct) & 0x01;
     }
 
     /**
@@ -136,12 +374,4 @@ public final class Mqc {
     public static void opj_mqc_segmark_enc(OpjMqc mqc) {
         // TODO: segment marker insertion.
     }
-
-    /**
-     * C: void opq_mqc_finish_dec(opj_mqc_t *mqc);
-     * (Note: header typo "opq"; keep the name to match usage.)
-     */
-    public static void opq_mqc_finish_dec(OpjMqc mqc) {
-        // TODO: finalize decoder state.
-    }
-}
\ No newline at end of file
+}
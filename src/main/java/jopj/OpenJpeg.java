@@ -3,6 +3,8 @@ package jopj;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
 
 import static jopj.OpenJpeg.OpjCodecFormat.OPJ_CODEC_J2K;
 
@@ -77,6 +79,34 @@ public final class OpenJpeg {
         void log(String msg);
     }
 
+    /**
+     * Receives the tiles of opj_decode_tiles. tile is owned by the
+     * callee; return false to stop decoding.
+     */
+    @FunctionalInterface
+    public interface OpjTileCallback {
+        boolean tile(int tileIndex, OpjImage tile);
+
+        /**
+         * True if tile may be called from several tile workers at once.
+         * By default the calls are serialized, one tile at a time.
+         */
+        default boolean concurrent() {
+            return false;
+        }
+    }
+
+    /**
+     * Receives the samples of opj_decode in place of the output image's
+     * planes: n level-shifted, clamped samples of component compno, at
+     * row y of that (reduced) component from column x on. Called from the
+     * tile workers with disjoint regions.
+     */
+    @FunctionalInterface
+    public interface OpjSampleWriter {
+        void write(int compno, int x, int y, int[] src, int srcOffset, int n);
+    }
+
     /* ------------------------------------------------------------------ */
     /* Version                                                            */
     /* ------------------------------------------------------------------ */
@@ -102,7 +132,24 @@ public final class OpenJpeg {
     }
 
     public static void opj_destroy_codec(OpjCodec codec) {
-        // TODO: free native resources if any.
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k != null) {
+            j2k.opj_j2k_destroy();
+        }
+    }
+
+    /**
+     * Readies codec for the next codestream while keeping its scratch and
+     * caches (see OpjJ2k.opj_j2k_reset); cheaper than destroying it and
+     * creating another.
+     */
+    public static boolean opj_reset_decoder(OpjCodec codec) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_reset();
+        return true;
     }
 
     public static void opj_set_default_decoder_parameters(OpjDParameters params) {
@@ -112,21 +159,83 @@ public final class OpenJpeg {
     }
 
     public static boolean opj_setup_decoder(OpjCodec codec, OpjDParameters params) {
-        // TODO: pass params to native decoder or internal implementation.
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || params == null) {
+            return false;
+        }
+        j2k.opj_j2k_setup_decoder(params);
+        return true;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_codec_set_threads(opj_codec_t *p_codec, int num_threads);
+     *
+     * Number of worker threads for tile decoding (0 or 1: decode on the
+     * calling thread).
+     */
+    public static boolean opj_codec_set_threads(OpjCodec codec, int numThreads) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || numThreads < 0) {
+            return false;
+        }
+        return j2k.opj_j2k_set_threads(numThreads);
+    }
+
+    /**
+     * Runs the tile stages (tier-1, DWT, MCT) of the codec on executor
+     * instead of its own worker threads; null restores them.
+     */
+    public static boolean opj_codec_set_tile_executor(OpjCodec codec, ExecutorService executor) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_tile_executor(executor);
         return true;
     }
 
+    /**
+     * Reads the main header and fills image with the image header (no
+     * component data).
+     */
     public static boolean opj_read_header(OpjStream stream,
                                           OpjCodec codec,
                                           OpjImage image) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || stream == null || image == null) {
+            return false;
+        }
+        OpjImage[] header = new OpjImage[1];
+        if (!j2k.opj_j2k_read_header(stream, header)) {
+            return false;
+        }
+        OpjImage.opj_copy_image_header(header[0], image);
         return true;
     }
 
     public static boolean opj_decode(OpjCodec codec,
                                      OpjStream stream,
                                      OpjImage image) {
-        // TODO: implement real decoding.
-        return true;
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || stream == null) {
+            return false;
+        }
+        return j2k.opj_j2k_decode(stream, image);
+    }
+
+    /**
+     * Decodes every tile after opj_read_header and passes each one to
+     * callback instead of assembling the whole image, so that memory use
+     * follows the tile size rather than the image size.
+     */
+    public static boolean opj_decode_tiles(OpjCodec codec,
+                                           OpjStream stream,
+                                           OpjTileCallback callback) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || stream == null) {
+            return false;
+        }
+        return j2k.opj_j2k_decode_tile_by_tile(stream, callback);
     }
 
     public static boolean opj_get_decoded_tile(OpjCodec codec,
@@ -139,8 +248,8 @@ public final class OpenJpeg {
 
     public static boolean opj_end_decompress(OpjCodec codec,
                                              OpjStream stream) {
-        // TODO: finalize decoding.
-        return true;
+        // Everything up to EOC has been consumed by opj_decode
+        return opj_get_j2k(codec) != null;
     }
 
     public static boolean opj_set_decode_area(OpjCodec codec,
@@ -155,14 +264,152 @@ public final class OpenJpeg {
 
     public static boolean opj_set_decoded_resolution_factor(OpjCodec codec,
                                                             long resFactor) {
-        // TODO: store/apply resolution factor.
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null || resFactor > Integer.MAX_VALUE) {
+            return false;
+        }
+        return j2k.opj_j2k_set_decoded_resolution_factor((int) resFactor);
+    }
+
+    /**
+     * C: OPJ_BOOL opj_decoder_set_strict_mode(opj_codec_t *p_codec, OPJ_BOOL strict);
+     *
+     * Non-strict decoding (the default here) decodes truncated
+     * codestreams from the data present instead of failing.
+     */
+    public static boolean opj_decoder_set_strict_mode(OpjCodec codec, boolean strict) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_decoder_set_strict_mode(strict);
+        return true;
+    }
+
+    /**
+     * Makes opj_decode fill OpjImageComp.byteData or shortData instead of
+     * data when every decoded component has at most 8 or 16 bits.
+     */
+    public static boolean opj_set_narrow_output(OpjCodec codec, boolean narrow) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_narrow_output(narrow);
+        return true;
+    }
+
+    /**
+     * Converts the decoded components to the given precisions (see
+     * OpjJ2k.opj_j2k_set_output_precision); null keeps them as coded.
+     */
+    public static boolean opj_set_output_precision(OpjCodec codec, OpjPrecision[] precision) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_output_precision(precision);
+        return true;
+    }
+
+    /**
+     * Makes opj_decode fill OpjImageComp.floatData instead of the other
+     * planes, in the native sample range or normalized to [0, 1].
+     */
+    public static boolean opj_set_float_output(OpjCodec codec, boolean floatOutput, boolean normalized) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_float_output(floatOutput, normalized);
+        return true;
+    }
+
+    /**
+     * Makes opj_decode fill OpjImageComp.offHeapData instead of the
+     * sample arrays.
+     */
+    public static boolean opj_set_offheap_output(OpjCodec codec, boolean offHeap) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_offheap_output(offHeap);
+        return true;
+    }
+
+    /**
+     * Makes opj_decode and opj_decode_tiles output subsampled components
+     * upsampled to the reference grid, as they are copied out of the
+     * tiles.
+     */
+    public static boolean opj_set_upsample(OpjCodec codec, boolean upsample) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_upsample(upsample);
+        return true;
+    }
+
+    /**
+     * Makes opj_decode hand every decoded row to writer instead of
+     * allocating and filling the output image's planes; null restores
+     * the planes.
+     */
+    public static boolean opj_set_sample_writer(OpjCodec codec, OpjSampleWriter writer) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_sample_writer(writer);
+        return true;
+    }
+
+    /**
+     * Leaves the given tiles out of opj_decode / opj_decode_tiles: their
+     * data is skipped in the stream. Call after opj_read_header.
+     */
+    public static boolean opj_set_skipped_tiles(OpjCodec codec, BitSet tiles) {
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        j2k.opj_j2k_set_skipped_tiles(tiles);
         return true;
     }
 
     public static boolean opj_set_decoded_components(OpjCodec codec,
                                                      long[] compIndices) {
-        // TODO: restrict decoding to specified components.
-        return true;
+        OpjJ2k j2k = opj_get_j2k(codec);
+        if (j2k == null) {
+            return false;
+        }
+        int[] indices = null;
+        if (compIndices != null) {
+            indices = new int[compIndices.length];
+            for (int i = 0; i < compIndices.length; ++i) {
+                if (compIndices[i] < 0 || compIndices[i] > Integer.MAX_VALUE) {
+                    return false;
+                }
+                indices[i] = (int) compIndices[i];
+            }
+        }
+        return j2k.opj_j2k_set_decoded_components(indices);
+    }
+
+    /**
+     * The codestream decoder behind a codec: the codec itself for J2K, the
+     * wrapped one for JP2.
+     */
+    static OpjJ2k opj_get_j2k(OpjCodec codec) {
+        if (codec instanceof OpjJ2k j2k) {
+            return j2k;
+        }
+        if (codec instanceof OpjJP2 jp2) {
+            return jp2.j2k;
+        }
+        return null;
     }
 
     /* ------------------------------------------------------------------ */
@@ -199,7 +446,7 @@ public final class OpenJpeg {
     /* ------------------------------------------------------------------ */
 
     public static void opj_image_destroy(OpjImage image) {
-        // GC handles pure Java data; free native resources here if you add any.
+        OpjImage.opj_image_destroy(image);
     }
 
     public static void opj_destroy_cstr_index(OpjCStrIndex index) {
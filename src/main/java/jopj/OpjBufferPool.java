@@ -0,0 +1,271 @@
+package jopj;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of sample buffers for component planes, tile buffers and wavelet
+ * scratch, so that decoding frame after frame of the same size re-uses the
+ * previous frame's arrays instead of allocating tens of megabytes each time.
+ *
+ * Buffers are classed by element type and exact length: the decoder hands
+ * image planes to callers as-is, so a plane must be exactly w * h long, and
+ * same-sized frames ask for the same lengths again. The pool retains at most
+ * maxBytes; a buffer released beyond that is left to the GC. A size class
+ * that has not been asked for within idleMillis is dropped.
+ *
+ * The decoder takes buffers from getDefault(); install another pool (or
+ * disabled()) with setDefault; subclasses may override acquire and release,
+ * e.g. to count hits. Acquired arrays are zero-filled, like new arrays,
+ * unless the caller passes clear = false because it is about to write
+ * every element anyway; a re-used array then keeps its old contents.
+ * All methods are thread-safe; they lock with a ReentrantLock, never
+ * synchronized, so decodes on virtual threads do not pin their carrier.
+ */
+public class OpjBufferPool {
+
+    /** Default retained-memory cap: an eighth of the maximum heap. */
+    public static final long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    /** Default time after which an unused size class is evicted. */
+    public static final long DEFAULT_IDLE_MILLIS = 60_000;
+    /** Arrays shorter than this are cheaper to allocate than to pool. */
+    public static final int MIN_POOLED_LENGTH = 1024;
+
+    private static volatile OpjBufferPool defaultPool =
+            new OpjBufferPool(DEFAULT_MAX_BYTES, DEFAULT_IDLE_MILLIS);
+
+    /** Free buffers of one element type and length. */
+    private static final class SizeClass {
+        final ArrayDeque<Object> free = new ArrayDeque<>();
+        long lastUse;
+    }
+
+    private final long maxBytes;
+    private final long idleNanos;
+    private final Map<Long, SizeClass> classes = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long retainedBytes;
+    private long lastSweep;
+
+    /**
+     * maxBytes caps the memory held by free buffers; idleMillis is how long
+     * a size class may go unused before its buffers are dropped.
+     */
+    public OpjBufferPool(long maxBytes, long idleMillis) {
+        if (maxBytes < 0 || idleMillis <= 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0 and idleMillis > 0");
+        }
+        this.maxBytes = maxBytes;
+        this.idleNanos = idleMillis * 1_000_000L;
+        this.lastSweep = System.nanoTime();
+    }
+
+    public static OpjBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /** Installs the pool the decoder allocates from; null disables pooling. */
+    public static void setDefault(OpjBufferPool pool) {
+        OpjBufferPool old = defaultPool;
+        defaultPool = pool != null ? pool : disabled();
+        if (old != null && old != defaultPool) {
+            old.clear();
+        }
+    }
+
+    /** A pool that retains nothing: every acquire allocates. */
+    public static OpjBufferPool disabled() {
+        return new OpjBufferPool(0, DEFAULT_IDLE_MILLIS);
+    }
+
+    public int[] acquireInts(int length) {
+        return acquireInts(length, true);
+    }
+
+    /** acquireInts that, without clear, may return a re-used array as it was left. */
+    public int[] acquireInts(int length, boolean clear) {
+        int[] a = (int[]) acquire(int[].class, length, 4);
+        if (a == null) {
+            return new int[length];
+        }
+        if (clear) {
+            Arrays.fill(a, 0);
+        }
+        return a;
+    }
+
+    public short[] acquireShorts(int length) {
+        return acquireShorts(length, true);
+    }
+
+    public short[] acquireShorts(int length, boolean clear) {
+        short[] a = (short[]) acquire(short[].class, length, 2);
+        if (a == null) {
+            return new short[length];
+        }
+        if (clear) {
+            Arrays.fill(a, (short) 0);
+        }
+        return a;
+    }
+
+    public byte[] acquireBytes(int length) {
+        return acquireBytes(length, true);
+    }
+
+    public byte[] acquireBytes(int length, boolean clear) {
+        byte[] a = (byte[]) acquire(byte[].class, length, 1);
+        if (a == null) {
+            return new byte[length];
+        }
+        if (clear) {
+            Arrays.fill(a, (byte) 0);
+        }
+        return a;
+    }
+
+    public float[] acquireFloats(int length) {
+        return acquireFloats(length, true);
+    }
+
+    public float[] acquireFloats(int length, boolean clear) {
+        float[] a = (float[]) acquire(float[].class, length, 4);
+        if (a == null) {
+            return new float[length];
+        }
+        if (clear) {
+            Arrays.fill(a, 0f);
+        }
+        return a;
+    }
+
+    /**
+     * Gives a buffer back. The caller must not touch it afterwards: the
+     * next acquire of the same length may hand it to someone else.
+     */
+    public void release(int[] a) {
+        if (a != null) release(a, a.length, 4);
+    }
+
+    public void release(short[] a) {
+        if (a != null) release(a, a.length, 2);
+    }
+
+    public void release(byte[] a) {
+        if (a != null) release(a, a.length, 1);
+    }
+
+    public void release(float[] a) {
+        if (a != null) release(a, a.length, 4);
+    }
+
+    /** Bytes currently held by free buffers. */
+    public long retainedBytes() {
+        lock.lock();
+        try {
+            return retainedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops every free buffer. */
+    public void clear() {
+        lock.lock();
+        try {
+            classes.clear();
+            retainedBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a free buffer of the class as it was released, or null; the
+     * public acquire methods clear it if asked to.
+     */
+    protected Object acquire(Class<?> type, int length, int elementSize) {
+        if (length < MIN_POOLED_LENGTH || maxBytes == 0) {
+            return null;
+        }
+        Object a;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            SizeClass sc = classes.get(key(type, length));
+            if (sc == null) {
+                sc = new SizeClass();
+                classes.put(key(type, length), sc);
+            }
+            sc.lastUse = now;
+            a = sc.free.poll();
+            if (a != null) {
+                retainedBytes -= (long) length * elementSize;
+            }
+            opj_pool_sweep(now);
+        } finally {
+            lock.unlock();
+        }
+        return a;
+    }
+
+    /** Keeps the buffer if it fits under the cap. */
+    protected void release(Object a, int length, int elementSize) {
+        if (length < MIN_POOLED_LENGTH) {
+            return;
+        }
+        long bytes = (long) length * elementSize;
+        lock.lock();
+        try {
+            if (retainedBytes + bytes > maxBytes) {
+                return;
+            }
+            long now = System.nanoTime();
+            SizeClass sc = classes.get(key(a.getClass(), length));
+            if (sc == null) {
+                sc = new SizeClass();
+                classes.put(key(a.getClass(), length), sc);
+            }
+            sc.lastUse = now;
+            sc.free.push(a);
+            retainedBytes += bytes;
+            opj_pool_sweep(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Evicts idle size classes, at most a few times per idle period. */
+    private void opj_pool_sweep(long now) {
+        if (now - lastSweep < idleNanos / 4) {
+            return;
+        }
+        lastSweep = now;
+        for (Iterator<SizeClass> it = classes.values().iterator(); it.hasNext(); ) {
+            SizeClass sc = it.next();
+            if (now - sc.lastUse >= idleNanos) {
+                for (Object a : sc.free) {
+                    retainedBytes -= opj_pool_bytes(a);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private static long opj_pool_bytes(Object a) {
+        if (a instanceof int[] ia) return 4L * ia.length;
+        if (a instanceof short[] sa) return 2L * sa.length;
+        if (a instanceof byte[] ba) return ba.length;
+        return 4L * ((float[]) a).length;
+    }
+
+    /** Element type in the top bits, length in the low 32. */
+    private static Long key(Class<?> type, int length) {
+        long t = type == int[].class ? 0 : type == short[].class ? 1 : type == byte[].class ? 2 : 3;
+        return (t << 32) | length;
+    }
+}
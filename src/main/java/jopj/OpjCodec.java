@@ -2,4 +2,6 @@ package jopj;
 
 public class OpjCodec
 {
+    /** C: opj_codec_private_t::m_event_mgr */
+    public Cio.OpjEventMgr eventMgr = new Cio.OpjEventMgr();
 }
@@ -1,8 +1,35 @@
 package jopj;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static jopj.OpjIntMath.opj_int_ceildiv;
+import static jopj.OpjIntMath.opj_int_ceildivpow2;
 
 /**
  * Narrow-path JPEG 2000 decode API:
@@ -18,12 +45,10 @@ public abstract class OpjDecompress {
     {
 
          String path = args[0];
-         byte[] jp2k_data;
 
          try
          {
-             jp2k_data = readData(path);
-             DecodedImage img = OpjDecompress.decode(jp2k_data);
+             DecodedImage img = OpjDecompress.decode(Path.of(path), new OpjDecompressParameters());
              System.out.println(img);
          }
          catch (IOException ioe)
@@ -43,62 +68,442 @@ public abstract class OpjDecompress {
     }
 
 
-    public static final class DecodedImage {
+    public static final class DecodedImage implements AutoCloseable {
         public int width;
         public int height;
         public int numComponents;
         public int bitsPerSample;
+        /** Signedness of component 0; see componentSigned for the others. */
         public boolean signed;
-        /** components[c][y * width + x] */
+        /** componentSigned[c]: whether the samples of component c are signed. */
+        public boolean[] componentSigned;
+        /** components[c][y * width + x]; null when the planes are narrow. */
         public int[][] components;
+        /** With SampleFormat.NARROW and at most 8 bits: byteComponents[c][y * width + x]. */
+        public byte[][] byteComponents;
+        /** With SampleFormat.NARROW and 9 to 16 bits: shortComponents[c][y * width + x]. */
+        public short[][] shortComponents;
+        /**
+         * With ComponentStorage.OFF_HEAP: offHeapComponents[c].get((long) y * width + x).
+         * Freed by close().
+         */
+        public OpjImage.OpjOffHeapPlane[] offHeapComponents;
+        /** With SampleFormat.FLOAT or FLOAT_NORMALIZED: floatComponents[c][y * width + x]. */
+        public float[][] floatComponents;
+
+        /** Sample i of component c, from whichever planes hold it (float ones rounded). */
+        public int sample(int c, int i) {
+            if (floatComponents != null) {
+                return Math.round(floatComponents[c][i]);
+            }
+            if (offHeapComponents != null) {
+                return offHeapComponents[c].get(i);
+            }
+            if (components != null) {
+                return components[c][i];
+            }
+            if (shortComponents != null) {
+                short v = shortComponents[c][i];
+                return isSigned(c) ? v : v & 0xFFFF;
+            }
+            byte v = byteComponents[c][i];
+            return isSigned(c) ? v : v & 0xFF;
+        }
+
+        /**
+         * Sample i of component c, for off-heap planes with more than 2^31
+         * samples; other planes are arrays, so i must fit in an int.
+         */
+        public int sample(int c, long i) {
+            if (offHeapComponents != null) {
+                return offHeapComponents[c].get(i);
+            }
+            return sample(c, Math.toIntExact(i));
+        }
+
+        /** Whether the samples of component c are signed. */
+        public boolean isSigned(int c) {
+            return componentSigned != null ? componentSigned[c] : signed;
+        }
+
+        /**
+         * Hands the planes back to the buffer pool so the next decode of
+         * the same size re-uses them, and frees off-heap planes, returning
+         * their native memory. The planes must not be used after.
+         */
+        @Override
+        public void close() {
+            OpjBufferPool pool = OpjBufferPool.getDefault();
+            if (components != null) {
+                for (int[] plane : components) pool.release(plane);
+            }
+            if (shortComponents != null) {
+                for (short[] plane : shortComponents) pool.release(plane);
+            }
+            if (byteComponents != null) {
+                for (byte[] plane : byteComponents) pool.release(plane);
+            }
+            if (floatComponents != null) {
+                for (float[] plane : floatComponents) pool.release(plane);
+            }
+            if (offHeapComponents != null) {
+                for (OpjImage.OpjOffHeapPlane plane : offHeapComponents) plane.free();
+            }
+            floatComponents = null;
+            offHeapComponents = null;
+            components = null;
+            shortComponents = null;
+            byteComponents = null;
+        }
     }
 
-    public static DecodedImage decode(byte[] input) {
-        Objects.requireNonNull(input, "code stream must not be null");
+    /**
+     * One decoded tile: its position in the (reduced) output image and
+     * its samples, components[c][y * width + x]. The planes come from the
+     * buffer pool; a consumer done with the tile calls close() so that
+     * the next tiles re-use them.
+     */
+    public static final class DecodedTile implements AutoCloseable {
+        public int tileIndex;
+        public int x0;
+        public int y0;
+        public int width;
+        public int height;
+        public int numComponents;
+        public int bitsPerSample;
+        /** Signedness of component 0; see componentSigned for the others. */
+        public boolean signed;
+        /** componentSigned[c]: whether the samples of component c are signed. */
+        public boolean[] componentSigned;
+        public int[][] components;
 
-        Jp2Parser.J2kFormat format = Jp2Parser.sniffFormat(input);
-        OpjStream stream;
-        OpjCodec codec;
-        OpjImage image = null;
+        /**
+         * Hands the planes back to the buffer pool. The planes must not be
+         * used after.
+         */
+        @Override
+        public void close() {
+            if (components != null) {
+                OpjBufferPool pool = OpjBufferPool.getDefault();
+                for (int[] plane : components) pool.release(plane);
+            }
+            components = null;
+        }
+    }
 
-        byte[] codestream;
-        switch (format)
-        {
-            case RAW_J2K ->
-            {
-                codestream = input;
-                // Wrap byte[] in a jopj.OpjStream
-                stream = OpjStream.createFromByteArray(codestream);
+    /**
+     * A caller-owned buffer that decodeInto writes samples to, laid out
+     * like a java.awt.image.ComponentSampleModel: sample (x, y) of output
+     * component c goes to element
+     *   offset + componentOffsets[c] + y * rowStride + x * pixelStride.
+     * Interleaved RGB is pixelStride 3, rowStride 3 * width and offsets
+     * {0, 1, 2} ({2, 1, 0} for BGR); planar data is pixelStride 1,
+     * rowStride width and offsets {0, width * height, ...}. Samples are
+     * narrowed to the element type by keeping their low bits.
+     */
+    public static final class Destination {
+        private final int[] ints;
+        private final short[] shorts;
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        /** Bytes per element in buffer: 1, 2 or 4. */
+        private final int bytesPerSample;
+        private final int length;
+        final int offset;
+        final int rowStride;
+        final int pixelStride;
+        final int[] componentOffsets;
 
-                // Create codec for raw jopj.J2K (or JP2 if you prefer)
-                codec = OpenJpeg.opj_create_decompress(OpenJpeg.OpjCodecFormat.OPJ_CODEC_J2K);
+        private Destination(int[] ints, short[] shorts, byte[] bytes, ByteBuffer buffer,
+                            int bytesPerSample, int length, int offset, int rowStride,
+                            int pixelStride, int[] componentOffsets) {
+            if (offset < 0 || rowStride < 0 || pixelStride < 0) {
+                throw new IllegalArgumentException("offset and strides must not be negative");
             }
-            case JP2 ->
-            {
-                codestream = Jp2Parser.extractCodestream(input);
-                // Wrap byte[] in a jopj.OpjStream
-                stream = OpjStream.createFromByteArray(codestream);
+            Objects.requireNonNull(componentOffsets, "componentOffsets must not be null");
+            this.ints = ints;
+            this.shorts = shorts;
+            this.bytes = bytes;
+            this.buffer = buffer;
+            this.bytesPerSample = bytesPerSample;
+            this.length = length;
+            this.offset = offset;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+            this.componentOffsets = componentOffsets.clone();
+        }
+
+        public static Destination of(int[] array, int offset, int rowStride, int pixelStride,
+                                     int... componentOffsets) {
+            return new Destination(array, null, null, null, 4, array.length,
+                    offset, rowStride, pixelStride, componentOffsets);
+        }
+
+        public static Destination of(short[] array, int offset, int rowStride, int pixelStride,
+                                     int... componentOffsets) {
+            return new Destination(null, array, null, null, 2, array.length,
+                    offset, rowStride, pixelStride, componentOffsets);
+        }
+
+        public static Destination of(byte[] array, int offset, int rowStride, int pixelStride,
+                                     int... componentOffsets) {
+            return new Destination(null, null, array, null, 1, array.length,
+                    offset, rowStride, pixelStride, componentOffsets);
+        }
 
-                // Create codec for raw jopj.J2K (or JP2 if you prefer)
-                codec = OpenJpeg.opj_create_decompress(OpenJpeg.OpjCodecFormat.OPJ_CODEC_JP2);
+        /**
+         * A ByteBuffer of bytesPerSample-byte elements (1, 2 or 4), written
+         * with absolute puts in the buffer's byte order; offsets and
+         * strides count elements from index 0 of the buffer.
+         */
+        public static Destination of(ByteBuffer buffer, int bytesPerSample, int offset,
+                                     int rowStride, int pixelStride, int... componentOffsets) {
+            if (bytesPerSample != 1 && bytesPerSample != 2 && bytesPerSample != 4) {
+                throw new IllegalArgumentException("bytesPerSample must be 1, 2 or 4");
             }
-            default -> throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+            if (buffer.isReadOnly()) {
+                throw new IllegalArgumentException("buffer is read-only");
+            }
+            return new Destination(null, null, null, buffer, bytesPerSample,
+                    buffer.limit() / bytesPerSample, offset, rowStride, pixelStride, componentOffsets);
+        }
+
+        /** Checks that a width x height image of numComponents fits. */
+        void check(int width, int height, int numComponents) {
+            if (componentOffsets.length != numComponents) {
+                throw new IllegalArgumentException("componentOffsets has " + componentOffsets.length
+                        + " entries for " + numComponents + " components");
+            }
+            if (width == 0 || height == 0) {
+                return;
+            }
+            for (int off : componentOffsets) {
+                long last = (long) offset + off + (long) (height - 1) * rowStride
+                        + (long) (width - 1) * pixelStride;
+                if (off < 0 || last >= length) {
+                    throw new IllegalArgumentException("Destination too small for a "
+                            + width + "x" + height + " image");
+                }
+            }
+        }
+
+        /** Writes n samples of output component c at (x, y), (x + 1, y), ... */
+        void write(int c, int x, int y, int[] src, int srcOffset, int n) {
+            int d = offset + componentOffsets[c] + y * rowStride + x * pixelStride;
+            if (ints != null) {
+                if (pixelStride == 1) {
+                    System.arraycopy(src, srcOffset, ints, d, n);
+                    return;
+                }
+                for (int i = 0; i < n; ++i, d += pixelStride) {
+                    ints[d] = src[srcOffset + i];
+                }
+            } else if (shorts != null) {
+                for (int i = 0; i < n; ++i, d += pixelStride) {
+                    shorts[d] = (short) src[srcOffset + i];
+                }
+            } else if (bytes != null) {
+                for (int i = 0; i < n; ++i, d += pixelStride) {
+                    bytes[d] = (byte) src[srcOffset + i];
+                }
+            } else {
+                for (int i = 0; i < n; ++i, d += pixelStride) {
+                    int v = src[srcOffset + i];
+                    switch (bytesPerSample) {
+                        case 1 -> buffer.put(d, (byte) v);
+                        case 2 -> buffer.putShort(d * 2, (short) v);
+                        default -> buffer.putInt(d * 4, v);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Receives the tiles of decodeTiles; may close() each tile once done with it. */
+    @FunctionalInterface
+    public interface TileConsumer {
+        void accept(DecodedTile tile);
+    }
+
+    /** Receives the frames of decodeFrames, in frame order. */
+    @FunctionalInterface
+    public interface FrameConsumer {
+        void accept(int frameIndex, DecodedImage image);
+    }
+
+    public static DecodedImage decode(byte[] input) {
+        return decode(input, new OpjDecompressParameters());
+    }
+
+    /**
+     * Decodes with the reduce / layer / component settings of parameters.
+     * With a reduce factor r the image is 2^r times smaller in each
+     * direction, and the packets of the discarded resolutions are not
+     * decoded; when the codestream carries PLT markers they are not even
+     * read. The same holds for components left out of compsIndices; the
+     * inverse MCT is skipped unless components 0-2 are all selected.
+     */
+    public static DecodedImage decode(byte[] input, OpjDecompressParameters parameters) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+
+        return decode(createStream(input), createCodec(input), parameters);
+    }
+
+    /**
+     * Decodes a J2K or JP2 file without reading it into the heap: the
+     * codestream is memory-mapped and only the pages the decoder touches
+     * are loaded. For JP2 files only the box headers before jp2c are read.
+     */
+    public static DecodedImage decode(Path file, OpjDecompressParameters parameters) throws IOException {
+        return decodeFile(file, parameters, false, null);
+    }
+
+    /**
+     * Decodes a J2K or JP2 file on slow storage (a network mount, a FUSE
+     * cache in front of object storage): the codestream is read in chunks
+     * on background threads ahead of the decoder, so decoding overlaps
+     * the I/O wait instead of alternating with it.
+     */
+    public static DecodedImage decodePrefetched(Path file, OpjDecompressParameters parameters)
+            throws IOException {
+        return decodeFile(file, parameters, true, null);
+    }
+
+    /** tileExecutor: runs the tile stages instead of the codec's own workers (null: those). */
+    private static DecodedImage decodeFile(Path file, OpjDecompressParameters parameters,
+                                           boolean prefetch, ExecutorService tileExecutor)
+            throws IOException {
+        Objects.requireNonNull(file, "file must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+
+        long size = Files.size(file);
+        OpjStream stream = openFile(file, 0, size, prefetch);
+        Jp2Parser.J2kFormat format;
+        try {
+            format = sniffFormat(stream);
+            stream = createStream(file, stream, format, prefetch);
+        } catch (RuntimeException | IOException e) {
+            Cio.opj_stream_destroy(stream);
+            throw e;
         }
+        OpjCodec codec = createCodec(format);
+        OpenJpeg.opj_codec_set_tile_executor(codec, tileExecutor);
+        return decode(stream, codec, parameters);
+    }
 
+    private static OpjStream openFile(Path file, long offset, long length, boolean prefetch)
+            throws IOException {
+        return prefetch ? OpjStream.createPrefetching(file, offset, length)
+                : OpjStream.createFromFile(file, offset, length);
+    }
+
+    /**
+     * Decodes a J2K or JP2 image held in a ByteBuffer, typically a direct
+     * buffer from a network or DICOM layer, without copying it to the
+     * heap first: the decoder reads marker segments and tile-part bodies
+     * out of the buffer as it needs them. The buffer's remaining bytes
+     * are decoded; its position and limit are left unchanged.
+     * <p>
+     * Tier-2 reads packets from a byte[], so the body of each tile is
+     * still copied to the heap while that tile is decoded. Peak heap use
+     * for the compressed data is thus one tile (a few with tile threads),
+     * not the whole codestream.
+     */
+    public static DecodedImage decode(ByteBuffer input, OpjDecompressParameters parameters) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+
+        return decode(createStream(input), createCodec(sniffFormat(input)), parameters);
+    }
+
+    /**
+     * Decodes straight into destination, in its layout, instead of into
+     * DecodedImage planes: each tile's samples are written to their final
+     * place as the tile completes, with no intermediate full-size plane.
+     * destination needs one component offset per decoded component (see
+     * compsIndices). Returns the image description; its planes are null.
+     * Subsampled components need setUpsample: their rows are then expanded
+     * to the reference grid as they are written.
+     */
+    public static DecodedImage decodeInto(byte[] input, OpjDecompressParameters parameters,
+                                          Destination destination) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        Objects.requireNonNull(destination, "destination must not be null");
+
+        OpjStream stream = createStream(input);
+        OpjCodec codec = createCodec(input);
         try {
-            // Default decoder parameters
-            OpenJpeg.OpjDParameters params = new OpenJpeg.OpjDParameters();
-            OpenJpeg.opj_set_default_decoder_parameters(params);
+            OpjImage header = readHeader(codec, stream, parameters);
+            if (!OpenJpeg.opj_get_j2k(codec).opj_j2k_update_image_dimensions(header)) {
+                throw new RuntimeException("Invalid image dimensions");
+            }
+
+            // Output component index of every decoded codestream component
+            int[] comps = parameters.getCompsIndices();
+            if (comps == null || comps.length == 0) {
+                comps = new int[header.numcomps];
+                for (int c = 0; c < comps.length; ++c) {
+                    comps[c] = c;
+                }
+            }
+            int[] outputIndex = new int[header.numcomps];
+            for (int i = 0; i < comps.length; ++i) {
+                outputIndex[comps[i]] = i;
+            }
 
-            if (!OpenJpeg.opj_setup_decoder(codec, params)) {
-                throw new RuntimeException("opj_setup_decoder failed");
+            DecodedImage out = new DecodedImage();
+            OpjImage.OpjImageComp first = header.comps[comps[0]];
+            out.width = first.w;
+            out.height = first.h;
+            out.numComponents = comps.length;
+            out.bitsPerSample = first.prec;
+            out.signed = first.sgnd;
+            out.componentSigned = new boolean[comps.length];
+            boolean subsampled = false;
+            for (int i = 0; i < comps.length; ++i) {
+                OpjImage.OpjImageComp comp = header.comps[comps[i]];
+                out.componentSigned[i] = comp.sgnd;
+                subsampled |= comp.dx != 1 || comp.dy != 1;
+            }
+            if (subsampled && parameters.isUpsample()) {
+                // The reference grid at the decoded resolution
+                out.width = opj_int_ceildivpow2(header.x1, first.factor) - opj_int_ceildivpow2(header.x0, first.factor);
+                out.height = opj_int_ceildivpow2(header.y1, first.factor) - opj_int_ceildivpow2(header.y0, first.factor);
             }
+            for (int c : comps) {
+                OpjImage.OpjImageComp comp = header.comps[c];
+                if ((comp.w != out.width || comp.h != out.height) && !parameters.isUpsample()) {
+                    throw new IllegalStateException("Subsampled components need upsampling (setUpsample)");
+                }
+            }
+            destination.check(out.width, out.height, out.numComponents);
 
-            // Header + image struct
-            image = new OpjImage();
-            if (!OpenJpeg.opj_read_header(stream, codec, image)) {
-                throw new RuntimeException("opj_read_header failed");
+            // Upsampled rows arrive already expanded, in grid coordinates
+            OpenJpeg.opj_set_sample_writer(codec, (compno, x, y, src, srcOffset, n) ->
+                    destination.write(outputIndex[compno], x, y, src, srcOffset, n));
+            if (!OpenJpeg.opj_decode(codec, stream, header)) {
+                throw new RuntimeException("opj_decode failed");
             }
+            if (!OpenJpeg.opj_end_decompress(codec, stream)) {
+                throw new RuntimeException("opj_end_decompress failed");
+            }
+            // opj_decode applied any output precision (and component order)
+            out.bitsPerSample = header.comps[0].prec;
+            return out;
+        } finally {
+            OpenJpeg.opj_destroy_codec(codec);
+            Cio.opj_stream_destroy(stream);
+        }
+    }
+
+    private static DecodedImage decode(OpjStream stream, OpjCodec codec,
+                                       OpjDecompressParameters parameters) {
+        OpjImage image = null;
+
+        try {
+            image = readHeader(codec, stream, parameters);
 
             // Full image decode
             if (!OpenJpeg.opj_decode(codec, stream, image)) {
@@ -110,7 +515,7 @@ public abstract class OpjDecompress {
                 throw new RuntimeException("opj_end_decompress failed");
             }
 
-            return toDecodedImage(image);
+            return toDecodedImage(image, false, parameters.isUpsample());
 
         } finally {
             OpenJpeg.opj_destroy_codec(codec);
@@ -121,7 +526,1260 @@ public abstract class OpjDecompress {
         }
     }
 
-    private static DecodedImage toDecodedImage(OpjImage img) {
+    /**
+     * Streaming decode: hands each tile to consumer as soon as it is
+     * decoded instead of assembling the whole image. The decoder keeps no
+     * reference to a tile once delivered, so peak memory follows the tile
+     * size, not the image size; a consumer that closes each tile lets the
+     * next ones re-use its planes instead of allocating. Tiles arrive one at a time, in tile order
+     * when decoding on one thread and in completion order otherwise.
+     * Subsampled components need setUpsample; each tile then covers its
+     * area of the reference grid.
+     */
+    public static void decodeTiles(byte[] input, OpjDecompressParameters parameters,
+                                   TileConsumer consumer) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        Objects.requireNonNull(consumer, "consumer must not be null");
+
+        decodeTiles(input, parameters, header -> (tileIndex, tile) -> {
+            consumer.accept(toDecodedTile(tileIndex, tile));
+            return true;
+        }, () -> false);
+    }
+
+    /**
+     * Runs opj_decode_tiles with the callback callbackFor makes for the
+     * image header. A decode that stops because the callback returned
+     * false ends quietly if stopped says so, and fails otherwise.
+     */
+    private static void decodeTiles(byte[] input, OpjDecompressParameters parameters,
+                                    Function<OpjImage, OpenJpeg.OpjTileCallback> callbackFor,
+                                    BooleanSupplier stopped) {
+        OpjStream stream = createStream(input);
+        OpjCodec codec = createCodec(input);
+
+        try {
+            OpjImage header = readHeader(codec, stream, parameters);
+
+            boolean ok = OpenJpeg.opj_decode_tiles(codec, stream, callbackFor.apply(header));
+            if (!ok) {
+                if (stopped.getAsBoolean()) {
+                    return;
+                }
+                throw new RuntimeException("opj_decode_tiles failed");
+            }
+
+            if (!OpenJpeg.opj_end_decompress(codec, stream)) {
+                throw new RuntimeException("opj_end_decompress failed");
+            }
+        } finally {
+            OpenJpeg.opj_destroy_codec(codec);
+            Cio.opj_stream_destroy(stream);
+        }
+    }
+
+    /**
+     * decodeTiles for a Flow.Subscriber. Runs the decode on the calling
+     * thread and delivers through a SubmissionPublisher whose buffer holds
+     * at most a few tiles: when the subscriber falls behind, decoding
+     * waits for its demand rather than piling up tiles. The publisher
+     * orders the onNext calls itself, so the tile workers submit without
+     * taking turns. The subscriber sees onComplete after the last tile, or
+     * onError if decoding fails; once it cancels, decoding stops.
+     */
+    public static void decodeTiles(byte[] input, OpjDecompressParameters parameters,
+                                   Flow.Subscriber<? super DecodedTile> subscriber) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        Objects.requireNonNull(subscriber, "subscriber must not be null");
+
+        // Delivery thread; shutdown() still lets it run onComplete
+        ExecutorService delivery = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "jopj-tile-delivery");
+            t.setDaemon(true);
+            return t;
+        });
+        try (SubmissionPublisher<DecodedTile> publisher = new SubmissionPublisher<>(delivery, 4)) {
+            publisher.subscribe(subscriber);
+            Function<OpjImage, OpenJpeg.OpjTileCallback> callbackFor = header -> new OpenJpeg.OpjTileCallback() {
+                @Override
+                public boolean tile(int tileIndex, OpjImage tile) {
+                    if (!publisher.hasSubscribers()) {
+                        return false;
+                    }
+                    publisher.submit(toDecodedTile(tileIndex, tile));
+                    return true;
+                }
+
+                @Override
+                public boolean concurrent() {
+                    return true;
+                }
+            };
+            try {
+                decodeTiles(input, parameters, callbackFor, () -> !publisher.hasSubscribers());
+            } catch (RuntimeException e) {
+                publisher.closeExceptionally(e);
+                throw e;
+            }
+        } finally {
+            delivery.shutdown();
+        }
+    }
+
+    /**
+     * Asynchronous decode(byte[], parameters). The decode runs on the
+     * shared decode pool of platform threads, so callers on virtual
+     * threads (request handlers) can join() the result and park instead
+     * of tying up a carrier thread for the length of the decode.
+     */
+    public static CompletableFuture<DecodedImage> decodeAsync(byte[] input,
+                                                              OpjDecompressParameters parameters) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return CompletableFuture.supplyAsync(() -> decode(input, parameters), DecodeExecutor.EXECUTOR);
+    }
+
+    /** Asynchronous decode(ByteBuffer, parameters), on the decode pool. */
+    public static CompletableFuture<DecodedImage> decodeAsync(ByteBuffer input,
+                                                              OpjDecompressParameters parameters) {
+        Objects.requireNonNull(input, "code stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return CompletableFuture.supplyAsync(() -> decode(input, parameters), DecodeExecutor.EXECUTOR);
+    }
+
+    /**
+     * Asynchronous decodePrefetched. The decode is driven from a virtual
+     * thread, so its waits for the read-ahead chunks park instead of
+     * holding a platform thread; tier-1, the DWT and the MCT of each tile
+     * are handed to the decode pool. Tier-2 runs on the virtual thread.
+     */
+    public static CompletableFuture<DecodedImage> decodeAsync(Path file,
+                                                              OpjDecompressParameters parameters) {
+        Objects.requireNonNull(file, "file must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return decodeFile(file, parameters, true, DecodeExecutor.EXECUTOR);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, IoExecutor.EXECUTOR);
+    }
+
+    /**
+     * Reads a J2K or JP2 image from in on a virtual thread, where waiting
+     * for the bytes costs no platform thread, then decodes it on the
+     * decode pool. The stream is read to its end but not closed.
+     * <p>
+     * The whole input is buffered in the heap before decoding starts;
+     * for a large file prefer decodeAsync(Path), which streams it.
+     */
+    public static CompletableFuture<DecodedImage> decodeAsync(InputStream in,
+                                                              OpjDecompressParameters parameters) {
+        Objects.requireNonNull(in, "input stream must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, IoExecutor.EXECUTOR).thenApplyAsync(data -> decode(data, parameters), DecodeExecutor.EXECUTOR);
+    }
+
+    /**
+     * decodeAsync(InputStream) for a channel, read to its end on a virtual
+     * thread. Like it, the whole input is buffered in the heap first.
+     */
+    public static CompletableFuture<DecodedImage> decodeAsync(ReadableByteChannel channel,
+                                                              OpjDecompressParameters parameters) {
+        Objects.requireNonNull(channel, "channel must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return readAll(channel);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, IoExecutor.EXECUTOR).thenApplyAsync(data -> decode(data, parameters), DecodeExecutor.EXECUTOR);
+    }
+
+    private static byte[] readAll(ReadableByteChannel channel) throws IOException {
+        byte[] data = new byte[64 * 1024];
+        int size = 0;
+        while (true) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int n = channel.read(ByteBuffer.wrap(data, size, data.length - size));
+            if (n < 0) {
+                return Arrays.copyOf(data, size);
+            }
+            size += n;
+        }
+    }
+
+    /** Default cap on the decoded frames a batch holds at once: a quarter of the heap. */
+    public static final long DEFAULT_BATCH_IN_FLIGHT_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Decodes the frames of a multi-frame object (one codestream per
+     * entry, e.g. the fragments of DICOM encapsulated pixel data) on the
+     * shared decode pool, and returns them in frame order.
+     */
+    public static List<DecodedImage> decodeFrames(List<byte[]> frames,
+                                                  OpjDecompressParameters parameters) {
+        DecodedImage[] images = new DecodedImage[frames.size()];
+        decodeFrames(frames, parameters, DEFAULT_BATCH_IN_FLIGHT_BYTES,
+                (frameIndex, image) -> images[frameIndex] = image);
+        return Arrays.asList(images);
+    }
+
+    /**
+     * Decodes frames concurrently on the shared decode pool (one daemon
+     * platform thread per processor, shared by all callers) and hands them
+     * to consumer in frame order, one at a time. Each pool thread keeps a
+     * reusable Decoder for the length of the batch. A frame reads its main
+     * header, then waits until the frames decoded but not yet consumed,
+     * plus its own decoded size, fit in maxInFlightBytes; a frame larger
+     * than the cap runs alone. Frames take their memory in frame order,
+     * and the next frame is started only once the previous one has it.
+     * Consumers that close() each image give its planes back to the
+     * buffer pool for the frames that follow, so a steady stream of
+     * same-sized frames allocates no new planes. The consumer runs on a
+     * pool thread but outside the batch's lock: while it works, the other
+     * threads go on decoding.
+     *
+     * Called on a pool thread, e.g. from another batch's consumer or from
+     * a decodeAsync callback, decodeFrames decodes the frames one after
+     * the other on the calling thread instead of queueing them behind it.
+     *
+     * The first failure stops the batch: frames not yet started are
+     * skipped, those already decoded are closed without being delivered,
+     * and the failure is rethrown here.
+     */
+    public static void decodeFrames(List<byte[]> frames, OpjDecompressParameters parameters,
+                                    long maxInFlightBytes, FrameConsumer consumer) {
+        Objects.requireNonNull(frames, "frames must not be null");
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        Objects.requireNonNull(consumer, "consumer must not be null");
+        if (maxInFlightBytes <= 0) {
+            throw new IllegalArgumentException("maxInFlightBytes must be > 0");
+        }
+
+        // Memory is counted in KiB permits
+        int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes >> 10));
+        FrameBatch batch = new FrameBatch(consumer, parameters, capacity);
+        // On a pool thread, e.g. from a consumer, the frames could wait for
+        // threads that all wait for them: they are decoded here instead
+        boolean inline = DecodeExecutor.isWorker();
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (int i = 0; i < frames.size() && batch.failure == null; ++i) {
+                byte[] frame = Objects.requireNonNull(frames.get(i), "frame must not be null");
+                int frameIndex = i;
+                if (inline) {
+                    batch.run(frameIndex, frame);
+                } else {
+                    pending.add(DecodeExecutor.EXECUTOR.submit(() -> batch.run(frameIndex, frame)));
+                }
+                // Keeps the frames' memory in frame order: waiting for a later
+                // frame to be consumed would deadlock
+                batch.started.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.fail(e);
+        } catch (RuntimeException e) {
+            batch.fail(e);
+        }
+
+        boolean interrupted = false;
+        for (Future<?> f : pending) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    batch.fail(e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        batch.decoders.values().forEach(Decoder::close);
+        if (batch.failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (batch.failure instanceof Error e) {
+            throw e;
+        }
+        if (batch.failure != null) {
+            throw new RuntimeException("Frame decoding failed", batch.failure);
+        }
+    }
+
+    /** Decoded size of a frame, from its main header sized for the reduce factor. */
+    private static long frameBytes(OpjImage header, OpjDecompressParameters parameters) {
+        boolean narrow = parameters.getSampleFormat() == OpjDecompressParameters.SampleFormat.NARROW;
+        long bytes = 0;
+        for (int c = 0; c < header.numcomps; ++c) {
+            OpjImage.OpjImageComp comp = header.comps[c];
+            int size = !narrow || comp.prec > 16 ? 4 : comp.prec > 8 ? 2 : 1;
+            bytes += (long) comp.w * comp.h * size;
+        }
+        return bytes;
+    }
+
+    /**
+     * The pool of platform threads that decodeFrames and decodeAsync run
+     * decodes on, one per processor, created on first use.
+     */
+    private static final class DecodeExecutor {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), Worker::new);
+
+        /** True on a thread of EXECUTOR, which must not wait for EXECUTOR's tasks. */
+        static boolean isWorker() {
+            return Thread.currentThread() instanceof Worker;
+        }
+
+        private static final class Worker extends Thread {
+            Worker(Runnable r) {
+                super(r, "jopj-decode");
+                setDaemon(true);
+            }
+        }
+    }
+
+    /**
+     * Virtual threads for the reads of decodeAsync and for driving
+     * decodeAsync(Path), created on first use.
+     */
+    private static final class IoExecutor {
+        static final ExecutorService EXECUTOR =
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jopj-io-", 0).factory());
+    }
+
+    /**
+     * One decodeFrames call: the memory permits, the decoders of the pool
+     * threads it runs on and the frames decoded out of order, waiting for
+     * the ones before them.
+     */
+    private static final class FrameBatch {
+        final FrameConsumer consumer;
+        final OpjDecompressParameters parameters;
+        final int capacity;
+        final Semaphore memory;
+        /** Released by each frame once it holds its memory (or has failed). */
+        final Semaphore started = new Semaphore(0);
+        final Map<Thread, Decoder> decoders = new ConcurrentHashMap<>();
+        /** Frame index -> decoded image (null when skipped or failed). */
+        private final Map<Integer, DecodedImage> ready = new HashMap<>();
+        private final Map<Integer, Integer> readyPermits = new HashMap<>();
+        private int next;
+        /** A thread is handing frames to the consumer. */
+        private boolean delivering;
+        volatile Throwable failure;
+
+        FrameBatch(FrameConsumer consumer, OpjDecompressParameters parameters, int capacity) {
+            this.consumer = consumer;
+            this.parameters = parameters;
+            this.capacity = capacity;
+            this.memory = new Semaphore(capacity);
+        }
+
+        synchronized void fail(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+        }
+
+        void run(int frameIndex, byte[] frame) {
+            DecodedImage image = null;
+            int[] permits = {0};
+            try {
+                if (failure == null) {
+                    Decoder decoder = decoders.computeIfAbsent(Thread.currentThread(),
+                            t -> newDecoder(parameters));
+                    image = decoder.decode(frame, header -> {
+                        permits[0] = (int) Math.min(capacity,
+                                Math.max(1, (frameBytes(header, parameters) + 1023) >> 10));
+                        // The frames before this one hold theirs already and
+                        // will be consumed, so this wait ends
+                        memory.acquireUninterruptibly(permits[0]);
+                        started.release();
+                    });
+                }
+            } catch (RuntimeException | Error e) {
+                fail(e);
+            } finally {
+                if (permits[0] == 0) {
+                    // Never got to its memory
+                    started.release();
+                }
+            }
+            deliver(frameIndex, image, permits[0]);
+        }
+
+        /**
+         * Hands over every frame that is next in order, then frees its
+         * memory. One thread at a time delivers, calling the consumer
+         * without holding the lock; the others only queue their frame.
+         */
+        private void deliver(int frameIndex, DecodedImage image, int permits) {
+            synchronized (this) {
+                ready.put(frameIndex, image);
+                readyPermits.put(frameIndex, permits);
+                if (delivering) {
+                    return;
+                }
+                delivering = true;
+            }
+            while (true) {
+                int index;
+                DecodedImage img;
+                int p;
+                synchronized (this) {
+                    if (!readyPermits.containsKey(next)) {
+                        delivering = false;
+                        return;
+                    }
+                    index = next++;
+                    img = ready.remove(index);
+                    p = readyPermits.remove(index);
+                }
+                if (failure == null) {
+                    try {
+                        consumer.accept(index, img);
+                    } catch (RuntimeException | Error e) {
+                        fail(e);
+                    }
+                } else if (img != null) {
+                    img.close();
+                }
+                memory.release(p);
+            }
+        }
+    }
+
+    /**
+     * Creates a decoder for a run of images decoded one after the other,
+     * e.g. the frames of a multi-frame object on one thread. See Decoder.
+     */
+    public static Decoder newDecoder(OpjDecompressParameters parameters) {
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return new Decoder(parameters);
+    }
+
+    /**
+     * A reusable decoder: unlike the static decode, which creates and
+     * tears down a codec per call, it keeps one codec per format (J2K,
+     * JP2) and only resets it between images (opj_reset_decoder). Tile
+     * decoders with their tier-1 contexts and scratch, tile buffers and
+     * the packet-order plan cache carry over, so a run of small,
+     * same-sized frames pays the setup once.
+     *
+     * parameters are read again at every decode. A Decoder decodes one
+     * image at a time and is not thread-safe; use one per thread. close()
+     * releases the codecs' buffers to the buffer pool.
+     */
+    public static final class Decoder implements AutoCloseable {
+        private final OpjDecompressParameters parameters;
+        private OpjCodec j2kCodec;
+        private OpjCodec jp2Codec;
+        private boolean closed;
+
+        private Decoder(OpjDecompressParameters parameters) {
+            this.parameters = parameters;
+        }
+
+        /** Decodes a J2K or JP2 image, as OpjDecompress.decode does. */
+        public DecodedImage decode(byte[] input) {
+            return decode(input, null);
+        }
+
+        /**
+         * decode(input) that first passes the image header, sized for the
+         * reduce factor, to onHeader (if not null), before any tile-part
+         * is read.
+         */
+        DecodedImage decode(byte[] input, Consumer<OpjImage> onHeader) {
+            Objects.requireNonNull(input, "code stream must not be null");
+            if (closed) {
+                throw new IllegalStateException("Decoder is closed");
+            }
+
+            OpjCodec codec = codecFor(input);
+            OpjStream stream = createStream(input);
+            OpjImage image = null;
+            try {
+                image = readHeader(codec, stream, parameters);
+                if (onHeader != null) {
+                    if (!OpenJpeg.opj_get_j2k(codec).opj_j2k_update_image_dimensions(image)) {
+                        throw new RuntimeException("Invalid image dimensions");
+                    }
+                    onHeader.accept(image);
+                }
+                if (!OpenJpeg.opj_decode(codec, stream, image)) {
+                    throw new RuntimeException("opj_decode failed");
+                }
+                if (!OpenJpeg.opj_end_decompress(codec, stream)) {
+                    throw new RuntimeException("opj_end_decompress failed");
+                }
+                return toDecodedImage(image, false, parameters.isUpsample());
+            } finally {
+                Cio.opj_stream_destroy(stream);
+                if (image != null) {
+                    OpenJpeg.opj_image_destroy(image);
+                }
+            }
+        }
+
+        /** The codec for input's format, reset for a new codestream. */
+        private OpjCodec codecFor(byte[] input) {
+            OpjCodec codec;
+            Jp2Parser.J2kFormat format = Jp2Parser.sniffFormat(input);
+            if (format == Jp2Parser.J2kFormat.JP2) {
+                if (jp2Codec == null) {
+                    jp2Codec = createCodec(format);
+                }
+                codec = jp2Codec;
+            } else {
+                if (j2kCodec == null) {
+                    j2kCodec = createCodec(format);
+                }
+                codec = j2kCodec;
+            }
+            OpenJpeg.opj_reset_decoder(codec);
+            return codec;
+        }
+
+        /**
+         * Drops the state of the last image (each decode starts with this
+         * anyway) while keeping the scratch and caches.
+         */
+        public void reset() {
+            if (j2kCodec != null) {
+                OpenJpeg.opj_reset_decoder(j2kCodec);
+            }
+            if (jp2Codec != null) {
+                OpenJpeg.opj_reset_decoder(jp2Codec);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            OpenJpeg.opj_destroy_codec(j2kCodec);
+            OpenJpeg.opj_destroy_codec(jp2Codec);
+            j2kCodec = null;
+            jp2Codec = null;
+        }
+    }
+
+    /**
+     * Starts a progressive decode of a J2K or JP2 file that arrives in
+     * pieces, e.g. from an upload: feed the session bytes as they come and
+     * call preview() whenever an image of what arrived so far is wanted.
+     */
+    public static ProgressiveSession openProgressive(OpjDecompressParameters parameters) {
+        Objects.requireNonNull(parameters, "parameters must not be null");
+        return new ProgressiveSession(parameters);
+    }
+
+    /**
+     * Incremental decode of a codestream received in order, from a source
+     * that cannot seek. Each feed indexes the new bytes at once: the main
+     * header and every tile-part header are parsed as soon as they are
+     * complete, so the session always knows the longest prefix the
+     * decoder can read without failing. preview() decodes that prefix
+     * non-strictly: packets that have arrived contribute, missing ones do
+     * not, tiles with no data yet stay 0. Every decoded tile is kept along
+     * with the number of its bytes it was decoded from; later previews
+     * skip the data of tiles that have not received bytes since, and only
+     * decode the tiles still growing. Such a tile is decoded again from
+     * its first packet: packet parsing does not resume where the previous
+     * preview stopped, and each preview reads the main header again.
+     *
+     * The received bytes and the decoded tiles are kept until the session
+     * is closed. Not thread-safe.
+     */
+    public static final class ProgressiveSession implements AutoCloseable {
+        private final OpjDecompressParameters parameters;
+        private byte[] data = new byte[64 * 1024];
+        private int size;
+        private boolean endOfInput;
+
+        /** JP2 or RAW_J2K once known. */
+        private Jp2Parser.J2kFormat format;
+        /** Next JP2 box header, while looking for jp2c. */
+        private long boxPos;
+        /** Codestream within data: [codestreamStart, codestreamEnd). */
+        private int codestreamStart = -1;
+        private long codestreamEnd = Long.MAX_VALUE;
+
+        /** Next marker to index. */
+        private int pos;
+        /** Offset of the first SOT, once the main header is complete. */
+        private int mainHeaderEnd = -1;
+        /** Tile-part being received: its SOT offset, Psot, and first body byte. */
+        private int tilePartStart = -1;
+        private int bodyStart;
+        private boolean eoc;
+        /** Prefix of data the decoder can read: ends at a tile-part boundary or in a body. */
+        private int safeEnd;
+
+        /** Tile index -> { tile-parts received, tile-parts signalled (0: unknown) }. */
+        private final Map<Integer, int[]> tileParts = new HashMap<>();
+        /** Tile index -> bytes of its tile-parts received whole. */
+        private final Map<Integer, Long> tileBytes = new HashMap<>();
+        /** Decoded tiles that will not change any more. */
+        private final Map<Integer, DecodedTile> finishedTiles = new HashMap<>();
+        /** Decoded tiles still growing, and the tile bytes each was decoded from. */
+        private final Map<Integer, DecodedTile> partialTiles = new HashMap<>();
+        private final Map<Integer, Long> partialTileBytes = new HashMap<>();
+        private boolean closed;
+
+        private ProgressiveSession(OpjDecompressParameters parameters) {
+            this.parameters = parameters;
+        }
+
+        /** Appends len bytes of b, starting at off. */
+        public void feed(byte[] b, int off, int len) {
+            Objects.checkFromIndexSize(off, len, b.length);
+            checkOpen();
+            if (endOfInput) {
+                throw new IllegalStateException("input already ended");
+            }
+            ensureCapacity(len);
+            System.arraycopy(b, off, data, size, len);
+            size += len;
+            index();
+        }
+
+        /**
+         * Reads once from in (blocking until some bytes are available) and
+         * appends what was read. Returns the number of bytes read, or -1 at
+         * the end of the input, which also ends the session's input.
+         */
+        public int feed(InputStream in) throws IOException {
+            checkOpen();
+            ensureCapacity(CHUNK);
+            int n = in.read(data, size, data.length - size);
+            if (n < 0) {
+                endOfInput();
+                return -1;
+            }
+            size += n;
+            index();
+            return n;
+        }
+
+        /** As feed(InputStream), for a channel. */
+        public int feed(ReadableByteChannel channel) throws IOException {
+            checkOpen();
+            ensureCapacity(CHUNK);
+            int n = channel.read(ByteBuffer.wrap(data, size, data.length - size));
+            if (n < 0) {
+                endOfInput();
+                return -1;
+            }
+            size += n;
+            index();
+            return n;
+        }
+
+        /**
+         * Declares that no more bytes will come, e.g. for a codestream
+         * without EOC or whose last tile-part has Psot = 0.
+         */
+        public void endOfInput() {
+            checkOpen();
+            endOfInput = true;
+            index();
+        }
+
+        /** True once the main header has been received, i.e. preview() returns an image. */
+        public boolean isHeaderComplete() {
+            return mainHeaderEnd >= 0;
+        }
+
+        /** True once the EOC marker has arrived or the input ended. */
+        public boolean isComplete() {
+            return eoc || endOfInput;
+        }
+
+        /** Bytes received so far. */
+        public long bytesReceived() {
+            return size;
+        }
+
+        /**
+         * Decodes the layers received so far, or returns null while the
+         * main header is incomplete. With the whole codestream received
+         * this is the full decode.
+         */
+        public DecodedImage preview() {
+            checkOpen();
+            if (mainHeaderEnd < 0) {
+                return null;
+            }
+            // Tiles that will not grow are decoded once, in this call if not yet
+            BitSet finishing = new BitSet();
+            for (Map.Entry<Integer, int[]> e : tileParts.entrySet()) {
+                if (!finishedTiles.containsKey(e.getKey()) && isTileComplete(e.getValue())) {
+                    finishing.set(e.getKey());
+                }
+            }
+            // Growing tiles that got no bytes since their last decode are kept too
+            BitSet skipped = new BitSet();
+            finishedTiles.keySet().forEach(skipped::set);
+            for (Map.Entry<Integer, Long> e : partialTileBytes.entrySet()) {
+                int tileIndex = e.getKey();
+                if (e.getValue() == receivedBytes(tileIndex)) {
+                    skipped.set(tileIndex);
+                    if (finishing.get(tileIndex)) {
+                        finishedTiles.put(tileIndex, partialTiles.remove(tileIndex));
+                        partialTileBytes.remove(tileIndex);
+                    }
+                }
+            }
+
+            OpjStream stream = OpjStream.createFromByteArray(data, codestreamStart, safeEnd - codestreamStart);
+            OpjCodec codec = createCodec(format);
+            try {
+                OpjImage header = readHeader(codec, stream, parameters);
+                OpenJpeg.opj_decoder_set_strict_mode(codec, false);
+                OpenJpeg.opj_set_skipped_tiles(codec, skipped);
+
+                DecodedImage image = newCanvas(codec, header, parameters);
+                boolean ok = OpenJpeg.opj_decode_tiles(codec, stream, (tileIndex, tile) -> {
+                    DecodedTile decoded = toDecodedTile(tileIndex, tile);
+                    // The copy this decode replaces goes back to the pool
+                    if (finishing.get(tileIndex)) {
+                        finishedTiles.put(tileIndex, decoded);
+                        close(partialTiles.remove(tileIndex));
+                        partialTileBytes.remove(tileIndex);
+                    } else {
+                        close(partialTiles.put(tileIndex, decoded));
+                        partialTileBytes.put(tileIndex, receivedBytes(tileIndex));
+                    }
+                    paste(decoded, image);
+                    return true;
+                });
+                if (!ok) {
+                    throw new RuntimeException("opj_decode_tiles failed");
+                }
+                skipped.stream().forEach(tileIndex -> paste(finishedTiles.containsKey(tileIndex)
+                        ? finishedTiles.get(tileIndex) : partialTiles.get(tileIndex), image));
+                return image;
+            } finally {
+                OpenJpeg.opj_destroy_codec(codec);
+                Cio.opj_stream_destroy(stream);
+            }
+        }
+
+        /** Returns the cached tiles to the buffer pool and drops the received bytes. */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            finishedTiles.values().forEach(ProgressiveSession::close);
+            partialTiles.values().forEach(ProgressiveSession::close);
+            finishedTiles.clear();
+            partialTiles.clear();
+            partialTileBytes.clear();
+            data = null;
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("ProgressiveSession is closed");
+            }
+        }
+
+        private static void close(DecodedTile tile) {
+            if (tile != null) {
+                tile.close();
+            }
+        }
+
+        /**
+         * Bytes of tileIndex's tile-parts within the decodable prefix: the
+         * whole ones, and the one being received if it is that tile's.
+         */
+        private long receivedBytes(int tileIndex) {
+            long n = tileBytes.getOrDefault(tileIndex, 0L);
+            if (tilePartStart >= 0 && bodyStart >= 0 && readShort(tilePartStart + 4) == tileIndex) {
+                n += Math.max(0, safeEnd - tilePartStart);
+            }
+            return n;
+        }
+
+        private boolean isTileComplete(int[] parts) {
+            return isComplete() || (parts[1] != 0 && parts[0] >= parts[1]);
+        }
+
+        /**
+         * The image the tiles are pasted into: the size of the selected
+         * components, or of the reference grid when subsampled components
+         * are upsampled.
+         */
+        private static DecodedImage newCanvas(OpjCodec codec, OpjImage header,
+                                              OpjDecompressParameters parameters) {
+            if (!OpenJpeg.opj_get_j2k(codec).opj_j2k_update_image_dimensions(header)) {
+                throw new RuntimeException("Invalid image dimensions");
+            }
+            int[] comps = parameters.getCompsIndices();
+            if (comps == null || comps.length == 0) {
+                comps = new int[header.numcomps];
+                for (int c = 0; c < comps.length; ++c) {
+                    comps[c] = c;
+                }
+            }
+            DecodedImage image = new DecodedImage();
+            OpjImage.OpjImageComp first = header.comps[comps[0]];
+            image.width = first.w;
+            image.height = first.h;
+            image.bitsPerSample = first.prec;
+            image.signed = first.sgnd;
+            image.numComponents = comps.length;
+            image.componentSigned = new boolean[comps.length];
+            image.components = new int[comps.length][];
+            boolean subsampled = false;
+            for (int c : comps) {
+                subsampled |= header.comps[c].dx != 1 || header.comps[c].dy != 1;
+            }
+            if (subsampled && parameters.isUpsample()) {
+                image.width = opj_int_ceildivpow2(header.x1, first.factor) - opj_int_ceildivpow2(header.x0, first.factor);
+                image.height = opj_int_ceildivpow2(header.y1, first.factor) - opj_int_ceildivpow2(header.y0, first.factor);
+            }
+            for (int c = 0; c < comps.length; ++c) {
+                OpjImage.OpjImageComp comp = header.comps[comps[c]];
+                image.componentSigned[c] = comp.sgnd;
+                if ((comp.w != image.width || comp.h != image.height) && !parameters.isUpsample()) {
+                    throw new IllegalStateException("Subsampled components need upsampling (setUpsample)");
+                }
+                image.components[c] = new int[image.width * image.height];
+            }
+            return image;
+        }
+
+        private static void paste(DecodedTile tile, DecodedImage image) {
+            for (int c = 0; c < tile.numComponents; ++c) {
+                int[] src = tile.components[c];
+                int[] dst = image.components[c];
+                for (int y = 0; y < tile.height; ++y) {
+                    System.arraycopy(src, y * tile.width, dst, (tile.y0 + y) * image.width + tile.x0,
+                            tile.width);
+                }
+            }
+        }
+
+        private void ensureCapacity(int more) {
+            if (data.length - size < more) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + more));
+            }
+        }
+
+        /* -------------------------------------------------------------- */
+        /* Indexing of the received bytes                                 */
+        /* -------------------------------------------------------------- */
+
+        private void index() {
+            if (codestreamStart < 0 && !findCodestream()) {
+                return;
+            }
+            int end = (int) Math.min(size, codestreamEnd);
+            if (mainHeaderEnd < 0 && !indexMainHeader(end)) {
+                return;
+            }
+            while (!eoc && indexTilePart(end)) {
+                // next tile-part
+            }
+            if (endOfInput) {
+                safeEnd = end;
+            }
+        }
+
+        /** Sniffs the format and, for JP2, walks the boxes up to jp2c. */
+        private boolean findCodestream() {
+            if (format == null) {
+                if (size >= 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0x4F) {
+                    format = Jp2Parser.J2kFormat.RAW_J2K;
+                } else if (size >= 12) {
+                    format = Jp2Parser.sniffFormat(Arrays.copyOf(data, 12));
+                    if (format == Jp2Parser.J2kFormat.UNKNOWN) {
+                        throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+                    }
+                } else {
+                    return false;
+                }
+            }
+            if (format == Jp2Parser.J2kFormat.RAW_J2K) {
+                codestreamStart = 0;
+            } else {
+                while (codestreamStart < 0) {
+                    if (size - boxPos < 16) {
+                        return false;
+                    }
+                    int b = (int) boxPos;
+                    long length = readInt(b) & 0xFFFFFFFFL;
+                    int type = readInt(b + 4);
+                    int headerSize = 8;
+                    if (length == 1) {
+                        length = ((long) readInt(b + 8) << 32) | (readInt(b + 12) & 0xFFFFFFFFL);
+                        headerSize = 16;
+                    }
+                    if (type == Jp2Parser.BOX_JP2C) {
+                        codestreamStart = b + headerSize;
+                        if (length != 0) {
+                            codestreamEnd = boxPos + length;
+                        }
+                    } else if (length < headerSize) {
+                        throw new IllegalArgumentException("Invalid box length in JP2");
+                    } else {
+                        boxPos += length;
+                    }
+                }
+            }
+            pos = codestreamStart;
+            return true;
+        }
+
+        /** Walks the main header marker segments up to the first SOT. */
+        private boolean indexMainHeader(int end) {
+            if (pos == codestreamStart) {
+                if (end - pos < 2) {
+                    return false;
+                }
+                if (readShort(pos) != 0xFF4F) {
+                    throw new IllegalArgumentException("Expected a SOC marker");
+                }
+                pos += 2;
+            }
+            while (end - pos >= 4) {
+                int marker = readShort(pos);
+                if (marker == 0xFF90) {
+                    // The header reader consumes the SOT marker itself
+                    mainHeaderEnd = pos;
+                    safeEnd = pos + 2;
+                    return true;
+                }
+                if (marker < 0xFF00) {
+                    throw new IllegalArgumentException(String.format(
+                            "A marker ID was expected (0xff--) instead of %04x", marker));
+                }
+                int next = pos + 2 + readShort(pos + 2);
+                if (next > end) {
+                    return false;
+                }
+                pos = next;
+            }
+            return false;
+        }
+
+        /** Indexes the tile-part at pos; returns true once it has arrived whole. */
+        private boolean indexTilePart(int end) {
+            if (tilePartStart < 0) {
+                if (end - pos < 2) {
+                    return false;
+                }
+                int marker = readShort(pos);
+                if (marker == 0xFFD9) {
+                    eoc = true;
+                    safeEnd = pos + 2;
+                    return false;
+                }
+                if (marker != 0xFF90) {
+                    throw new IllegalArgumentException(String.format(
+                            "Expected a SOT or EOC marker instead of %04x", marker));
+                }
+                if (end - pos < 12) {
+                    return false;
+                }
+                tilePartStart = pos;
+                bodyStart = -1;
+                pos += 12;
+            }
+            // Tile-part header, up to SOD
+            while (bodyStart < 0) {
+                if (end - pos < 2) {
+                    return false;
+                }
+                if (readShort(pos) == 0xFF93) {
+                    bodyStart = pos + 2;
+                    break;
+                }
+                if (end - pos < 4 || pos + 2 + readShort(pos + 2) > end) {
+                    return false;
+                }
+                pos += 2 + readShort(pos + 2);
+            }
+
+            long psot = readInt(tilePartStart + 6) & 0xFFFFFFFFL;
+            long tilePartEnd = psot == 0 ? Long.MAX_VALUE : tilePartStart + psot;
+            safeEnd = (int) Math.min(end, tilePartEnd);
+            if (end < tilePartEnd) {
+                if (!endOfInput) {
+                    return false;
+                }
+                tilePartEnd = end;
+            }
+
+            int[] parts = tileParts.computeIfAbsent(readShort(tilePartStart + 4), k -> new int[2]);
+            ++parts[0];
+            tileBytes.merge(readShort(tilePartStart + 4), tilePartEnd - tilePartStart, Long::sum);
+            if ((data[tilePartStart + 11] & 0xFF) != 0) {
+                parts[1] = data[tilePartStart + 11] & 0xFF;
+            }
+            pos = (int) tilePartEnd;
+            tilePartStart = -1;
+            return pos < end;
+        }
+
+        private int readShort(int off) {
+            return ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+        }
+
+        private int readInt(int off) {
+            return (readShort(off) << 16) | readShort(off + 2);
+        }
+
+        private static final int CHUNK = 64 * 1024;
+    }
+
+    private static OpjStream createStream(byte[] input) {
+        switch (Jp2Parser.sniffFormat(input))
+        {
+            case RAW_J2K ->
+            {
+                // Wrap byte[] in a jopj.OpjStream
+                return OpjStream.createFromByteArray(input);
+            }
+            case JP2 ->
+            {
+                // Read the jp2c box in place rather than copying it out
+                Jp2Parser.CodestreamRange range = Jp2Parser.findCodestream(input);
+                return OpjStream.createFromByteArray(input, (int) range.offset, (int) range.length);
+            }
+            default -> throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+        }
+    }
+
+    /**
+     * The stream over the codestream of input, which starts at offset 0:
+     * the buffer itself, or a slice of it for JP2. input is not moved.
+     */
+    private static OpjStream createStream(ByteBuffer input) {
+        switch (sniffFormat(input))
+        {
+            case RAW_J2K ->
+            {
+                return OpjStream.createFromByteBuffer(input);
+            }
+            case JP2 ->
+            {
+                Jp2Parser.CodestreamRange range =
+                        Jp2Parser.findCodestream(OpjStream.createFromByteBuffer(input));
+                if (range.offset + range.length > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("jp2c box out of ByteBuffer range");
+                }
+                ByteBuffer codestream = input.slice(input.position() + (int) range.offset,
+                        (int) range.length);
+                return OpjStream.createFromByteBuffer(codestream);
+            }
+            default -> throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+        }
+    }
+
+    /**
+     * The stream over the codestream of file, given whole, a stream over
+     * the whole file: whole itself, rewound, or a stream over only the
+     * jp2c contents for JP2, in which case whole is closed.
+     */
+    private static OpjStream createStream(Path file, OpjStream whole, Jp2Parser.J2kFormat format,
+                                          boolean prefetch) throws IOException {
+        switch (format)
+        {
+            case RAW_J2K ->
+            {
+                Cio.opj_stream_seek(whole, 0, null);
+                return whole;
+            }
+            case JP2 ->
+            {
+                Cio.opj_stream_seek(whole, 0, null);
+                Jp2Parser.CodestreamRange range = Jp2Parser.findCodestream(whole);
+                OpjStream stream = openFile(file, range.offset, range.length, prefetch);
+                Cio.opj_stream_destroy(whole);
+                return stream;
+            }
+            default -> throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+        }
+    }
+
+    private static OpjCodec createCodec(byte[] input) {
+        return createCodec(Jp2Parser.sniffFormat(input));
+    }
+
+    private static OpjCodec createCodec(Jp2Parser.J2kFormat format) {
+        switch (format)
+        {
+            case RAW_J2K ->
+            {
+                return OpenJpeg.opj_create_decompress(OpenJpeg.OpjCodecFormat.OPJ_CODEC_J2K);
+            }
+            case JP2 ->
+            {
+                return OpenJpeg.opj_create_decompress(OpenJpeg.OpjCodecFormat.OPJ_CODEC_JP2);
+            }
+            default -> throw new UnsupportedOperationException("Unsupported JPEG 2000 format");
+        }
+    }
+
+    /** Sniffs the first bytes of input without moving it. */
+    private static Jp2Parser.J2kFormat sniffFormat(ByteBuffer input) {
+        byte[] head = new byte[Math.min(12, input.remaining())];
+        input.get(input.position(), head);
+        return Jp2Parser.sniffFormat(head);
+    }
+
+    /** Sniffs the first bytes of stream, read from its current position. */
+    private static Jp2Parser.J2kFormat sniffFormat(OpjStream stream) {
+        byte[] head = new byte[12];
+        int n = (int) Math.max(0, Cio.opj_stream_read_data(stream, head, head.length, null));
+        return Jp2Parser.sniffFormat(n == head.length ? head : Arrays.copyOf(head, n));
+    }
+
+    /**
+     * Applies parameters to codec and reads the main header.
+     */
+    private static OpjImage readHeader(OpjCodec codec, OpjStream stream,
+                                       OpjDecompressParameters parameters) {
+        // Default decoder parameters
+        OpenJpeg.OpjDParameters params = new OpenJpeg.OpjDParameters();
+        OpenJpeg.opj_set_default_decoder_parameters(params);
+        params.cpReduce = parameters.getCore().getCpReduce();
+        params.cpLayer = parameters.getCore().getCpLayer();
+
+        if (!OpenJpeg.opj_setup_decoder(codec, params)) {
+            throw new RuntimeException("opj_setup_decoder failed");
+        }
+
+        // Set either way, so a reused codec drops the last decode's threads:
+        // below 1 means the default of a new codec (OPJ_NUM_THREADS)
+        int threads = parameters.getNumThreads() >= 1 ? parameters.getNumThreads()
+                : OpjJ2k.opj_j2k_get_default_thread_count();
+        if (!OpenJpeg.opj_codec_set_threads(codec, threads)) {
+            throw new RuntimeException("opj_codec_set_threads failed");
+        }
+        // Every mode is set either way: a reused codec keeps the last ones
+        OpjDecompressParameters.SampleFormat format = parameters.getSampleFormat();
+        if (!OpenJpeg.opj_set_narrow_output(codec, format == OpjDecompressParameters.SampleFormat.NARROW)) {
+            throw new RuntimeException("opj_set_narrow_output failed");
+        }
+        if (!OpenJpeg.opj_set_float_output(codec,
+                format == OpjDecompressParameters.SampleFormat.FLOAT
+                        || format == OpjDecompressParameters.SampleFormat.FLOAT_NORMALIZED,
+                format == OpjDecompressParameters.SampleFormat.FLOAT_NORMALIZED)) {
+            throw new RuntimeException("opj_set_float_output failed");
+        }
+        OpjPrecision[] precision = parameters.getNbPrecision() > 0
+                ? Arrays.copyOf(parameters.getPrecision(), parameters.getNbPrecision()) : null;
+        if (!OpenJpeg.opj_set_output_precision(codec, precision)) {
+            throw new RuntimeException("opj_set_output_precision failed");
+        }
+        if (!OpenJpeg.opj_set_offheap_output(codec,
+                parameters.getComponentStorage() == OpjDecompressParameters.ComponentStorage.OFF_HEAP)) {
+            throw new RuntimeException("opj_set_offheap_output failed");
+        }
+        if (!OpenJpeg.opj_set_upsample(codec, parameters.isUpsample())) {
+            throw new RuntimeException("opj_set_upsample failed");
+        }
+
+        // Header + image struct
+        OpjImage image = new OpjImage();
+        if (!OpenJpeg.opj_read_header(stream, codec, image)) {
+            throw new RuntimeException("opj_read_header failed");
+        }
+
+        int[] compsIndices = parameters.getCompsIndices();
+        if (compsIndices != null && compsIndices.length > 0) {
+            long[] indices = new long[compsIndices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                indices[i] = compsIndices[i];
+            }
+            if (!OpenJpeg.opj_set_decoded_components(codec, indices)) {
+                throw new RuntimeException("opj_set_decoded_components failed");
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Wraps a tile of opj_decode_tiles. With upsampling the decoder has
+     * already expanded subsampled components to the tile's area of the
+     * (reduced) reference grid, and x0 / y0 are positions on that grid;
+     * without it, components of different sizes are rejected.
+     */
+    private static DecodedTile toDecodedTile(int tileIndex, OpjImage tile) {
+        DecodedTile out = new DecodedTile();
+        OpjImage.OpjImageComp first = tile.comps[0];
+        out.tileIndex = tileIndex;
+        out.x0 = first.x0;
+        out.y0 = first.y0;
+        out.width = first.w;
+        out.height = first.h;
+        out.numComponents = tile.numcomps;
+        out.bitsPerSample = first.prec;
+        out.signed = first.sgnd;
+        out.componentSigned = new boolean[tile.numcomps];
+        out.components = new int[tile.numcomps][];
+
+        for (int c = 0; c < tile.numcomps; ++c) {
+            OpjImage.OpjImageComp comp = tile.comps[c];
+            out.componentSigned[c] = comp.sgnd;
+            if (comp.w != out.width || comp.h != out.height) {
+                throw new IllegalStateException("Subsampled components need upsampling (setUpsample)");
+            }
+            // The tile image is ours: hand its planes over without copying
+            out.components[c] = comp.data;
+        }
+        return out;
+    }
+
+    /**
+     * Wraps the planes of a decoded OpjImage in a DecodedImage. Without
+     * copy the planes are moved, not copied: the DecodedImage takes over
+     * the component arrays and img's components are left without data.
+     * Callers that keep using img pass copy = true.
+     */
+    public static DecodedImage toDecodedImage(OpjImage img, boolean copy) {
+        return toDecodedImage(img, copy, false);
+    }
+
+    /**
+     * toDecodedImage that, with upsample, brings components subsampled by
+     * dx / dy up to the (reduced) reference grid, e.g. the chroma planes
+     * of 4:2:0 or 4:2:2 images, for an img decoded without upsampling
+     * (opj_set_upsample does it during the decode, which is cheaper).
+     * Each subsampled plane is expanded straight into its output plane.
+     * Without upsample, subsampled components are rejected.
+     */
+    public static DecodedImage toDecodedImage(OpjImage img, boolean copy, boolean upsample) {
         if (img.comps == null || img.numcomps <= 0) {
             throw new IllegalStateException("No components in decoded image");
         }
@@ -134,25 +1792,130 @@ public abstract class OpjDecompress {
         out.height = first.h;
         out.bitsPerSample = first.prec;
         out.signed = first.sgnd;
+        out.componentSigned = new boolean[img.numcomps];
 
-        int n = out.width * out.height;
-        out.components = new int[out.numComponents][];
+        boolean subsampled = false;
+        for (int c = 0; c < img.numcomps; ++c) {
+            out.componentSigned[c] = img.comps[c].sgnd;
+            subsampled |= img.comps[c].dx != 1 || img.comps[c].dy != 1;
+        }
+        if (subsampled && upsample) {
+            // The reference grid at the decoded resolution
+            out.width = opj_int_ceildivpow2(img.x1, first.factor) - opj_int_ceildivpow2(img.x0, first.factor);
+            out.height = opj_int_ceildivpow2(img.y1, first.factor) - opj_int_ceildivpow2(img.y0, first.factor);
+        }
 
+        // Components to hand over: img's own, or upsampled ones that
+        // belong to out from the start
+        OpjImage.OpjImageComp[] comps = new OpjImage.OpjImageComp[out.numComponents];
         for (int c = 0; c < out.numComponents; ++c) {
             OpjImage.OpjImageComp comp = img.comps[c];
-
             if (comp.w != out.width || comp.h != out.height) {
-                throw new IllegalStateException("Subsampled components not supported yet");
+                if (!upsample) {
+                    throw new IllegalStateException("Subsampled components need upsampling (setUpsample)");
+                }
+                opj_check_component(comp, c);
+                comp = OpjUpsampler.opj_upsample_component(img, comp, out.width, out.height);
             }
-            if (comp.data == null || comp.data.length < n) {
-                throw new IllegalStateException("Component " + c + " has invalid data buffer");
+            comps[c] = comp;
+        }
+
+        if (first.offHeapData != null) {
+            return toDecodedImageOffHeap(img, comps, out, copy);
+        }
+
+        int n = out.width * out.height;
+        // The decoder picked one plane type for all components
+        if (first.floatData != null) {
+            out.floatComponents = new float[out.numComponents][];
+        } else if (first.byteData != null) {
+            out.byteComponents = new byte[out.numComponents][];
+        } else if (first.shortData != null) {
+            out.shortComponents = new short[out.numComponents][];
+        } else {
+            out.components = new int[out.numComponents][];
+        }
+
+        for (int c = 0; c < out.numComponents; ++c) {
+            OpjImage.OpjImageComp comp = comps[c];
+            opj_check_component(comp, c);
+            boolean own = comp != img.comps[c];
+            if (out.floatComponents != null) {
+                out.floatComponents[c] = copy && !own || comp.floatData.length != n
+                        ? Arrays.copyOf(comp.floatData, n) : comp.floatData;
+            } else if (out.byteComponents != null) {
+                out.byteComponents[c] = copy && !own || comp.byteData.length != n
+                        ? Arrays.copyOf(comp.byteData, n) : comp.byteData;
+            } else if (out.shortComponents != null) {
+                out.shortComponents[c] = copy && !own || comp.shortData.length != n
+                        ? Arrays.copyOf(comp.shortData, n) : comp.shortData;
+            } else {
+                out.components[c] = copy && !own || comp.data.length != n
+                        ? Arrays.copyOf(comp.data, n) : comp.data;
             }
+        }
 
-            int[] plane = new int[n];
-            System.arraycopy(comp.data, 0, plane, 0, n);
-            out.components[c] = plane;
+        // Planes handed over as-is belong to out now; copied ones stay with
+        // img and go back to the pool from opj_image_destroy
+        for (int c = 0; c < out.numComponents; ++c) {
+            OpjImage.OpjImageComp comp = img.comps[c];
+            if (out.components != null && out.components[c] == comp.data) comp.data = null;
+            if (out.shortComponents != null && out.shortComponents[c] == comp.shortData) comp.shortData = null;
+            if (out.byteComponents != null && out.byteComponents[c] == comp.byteData) comp.byteData = null;
+            if (out.floatComponents != null && out.floatComponents[c] == comp.floatData) comp.floatData = null;
+        }
+
+        return out;
+    }
+
+    /** Checks that comp has a plane of w * h samples. */
+    private static void opj_check_component(OpjImage.OpjImageComp comp, int c) {
+        long cn = (long) comp.w * comp.h;
+        boolean ok;
+        if (comp.offHeapData != null) {
+            ok = comp.offHeapData.length() == cn;
+        } else if (comp.floatData != null) {
+            ok = comp.floatData.length >= cn;
+        } else if (comp.byteData != null) {
+            ok = comp.byteData.length >= cn;
+        } else if (comp.shortData != null) {
+            ok = comp.shortData.length >= cn;
+        } else {
+            ok = comp.data != null && comp.data.length >= cn;
+        }
+        if (!ok) {
+            throw new IllegalStateException("Component " + c + " has invalid data buffer");
         }
+    }
 
+    /** toDecodedImage for off-heap planes, which may exceed an array. */
+    private static DecodedImage toDecodedImageOffHeap(OpjImage img, OpjImage.OpjImageComp[] comps,
+                                                     DecodedImage out, boolean copy) {
+        long n = (long) out.width * out.height;
+        out.offHeapComponents = new OpjImage.OpjOffHeapPlane[out.numComponents];
+        for (int c = 0; c < out.numComponents; ++c) {
+            OpjImage.OpjImageComp comp = comps[c];
+            opj_check_component(comp, c);
+            OpjImage.OpjOffHeapPlane plane = comp.offHeapData;
+            if (comp != img.comps[c]) {
+                // Upsampled: a plane of its own
+                out.offHeapComponents[c] = plane;
+            } else if (copy) {
+                OpjImage.OpjOffHeapPlane dst = OpjImage.opj_image_data_alloc_offheap(comp.w, comp.h,
+                        plane.bytesPerSample(), comp.sgnd);
+                int[] chunk = new int[(int) Math.min(n, 1 << 16)];
+                for (long i = 0; i < n; i += chunk.length) {
+                    int len = (int) Math.min(chunk.length, n - i);
+                    plane.get(i, chunk, 0, len);
+                    dst.put(i, chunk, 0, len);
+                }
+                out.offHeapComponents[c] = dst;
+            } else {
+                // The plane belongs to out now
+                out.offHeapComponents[c] = plane;
+                comp.offHeapData = null;
+            }
+        }
         return out;
     }
-}
\ No newline at end of file
+}
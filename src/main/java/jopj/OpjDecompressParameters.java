@@ -1,5 +1,7 @@
 package jopj;
 
+import java.util.Objects;
+
 /**
  * Java equivalent of opj_decompress_params.
  *
@@ -96,6 +98,50 @@ public class OpjDecompressParameters {
      */
     private int[] compsIndices;
 
+    /** Array type of the DecodedImage planes. */
+    private SampleFormat sampleFormat;
+
+    /** Planes returned in OpjDecompress.DecodedImage. */
+    public enum SampleFormat {
+        /** int[] planes (components), whatever the precision. */
+        INT,
+        /**
+         * byte[] planes (byteComponents) when every component has at most
+         * 8 bits, short[] planes (shortComponents) up to 16 bits, int[]
+         * above that.
+         */
+        NARROW,
+        /**
+         * float[] planes (floatComponents) in the native sample range;
+         * irreversible (9-7) samples are neither rounded nor clamped.
+         */
+        FLOAT,
+        /** FLOAT with the component range mapped onto [0, 1]. */
+        FLOAT_NORMALIZED
+    }
+
+    /** Where the DecodedImage planes live. */
+    private ComponentStorage componentStorage;
+
+    /** Storage of the planes returned in OpjDecompress.DecodedImage. */
+    public enum ComponentStorage {
+        /** Java arrays on the GC heap, at most 2^31 - 1 samples each. */
+        HEAP,
+        /**
+         * Direct memory (offHeapComponents), long-indexed, for rasters
+         * larger than an array or too large to put on the heap. Samples
+         * are 4 bytes, or 1 / 2 bytes with SampleFormat.NARROW.
+         * <p>
+         * Direct memory is capped by -XX:MaxDirectMemorySize, which
+         * defaults to the maximum heap size. Decoding large rasters
+         * off-heap therefore needs that limit raised, or the allocation
+         * fails with an OutOfMemoryError. Closing the DecodedImage returns
+         * the memory at once (see OpjImage.OpjOffHeapPlane.free); planes
+         * that are never closed wait for the GC.
+         */
+        OFF_HEAP
+    }
+
 
     // ---------------------------------------------------------------------
     // Constructors
@@ -134,6 +180,8 @@ public class OpjDecompressParameters {
 
         this.numComps = 0;
         this.compsIndices = null;
+        this.sampleFormat = SampleFormat.INT;
+        this.componentStorage = ComponentStorage.HEAP;
     }
 
     // ---------------------------------------------------------------------
@@ -321,4 +369,21 @@ public class OpjDecompressParameters {
         this.compsIndices = compsIndices;
         this.numComps = (compsIndices != null) ? compsIndices.length : 0;
     }
+
+    public SampleFormat getSampleFormat() {
+        return sampleFormat;
+    }
+
+    public void setSampleFormat(SampleFormat sampleFormat) {
+        this.sampleFormat = Objects.requireNonNull(sampleFormat, "sampleFormat must not be null");
+    }
+
+    public ComponentStorage getComponentStorage() {
+        return componentStorage;
+    }
+
+    public void setComponentStorage(ComponentStorage componentStorage) {
+        this.componentStorage = Objects.requireNonNull(componentStorage,
+                "componentStorage must not be null");
+    }
 }
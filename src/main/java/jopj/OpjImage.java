@@ -1,5 +1,13 @@
 package jopj;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 public class OpjImage
 {
     public int x0;
@@ -82,27 +90,355 @@ public class OpjImage
         /** Sample data: one int per sample. */
         public int[] data;
 
+        /**
+         * Narrow sample data, allocated instead of data when the decoder
+         * is asked for narrow output: byteData when every component fits
+         * in 8 bits, shortData when it fits in 16. Samples keep their low
+         * bits, so unsigned ones read back with & 0xFF / & 0xFFFF.
+         */
+        public byte[] byteData;
+        public short[] shortData;
+
+        /**
+         * Off-heap sample data, allocated instead of the arrays when the
+         * decoder is asked for off-heap output; indexed by long, so a
+         * component may exceed 2^31 samples.
+         */
+        public OpjOffHeapPlane offHeapData;
+
+        /**
+         * Float sample data, allocated instead of the others when the
+         * decoder is asked for float output: 9-7 components unrounded and
+         * unclamped, 5-3 ones converted; optionally normalized to [0, 1].
+         */
+        public float[] floatData;
+
         public OpjImageComp() {
         }
     }
 
+    /* ==========================================================
+       Off-heap component storage
+       ========================================================== */
+
+    /**
+     * Component samples in direct ByteBuffer segments of up to 1 GiB each,
+     * outside the GC heap, with long sample indices. Samples are 1, 2 or 4
+     * bytes in native order; narrower ones keep their low bits and read
+     * back sign- or zero-extended according to signed.
+     */
+    public static final class OpjOffHeapPlane {
+        private static final int SEGMENT_BYTES_SHIFT = 30;
+
+        private final long length;
+        private final int bytesPerSample;
+        private final boolean signed;
+        /** log2 of the samples per segment. */
+        private final int segmentShift;
+        private final long segmentMask;
+        private ByteBuffer[] segments;
+        /** Int views of the segments, for bulk copies of 4-byte samples. */
+        private IntBuffer[] intViews;
+
+        OpjOffHeapPlane(long length, int bytesPerSample, boolean signed) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative component size: " + length);
+            }
+            if (bytesPerSample != 1 && bytesPerSample != 2 && bytesPerSample != 4) {
+                throw new IllegalArgumentException("bytesPerSample must be 1, 2 or 4");
+            }
+            this.length = length;
+            this.bytesPerSample = bytesPerSample;
+            this.signed = signed;
+            this.segmentShift = SEGMENT_BYTES_SHIFT - Integer.numberOfTrailingZeros(bytesPerSample);
+            this.segmentMask = (1L << segmentShift) - 1;
+
+            int count = (int) ((length + segmentMask) >>> segmentShift);
+            segments = new ByteBuffer[count];
+            intViews = bytesPerSample == 4 ? new IntBuffer[count] : null;
+            for (int i = 0; i < count; ++i) {
+                long n = Math.min(length - ((long) i << segmentShift), 1L << segmentShift);
+                segments[i] = ByteBuffer.allocateDirect((int) (n * bytesPerSample))
+                        .order(ByteOrder.nativeOrder());
+                if (intViews != null) {
+                    intViews[i] = segments[i].asIntBuffer();
+                }
+            }
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public int bytesPerSample() {
+            return bytesPerSample;
+        }
+
+        public boolean isFreed() {
+            return segments == null;
+        }
+
+        /** Sample i, widened to int. */
+        public int get(long i) {
+            ByteBuffer seg = segment(i);
+            int pos = (int) (i & segmentMask) * bytesPerSample;
+            switch (bytesPerSample) {
+                case 1:
+                    return signed ? seg.get(pos) : seg.get(pos) & 0xFF;
+                case 2:
+                    return signed ? seg.getShort(pos) : seg.getShort(pos) & 0xFFFF;
+                default:
+                    return seg.getInt(pos);
+            }
+        }
+
+        /** Stores value at sample i, keeping its low bits. */
+        public void set(long i, int value) {
+            ByteBuffer seg = segment(i);
+            int pos = (int) (i & segmentMask) * bytesPerSample;
+            switch (bytesPerSample) {
+                case 1:
+                    seg.put(pos, (byte) value);
+                    break;
+                case 2:
+                    seg.putShort(pos, (short) value);
+                    break;
+                default:
+                    seg.putInt(pos, value);
+            }
+        }
+
+        /** Stores src[off .. off + n) at samples i .. i + n, narrowing them. */
+        public void put(long i, int[] src, int off, int n) {
+            opj_offheap_check(i, n);
+            while (n > 0) {
+                int s = (int) (i >>> segmentShift);
+                int pos = (int) (i & segmentMask);
+                int run = (int) Math.min(n, (1L << segmentShift) - pos);
+                ByteBuffer seg = segments[s];
+                if (bytesPerSample == 4) {
+                    intViews[s].put(pos, src, off, run);
+                } else if (bytesPerSample == 2) {
+                    for (int k = 0, b = pos * 2; k < run; ++k, b += 2) {
+                        seg.putShort(b, (short) src[off + k]);
+                    }
+                } else {
+                    for (int k = 0; k < run; ++k) {
+                        seg.put(pos + k, (byte) src[off + k]);
+                    }
+                }
+                i += run;
+                off += run;
+                n -= run;
+            }
+        }
+
+        /** Reads samples i .. i + n into dst[off ..], widened to int. */
+        public void get(long i, int[] dst, int off, int n) {
+            opj_offheap_check(i, n);
+            while (n > 0) {
+                int s = (int) (i >>> segmentShift);
+                int pos = (int) (i & segmentMask);
+                int run = (int) Math.min(n, (1L << segmentShift) - pos);
+                ByteBuffer seg = segments[s];
+                if (bytesPerSample == 4) {
+                    intViews[s].get(pos, dst, off, run);
+                } else if (bytesPerSample == 2) {
+                    for (int k = 0, b = pos * 2; k < run; ++k, b += 2) {
+                        short v = seg.getShort(b);
+                        dst[off + k] = signed ? v : v & 0xFFFF;
+                    }
+                } else {
+                    for (int k = 0; k < run; ++k) {
+                        byte v = seg.get(pos + k);
+                        dst[off + k] = signed ? v : v & 0xFF;
+                    }
+                }
+                i += run;
+                off += run;
+                n -= run;
+            }
+        }
+
+        /**
+         * Returns the native memory of the segments at once, by running the
+         * buffers' cleaners (Unsafe.invokeCleaner), instead of when the GC
+         * finds them unreachable; the plane is unusable afterwards. No other
+         * thread may be reading or writing the plane meanwhile. On a JVM
+         * without sun.misc.Unsafe the memory is left to the GC.
+         */
+        public void free() {
+            ByteBuffer[] s = segments;
+            segments = null;
+            intViews = null;
+            if (s == null || INVOKE_CLEANER == null) {
+                return;
+            }
+            for (ByteBuffer segment : s) {
+                try {
+                    INVOKE_CLEANER.invokeExact(segment);
+                } catch (Throwable e) {
+                    // Not cleanable after all: the GC releases it
+                }
+            }
+        }
+
+        /** Unsafe.invokeCleaner bound to the Unsafe instance, or null. */
+        private static final MethodHandle INVOKE_CLEANER = opj_offheap_cleaner();
+
+        private static MethodHandle opj_offheap_cleaner() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return MethodHandles.lookup()
+                        .findVirtual(unsafeClass, "invokeCleaner",
+                                MethodType.methodType(void.class, ByteBuffer.class))
+                        .bindTo(theUnsafe.get(null));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private ByteBuffer segment(long i) {
+            opj_offheap_check(i, 1);
+            return segments[(int) (i >>> segmentShift)];
+        }
+
+        private void opj_offheap_check(long i, int n) {
+            if (segments == null) {
+                throw new IllegalStateException("Off-heap component already freed");
+            }
+            if (i < 0 || n < 0 || i > length - n) {
+                throw new IndexOutOfBoundsException("Samples " + i + ".." + (i + n)
+                        + " outside component of " + length);
+            }
+        }
+    }
+
         /* ==========================================================
        Image data allocator (opj_image_data_alloc/free)
        ========================================================== */
 
     /**
-     * Allocate an int[] for component data, with overflow checks.
+     * Allocate an int[] for component data, with overflow checks. Planes
+     * come from the default OpjBufferPool and go back to it from
+     * opj_image_data_free. Without clear a re-used plane keeps its old
+     * samples; the decoder asks for that when it writes every sample.
+     */
+    static int[] opj_image_data_alloc_int(int w, int h) {
+        return opj_image_data_alloc_int(w, h, true);
+    }
+
+    static int[] opj_image_data_alloc_int(int w, int h, boolean clear) {
+        return OpjBufferPool.getDefault().acquireInts(opj_image_data_size(w, h), clear);
+    }
+
+    static short[] opj_image_data_alloc_short(int w, int h, boolean clear) {
+        return OpjBufferPool.getDefault().acquireShorts(opj_image_data_size(w, h), clear);
+    }
+
+    static byte[] opj_image_data_alloc_byte(int w, int h, boolean clear) {
+        return OpjBufferPool.getDefault().acquireBytes(opj_image_data_size(w, h), clear);
+    }
+
+    /**
+     * C: void opj_image_data_free(void* ptr);
+     *
+     * Returns the component's planes to the pool, releases the native
+     * memory of an off-heap plane, and clears them.
      */
-    private static int[] opj_image_data_alloc_int(int w, int h) {
+    static void opj_image_data_free(OpjImageComp comp) {
+        OpjBufferPool pool = OpjBufferPool.getDefault();
+        pool.release(comp.data);
+        pool.release(comp.shortData);
+        pool.release(comp.byteData);
+        pool.release(comp.floatData);
+        if (comp.offHeapData != null) {
+            comp.offHeapData.free();
+        }
+        comp.data = null;
+        comp.shortData = null;
+        comp.byteData = null;
+        comp.floatData = null;
+        comp.offHeapData = null;
+    }
+
+    static float[] opj_image_data_alloc_float(int w, int h, boolean clear) {
+        return OpjBufferPool.getDefault().acquireFloats(opj_image_data_size(w, h), clear);
+    }
+
+    /**
+     * Allocate off-heap component data of w * h samples, which may exceed
+     * the 2^31 limit of the array allocators.
+     */
+    static OpjOffHeapPlane opj_image_data_alloc_offheap(int w, int h, int bytesPerSample,
+                                                        boolean sgnd) {
+        return new OpjOffHeapPlane((long) w * (long) h, bytesPerSample, sgnd);
+    }
+
+    /**
+     * Stores src[off .. off + n) at samples i .. i + n of comp's int,
+     * short, byte or off-heap plane, keeping the low bits of narrower
+     * samples.
+     */
+    static void opj_image_comp_put_row(OpjImageComp comp, long i, int[] src, int off, int n) {
+        if (comp.offHeapData != null) {
+            comp.offHeapData.put(i, src, off, n);
+            return;
+        }
+        int d = (int) i;
+        if (comp.data != null) {
+            System.arraycopy(src, off, comp.data, d, n);
+        } else if (comp.shortData != null) {
+            short[] dst = comp.shortData;
+            for (int k = 0; k < n; ++k) {
+                dst[d + k] = (short) src[off + k];
+            }
+        } else {
+            byte[] dst = comp.byteData;
+            for (int k = 0; k < n; ++k) {
+                dst[d + k] = (byte) src[off + k];
+            }
+        }
+    }
+
+    /**
+     * Reads samples i .. i + n of comp's int, short, byte or off-heap
+     * plane into dst[off ..]; narrower samples are widened such that
+     * opj_image_comp_put_row stores them back unchanged.
+     */
+    static void opj_image_comp_get_row(OpjImageComp comp, long i, int[] dst, int off, int n) {
+        if (comp.offHeapData != null) {
+            comp.offHeapData.get(i, dst, off, n);
+            return;
+        }
+        int s = (int) i;
+        if (comp.data != null) {
+            System.arraycopy(comp.data, s, dst, off, n);
+        } else if (comp.shortData != null) {
+            short[] src = comp.shortData;
+            for (int k = 0; k < n; ++k) {
+                dst[off + k] = src[s + k];
+            }
+        } else {
+            byte[] src = comp.byteData;
+            for (int k = 0; k < n; ++k) {
+                dst[off + k] = src[s + k];
+            }
+        }
+    }
+
+    private static int opj_image_data_size(int w, int h) {
         if (h != 0) {
             long num = (long) w * (long) h;
             if (num > Integer.MAX_VALUE) {
                 throw new IllegalArgumentException(
                         "Component buffer too large: " + w + "x" + h);
             }
-            return new int[(int) num];
+            return (int) num;
         }
-        return new int[0];
+        return 0;
     }
 
     /* ==========================================================
@@ -202,7 +538,9 @@ public class OpjImage
     /**
      * C: void opj_image_destroy(opj_image_t *image);
      *
-     * In Java, we just clear references to help GC.
+     * Sample planes go back to the buffer pool and off-heap planes are
+     * freed, so the caller must not still hold them; everything else is
+     * left to the GC.
      */
     public static void opj_image_destroy(OpjImage image) {
         if (image == null) return;
@@ -210,7 +548,7 @@ public class OpjImage
             for (int i = 0; i < image.comps.length; ++i) {
                 OpjImageComp c = image.comps[i];
                 if (c != null) {
-                    c.data = null;
+                    opj_image_data_free(c);
                     image.comps[i] = null;
                 }
             }
@@ -0,0 +1,56 @@
+package jopj;
+
+/**
+ * Java port of opj_intmath.h
+ *
+ * Small integer helpers used for tile / resolution / precinct geometry.
+ */
+public final class OpjIntMath {
+
+    private OpjIntMath() {
+    }
+
+    /**
+     * C: OPJ_INT32 opj_int_ceildiv(OPJ_INT32 a, OPJ_INT32 b);
+     */
+    public static int opj_int_ceildiv(int a, int b) {
+        return (int) (((long) a + b - 1) / b);
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_uint_ceildiv(OPJ_UINT32 a, OPJ_UINT32 b);
+     */
+    public static int opj_uint_ceildiv(int a, int b) {
+        return (int) (((a & 0xFFFFFFFFL) + (b & 0xFFFFFFFFL) - 1) / (b & 0xFFFFFFFFL));
+    }
+
+    /**
+     * C: OPJ_INT32 opj_int_ceildivpow2(OPJ_INT32 a, OPJ_INT32 b);
+     */
+    public static int opj_int_ceildivpow2(int a, int b) {
+        return (int) (((long) a + (1L << b) - 1) >> b);
+    }
+
+    /**
+     * C: OPJ_INT32 opj_int_floordivpow2(OPJ_INT32 a, OPJ_INT32 b);
+     */
+    public static int opj_int_floordivpow2(int a, int b) {
+        return a >> b;
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_uint_floorlog2(OPJ_UINT32 a);
+     */
+    public static int opj_uint_floorlog2(int a) {
+        return a == 0 ? 0 : 31 - Integer.numberOfLeadingZeros(a);
+    }
+
+    /**
+     * C: OPJ_INT32 opj_int_clamp(OPJ_INT32 a, OPJ_INT32 min, OPJ_INT32 max);
+     */
+    public static int opj_int_clamp(int a, int min, int max) {
+        if (a < min) return min;
+        if (a > max) return max;
+        return a;
+    }
+}
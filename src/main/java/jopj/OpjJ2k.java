@@ -1,8 +1,21 @@
 package jopj;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static jopj.OpjImage.opj_copy_image_header;
+import static jopj.OpjIntMath.opj_int_ceildiv;
+import static jopj.OpjIntMath.opj_int_ceildivpow2;
 
 /**
  * Java skeleton for j2k.c / j2k.h
@@ -19,7 +32,7 @@ public class OpjJ2k extends OpjCodec
     // Example placeholders; fill in from j2k.c as you port logic.
     public boolean isDecoder;
     public boolean strictMode;
-    public long    numThreads;
+    public long    numThreads = opj_j2k_get_default_thread_count();
 
     // You will likely hold references to:
     // - jopj.OpenJpeg.jopj.OpjImage currentImage;
@@ -45,17 +58,255 @@ public class OpjJ2k extends OpjCodec
         // Add fields (tile count, component info, progression order, etc.) later.
     }
 
-    /** Minimal stub for opj_tcp_t (tile-component parameters). */
-    public final class OpjTcp {
-        // e.g. coding style, Q stepsizes, MCT data...
-    }
-
     /** Progression order enumeration – equivalent to OPJ_PROG_ORDER. */
     public enum OpjProgOrder {
         LRCP, RLCP, RPCL, PCRL, CPRL
         // Map to/from C enums as you port.
     }
 
+    /* ------------------------------------------------------------------ */
+    /* Markers and decoder states from j2k.h                              */
+    /* ------------------------------------------------------------------ */
+
+    public static final int J2K_MS_SOC = 0xff4f;
+    public static final int J2K_MS_SOT = 0xff90;
+    public static final int J2K_MS_SOD = 0xff93;
+    public static final int J2K_MS_EOC = 0xffd9;
+    public static final int J2K_MS_CAP = 0xff50;
+    public static final int J2K_MS_SIZ = 0xff51;
+    public static final int J2K_MS_COD = 0xff52;
+    public static final int J2K_MS_COC = 0xff53;
+    public static final int J2K_MS_TLM = 0xff55;
+    public static final int J2K_MS_PLM = 0xff57;
+    public static final int J2K_MS_PLT = 0xff58;
+    public static final int J2K_MS_QCD = 0xff5c;
+    public static final int J2K_MS_QCC = 0xff5d;
+    public static final int J2K_MS_RGN = 0xff5e;
+    public static final int J2K_MS_POC = 0xff5f;
+    public static final int J2K_MS_PPM = 0xff60;
+    public static final int J2K_MS_PPT = 0xff61;
+    public static final int J2K_MS_CRG = 0xff63;
+    public static final int J2K_MS_COM = 0xff64;
+
+    /** C: J2K_STATUS - where in the codestream the decoder is. */
+    public static final int J2K_STATE_NONE   = 0x0000;
+    public static final int J2K_STATE_MHSOC  = 0x0001;
+    public static final int J2K_STATE_MHSIZ  = 0x0002;
+    public static final int J2K_STATE_MH     = 0x0004;
+    public static final int J2K_STATE_TPHSOT = 0x0008;
+    public static final int J2K_STATE_TPH    = 0x0010;
+    public static final int J2K_STATE_EOC    = 0x0100;
+    public static final int J2K_STATE_ERR    = 0x8000;
+
+    /* ------------------------------------------------------------------ */
+    /* Coding style constants from j2k.h                                  */
+    /* ------------------------------------------------------------------ */
+
+    public static final int J2K_CP_CSTY_PRT = 0x01;
+    public static final int J2K_CP_CSTY_SOP = 0x02;
+    public static final int J2K_CP_CSTY_EPH = 0x04;
+    public static final int J2K_CCP_CSTY_PRT = 0x01;
+    public static final int J2K_CCP_CBLKSTY_LAZY    = 0x01;
+    public static final int J2K_CCP_CBLKSTY_RESET   = 0x02;
+    public static final int J2K_CCP_CBLKSTY_TERMALL = 0x04;
+    public static final int J2K_CCP_CBLKSTY_VSC     = 0x08;
+    public static final int J2K_CCP_CBLKSTY_PTERM   = 0x10;
+    public static final int J2K_CCP_CBLKSTY_SEGSYM  = 0x20;
+    public static final int J2K_CCP_QNTSTY_NOQNT = 0;
+    public static final int J2K_CCP_QNTSTY_SIQNT = 1;
+    public static final int J2K_CCP_QNTSTY_SEQNT = 2;
+
+    /** C: OPJ_J2K_MAXRLVLS */
+    public static final int OPJ_J2K_MAXRLVLS = 33;
+    /** C: OPJ_J2K_MAXBANDS */
+    public static final int OPJ_J2K_MAXBANDS = 3 * OPJ_J2K_MAXRLVLS - 2;
+
+    /** Java equivalent of opj_stepsize_t (quantization stepsize of one band). */
+    public static final class OpjStepsize {
+        public int expn;
+        public int mant;
+    }
+
+    /** Java equivalent of opj_poc_t (one progression order change). */
+    public static final class OpjPoc {
+        public int resno0;
+        public int compno0;
+        public int layno1;
+        public int resno1;
+        public int compno1;
+        public int layno0;
+        public int precno0;
+        public int precno1;
+        public OpjProgOrder prg;
+    }
+
+    /** Java equivalent of opj_tccp_t (tile-component coding parameters). */
+    public static final class OpjTccp {
+        /** Coding style (J2K_CCP_CSTY_*). */
+        public int csty;
+        /** Number of resolutions (decomposition levels + 1). */
+        public int numresolutions;
+        /** Log2 of the code-block width. */
+        public int cblkw;
+        /** Log2 of the code-block height. */
+        public int cblkh;
+        /** Code-block coding style (J2K_CCP_CBLKSTY_*). */
+        public int cblksty;
+        /** 1 for the reversible 5-3 wavelet, 0 for the irreversible 9-7. */
+        public int qmfbid;
+        /** Quantisation style (J2K_CCP_QNTSTY_*). */
+        public int qntsty;
+        public OpjStepsize[] stepsizes = new OpjStepsize[OPJ_J2K_MAXBANDS];
+        public int numgbits;
+        public int roishift;
+        /** Log2 of the precinct width, per resolution. */
+        public int[] prcw = new int[OPJ_J2K_MAXRLVLS];
+        /** Log2 of the precinct height, per resolution. */
+        public int[] prch = new int[OPJ_J2K_MAXRLVLS];
+        /** DC level shift applied after the inverse transforms. */
+        public int dcLevelShift;
+
+        public OpjTccp() {
+            for (int i = 0; i < stepsizes.length; ++i) {
+                stepsizes[i] = new OpjStepsize();
+            }
+        }
+    }
+
+    /** Java equivalent of opj_tcp_t (tile coding parameters). */
+    public static final class OpjTcp {
+        /** Coding style (J2K_CP_CSTY_*). */
+        public int csty;
+        public OpjProgOrder prg = OpjProgOrder.LRCP;
+        public int numlayers;
+        /** Number of layers actually decoded (see OpjCp.layer). */
+        public int numLayersToDecode;
+        /** Multi-component transform flag. */
+        public int mct;
+        /** True when the tile uses progression order changes. */
+        public boolean poc;
+        /** Index of the last entry of pocs in use (entries 0..numpocs, as in C). */
+        public int numpocs;
+        public OpjPoc[] pocs = new OpjPoc[32];
+        public OpjTccp[] tccps;
+
+        /* Decoder state of the tile, filled while its tile-parts are read */
+
+        /** Bodies of the tile-parts read so far, back to back (C: m_data). */
+        public byte[] data;
+        public int dataSize;
+        /** Plan indices of packets skipped in the stream using PLT lengths. */
+        public BitSet elidedPackets;
+        /**
+         * Packets covered by the tile-parts read so far, or -1 once a
+         * tile-part without usable PLT lengths has made it unknown.
+         */
+        public int numPacketsRead;
+        /** TNsot, or 0 while the number of tile-parts is unknown. */
+        public int numTileParts;
+        public int numTilePartsRead;
+        public boolean decoded;
+    }
+
+    /** Java equivalent of opj_cp_t (coding parameters of the codestream). */
+    public static final class OpjCp {
+        /** Tile grid origin. */
+        public int tx0;
+        public int ty0;
+        /** Nominal tile size. */
+        public int tdx;
+        public int tdy;
+        /** Number of tiles across / down. */
+        public int tw;
+        public int th;
+        public OpjTcp[] tcps;
+
+        /** Decoder: number of highest resolution levels to discard. */
+        public int reduce;
+        /** Decoder: maximum number of quality layers to decode (0 = all). */
+        public int layer;
+        /** Decoder: fail on truncated code-block data instead of warning. */
+        public boolean strict;
+        /**
+         * Decoder: components selected by opj_j2k_set_decoded_components,
+         * or null to decode all of them (C: opj_tcd_t::used_component).
+         */
+        public boolean[] usedComponent;
+        /**
+         * Decoder: output precision of each component, applied with the DC
+         * level shift, or null (also per entry) to keep the codestream's.
+         */
+        public OpjPrecision[] precision;
+        /**
+         * Decoder: the output components take floatData, filled from the
+         * unrounded 9-7 samples (the DC level shift pass leaves them).
+         */
+        public boolean floatOutput;
+        /** Decoder: floatData normalized to [0, 1] instead of the native range. */
+        public boolean floatNormalized;
+    }
+
+    /** Coding parameters read from the main header. */
+    public OpjCp cp = new OpjCp();
+
+    /** Packet orders shared by all tiles of the same geometry. */
+    public final Pi.OpjPiPlanCache planCache = Pi.opj_pi_create_plan_cache();
+
+    /** Coding parameters of the main header, copied to every tile (C: m_default_tcp). */
+    private OpjTcp defaultTcp;
+    /** J2K_STATE_* */
+    private int state = J2K_STATE_NONE;
+    private int currentTileNumber;
+    /** Bytes left in the current tile-part, or -1 when Psot is 0 (C: m_sot_length). */
+    private long sotLength;
+    /** Packet lengths from the PLT markers of the current tile-part. */
+    private int[] pltLengths = new int[64];
+    private int numPltLengths;
+    private boolean hasCod;
+    private boolean hasQcd;
+    /** Contents of the marker segment being read; grows as needed. */
+    private byte[] segmentBuffer = new byte[256];
+    /** Tiles whose tile-parts are skipped instead of read (null: none). */
+    private BitSet skippedTiles;
+    /** Output components in byte / short planes when their precision allows. */
+    private boolean narrowOutput;
+    /** Requested output precisions, as given to opj_j2k_set_output_precision. */
+    private OpjPrecision[] outputPrecision;
+    /** Output components in off-heap planes instead of arrays. */
+    private boolean offHeapOutput;
+    /** Output components in float planes; normalized to [0, 1]. */
+    private boolean floatOutput;
+    private boolean floatNormalized;
+    /** Receives the decoded samples instead of the output planes (null: planes). */
+    private OpenJpeg.OpjSampleWriter sampleWriter;
+    /** Subsampled components are output on the reference grid. */
+    private boolean upsampleOutput;
+    /** Per component of the current decode, its upsampler, or null (none subsampled). */
+    private OpjUpsampler[] upsamplers;
+    /**
+     * Tile decoders (each with its own tier-1/tier-2 scratch and image
+     * header) not in use by a tile. At most maxTcds are created, so this
+     * queue is what bounds the tiles in flight in the decode pipeline.
+     */
+    private final LinkedBlockingQueue<Tcd.OpjTcd> idleTcds = new LinkedBlockingQueue<>();
+    private final List<Tcd.OpjTcd> allTcds = new ArrayList<>();
+    /** Serializes the tile callback calls of the tile workers. */
+    private final ReentrantLock tileCallbackLock = new ReentrantLock();
+    private int maxTcds;
+    /** Tier-1 / DWT workers of the current decode, or null when decoding on the caller's thread. */
+    private ExecutorService tileExecutor;
+    /** The codec's tile worker pool, created on first use and kept until opj_j2k_destroy. */
+    private ExecutorService tileWorkers;
+    /** numThreads the tile worker pool was sized for. */
+    private long tileWorkersThreads;
+    /** Caller's pool for the tile stages, used instead of tileWorkers (null: none). */
+    private ExecutorService externalTileExecutor;
+    private final List<Future<Boolean>> pendingTiles = new ArrayList<>();
+    /** Receives decoded tiles in tile-by-tile mode, or null to fill the output image. */
+    private OpenJpeg.OpjTileCallback tileCallback;
+    /** Components to decode, in output order, or null for all (C: m_comps_indices_to_decode). */
+    private int[] compsIndicesToDecode;
+
     /* ------------------------------------------------------------------ */
     /* Public API from j2k.h                                              */
     /* ------------------------------------------------------------------ */
@@ -67,7 +318,8 @@ public class OpjJ2k extends OpjCodec
         if (parameters == null) {
             return;
         }
-        // TODO: push parameters into j2k's internal state.
+        cp.reduce = (int) parameters.cpReduce;
+        cp.layer = (int) parameters.cpLayer;
     }
 
     /**
@@ -75,15 +327,81 @@ public class OpjJ2k extends OpjCodec
      */
     public void opj_j2k_decoder_set_strict_mode(boolean strict) {
         this.strictMode = strict;
+        cp.strict = strict;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_j2k_set_decoded_resolution_factor(opj_j2k_t *p_j2k, OPJ_UINT32 res_factor, ...);
+     *
+     * Discards the res_factor highest resolution levels. When the header
+     * has been read already, the factor is checked against every
+     * component.
+     */
+    public boolean opj_j2k_set_decoded_resolution_factor(int resFactor) {
+        if (resFactor < 0) {
+            return false;
+        }
+        if (privateImage != null && defaultTcp != null) {
+            for (int compno = 0; compno < privateImage.numcomps; ++compno) {
+                int maxRes = defaultTcp.tccps[compno].numresolutions;
+                if (resFactor >= maxRes) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR,
+                            "Resolution factor is greater than the maximum resolution in the component.\n");
+                    return false;
+                }
+            }
+        }
+        cp.reduce = resFactor;
+        return true;
     }
 
     /**
      * C: OPJ_BOOL opj_j2k_set_threads(opj_j2k_t *j2k, OPJ_UINT32 num_threads);
+     *
+     * With more than one thread, tiles are decoded in a pipeline: tier-2
+     * of the next tile runs on the reading thread while workers run
+     * tier-1, the DWT and the MCT of the previous ones.
      */
     public boolean opj_j2k_set_threads(long numThreads) {
+        if (numThreads < 0) {
+            return false;
+        }
         this.numThreads = numThreads;
         return true;
     }
+
+    /**
+     * Runs tier-1, the DWT and the MCT of each tile on executor instead of
+     * the codec's own workers, even with 0 or 1 threads: the reading thread
+     * then only reads and runs tier-2. The thread count still bounds the
+     * tiles in flight. The executor is not shut down by opj_j2k_destroy;
+     * its tasks never wait on each other. null restores the default.
+     */
+    public void opj_j2k_set_tile_executor(ExecutorService executor) {
+        this.externalTileExecutor = executor;
+    }
+
+    /**
+     * C: static int opj_j2k_get_default_thread_count(void);
+     *
+     * OPJ_NUM_THREADS from the environment: a count, or ALL_CPUS.
+     */
+    static int opj_j2k_get_default_thread_count() {
+        String numThreads = System.getenv("OPJ_NUM_THREADS");
+        if (numThreads == null) {
+            return 0;
+        }
+        int numCpus = Runtime.getRuntime().availableProcessors();
+        if (numThreads.equals("ALL_CPUS")) {
+            return numCpus;
+        }
+        try {
+            int n = Integer.parseInt(numThreads.trim());
+            return n < 0 ? 0 : Math.min(n, 2 * numCpus);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
     
     /**
      * C: opj_j2k_t* opj_j2k_create_decompress(void);
@@ -104,8 +422,49 @@ public class OpjJ2k extends OpjCodec
      * C: void opj_j2k_destroy(opj_j2k_t *p_j2k);
      */
     public void opj_j2k_destroy() {
-        // In pure Java, GC handles most of it.
-        // Add any explicit cleanup here if you manage native resources.
+        if (tileWorkers != null) {
+            tileWorkers.shutdownNow();
+            tileWorkers = null;
+        }
+        // Tile buffers go back to the buffer pool
+        for (Tcd.OpjTcd t : allTcds) {
+            Tcd.opj_tcd_destroy(t);
+        }
+        allTcds.clear();
+        idleTcds.clear();
+    }
+
+    /**
+     * Readies the codec for another codestream, as if newly created, but
+     * keeps what does not depend on the codestream: the tile decoders with
+     * their tier-1/tier-2 scratch and tile buffers, the packet-order plan
+     * cache (keyed by tile geometry, so same-sized frames hit it), the
+     * marker segment buffer, and the decoder settings (reduce, layer,
+     * strict mode, threads, output modes).
+     */
+    public void opj_j2k_reset() {
+        OpjCp old = cp;
+        cp = new OpjCp();
+        cp.reduce = old.reduce;
+        cp.layer = old.layer;
+        cp.strict = old.strict;
+
+        privateImage = null;
+        defaultTcp = null;
+        state = J2K_STATE_NONE;
+        currentTileNumber = 0;
+        sotLength = 0;
+        numPltLengths = 0;
+        hasCod = false;
+        hasQcd = false;
+        skippedTiles = null;
+        compsIndicesToDecode = null;
+        tileCallback = null;
+        pendingTiles.clear();
+
+        // Re-pointed at the new header when next acquired
+        idleTcds.clear();
+        idleTcds.addAll(allTcds);
     }
 
     /**
@@ -157,11 +516,161 @@ public class OpjJ2k extends OpjCodec
         return true;
     }
 
+    /**
+     * C: OPJ_BOOL opj_j2k_set_decoded_components(opj_j2k_t *p_j2k, OPJ_UINT32 numcomps,
+     *                                            const OPJ_UINT32* comps_indices, ...);
+     *
+     * Restricts decoding to the given components, which the output image
+     * then holds in that order. Packets of the other components are not
+     * decoded, nor read when PLT lengths allow skipping them. Must be
+     * called after opj_j2k_read_header; null or empty selects all.
+     */
+    public boolean opj_j2k_set_decoded_components(int[] compsIndices) {
+        if (privateImage == null) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR,
+                    "opj_read_header() should be called before opj_set_decoded_components().\n");
+            return false;
+        }
+        if (compsIndices == null || compsIndices.length == 0) {
+            compsIndicesToDecode = null;
+            cp.usedComponent = null;
+            return true;
+        }
+
+        boolean[] used = new boolean[privateImage.numcomps];
+        for (int compno : compsIndices) {
+            if (compno < 0 || compno >= privateImage.numcomps) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid component index: " + compno + "\n");
+                return false;
+            }
+            if (used[compno]) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Component index " + compno + " used several times\n");
+                return false;
+            }
+            used[compno] = true;
+        }
+        compsIndicesToDecode = compsIndices.clone();
+        cp.usedComponent = used;
+        return true;
+    }
+
+    /**
+     * Makes opj_j2k_decode fill byteData (components of at most 8 bits)
+     * or shortData (at most 16 bits) instead of data. The samples are
+     * narrowed as the clamped tile samples are copied out, so no
+     * image-sized int plane is allocated.
+     */
+    public void opj_j2k_set_narrow_output(boolean narrow) {
+        this.narrowOutput = narrow;
+    }
+
+    /**
+     * Sets the precision the decoded components are converted to
+     * (C: opj_decompress -p). Entry i applies to component i, the last
+     * entry to all further components; a null entry or precision 0 keeps
+     * the component's own. CLIP clamps the samples to the new range,
+     * SCALE rescales them to it: a shift when narrowing, in proportion
+     * when widening, so full scale stays full scale. The conversion runs
+     * in the DC level shift pass, so it costs no extra sweep over the
+     * samples.
+     */
+    public void opj_j2k_set_output_precision(OpjPrecision[] precision) {
+        this.outputPrecision = precision != null && precision.length > 0 ? precision.clone() : null;
+    }
+
+    /**
+     * Makes opj_j2k_decode fill floatData instead of the other planes.
+     * Irreversible (9-7) components come straight from the inverse DWT and
+     * ICT, without the rounding and clamping of the integer path; the DC
+     * level shift and, if normalized, the scaling to [0, 1] are applied as
+     * the tile is copied out. Reversible components are converted from
+     * their integer samples. Output precisions and off-heap storage do not
+     * apply to float planes.
+     */
+    public void opj_j2k_set_float_output(boolean floatOutput, boolean normalized) {
+        this.floatOutput = floatOutput;
+        this.floatNormalized = normalized;
+    }
+
+    /**
+     * Resolves outputPrecision for the components of image into
+     * cp.precision and gives image's components their output precision.
+     */
+    private boolean opj_j2k_setup_output_precision(OpjImage image) {
+        cp.precision = null;
+        if (outputPrecision == null || cp.floatOutput) {
+            return true;
+        }
+        OpjPrecision[] precision = new OpjPrecision[image.numcomps];
+        for (int compno = 0; compno < image.numcomps; ++compno) {
+            OpjPrecision p = outputPrecision[Math.min(compno, outputPrecision.length - 1)];
+            if (p == null || p.getPrec() == 0 || p.getPrec() == image.comps[compno].prec) {
+                continue;
+            }
+            if (p.getPrec() < 0 || p.getPrec() > 31) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                        "Invalid output precision %d for component %d\n", p.getPrec(), compno));
+                return false;
+            }
+            precision[compno] = p;
+            image.comps[compno].prec = p.getPrec();
+        }
+        cp.precision = precision;
+        return true;
+    }
+
+    /**
+     * Makes opj_j2k_decode fill offHeapData instead of the sample arrays,
+     * so components may exceed 2^31 samples and stay off the GC heap.
+     * Combined with narrow output the off-heap samples are 1 or 2 bytes.
+     * The tile stages (tier-1, DWT, MCT) keep working on the tile-sized
+     * buffers; only the copy into the output image changes.
+     */
+    public void opj_j2k_set_offheap_output(boolean offHeap) {
+        this.offHeapOutput = offHeap;
+    }
+
+    /**
+     * Makes opj_j2k_decode pass each decoded row of every selected
+     * component to writer, which lays it out as it likes, instead of
+     * filling the output components' planes (which are then not
+     * allocated). null restores the planes.
+     */
+    public void opj_j2k_set_sample_writer(OpenJpeg.OpjSampleWriter writer) {
+        this.sampleWriter = writer;
+    }
+
+    /**
+     * Makes opj_j2k_decode and opj_j2k_decode_tile_by_tile output
+     * components subsampled by dx / dy on the (reduced) reference grid,
+     * by nearest-neighbour expansion (see OpjUpsampler) fused with the copy
+     * of each tile row: the output components get dx = dy = 1 and the
+     * size of the grid, and the subsampled samples are never stored.
+     */
+    public void opj_j2k_set_upsample(boolean upsample) {
+        this.upsampleOutput = upsample;
+    }
+
+    /**
+     * Leaves the given tiles out of the decode: their tile-part bodies are
+     * skipped in the stream and the tiles are neither decoded nor written
+     * to the output. Used to re-decode only what changed in a growing
+     * codestream. null or empty decodes every tile.
+     */
+    public void opj_j2k_set_skipped_tiles(BitSet tiles) {
+        skippedTiles = tiles == null || tiles.isEmpty() ? null : (BitSet) tiles.clone();
+    }
+
+    /**
+     * C: OPJ_BOOL opj_j2k_read_header(opj_stream_private_t *p_stream, opj_j2k_t* p_j2k,
+     *                                 opj_image_t** p_image, opj_event_mgr_t* p_manager);
+     *
+     * Reads the main header up to the first SOT marker.
+     */
     public boolean opj_j2k_read_header(
             OpjStream stream,
             OpjImage[] outImage) {
 
-
         if (stream == null) {
             throw new IllegalArgumentException("stream must not be null");
         }
@@ -175,58 +684,1634 @@ public class OpjJ2k extends OpjCodec
         this.privateImage = new OpjImage();
 
         /* ----------------------------------------------------------
-         * Customization of the validation
+         * Read the main header
          * ---------------------------------------------------------- */
-        if (!opj_j2k_setup_decoding_validation(eventMgr)) {
+        if (!opj_j2k_read_header_procedure(stream)) {
             OpenJpeg.opj_image_destroy(privateImage);
             this.privateImage = null;
             return false;
         }
+        opj_j2k_copy_default_tcp();
 
         /* ----------------------------------------------------------
-         * Validation of the codec parameters
+         * Copy codestream image header info to output image
          * ---------------------------------------------------------- */
-        if (!opj_j2k_exec(
-                validationList,
-                stream)) {
+        OpjImage output = OpjImage.opj_image_create0();
+        opj_copy_image_header(privateImage, output);
 
-            OpenJpeg.opj_image_destroy(j2k.privateImage);
-            this.privateImage = null;
+        outImage[0] = output;
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_header_procedure(opj_j2k_t *p_j2k, opj_stream_private_t *p_stream, ...);
+     */
+    private boolean opj_j2k_read_header_procedure(OpjStream stream) {
+        state = J2K_STATE_MHSOC;
+        hasCod = false;
+        hasQcd = false;
+
+        int marker = opj_j2k_read_marker_id(stream);
+        if (marker != J2K_MS_SOC) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Expected a SOC marker \n");
             return false;
         }
+        state = J2K_STATE_MHSIZ;
 
-        /* ----------------------------------------------------------
-         * Customization of the header reading
-         * ---------------------------------------------------------- */
-        if (!opj_j2k_setup_header_reading(j2k)) {
-            OpenJpeg.opj_image_destroy(privateImage);
-            this.privateImage = null;
+        marker = opj_j2k_read_marker_id(stream);
+        while (marker != J2K_MS_SOT) {
+            if (marker < 0xff00) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                        "A marker ID was expected (0xff--) instead of %08x\n", marker));
+                return false;
+            }
+            if (state == J2K_STATE_MHSIZ && marker != J2K_MS_SIZ) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Expected a SIZ marker\n");
+                return false;
+            }
+            int size = opj_j2k_read_segment(stream);
+            if (size < 0 || !opj_j2k_read_marker(marker, segmentBuffer, size)) {
+                return false;
+            }
+            marker = opj_j2k_read_marker_id(stream);
+        }
+
+        if (state == J2K_STATE_MHSIZ) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "required SIZ marker not found in main header\n");
+            return false;
+        }
+        if (!hasCod) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "required COD marker not found in main header\n");
+            return false;
+        }
+        if (!hasQcd) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "required QCD marker not found in main header\n");
             return false;
         }
 
-        /* ----------------------------------------------------------
-         * Read header procedure list
-         * ---------------------------------------------------------- */
-        if (!opj_j2k_exec(
-                procedureList,
-                stream)) {
+        // The SOT marker ID has been consumed; opj_j2k_decode goes on from there
+        state = J2K_STATE_TPHSOT;
+        return true;
+    }
 
-            OpenJpeg.opj_image_destroy(privateImage);
-            this.privateImage = null;
+    /**
+     * C: OPJ_BOOL opj_j2k_decode(opj_j2k_t * j2k, opj_stream_private_t * p_stream,
+     *                            opj_image_t * p_image, opj_event_mgr_t * p_manager);
+     *
+     * Reads every tile-part after the main header and decodes the tiles
+     * into image, whose components are sized for the resolution factor.
+     * When part of the codestream is not needed (discarded resolutions or
+     * layers) and the tile-part carries PLT lengths, those packets are
+     * skipped in the stream instead of being read.
+     */
+    public boolean opj_j2k_decode(OpjStream stream, OpjImage image) {
+        if (privateImage == null || image == null || state != J2K_STATE_TPHSOT) {
             return false;
         }
 
-        /* ----------------------------------------------------------
-         * Allocate output image
-         * ---------------------------------------------------------- */
-        priva = OpjImage.opj_image_create0();
+        cp.floatOutput = floatOutput && sampleWriter == null;
+        cp.floatNormalized = floatNormalized;
+        if (!opj_j2k_update_image_dimensions(image) || !opj_j2k_setup_output_precision(image)) {
+            return false;
+        }
+        upsamplers = upsampleOutput ? opj_j2k_setup_upsampling(image) : null;
+        // Narrow planes only when every decoded component fits
+        int maxPrec = 0;
+        for (int compno = 0; compno < image.numcomps; ++compno) {
+            if (cp.usedComponent == null || cp.usedComponent[compno]) {
+                maxPrec = Math.max(maxPrec, image.comps[compno].prec);
+            }
+        }
+        for (int compno = 0; compno < image.numcomps && sampleWriter == null; ++compno) {
+            if (cp.usedComponent != null && !cp.usedComponent[compno]) {
+                continue;
+            }
+            // Uncleared: the tiles write every sample, and the areas of the
+            // tiles that never arrive are cleared once the decode is done
+            OpjImage.OpjImageComp comp = image.comps[compno];
+            if (cp.floatOutput) {
+                comp.floatData = OpjImage.opj_image_data_alloc_float(comp.w, comp.h, false);
+            } else if (offHeapOutput) {
+                int bytesPerSample = narrowOutput && maxPrec <= 8 ? 1 : narrowOutput && maxPrec <= 16 ? 2 : 4;
+                comp.offHeapData = OpjImage.opj_image_data_alloc_offheap(comp.w, comp.h,
+                        bytesPerSample, comp.sgnd);
+            } else if (narrowOutput && maxPrec <= 8) {
+                comp.byteData = OpjImage.opj_image_data_alloc_byte(comp.w, comp.h, false);
+            } else if (narrowOutput && maxPrec <= 16) {
+                comp.shortData = OpjImage.opj_image_data_alloc_short(comp.w, comp.h, false);
+            } else {
+                comp.data = OpjImage.opj_image_data_alloc_int(comp.w, comp.h, false);
+            }
+        }
 
-        /* ----------------------------------------------------------
-         * Copy codestream image header info to output image
-         * ---------------------------------------------------------- */
-        opj_copy_image_header(j2k.privateImage, output);
+        this.tileCallback = null;
+        if (!opj_j2k_decode_all_tiles(stream, image)) {
+            return false;
+        }
+        opj_j2k_clear_missing_tiles(image);
 
-        outImage[0] = output;
+        // Keep only the selected components, in the requested order
+        if (compsIndicesToDecode != null) {
+            OpjImage.OpjImageComp[] comps = new OpjImage.OpjImageComp[compsIndicesToDecode.length];
+            for (int i = 0; i < comps.length; ++i) {
+                comps[i] = image.comps[compsIndicesToDecode[i]];
+            }
+            image.comps = comps;
+            image.numcomps = comps.length;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the upsamplers of the selected subsampled components of
+     * image and gives those components the geometry of the (reduced)
+     * reference grid; returns null when none is subsampled.
+     */
+    private OpjUpsampler[] opj_j2k_setup_upsampling(OpjImage image) {
+        int f = cp.reduce;
+        int gridX0 = opj_int_ceildivpow2(image.x0, f);
+        int gridY0 = opj_int_ceildivpow2(image.y0, f);
+        int w = opj_int_ceildivpow2(image.x1, f) - gridX0;
+        int h = opj_int_ceildivpow2(image.y1, f) - gridY0;
+        OpjUpsampler[] ups = null;
+        for (int compno = 0; compno < image.numcomps; ++compno) {
+            OpjImage.OpjImageComp comp = image.comps[compno];
+            if ((cp.usedComponent != null && !cp.usedComponent[compno]) || (comp.dx == 1 && comp.dy == 1)) {
+                continue;
+            }
+            if (ups == null) {
+                ups = new OpjUpsampler[image.numcomps];
+            }
+            ups[compno] = new OpjUpsampler(image, comp, w, h);
+            comp.dx = 1;
+            comp.dy = 1;
+            comp.x0 = image.x0;
+            comp.y0 = image.y0;
+            comp.w = w;
+            comp.h = h;
+        }
+        return ups;
+    }
+
+    /**
+     * Zeroes the area of every tile that was not decoded (skipped, or cut
+     * off by a truncated codestream) in the output planes, which are
+     * allocated uncleared.
+     */
+    private void opj_j2k_clear_missing_tiles(OpjImage image) {
+        for (int tileno = 0; tileno < cp.tcps.length; ++tileno) {
+            if (cp.tcps[tileno].decoded) {
+                continue;
+            }
+            int p = tileno % cp.tw;
+            int q = tileno / cp.tw;
+            int tx0 = Math.max(cp.tx0 + p * cp.tdx, image.x0);
+            int ty0 = Math.max(cp.ty0 + q * cp.tdy, image.y0);
+            int tx1 = (int) Math.min((long) cp.tx0 + (long) (p + 1) * cp.tdx, image.x1);
+            int ty1 = (int) Math.min((long) cp.ty0 + (long) (q + 1) * cp.tdy, image.y1);
+
+            for (int compno = 0; compno < image.numcomps; ++compno) {
+                OpjImage.OpjImageComp comp = image.comps[compno];
+                OpjUpsampler up = upsamplers != null ? upsamplers[compno] : null;
+                // The tile's area of the decoded component ...
+                OpjImage.OpjImageComp at = up != null ? up.source : comp;
+                int f = at.factor;
+                int originX = opj_int_ceildivpow2(at.x0, f);
+                int originY = opj_int_ceildivpow2(at.y0, f);
+                int x0 = Math.max(opj_int_ceildivpow2(opj_int_ceildiv(tx0, at.dx), f) - originX, 0);
+                int y0 = Math.max(opj_int_ceildivpow2(opj_int_ceildiv(ty0, at.dy), f) - originY, 0);
+                int x1 = Math.min(opj_int_ceildivpow2(opj_int_ceildiv(tx1, at.dx), f) - originX, at.w);
+                int y1 = Math.min(opj_int_ceildivpow2(opj_int_ceildiv(ty1, at.dy), f) - originY, at.h);
+                if (up != null && x0 < x1 && y0 < y1) {
+                    // ... and the output samples it expands to
+                    x0 = up.columnStarts[x0];
+                    x1 = up.columnStarts[x1];
+                    y0 = up.rowStarts[y0];
+                    y1 = up.rowStarts[y1];
+                }
+                for (int y = y0; y < y1; ++y) {
+                    int from = y * comp.w + x0;
+                    int to = y * comp.w + x1;
+                    if (comp.data != null) {
+                        Arrays.fill(comp.data, from, to, 0);
+                    } else if (comp.shortData != null) {
+                        Arrays.fill(comp.shortData, from, to, (short) 0);
+                    } else if (comp.byteData != null) {
+                        Arrays.fill(comp.byteData, from, to, (byte) 0);
+                    } else if (comp.floatData != null) {
+                        Arrays.fill(comp.floatData, from, to, 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the codestream tile by tile: instead of filling one image,
+     * each tile is handed to callback as its own OpjImage as soon as it is
+     * decoded, and no longer referenced by the decoder afterwards. Only
+     * the tiles in flight are held in memory.
+     *
+     * The tile image holds the selected components; each has x0/y0 set to
+     * its position in the (reduced) component and w/h/data to the tile's
+     * samples. With tile threads, callback is called from the workers, one
+     * tile at a time, in completion order.
+     */
+    public boolean opj_j2k_decode_tile_by_tile(OpjStream stream, OpenJpeg.OpjTileCallback callback) {
+        if (privateImage == null || callback == null || state != J2K_STATE_TPHSOT) {
+            return false;
+        }
+        OpjImage header = new OpjImage();
+        opj_copy_image_header(privateImage, header);
+        // Tiles are handed out as int samples
+        cp.floatOutput = false;
+        if (!opj_j2k_update_image_dimensions(header) || !opj_j2k_setup_output_precision(header)) {
+            return false;
+        }
+
+        this.tileCallback = callback;
+        try {
+            return opj_j2k_decode_all_tiles(stream, header);
+        } finally {
+            this.tileCallback = null;
+        }
+    }
+
+    /**
+     * Runs the tile-part reading loop with the tile workers, if any.
+     */
+    private boolean opj_j2k_decode_all_tiles(OpjStream stream, OpjImage image) {
+        int threads = (int) Math.min(numThreads, cp.tcps.length);
+        if (externalTileExecutor != null) {
+            threads = Math.max(threads, 1);
+            tileExecutor = externalTileExecutor;
+        } else {
+            tileExecutor = threads > 1 ? opj_j2k_get_tile_workers() : null;
+        }
+        // Each worker has a tile to decode and one waiting behind it
+        maxTcds = tileExecutor != null ? 2 * threads : 1;
+        boolean ok = false;
+        try {
+            ok = opj_j2k_decode_tiles(stream, image);
+        } finally {
+            // The workers write into image: none may outlive the decode
+            ok &= opj_j2k_wait_tiles();
+            tileExecutor = null;
+        }
+        if (!ok) {
+            return false;
+        }
+
+        // Each tile decoder tracked the resolutions it decoded on its own
+        for (Tcd.OpjTcd t : allTcds) {
+            if (t.cp != cp) {
+                // Unused since the last opj_j2k_reset
+                continue;
+            }
+            for (int compno = 0; compno < image.numcomps; ++compno) {
+                image.comps[compno].resnoDecoded = Math.max(image.comps[compno].resnoDecoded,
+                        t.image.comps[compno].resnoDecoded);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tile worker pool, (re)created when the thread count has
+     * changed since it was made. Its threads are daemons, so a codec that
+     * is never destroyed does not keep the JVM alive.
+     */
+    private ExecutorService opj_j2k_get_tile_workers() {
+        if (tileWorkers != null && tileWorkersThreads != numThreads) {
+            tileWorkers.shutdown();
+            tileWorkers = null;
+        }
+        if (tileWorkers == null) {
+            tileWorkers = Executors.newFixedThreadPool((int) numThreads, r -> {
+                Thread t = new Thread(r, "jopj-tile");
+                t.setDaemon(true);
+                return t;
+            });
+            tileWorkersThreads = numThreads;
+        }
+        return tileWorkers;
+    }
+
+    /**
+     * C: opj_j2k_decode_tiles / opj_j2k_read_tile_header
+     *
+     * Reads tile-parts until EOC. A tile is decoded as soon as its last
+     * tile-part (TNsot) has been read; tiles whose tile-part count is not
+     * signalled are decoded at the end of the codestream.
+     */
+    private boolean opj_j2k_decode_tiles(OpjStream stream, OpjImage image) {
+        int marker = J2K_MS_SOT;
+
+        while (marker == J2K_MS_SOT) {
+            // C: a codestream cut right after a SOT marker decodes what was read
+            if (stream.userDataLength > 0 && stream.byteOffset >= stream.userDataLength) {
+                if (strictMode) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Stream too short\n");
+                    return false;
+                }
+                Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Stream too short\n");
+                break;
+            }
+            int size = opj_j2k_read_segment(stream);
+            if (size < 0 || !opj_j2k_read_sot(segmentBuffer, size)) {
+                return false;
+            }
+
+            // Tile-part header
+            marker = opj_j2k_read_marker_id(stream);
+            while (marker != J2K_MS_SOD) {
+                if (marker < 0xff00) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                            "A marker ID was expected (0xff--) instead of %08x\n", marker));
+                    return false;
+                }
+                size = opj_j2k_read_segment(stream);
+                if (size < 0 || !opj_j2k_read_marker(marker, segmentBuffer, size)) {
+                    return false;
+                }
+                if (sotLength >= 0) {
+                    sotLength -= size + 4;
+                }
+                marker = opj_j2k_read_marker_id(stream);
+            }
+
+            long bodyLength;
+            if (sotLength >= 0) {
+                bodyLength = sotLength - 2;
+            } else {
+                // Psot = 0: the tile-part runs up to the EOC marker
+                bodyLength = stream.userDataLength - stream.byteOffset - 2;
+            }
+            if (bodyLength < 0) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Tile part length size inconsistent with stream length\n");
+                return false;
+            }
+            if (skippedTiles != null && skippedTiles.get(currentTileNumber)) {
+                opj_j2k_skip(stream, bodyLength);
+            } else {
+                if (!opj_j2k_read_sod(stream, bodyLength)) {
+                    return false;
+                }
+
+                OpjTcp tcp = cp.tcps[currentTileNumber];
+                ++tcp.numTilePartsRead;
+                if (tcp.numTileParts != 0 && tcp.numTilePartsRead >= tcp.numTileParts) {
+                    if (!opj_j2k_decode_tile(currentTileNumber, image)) {
+                        return false;
+                    }
+                }
+            }
+
+            state = J2K_STATE_TPHSOT;
+            marker = opj_j2k_read_marker_id(stream);
+            if (marker == J2K_MS_EOC) {
+                state = J2K_STATE_EOC;
+            } else if (marker != J2K_MS_SOT) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Stream does not end with EOC\n");
+            }
+        }
+
+        // Tiles whose number of tile-parts was not signalled
+        for (int tileno = 0; tileno < cp.tcps.length; ++tileno) {
+            OpjTcp tcp = cp.tcps[tileno];
+            if (!tcp.decoded && tcp.numTilePartsRead > 0) {
+                if (!opj_j2k_decode_tile(tileno, image)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_j2k_decode_tile(opj_j2k_t * p_j2k, OPJ_UINT32 p_tile_index, ...);
+     *
+     * Decodes a tile whose tile-parts have all been read. Tier-2 runs here,
+     * on the reading thread: it is sequential within a tile and cheap next
+     * to tier-1. With tile threads, the tile then goes to a worker for
+     * tier-1, DWT, MCT and DC shift while the next tile is read and
+     * parsed. Tiles cover disjoint regions of the output components, so
+     * workers write their results without locking.
+     */
+    private boolean opj_j2k_decode_tile(int tileno, OpjImage image) {
+        OpjTcp tcp = cp.tcps[tileno];
+        byte[] data = tcp.data;
+        int dataSize = tcp.dataSize;
+        BitSet elided = tcp.elidedPackets;
+
+        // The tile data now belongs to the decode (C: opj_j2k_tcp_data_destroy)
+        tcp.data = null;
+        tcp.dataSize = 0;
+        tcp.elidedPackets = null;
+        tcp.decoded = true;
+
+        // Stop reading once a worker has failed
+        if (!opj_j2k_poll_tiles()) {
+            return false;
+        }
+
+        // Blocks while every tile decoder is busy in the workers
+        Tcd.OpjTcd tileTcd = opj_j2k_acquire_tcd();
+        if (tileTcd == null) {
+            return false;
+        }
+
+        Pi.OpjPiPlan plan = Pi.opj_pi_get_decode_plan(privateImage, cp, tileno, planCache);
+        boolean t2Ok;
+        try {
+            t2Ok = Tcd.opj_tcd_t2_decode_tile(tileTcd, data, dataSize, elided, plan, tileno, eventMgr);
+        } catch (RuntimeException e) {
+            idleTcds.add(tileTcd);
+            throw e;
+        }
+        if (!t2Ok) {
+            idleTcds.add(tileTcd);
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Failed to decode tile " + (tileno + 1) + "/" + cp.tcps.length + "\n");
+            return false;
+        }
+
+        if (tileExecutor == null) {
+            return opj_j2k_finish_tile(tileTcd, tileno, image);
+        }
+        pendingTiles.add(tileExecutor.submit(() -> opj_j2k_finish_tile(tileTcd, tileno, image)));
+        return true;
+    }
+
+    /**
+     * Second pipeline stage: tier-1 onwards, then the copy into the output
+     * image. Gives the tile decoder back to the pool.
+     */
+    private boolean opj_j2k_finish_tile(Tcd.OpjTcd tileTcd, int tileno, OpjImage image) {
+        try {
+            if (!Tcd.opj_tcd_t1_decode_tile(tileTcd, eventMgr)) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Failed to decode tile " + (tileno + 1) + "/" + cp.tcps.length + "\n");
+                return false;
+            }
+            if (tileCallback == null) {
+                opj_j2k_update_image_data(tileTcd, image, sampleWriter, upsamplers);
+                return true;
+            }
+            OpjImage tile = opj_j2k_get_tile_image(tileTcd, image);
+            if (tileCallback.concurrent()) {
+                return tileCallback.tile(tileno, tile);
+            }
+            // A lock rather than synchronized: the callback may block (e.g. on
+            // a subscriber's demand), which must not pin a virtual thread
+            tileCallbackLock.lock();
+            try {
+                return tileCallback.tile(tileno, tile);
+            } finally {
+                tileCallbackLock.unlock();
+            }
+        } finally {
+            idleTcds.add(tileTcd);
+        }
+    }
+
+    /**
+     * Copies the decoded tile out of tcd into an image of its own, holding
+     * the selected components in output order. With upsampling, a
+     * subsampled component is expanded straight into the tile's area of
+     * the (reduced) reference grid; where a tile edge does not fall on a
+     * subsampling boundary, the edge samples come from the tile's own
+     * nearest sample.
+     */
+    private OpjImage opj_j2k_get_tile_image(Tcd.OpjTcd tcd, OpjImage output) {
+        int[] comps = compsIndicesToDecode;
+        if (comps == null) {
+            comps = new int[tcd.tile.numcomps];
+            for (int i = 0; i < comps.length; ++i) {
+                comps[i] = i;
+            }
+        }
+
+        OpjImage tile = new OpjImage();
+        tile.x0 = tcd.tile.x0;
+        tile.y0 = tcd.tile.y0;
+        tile.x1 = tcd.tile.x1;
+        tile.y1 = tcd.tile.y1;
+        tile.color_space = output.color_space;
+        tile.numcomps = comps.length;
+        tile.comps = new OpjImage.OpjImageComp[comps.length];
+
+        for (int i = 0; i < comps.length; ++i) {
+            int compno = comps[i];
+            Tcd.OpjTcdTilecomp tilec = tcd.tile.comps[compno];
+            Tcd.OpjTcdResolution res = Tcd.opj_tcd_decoded_resolution(tilec);
+            OpjImage.OpjImageComp src = output.comps[compno];
+            OpjImage.OpjImageComp comp = new OpjImage.OpjImageComp();
+
+            comp.dx = src.dx;
+            comp.dy = src.dy;
+            comp.prec = src.prec;
+            comp.bpp = src.bpp;
+            comp.sgnd = src.sgnd;
+            comp.factor = src.factor;
+            comp.resnoDecoded = tcd.image.comps[compno].resnoDecoded;
+            comp.x0 = res.x0 - opj_int_ceildivpow2(src.x0, src.factor);
+            comp.y0 = res.y0 - opj_int_ceildivpow2(src.y0, src.factor);
+            comp.w = res.x1 - res.x0;
+            comp.h = res.y1 - res.y0;
+            comp.x1 = comp.x0 + comp.w;
+            comp.y1 = comp.y0 + comp.h;
+
+            if (upsampleOutput && (src.dx != 1 || src.dy != 1)) {
+                int f = src.factor;
+                int gridX0 = opj_int_ceildivpow2(Math.max(tile.x0, output.x0), f);
+                int gridY0 = opj_int_ceildivpow2(Math.max(tile.y0, output.y0), f);
+                OpjUpsampler up = new OpjUpsampler(comp.w, comp.h, src.dx, src.dy, gridX0, gridY0,
+                        res.x0, res.y0,
+                        opj_int_ceildivpow2(Math.min(tile.x1, output.x1), f) - gridX0,
+                        opj_int_ceildivpow2(Math.min(tile.y1, output.y1), f) - gridY0);
+                OpjImage.OpjImageComp decoded = new OpjImage.OpjImageComp();
+                decoded.data = tilec.data;
+                comp.dx = 1;
+                comp.dy = 1;
+                comp.x0 = gridX0 - opj_int_ceildivpow2(output.x0, f);
+                comp.y0 = gridY0 - opj_int_ceildivpow2(output.y0, f);
+                comp.w = up.width;
+                comp.h = up.height;
+                comp.x1 = comp.x0 + comp.w;
+                comp.y1 = comp.y0 + comp.h;
+                comp.data = OpjImage.opj_image_data_alloc_int(comp.w, comp.h, false);
+                up.run(decoded, comp);
+                tile.comps[i] = comp;
+                continue;
+            }
+
+            int n = comp.w * comp.h;
+            comp.data = OpjImage.opj_image_data_alloc_int(comp.w, comp.h, false);
+            System.arraycopy(tilec.data, 0, comp.data, 0, n);
+            tile.comps[i] = comp;
+        }
+        return tile;
+    }
+
+    /**
+     * Takes an idle tile decoder, creates one while fewer than maxTcds
+     * exist, or else waits for a worker to return one. Each has a private
+     * copy of the image header, so tier-2 can record resnoDecoded without
+     * sharing state with other tiles.
+     *
+     * @return the tile decoder, or null if interrupted
+     */
+    private Tcd.OpjTcd opj_j2k_acquire_tcd() {
+        Tcd.OpjTcd t = idleTcds.poll();
+        if (t != null) {
+            return opj_j2k_attach_tcd(t);
+        }
+        if (allTcds.size() >= maxTcds) {
+            try {
+                return opj_j2k_attach_tcd(idleTcds.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        OpjImage header = new OpjImage();
+        opj_copy_image_header(privateImage, header);
+        t = Tcd.opj_tcd_create(true);
+        Tcd.opj_tcd_init(t, header, cp);
+        allTcds.add(t);
+        return t;
+    }
+
+    /**
+     * Points a tile decoder kept from an earlier codestream (see
+     * opj_j2k_reset) at the current header; its scratch stays.
+     */
+    private Tcd.OpjTcd opj_j2k_attach_tcd(Tcd.OpjTcd t) {
+        if (t.cp != cp) {
+            OpjImage header = new OpjImage();
+            opj_copy_image_header(privateImage, header);
+            Tcd.opj_tcd_init(t, header, cp);
+        }
+        return t;
+    }
+
+    /** Collects the tiles the workers have finished; false if one failed. */
+    private boolean opj_j2k_poll_tiles() {
+        for (Iterator<Future<Boolean>> it = pendingTiles.iterator(); it.hasNext(); ) {
+            Future<Boolean> f = it.next();
+            if (f.isDone()) {
+                it.remove();
+                if (!opj_j2k_tile_result(f)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Waits for every tile handed to the workers. */
+    private boolean opj_j2k_wait_tiles() {
+        boolean ok = true;
+        for (Future<Boolean> f : pendingTiles) {
+            ok &= opj_j2k_tile_result(f);
+        }
+        pendingTiles.clear();
+        return ok;
+    }
+
+    private boolean opj_j2k_tile_result(Future<Boolean> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Tile decoding failed: " + e.getCause() + "\n");
+            return false;
+        }
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_update_image_dimensions(opj_image_t* p_image, ...);
+     *
+     * Sizes the output components for the resolution factor.
+     */
+    boolean opj_j2k_update_image_dimensions(OpjImage image) {
+        for (int compno = 0; compno < image.numcomps; ++compno) {
+            OpjImage.OpjImageComp comp = image.comps[compno];
+            comp.factor = cp.reduce;
+
+            int compX1 = opj_int_ceildiv(image.x1, comp.dx);
+            int compY1 = opj_int_ceildiv(image.y1, comp.dy);
+            int w = opj_int_ceildivpow2(compX1, comp.factor) - opj_int_ceildivpow2(comp.x0, comp.factor);
+            int h = opj_int_ceildivpow2(compY1, comp.factor) - opj_int_ceildivpow2(comp.y0, comp.factor);
+            if (w < 0 || h < 0) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                        "Size x0=%d, x1=%d, y0=%d, y1=%d at component %d is invalid\n",
+                        comp.x0, compX1, comp.y0, compY1, compno));
+                return false;
+            }
+            comp.w = w;
+            comp.h = h;
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_update_image_data(opj_tcd_t * p_tcd, opj_image_t* p_output_image);
+     *
+     * Copies the decoded resolution of every tile-component into its place
+     * in the output components, or hands it to writer row by row. A
+     * component with an upsampler has each row expanded once into the tile
+     * decoder's row scratch, which is then stored to (or handed over for)
+     * every output row the source row covers.
+     */
+    private static void opj_j2k_update_image_data(Tcd.OpjTcd tcd, OpjImage output,
+                                                  OpenJpeg.OpjSampleWriter writer,
+                                                  OpjUpsampler[] upsamplers) {
+        for (int compno = 0; compno < tcd.tile.numcomps; ++compno) {
+            Tcd.OpjTcdTilecomp tilec = tcd.tile.comps[compno];
+            OpjImage.OpjImageComp comp = output.comps[compno];
+            if (tcd.cp.usedComponent != null && !tcd.cp.usedComponent[compno]) {
+                // Not a selected component
+                continue;
+            }
+            Tcd.OpjTcdResolution res = Tcd.opj_tcd_decoded_resolution(tilec);
+            OpjUpsampler up = upsamplers != null ? upsamplers[compno] : null;
+            // Where the tile goes in the decoded (not upsampled) component
+            OpjImage.OpjImageComp at = up != null ? up.source : comp;
+
+            int resW = res.x1 - res.x0;
+            int resH = res.y1 - res.y0;
+            int x0Dest = res.x0 - opj_int_ceildivpow2(at.x0, at.factor);
+            int y0Dest = res.y0 - opj_int_ceildivpow2(at.y0, at.factor);
+            int width = Math.min(resW, at.w - x0Dest);
+            int height = Math.min(resH, at.h - y0Dest);
+            if (x0Dest < 0 || y0Dest < 0 || width <= 0) {
+                continue;
+            }
+
+            if (comp.floatData != null) {
+                opj_j2k_update_float_data(tcd, compno, comp, up, resW, x0Dest, y0Dest, width, height);
+                continue;
+            }
+
+            int[] src = tilec.data;
+            int[] row = null;
+            int ox = x0Dest;
+            if (up != null) {
+                ox = up.columnStarts[x0Dest];
+                int m = up.columnStarts[x0Dest + width] - ox;
+                if (tcd.upsampleRow == null || tcd.upsampleRow.length < m) {
+                    tcd.upsampleRow = new int[m];
+                }
+                row = tcd.upsampleRow;
+            }
+            for (int j = 0; j < height; ++j) {
+                int s = j * resW;
+                int y = y0Dest + j;
+                if (up == null) {
+                    opj_j2k_store_row(comp, writer, compno, ox, y, src, s, width);
+                    continue;
+                }
+                if (up.rowStarts[y] == up.rowStarts[y + 1]) {
+                    continue;
+                }
+                int m = up.expand(src, s, x0Dest, width, row, 0);
+                for (int oy = up.rowStarts[y]; oy < up.rowStarts[y + 1]; ++oy) {
+                    opj_j2k_store_row(comp, writer, compno, ox, oy, row, 0, m);
+                }
+            }
+        }
+    }
+
+    /** Stores n samples of src at (x, y) of comp, or hands them to writer. */
+    private static void opj_j2k_store_row(OpjImage.OpjImageComp comp, OpenJpeg.OpjSampleWriter writer,
+                                          int compno, int x, int y, int[] src, int s, int n) {
+        if (writer != null) {
+            writer.write(compno, x, y, src, s, n);
+        } else {
+            OpjImage.opj_image_comp_put_row(comp, (long) y * comp.w + x, src, s, n);
+        }
+    }
+
+    /**
+     * The float counterpart of the copy in opj_j2k_update_image_data: adds
+     * the DC level shift to the raw 9-7 samples (reversible ones already
+     * have it) and, if normalized, maps the component range onto [0, 1],
+     * in the same pass as the copy. With up, each converted row goes to
+     * the row scratch and is expanded from there into the first output
+     * row it covers, which is then copied to the others.
+     */
+    private static void opj_j2k_update_float_data(Tcd.OpjTcd tcd, int compno,
+                                                  OpjImage.OpjImageComp comp, OpjUpsampler up, int resW,
+                                                  int x0Dest, int y0Dest, int width, int height) {
+        Tcd.OpjTcdTilecomp tilec = tcd.tile.comps[compno];
+        OpjTccp tccp = tcd.tcp.tccps[compno];
+        boolean real = tccp.qmfbid != 1;
+
+        float add = real ? tccp.dcLevelShift : 0;
+        float mul = 1;
+        if (tcd.cp.floatNormalized) {
+            int prec = tcd.image.comps[compno].prec;
+            if (comp.sgnd) {
+                add += (float) (1L << (prec - 1));
+            }
+            mul = (float) (1.0 / ((1L << prec) - 1));
+        }
+
+        float[] dst = comp.floatData;
+        if (up != null && (tcd.upsampleRowReal == null || tcd.upsampleRowReal.length < width)) {
+            tcd.upsampleRowReal = new float[width];
+        }
+        for (int j = 0; j < height; ++j) {
+            int s = j * resW;
+            int y = y0Dest + j;
+            if (up != null && up.rowStarts[y] == up.rowStarts[y + 1]) {
+                continue;
+            }
+            float[] to = up != null ? tcd.upsampleRowReal : dst;
+            int d = up != null ? 0 : y * comp.w + x0Dest;
+            if (real) {
+                float[] src = tilec.dataReal;
+                for (int i = 0; i < width; ++i) {
+                    to[d + i] = (src[s + i] + add) * mul;
+                }
+            } else {
+                int[] src = tilec.data;
+                for (int i = 0; i < width; ++i) {
+                    to[d + i] = (src[s + i] + add) * mul;
+                }
+            }
+            if (up != null) {
+                int o = up.rowStarts[y] * comp.w + up.columnStarts[x0Dest];
+                int m = up.expand(to, 0, x0Dest, width, dst, o);
+                for (int oy = up.rowStarts[y] + 1; oy < up.rowStarts[y + 1]; ++oy) {
+                    System.arraycopy(dst, o, dst, o + (oy - up.rowStarts[y]) * comp.w, m);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the main header coding parameters into every tile
+     * (C: opj_j2k_copy_default_tcp_and_create_tcd).
+     */
+    private void opj_j2k_copy_default_tcp() {
+        for (int compno = 0; compno < privateImage.numcomps; ++compno) {
+            OpjImage.OpjImageComp comp = privateImage.comps[compno];
+            defaultTcp.tccps[compno].dcLevelShift = comp.sgnd ? 0 : 1 << (comp.prec - 1);
+        }
+        for (int tileno = 0; tileno < cp.tcps.length; ++tileno) {
+            cp.tcps[tileno] = opj_j2k_copy_tcp(defaultTcp);
+        }
+    }
+
+    private static OpjTcp opj_j2k_copy_tcp(OpjTcp src) {
+        OpjTcp tcp = new OpjTcp();
+        tcp.csty = src.csty;
+        tcp.prg = src.prg;
+        tcp.numlayers = src.numlayers;
+        tcp.numLayersToDecode = src.numLayersToDecode;
+        tcp.mct = src.mct;
+        tcp.poc = src.poc;
+        tcp.numpocs = src.numpocs;
+        for (int i = 0; i < src.pocs.length; ++i) {
+            OpjPoc p = src.pocs[i];
+            if (p == null) {
+                continue;
+            }
+            OpjPoc q = new OpjPoc();
+            q.resno0 = p.resno0;
+            q.compno0 = p.compno0;
+            q.layno1 = p.layno1;
+            q.resno1 = p.resno1;
+            q.compno1 = p.compno1;
+            q.layno0 = p.layno0;
+            q.precno0 = p.precno0;
+            q.precno1 = p.precno1;
+            q.prg = p.prg;
+            tcp.pocs[i] = q;
+        }
+        tcp.tccps = new OpjTccp[src.tccps.length];
+        for (int compno = 0; compno < src.tccps.length; ++compno) {
+            OpjTccp s = src.tccps[compno];
+            OpjTccp t = new OpjTccp();
+            t.csty = s.csty;
+            t.numresolutions = s.numresolutions;
+            t.cblkw = s.cblkw;
+            t.cblkh = s.cblkh;
+            t.cblksty = s.cblksty;
+            t.qmfbid = s.qmfbid;
+            opj_j2k_copy_tccp_quant(s, t);
+            t.roishift = s.roishift;
+            System.arraycopy(s.prcw, 0, t.prcw, 0, s.prcw.length);
+            System.arraycopy(s.prch, 0, t.prch, 0, s.prch.length);
+            t.dcLevelShift = s.dcLevelShift;
+            tcp.tccps[compno] = t;
+        }
+        return tcp;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Marker segment reading                                             */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * Reads a 2-byte marker ID, or returns -1 at the end of the stream.
+     */
+    private int opj_j2k_read_marker_id(OpjStream stream) {
+        if (!opj_j2k_read_fully(stream, segmentBuffer, 0, 2)) {
+            return -1;
+        }
+        return (int) Cio.opj_read_bytes_BE(segmentBuffer, 0, 2);
+    }
+
+    /**
+     * Reads the length field and the contents of a marker segment into
+     * segmentBuffer.
+     *
+     * @return size of the contents (without the length field), or -1
+     */
+    private int opj_j2k_read_segment(OpjStream stream) {
+        if (!opj_j2k_read_fully(stream, segmentBuffer, 0, 2)) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Stream too short\n");
+            return -1;
+        }
+        int size = (int) Cio.opj_read_bytes_BE(segmentBuffer, 0, 2);
+        if (size < 2) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid marker size\n");
+            return -1;
+        }
+        size -= 2;
+        if (segmentBuffer.length < size) {
+            segmentBuffer = new byte[size];
+        }
+        if (!opj_j2k_read_fully(stream, segmentBuffer, 0, size)) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Marker handler function failed to read the marker segment\n");
+            return -1;
+        }
+        return size;
+    }
+
+    /**
+     * Reads exactly len bytes into dst[off..].
+     */
+    private boolean opj_j2k_read_fully(OpjStream stream, byte[] dst, int off, int len) {
+        return opj_j2k_read_available(stream, dst, off, len) == len;
+    }
+
+    /**
+     * Reads up to len bytes into dst[off..], stopping early only at the
+     * end of the stream.
+     *
+     * @return number of bytes read
+     */
+    private int opj_j2k_read_available(OpjStream stream, byte[] dst, int off, int len) {
+        int read = 0;
+        while (read < len) {
+            long n = Cio.opj_stream_read_data(stream, dst, off + read, len - read, eventMgr);
+            if (n <= 0) {
+                break;
+            }
+            read += (int) n;
+        }
+        return read;
+    }
+
+    /**
+     * C: the marker handler table (j2k_memory_marker_handler_tab).
+     */
+    private boolean opj_j2k_read_marker(int marker, byte[] data, int size) {
+        switch (marker) {
+            case J2K_MS_SIZ:
+                if (state != J2K_STATE_MHSIZ) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Marker is not compliant with its position\n");
+                    return false;
+                }
+                if (!opj_j2k_read_siz(data, size)) {
+                    return false;
+                }
+                state = J2K_STATE_MH;
+                return true;
+            case J2K_MS_COD:
+                hasCod |= state == J2K_STATE_MH;
+                return opj_j2k_read_cod(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_COC:
+                return opj_j2k_read_coc(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_QCD:
+                hasQcd |= state == J2K_STATE_MH;
+                return opj_j2k_read_qcd(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_QCC:
+                return opj_j2k_read_qcc(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_RGN:
+                return opj_j2k_read_rgn(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_POC:
+                return opj_j2k_read_poc(opj_j2k_get_tcp(), data, size);
+            case J2K_MS_PLT:
+                if (state != J2K_STATE_TPH) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Marker is not compliant with its position\n");
+                    return false;
+                }
+                return opj_j2k_read_plt(data, size);
+            case J2K_MS_PPM:
+            case J2K_MS_PPT:
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "PPM/PPT packed packet headers are not supported\n");
+                return false;
+            case J2K_MS_CAP:
+            case J2K_MS_TLM:
+            case J2K_MS_PLM:
+            case J2K_MS_CRG:
+            case J2K_MS_COM:
+                return true;
+            default:
+                if (state == J2K_STATE_MHSIZ) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Marker is not compliant with its position\n");
+                    return false;
+                }
+                Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, String.format("Unknown marker 0x%04x\n", marker));
+                return true;
+        }
+    }
+
+    /** The tcp a main or tile-part header marker applies to. */
+    private OpjTcp opj_j2k_get_tcp() {
+        return state == J2K_STATE_TPH ? cp.tcps[currentTileNumber] : defaultTcp;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_siz(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_siz(byte[] d, int size) {
+        if (size < 36 || (size - 36) % 3 != 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error with SIZ marker size\n");
+            return false;
+        }
+        int nbComp = (size - 36) / 3;
+
+        long x1 = Cio.opj_read_bytes_BE(d, 2, 4);
+        long y1 = Cio.opj_read_bytes_BE(d, 6, 4);
+        long x0 = Cio.opj_read_bytes_BE(d, 10, 4);
+        long y0 = Cio.opj_read_bytes_BE(d, 14, 4);
+        long tdx = Cio.opj_read_bytes_BE(d, 18, 4);
+        long tdy = Cio.opj_read_bytes_BE(d, 22, 4);
+        long tx0 = Cio.opj_read_bytes_BE(d, 26, 4);
+        long ty0 = Cio.opj_read_bytes_BE(d, 30, 4);
+        int csiz = (int) Cio.opj_read_bytes_BE(d, 34, 2);
+
+        if (csiz != nbComp || csiz == 0 || csiz > 16384) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Error with SIZ marker: number of component is illegal -> %d\n", csiz));
+            return false;
+        }
+        if (x0 >= x1 || y0 >= y1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Error with SIZ marker: negative or zero image size (%d x %d)\n", x1 - x0, y1 - y0));
+            return false;
+        }
+        if (x1 > Integer.MAX_VALUE || y1 > Integer.MAX_VALUE
+                || tdx > Integer.MAX_VALUE || tdy > Integer.MAX_VALUE) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error with SIZ marker: image size is too large\n");
+            return false;
+        }
+        if (tdx == 0 || tdy == 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Error with SIZ marker: invalid tile size (tdx: %d, tdy: %d)\n", tdx, tdy));
+            return false;
+        }
+        if (tx0 > x0 || ty0 > y0 || tx0 + tdx <= x0 || ty0 + tdy <= y0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error with SIZ marker: illegal tile offset\n");
+            return false;
+        }
+
+        OpjImage image = privateImage;
+        image.x0 = (int) x0;
+        image.y0 = (int) y0;
+        image.x1 = (int) x1;
+        image.y1 = (int) y1;
+        image.numcomps = csiz;
+        image.comps = new OpjImage.OpjImageComp[csiz];
+
+        for (int compno = 0; compno < csiz; ++compno) {
+            int ssiz = d[36 + 3 * compno] & 0xff;
+            OpjImage.OpjImageComp comp = new OpjImage.OpjImageComp();
+            comp.prec = (ssiz & 0x7f) + 1;
+            comp.sgnd = (ssiz >> 7) != 0;
+            comp.dx = d[37 + 3 * compno] & 0xff;
+            comp.dy = d[38 + 3 * compno] & 0xff;
+            if (comp.dx < 1 || comp.dy < 1) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                        "Invalid values for comp = %d : dx=%d dy=%d (should be between 1 and 255 according to the JPEG2000 norm)\n",
+                        compno, comp.dx, comp.dy));
+                return false;
+            }
+            if (comp.prec > 31) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                        "Invalid values for comp = %d : prec=%d (should be between 1 and 38 according to the JPEG2000 norm. OpenJpeg only supports up to 31)\n",
+                        compno, comp.prec));
+                return false;
+            }
+            comp.bpp = comp.prec;
+            comp.x0 = opj_int_ceildiv(image.x0, comp.dx);
+            comp.y0 = opj_int_ceildiv(image.y0, comp.dy);
+            comp.x1 = opj_int_ceildiv(image.x1, comp.dx);
+            comp.y1 = opj_int_ceildiv(image.y1, comp.dy);
+            comp.w = comp.x1 - comp.x0;
+            comp.h = comp.y1 - comp.y0;
+            image.comps[compno] = comp;
+        }
+
+        cp.tx0 = (int) tx0;
+        cp.ty0 = (int) ty0;
+        cp.tdx = (int) tdx;
+        cp.tdy = (int) tdy;
+        cp.tw = (int) ((x1 - tx0 + tdx - 1) / tdx);
+        cp.th = (int) ((y1 - ty0 + tdy - 1) / tdy);
+        if ((long) cp.tw * cp.th > 65535) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Invalid number of tiles : %d x %d (maximum fixed by jpeg2000 norm is 65535 tiles)\n",
+                    cp.tw, cp.th));
+            return false;
+        }
+        cp.tcps = new OpjTcp[cp.tw * cp.th];
+
+        defaultTcp = new OpjTcp();
+        defaultTcp.tccps = new OpjTccp[csiz];
+        for (int compno = 0; compno < csiz; ++compno) {
+            defaultTcp.tccps[compno] = new OpjTccp();
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_cod(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_cod(OpjTcp tcp, byte[] d, int size) {
+        if (size < 5) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading COD marker\n");
+            return false;
+        }
+        tcp.csty = d[0] & 0xff;
+        if ((tcp.csty & ~(J2K_CP_CSTY_PRT | J2K_CP_CSTY_SOP | J2K_CP_CSTY_EPH)) != 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Unknown Scod value in COD marker\n");
+            return false;
+        }
+        int prg = d[1] & 0xff;
+        if (prg >= OpjProgOrder.values().length) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Unknown progression order in COD marker\n");
+            return false;
+        }
+        tcp.prg = OpjProgOrder.values()[prg];
+        tcp.numlayers = (int) Cio.opj_read_bytes_BE(d, 2, 2);
+        if (tcp.numlayers < 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Invalid number of layers in COD marker : %d not in range [1-65535]\n", tcp.numlayers));
+            return false;
+        }
+        tcp.numLayersToDecode = (cp.layer > 0 && cp.layer < tcp.numlayers) ? cp.layer : tcp.numlayers;
+        tcp.mct = d[4] & 0xff;
+        if (tcp.mct > 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid multiple component transformation\n");
+            return false;
+        }
+
+        for (OpjTccp tccp : tcp.tccps) {
+            tccp.csty = tcp.csty & J2K_CCP_CSTY_PRT;
+        }
+        int n = opj_j2k_read_SPCod_SPCoc(tcp.tccps[0], 0, d, 5, size - 5);
+        if (n < 0) {
+            return false;
+        }
+        if (n != size - 5) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading COD marker\n");
+            return false;
+        }
+
+        // Apply the coding style to every component (C: opj_j2k_copy_tile_component_parameters)
+        OpjTccp ref = tcp.tccps[0];
+        for (int compno = 1; compno < tcp.tccps.length; ++compno) {
+            OpjTccp tccp = tcp.tccps[compno];
+            tccp.numresolutions = ref.numresolutions;
+            tccp.cblkw = ref.cblkw;
+            tccp.cblkh = ref.cblkh;
+            tccp.cblksty = ref.cblksty;
+            tccp.qmfbid = ref.qmfbid;
+            System.arraycopy(ref.prcw, 0, tccp.prcw, 0, ref.numresolutions);
+            System.arraycopy(ref.prch, 0, tccp.prch, 0, ref.numresolutions);
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_coc(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_coc(OpjTcp tcp, byte[] d, int size) {
+        int compRoom = privateImage.numcomps <= 256 ? 1 : 2;
+        if (size < compRoom + 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading COC marker\n");
+            return false;
+        }
+        int compno = (int) Cio.opj_read_bytes_BE(d, 0, compRoom);
+        if (compno >= privateImage.numcomps) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading COC marker (bad number of components)\n");
+            return false;
+        }
+        OpjTccp tccp = tcp.tccps[compno];
+        tccp.csty = d[compRoom] & 0xff;
+        int n = opj_j2k_read_SPCod_SPCoc(tccp, compno, d, compRoom + 1, size - compRoom - 1);
+        if (n < 0) {
+            return false;
+        }
+        if (n != size - compRoom - 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading COC marker\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_SPCod_SPCoc(opj_j2k_t *p_j2k, OPJ_UINT32 compno, ...);
+     *
+     * @return number of bytes read, or -1 on error
+     */
+    private int opj_j2k_read_SPCod_SPCoc(OpjTccp tccp, int compno, byte[] d, int off, int size) {
+        if (size < 5) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SPCod SPCoc element\n");
+            return -1;
+        }
+        tccp.numresolutions = (d[off] & 0xff) + 1;
+        if (tccp.numresolutions > OPJ_J2K_MAXRLVLS) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Invalid value for numresolutions : %d, max value is set in openjpeg.h at %d\n",
+                    tccp.numresolutions, OPJ_J2K_MAXRLVLS));
+            return -1;
+        }
+        if (cp.reduce >= tccp.numresolutions) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Error decoding component %d.\nThe number of resolutions to remove (%d) is greater or equal than the number of resolutions of this component (%d)\nModify the cp_reduce parameter.\n\n",
+                    compno, cp.reduce, tccp.numresolutions));
+            state |= J2K_STATE_ERR;
+            return -1;
+        }
+
+        tccp.cblkw = (d[off + 1] & 0xff) + 2;
+        tccp.cblkh = (d[off + 2] & 0xff) + 2;
+        if (tccp.cblkw > 10 || tccp.cblkh > 10 || tccp.cblkw + tccp.cblkh > 12) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR,
+                    "Error reading SPCod SPCoc element, Invalid cblkw/cblkh combination\n");
+            return -1;
+        }
+        tccp.cblksty = d[off + 3] & 0xff;
+        if ((tccp.cblksty & 0xc0) != 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR,
+                    "Error reading SPCod SPCoc element, Invalid code-block style found\n");
+            return -1;
+        }
+        tccp.qmfbid = d[off + 4] & 0xff;
+        if (tccp.qmfbid > 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR,
+                    "Error reading SPCod SPCoc element, Invalid transformation found\n");
+            return -1;
+        }
+        int read = 5;
+
+        if ((tccp.csty & J2K_CCP_CSTY_PRT) != 0) {
+            if (size < 5 + tccp.numresolutions) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SPCod SPCoc element\n");
+                return -1;
+            }
+            for (int i = 0; i < tccp.numresolutions; ++i) {
+                int tmp = d[off + 5 + i] & 0xff;
+                tccp.prcw[i] = tmp & 0xf;
+                tccp.prch[i] = tmp >> 4;
+                if (i != 0 && (tccp.prcw[i] == 0 || tccp.prch[i] == 0)) {
+                    Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid precinct size\n");
+                    return -1;
+                }
+            }
+            read += tccp.numresolutions;
+        } else {
+            for (int i = 0; i < tccp.numresolutions; ++i) {
+                tccp.prcw[i] = 15;
+                tccp.prch[i] = 15;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_qcd(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_qcd(OpjTcp tcp, byte[] d, int size) {
+        int n = opj_j2k_read_SQcd_SQcc(tcp.tccps[0], d, 0, size);
+        if (n < 0) {
+            return false;
+        }
+        if (n != size) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading QCD marker\n");
+            return false;
+        }
+        for (int compno = 1; compno < tcp.tccps.length; ++compno) {
+            opj_j2k_copy_tccp_quant(tcp.tccps[0], tcp.tccps[compno]);
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_qcc(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_qcc(OpjTcp tcp, byte[] d, int size) {
+        int compRoom = privateImage.numcomps <= 256 ? 1 : 2;
+        if (size < compRoom + 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading QCC marker\n");
+            return false;
+        }
+        int compno = (int) Cio.opj_read_bytes_BE(d, 0, compRoom);
+        if (compno >= privateImage.numcomps) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid component number: " + compno
+                    + ", regarding the number of components " + privateImage.numcomps + "\n");
+            return false;
+        }
+        int n = opj_j2k_read_SQcd_SQcc(tcp.tccps[compno], d, compRoom, size - compRoom);
+        if (n < 0) {
+            return false;
+        }
+        if (n != size - compRoom) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading QCC marker\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_SQcd_SQcc(opj_j2k_t *p_j2k, OPJ_UINT32 compno, ...);
+     *
+     * @return number of bytes read, or -1 on error
+     */
+    private int opj_j2k_read_SQcd_SQcc(OpjTccp tccp, byte[] d, int off, int size) {
+        if (size < 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SQcd or SQcc element\n");
+            return -1;
+        }
+        int tmp = d[off] & 0xff;
+        tccp.qntsty = tmp & 0x1f;
+        tccp.numgbits = tmp >> 5;
+
+        int numbands;
+        if (tccp.qntsty == J2K_CCP_QNTSTY_SIQNT) {
+            numbands = 1;
+        } else {
+            numbands = tccp.qntsty == J2K_CCP_QNTSTY_NOQNT ? size - 1 : (size - 1) / 2;
+            if (numbands > OPJ_J2K_MAXBANDS) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, String.format(
+                        "While reading CCP_QNTSTY element inside QCD or QCC marker segment, number of subbands (%d) is greater to OPJ_J2K_MAXBANDS (%d). So we limit the number of elements stored to OPJ_J2K_MAXBANDS (%d) and skip the rest. \n",
+                        numbands, OPJ_J2K_MAXBANDS, OPJ_J2K_MAXBANDS));
+            }
+        }
+
+        int read = 1;
+        if (tccp.qntsty == J2K_CCP_QNTSTY_NOQNT) {
+            if (size < 1 + numbands) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SQcd or SQcc element\n");
+                return -1;
+            }
+            for (int bandno = 0; bandno < numbands; ++bandno) {
+                int v = d[off + read + bandno] & 0xff;
+                if (bandno < OPJ_J2K_MAXBANDS) {
+                    tccp.stepsizes[bandno].expn = v >> 3;
+                    tccp.stepsizes[bandno].mant = 0;
+                }
+            }
+            read += numbands;
+        } else {
+            if (size < 1 + 2 * numbands) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SQcd or SQcc element\n");
+                return -1;
+            }
+            for (int bandno = 0; bandno < numbands; ++bandno) {
+                int v = (int) Cio.opj_read_bytes_BE(d, off + read + 2 * bandno, 2);
+                if (bandno < OPJ_J2K_MAXBANDS) {
+                    tccp.stepsizes[bandno].expn = v >> 11;
+                    tccp.stepsizes[bandno].mant = v & 0x7ff;
+                }
+            }
+            read += 2 * numbands;
+        }
+
+        // Scalar derived: the other bands follow from the LL one (E.1.1.1)
+        if (tccp.qntsty == J2K_CCP_QNTSTY_SIQNT) {
+            for (int bandno = 1; bandno < OPJ_J2K_MAXBANDS; ++bandno) {
+                tccp.stepsizes[bandno].expn =
+                        Math.max(0, tccp.stepsizes[0].expn - (bandno - 1) / 3);
+                tccp.stepsizes[bandno].mant = tccp.stepsizes[0].mant;
+            }
+        }
+        return read;
+    }
+
+    private static void opj_j2k_copy_tccp_quant(OpjTccp src, OpjTccp dst) {
+        dst.qntsty = src.qntsty;
+        dst.numgbits = src.numgbits;
+        for (int i = 0; i < OPJ_J2K_MAXBANDS; ++i) {
+            dst.stepsizes[i].expn = src.stepsizes[i].expn;
+            dst.stepsizes[i].mant = src.stepsizes[i].mant;
+        }
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_rgn(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_rgn(OpjTcp tcp, byte[] d, int size) {
+        int compRoom = privateImage.numcomps <= 256 ? 1 : 2;
+        if (size != 2 + compRoom) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading RGN marker\n");
+            return false;
+        }
+        int compno = (int) Cio.opj_read_bytes_BE(d, 0, compRoom);
+        if (compno >= privateImage.numcomps) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "bad component number in RGN (%d when there are only %d)\n", compno, privateImage.numcomps));
+            return false;
+        }
+        tcp.tccps[compno].roishift = d[compRoom + 1] & 0xff;
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_poc(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_poc(OpjTcp tcp, byte[] d, int size) {
+        int numcomps = privateImage.numcomps;
+        int compRoom = numcomps <= 256 ? 1 : 2;
+        int chunkSize = 5 + 2 * compRoom;
+        int nbPoc = size / chunkSize;
+        if (nbPoc <= 0 || size % chunkSize != 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading POC marker\n");
+            return false;
+        }
+
+        int oldPoc = tcp.poc ? tcp.numpocs + 1 : 0;
+        int currentPoc = oldPoc + nbPoc;
+        if (currentPoc >= tcp.pocs.length) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Too many POCs " + currentPoc + "\n");
+            return false;
+        }
+
+        int k = 0;
+        for (int i = oldPoc; i < currentPoc; ++i) {
+            OpjPoc poc = new OpjPoc();
+            poc.resno0 = d[k++] & 0xff;
+            poc.compno0 = (int) Cio.opj_read_bytes_BE(d, k, compRoom);
+            k += compRoom;
+            poc.layno1 = Math.min((int) Cio.opj_read_bytes_BE(d, k, 2), tcp.numlayers);
+            k += 2;
+            poc.resno1 = d[k++] & 0xff;
+            poc.compno1 = Math.min((int) Cio.opj_read_bytes_BE(d, k, compRoom), numcomps);
+            k += compRoom;
+            int prg = d[k++] & 0xff;
+            if (prg >= OpjProgOrder.values().length) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Unknown progression order in POC marker\n");
+                return false;
+            }
+            poc.prg = OpjProgOrder.values()[prg];
+            tcp.pocs[i] = poc;
+        }
+
+        tcp.numpocs = currentPoc - 1;
+        tcp.poc = true;
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_plt(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     *
+     * Collects the packet lengths of the current tile-part.
+     */
+    private boolean opj_j2k_read_plt(byte[] d, int size) {
+        if (size < 1) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading PLT marker\n");
+            return false;
+        }
+        // d[0] is Zplt, the index of the PLT marker in the tile-part
+        int packetLen = 0;
+        for (int i = 1; i < size; ++i) {
+            int tmp = d[i] & 0xff;
+            if (packetLen > (Integer.MAX_VALUE >> 7)) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading PLT marker\n");
+                return false;
+            }
+            packetLen = (packetLen << 7) | (tmp & 0x7f);
+            if ((tmp & 0x80) == 0) {
+                if (numPltLengths == pltLengths.length) {
+                    pltLengths = Arrays.copyOf(pltLengths, pltLengths.length * 2);
+                }
+                pltLengths[numPltLengths++] = packetLen;
+                packetLen = 0;
+            }
+        }
+        if (packetLen != 0) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading PLT marker\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_sot(opj_j2k_t *p_j2k, OPJ_BYTE * p_header_data, OPJ_UINT32 p_header_size, ...);
+     */
+    private boolean opj_j2k_read_sot(byte[] d, int size) {
+        if (size != 8) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Error reading SOT marker\n");
+            return false;
+        }
+        int tileno = (int) Cio.opj_read_bytes_BE(d, 0, 2);
+        long psot = Cio.opj_read_bytes_BE(d, 2, 4);
+        int tpsot = d[6] & 0xff;
+        int tnsot = d[7] & 0xff;
+
+        if (tileno >= cp.tcps.length) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Invalid tile number " + tileno + "\n");
+            return false;
+        }
+        if (psot != 0 && psot < 14) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "Psot value (%d) is not correct regarding the JPEG2000 norm!\n", psot));
+            return false;
+        }
+
+        OpjTcp tcp = cp.tcps[tileno];
+        if (tcp.decoded) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, String.format(
+                    "In SOT marker, TPSot (%d) is not valid regards to the current number of tile-part (%d), giving up\n",
+                    tpsot, tcp.numTileParts));
+            return false;
+        }
+        if (tnsot != 0) {
+            tcp.numTileParts = tnsot;
+        }
+
+        currentTileNumber = tileno;
+        sotLength = psot == 0 ? -1 : psot - 12;
+        numPltLengths = 0;
+        state = J2K_STATE_TPH;
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_j2k_read_sod(opj_j2k_t *p_j2k, opj_stream_private_t *p_stream, ...);
+     *
+     * Appends the body of the current tile-part to the tile data. When the
+     * tile-part header listed every packet length (PLT) and some packets
+     * are not needed (T2.opj_t2_is_packet_needed), those are skipped in
+     * the stream and recorded in tcp.elidedPackets instead of being read.
+     */
+    private boolean opj_j2k_read_sod(OpjStream stream, long bodyLength) {
+        OpjTcp tcp = cp.tcps[currentTileNumber];
+
+        long available = stream.userDataLength > 0
+                ? stream.userDataLength - stream.byteOffset : bodyLength;
+        if (bodyLength > available) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Tile part length size inconsistent with stream length\n");
+            bodyLength = Math.max(0, available);
+        }
+        if (bodyLength > Integer.MAX_VALUE - tcp.dataSize) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_ERROR, "Tile data is too large\n");
+            return false;
+        }
+        int len = (int) bodyLength;
+
+        long pltTotal = 0;
+        for (int i = 0; i < numPltLengths; ++i) {
+            pltTotal += pltLengths[i];
+        }
+        boolean pltUsable = numPltLengths > 0 && tcp.numPacketsRead >= 0 && pltTotal == len;
+        boolean partial = cp.reduce > 0 || tcp.numLayersToDecode < tcp.numlayers
+                || cp.usedComponent != null;
+
+        opj_j2k_grow_tile_data(tcp, len);
+
+        if (!pltUsable || !partial) {
+            int read = opj_j2k_read_available(stream, tcp.data, tcp.dataSize, len);
+            if (read < len) {
+                Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Tile part length size inconsistent with stream length\n");
+            }
+            // Only what was actually read goes to tier-2
+            tcp.dataSize += read;
+            tcp.numPacketsRead = pltUsable ? tcp.numPacketsRead + numPltLengths : -1;
+            return true;
+        }
+
+        Pi.OpjPiPlan plan = Pi.opj_pi_get_decode_plan(privateImage, cp, currentTileNumber, planCache);
+        int[] packets = plan.packets;
+        if (tcp.elidedPackets == null) {
+            tcp.elidedPackets = new BitSet(plan.numpackets);
+        }
+
+        // Coalesce runs of needed / unneeded packets into single reads / skips
+        long pendingRead = 0;
+        long pendingSkip = 0;
+        for (int i = 0; i < numPltLengths; ++i) {
+            int packetno = tcp.numPacketsRead + i;
+            int p = packetno * Pi.PI_STRIDE;
+            boolean needed = packetno >= plan.numpackets
+                    || T2.opj_t2_is_packet_needed(cp, tcp, packets[p + Pi.PI_LAYNO],
+                            packets[p + Pi.PI_RESNO], packets[p + Pi.PI_COMPNO]);
+            if (needed) {
+                if (pendingSkip > 0 && !opj_j2k_skip(stream, pendingSkip)) {
+                    return true;
+                }
+                pendingSkip = 0;
+                pendingRead += pltLengths[i];
+            } else {
+                if (pendingRead > 0 && !opj_j2k_read_pending(stream, tcp, (int) pendingRead)) {
+                    return true;
+                }
+                pendingRead = 0;
+                pendingSkip += pltLengths[i];
+                tcp.elidedPackets.set(packetno);
+            }
+        }
+        if (pendingRead > 0 && !opj_j2k_read_pending(stream, tcp, (int) pendingRead)) {
+            return true;
+        }
+        if (pendingSkip > 0) {
+            opj_j2k_skip(stream, pendingSkip);
+        }
+        tcp.numPacketsRead += numPltLengths;
+        return true;
+    }
+
+    private boolean opj_j2k_read_pending(OpjStream stream, OpjTcp tcp, int len) {
+        int read = opj_j2k_read_available(stream, tcp.data, tcp.dataSize, len);
+        tcp.dataSize += read;
+        if (read < len) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Tile part length size inconsistent with stream length\n");
+            tcp.numPacketsRead = -1;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for len more bytes in tcp.data. The first tile-part gets
+     * an exact fit; later ones grow the buffer geometrically, so a tile
+     * split over many tile-parts is not copied over and over.
+     */
+    private static void opj_j2k_grow_tile_data(OpjTcp tcp, int len) {
+        int needed = tcp.dataSize + len;
+        if (tcp.data == null) {
+            tcp.data = new byte[len];
+        } else if (tcp.data.length < needed) {
+            long grown = Math.max(needed, Math.min(2L * tcp.data.length, Integer.MAX_VALUE - 8));
+            tcp.data = Arrays.copyOf(tcp.data, (int) grown);
+        }
+    }
+
+    private boolean opj_j2k_skip(OpjStream stream, long len) {
+        if (Cio.opj_stream_skip(stream, len, eventMgr) != len) {
+            Cio.opj_event_msg(eventMgr, Cio.EVT_WARNING, "Tile part length size inconsistent with stream length\n");
+            cp.tcps[currentTileNumber].numPacketsRead = -1;
+            return false;
+        }
         return true;
     }
 }
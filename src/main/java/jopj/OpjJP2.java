@@ -2,4 +2,10 @@ package jopj;
 
 public class OpjJP2 extends OpjCodec
 {
+    /** C: opj_jp2_t::j2k - the codestream decoder the JP2 boxes wrap. */
+    public final OpjJ2k j2k = new OpjJ2k();
+
+    public OpjJP2() {
+        j2k.eventMgr = this.eventMgr;
+    }
 }
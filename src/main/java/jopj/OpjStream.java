@@ -1,6 +1,20 @@
 package jopj;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Java skeleton of OpenJPEG's cio.c / cio.h stream system.
@@ -11,14 +25,10 @@ import java.util.Objects;
  *   - opj_* byte read/write helpers
  *
  * NOTES:
- * - This is intentionally simplified:
- *   * The original C code has an internal buffered I/O engine.
- *   * Here, opj_stream_read_data / write_data mostly delegate to the
- *     user-supplied function pointers (ReadFn, WriteFn, etc.).
- *   * The internal buffer fields are present but not yet used to fully
- *     emulate the original chunked buffering logic.
- * - External dependencies like opj_event_mgr_t and opj_event_msg are
- *   stubbed as OpjEventMgr + opj_event_msg.
+ * - The buffered I/O engine (opj_stream_read_data, skip, seek, flush)
+ *   lives in Cio and works on the fields inherited from
+ *   Cio.OpjStreamPrivate; this class only adds the sources and the
+ *   factories that wire them to the engine.
  */
 public final class OpjStream extends Cio.OpjStreamPrivate {
 
@@ -41,43 +51,53 @@ public final class OpjStream extends Cio.OpjStreamPrivate {
     public static final int EVT_ERROR   = 3;
 
     /* --------------------------------------------------------------------- */
-    /* Functional interfaces – C function pointer typedefs                   */
+    /* Sources wired to the stream callbacks                                 */
     /* --------------------------------------------------------------------- */
 
     /**
-     * Simple in-memory source for jopj.OpjStream: wraps a byte[] with read/skip/seek.
+     * Simple in-memory source for jopj.OpjStream: wraps bytes [start, end)
+     * of a byte[] with read/skip/seek. Positions are relative to start.
      */
      static class ByteArraySource {
         private final byte[] data;
+        private final int start;
+        private final int end;
         private int pos = 0;
 
         public  ByteArraySource(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        ByteArraySource(byte[] data, int offset, int length) {
             this.data = Objects.requireNonNull(data);
+            Objects.checkFromIndexSize(offset, length, data.length);
+            this.start = offset;
+            this.end = offset + length;
         }
 
         long length() {
-            return data.length;
+            return end - start;
         }
 
         long read(byte[] buffer, long nbBytes) {
             if (nbBytes <= 0) return 0;
-            if (pos >= data.length) return -1; // EOF
+            if (start + pos >= end) return -1; // EOF
 
-            int toRead = (int) Math.min(nbBytes, (long) (data.length - pos));
-            System.arraycopy(data, pos, buffer, 0, toRead);
+            int toRead = (int) Math.min(nbBytes, (long) (end - start - pos));
+            System.arraycopy(data, start + pos, buffer, 0, toRead);
             pos += toRead;
             return toRead;
         }
 
         long skip(long nbBytes) {
             if (nbBytes <= 0) return 0;
-            int toSkip = (int) Math.min(nbBytes, (long) (data.length - pos));
+            int toSkip = (int) Math.min(nbBytes, (long) (end - start - pos));
             pos += toSkip;
             return toSkip;
         }
 
         boolean seek(long offset) {
-            if (offset < 0 || offset > data.length) {
+            if (offset < 0 || offset > end - start) {
                 return false; // failure
             }
             pos = (int) offset;
@@ -86,217 +106,445 @@ public final class OpjStream extends Cio.OpjStreamPrivate {
     }
 
     /**
-     * Utility to create a jopj.OpjStream over a byte[] code stream.
+     * Read-only source over a sequence of ByteBuffers (heap, direct or
+     * mapped), read in place with absolute gets. Every buffer but the
+     * last holds exactly chunkSize bytes, so a position maps to a buffer
+     * by division. Skips and seeks only move pos.
      */
-    public static OpjStream createFromByteArray(byte[] data) {
-        ByteArraySource src = new ByteArraySource(data);
-
-        // Get a default-configured stream (buffer size, etc.)
-        Cio.OpjStreamPrivate base = Cio.opj_stream_default_create(true);
+    static class ByteBufferSource {
+        private final ByteBuffer[] chunks;
+        private final long chunkSize;
+        private final long length;
+        private long pos = 0;
+
+        ByteBufferSource(ByteBuffer[] chunks, long chunkSize) {
+            this.chunks = Objects.requireNonNull(chunks);
+            this.chunkSize = chunkSize;
+            long len = 0;
+            for (ByteBuffer chunk : chunks) {
+                len += chunk.limit();
+            }
+            this.length = len;
+        }
 
-        // Our public stream type extends OpjStreamPrivate
-        OpjStream stream = new OpjStream();
+        /** A single buffer, from its position to its limit. */
+        ByteBufferSource(ByteBuffer buffer) {
+            this(new ByteBuffer[] { buffer.slice() }, Math.max(1, buffer.remaining()));
+        }
 
-        // Copy basic fields from base
-        stream.storedData        = base.storedData;
-        stream.bufferSize        = base.bufferSize;
-        stream.bytesInBuffer     = base.bytesInBuffer;
-        stream.currentDataOffset = base.currentDataOffset;
-        stream.byteOffset        = base.byteOffset;
-        stream.status            = base.status;
-        stream.opjSkip           = base.opjSkip;
-        stream.opjSeek           = base.opjSeek;
+        /**
+         * Maps bytes [offset, offset + length) of a file. A single mapping
+         * is limited to 2 GB, so the range is covered by a chain of
+         * MAP_CHUNK_SIZE mappings; the OS pages in what read() touches.
+         */
+        static ByteBufferSource map(Path path, long offset, long length) throws IOException {
+            return map(path, offset, length, MAP_CHUNK_SIZE);
+        }
+
+        /** As map(path, offset, length), with mappings of chunkSize bytes. */
+        static ByteBufferSource map(Path path, long offset, long length, long chunkSize) throws IOException {
+            Objects.requireNonNull(path, "path must not be null");
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (offset < 0 || length < 0 || offset > size || length > size - offset) {
+                    throw new IllegalArgumentException("range [" + offset + ", " + (offset + length)
+                            + ") outside of file of size " + size);
+                }
+                int n = (int) ((length + chunkSize - 1) / chunkSize);
+                ByteBuffer[] chunks = new ByteBuffer[n];
+                for (int i = 0; i < n; ++i) {
+                    long start = i * chunkSize;
+                    long len = Math.min(chunkSize, length - start);
+                    // Mappings stay valid after the channel is closed
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, len);
+                }
+                return new ByteBufferSource(chunks, chunkSize);
+            }
+        }
 
-        // Attach the user data
-        Cio.opj_stream_set_user_data(stream, src, userData -> {
-            // nothing to free
-        });
-        Cio.opj_stream_set_user_data_length(stream, src.length());
+        long length() {
+            return length;
+        }
 
-        // Wire callbacks to ByteArraySource
-        Cio.opj_stream_set_read_function(stream, (buffer, nbBytes, userData) -> {
-            return ((ByteArraySource) userData).read(buffer, nbBytes);
-        });
-        Cio.opj_stream_set_skip_function(stream, (nbBytes, userData) -> {
-            return ((ByteArraySource) userData).skip(nbBytes);
-        });
-        Cio.opj_stream_set_seek_function(stream, (offset, userData) -> {
-            return ((ByteArraySource) userData).seek(offset);
-        });
+        long read(byte[] buffer, long nbBytes) {
+            if (nbBytes <= 0) return 0;
+            if (pos >= length) return -1; // EOF
+
+            int toRead = (int) Math.min(Math.min(nbBytes, buffer.length), length - pos);
+            int done = 0;
+            while (done < toRead) {
+                ByteBuffer chunk = chunks[(int) (pos / chunkSize)];
+                int inChunk = (int) (pos % chunkSize);
+                int n = Math.min(toRead - done, chunk.limit() - inChunk);
+                chunk.get(inChunk, buffer, done, n);
+                done += n;
+                pos += n;
+            }
+            return toRead;
+        }
 
-        // No write support for decoding
-        Cio.opj_stream_set_write_function(stream, (buffer, nbBytes, userData) -> -1L);
+        long skip(long nbBytes) {
+            if (nbBytes <= 0) return 0;
+            long toSkip = Math.min(nbBytes, length - pos);
+            pos += toSkip;
+            return toSkip;
+        }
 
-        return stream;
+        boolean seek(long offset) {
+            if (offset < 0 || offset > length) {
+                return false; // failure
+            }
+            pos = offset;
+            return true; // success
+        }
     }
+
     /**
-     * C: typedef OPJ_SIZE_T (* opj_stream_read_fn)(void * p_buffer,
-     *                                              OPJ_SIZE_T p_nb_bytes,
-     *                                              void * p_user_data);
-     *
-     * Java: read up to p_nb_bytes into p_buffer[0..), return #bytes read
-     * or -1 on error/end.
+     * Reads bytes at an absolute position, as FileChannel.read(ByteBuffer, long)
+     * does: returns the number of bytes read, or -1 at the end. Called from
+     * prefetch threads, possibly several at once, so it must not rely on a
+     * shared channel position.
      */
     @FunctionalInterface
-    public interface ReadFn {
-        long read(byte[] buffer, long nbBytes, Object userData);
+    public interface ChunkReader {
+        int read(ByteBuffer dst, long position) throws IOException;
     }
 
     /**
-     * C: typedef OPJ_SIZE_T (* opj_stream_write_fn)(void * p_buffer,
-     *                                               OPJ_SIZE_T p_nb_bytes,
-     *                                               void * p_user_data);
-     *
-     * Java: write p_nb_bytes from buffer[0..), return #bytes written
-     * or -1 on error.
+     * Source that reads fixed-size chunks ahead of the decoder on virtual
+     * threads, so the decoder's CPU time overlaps the I/O wait of slow
+     * storage. How far ahead it reads follows the observed rates: the
+     * distance is the number of chunks the decoder consumes while one
+     * chunk is fetched, plus one, up to maxDistance. Skips and seeks that
+     * leave the window cancel the prefetches outside it. A failed fetch is
+     * thrown to the decoder as an UncheckedIOException rather than taken
+     * for the end of the data.
      */
-    @FunctionalInterface
-    public interface WriteFn {
-        long write(byte[] buffer, long nbBytes, Object userData);
+    static class PrefetchSource {
+        private record Chunk(byte[] data, int length, long fetchNanos) {
+        }
+
+        private final ChunkReader reader;
+        private final long length;
+        private final int chunkSize;
+        private final int maxDistance;
+        private final Closeable resource;
+        private final ExecutorService prefetcher =
+                Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jopj-prefetch-", 0).factory());
+        /** Fetched or in-flight chunks ahead of the current one, by index. */
+        private final Map<Long, Future<Chunk>> pending = new HashMap<>();
+        private long pos = 0;
+        private Chunk current;
+        private long currentIndex = -1;
+        private int distance = 2;
+        /** Moving averages of the time to fetch a chunk and to consume one. */
+        private double fetchNanos;
+        private double consumeNanos;
+        private long enteredAt;
+
+        PrefetchSource(ChunkReader reader, long length, int chunkSize, int maxDistance,
+                       Closeable resource) {
+            this.reader = Objects.requireNonNull(reader);
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.maxDistance = maxDistance;
+            this.resource = resource;
+        }
+
+        long length() {
+            return length;
+        }
+
+        long read(byte[] buffer, long nbBytes) {
+            if (nbBytes <= 0) return 0;
+            if (pos >= length) return -1; // EOF
+
+            long index = pos / chunkSize;
+            if (index != currentIndex) {
+                enter(index);
+            }
+            int inChunk = (int) (pos - index * chunkSize);
+            int n = (int) Math.min(Math.min(nbBytes, buffer.length), current.length - inChunk);
+            if (n <= 0) {
+                return -1; // the data ended before length
+            }
+            System.arraycopy(current.data, inChunk, buffer, 0, n);
+            pos += n;
+            return n;
+        }
+
+        long skip(long nbBytes) {
+            if (nbBytes <= 0) return 0;
+            long toSkip = Math.min(nbBytes, length - pos);
+            moveTo(pos + toSkip);
+            return toSkip;
+        }
+
+        boolean seek(long offset) {
+            if (offset < 0 || offset > length) {
+                return false; // failure
+            }
+            moveTo(offset);
+            return true; // success
+        }
+
+        /**
+         * Makes chunk index current, waiting for it if needed, and schedules
+         * the next ones.
+         *
+         * @throws UncheckedIOException if the chunk could not be read, or
+         *         the wait for it was interrupted
+         */
+        private void enter(long index) {
+            long now = System.nanoTime();
+            if (index == currentIndex + 1 && currentIndex >= 0) {
+                consumeNanos = average(consumeNanos, now - enteredAt);
+            }
+            Future<Chunk> future = pending.remove(index);
+            if (future == null) {
+                future = submit(index);
+            }
+            try {
+                current = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("interrupted while reading chunk " + index));
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException io) {
+                    throw new UncheckedIOException("reading chunk " + index + " failed", io);
+                }
+                if (cause instanceof RuntimeException re) {
+                    throw re;
+                }
+                throw new UncheckedIOException(new IOException("reading chunk " + index + " failed", cause));
+            }
+            currentIndex = index;
+            fetchNanos = average(fetchNanos, current.fetchNanos);
+            if (consumeNanos > 0) {
+                distance = (int) Math.min(maxDistance, Math.ceil(fetchNanos / consumeNanos) + 1);
+            }
+            long last = (length - 1) / chunkSize;
+            for (long i = index + 1; i <= Math.min(last, index + distance); ++i) {
+                pending.computeIfAbsent(i, this::submit);
+            }
+            enteredAt = System.nanoTime();
+        }
+
+        /** Moves pos, cancelling prefetches that are no longer ahead of it. */
+        private void moveTo(long newPos) {
+            pos = newPos;
+            long index = pos / chunkSize;
+            pending.entrySet().removeIf(e -> {
+                long i = e.getKey();
+                if (i >= index && i <= index + distance) {
+                    return false;
+                }
+                // Not interrupting: an interrupt would close a FileChannel
+                e.getValue().cancel(false);
+                return true;
+            });
+        }
+
+        private Future<Chunk> submit(long index) {
+            return prefetcher.submit(() -> {
+                long start = System.nanoTime();
+                long position = index * chunkSize;
+                byte[] data = new byte[(int) Math.min(chunkSize, length - position)];
+                ByteBuffer dst = ByteBuffer.wrap(data);
+                while (dst.hasRemaining()) {
+                    if (reader.read(dst, position + dst.position()) < 0) {
+                        break;
+                    }
+                }
+                return new Chunk(data, dst.position(), System.nanoTime() - start);
+            });
+        }
+
+        private static double average(double avg, long sample) {
+            return avg == 0 ? sample : 0.75 * avg + 0.25 * sample;
+        }
+
+        void close() {
+            for (Future<Chunk> future : pending.values()) {
+                future.cancel(false);
+            }
+            pending.clear();
+            prefetcher.shutdown();
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    // nothing left to read from it
+                }
+            }
+        }
     }
 
+    /** Chunk size and largest read-ahead distance of createPrefetching(Path). */
+    static final int PREFETCH_CHUNK_SIZE = 256 * 1024;
+    static final int PREFETCH_MAX_CHUNKS = 16;
+
+    /** Size of each mapping made by createFromFile (the last one may be shorter). */
+    static final long MAP_CHUNK_SIZE = 1L << 30;
+
     /**
-     * C: typedef OPJ_OFF_T (* opj_stream_skip_fn)(OPJ_OFF_T p_nb_bytes,
-     *                                             void * p_user_data);
+     * Creates a jopj.OpjStream over a whole file, memory-mapped instead of
+     * read into the heap.
      */
-    @FunctionalInterface
-    public interface SkipFn {
-        long skip(long nbBytes, Object userData);
+    public static OpjStream createFromFile(Path path) throws IOException {
+        long size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+        }
+        return createFromFile(path, 0, size);
     }
 
     /**
-     * C: typedef OPJ_BOOL (* opj_stream_seek_fn)(OPJ_OFF_T p_nb_bytes,
-     *                                            void * p_user_data);
+     * Creates a jopj.OpjStream over bytes [offset, offset + length) of a
+     * file, memory-mapped. Stream positions are relative to offset, so a
+     * stream over a JP2 file's jp2c box contents starts at the SOC
+     * marker. Files larger than 2 GB are mapped in several pieces.
      */
-    @FunctionalInterface
-    public interface SeekFn {
-        boolean seek(long position, Object userData);
+    public static OpjStream createFromFile(Path path, long offset, long length) throws IOException {
+        return createFromSource(ByteBufferSource.map(path, offset, length));
     }
 
     /**
-     * C: typedef void (* opj_stream_free_user_data_fn)(void * p_user_data);
+     * Creates a jopj.OpjStream over the remaining bytes of buffer (heap or
+     * direct), read in place: only what the decoder asks for is copied
+     * out, never the whole buffer. buffer's position and limit are not
+     * changed; its contents must not change while the stream is in use.
      */
-    @FunctionalInterface
-    public interface FreeUserDataFn {
-        void free(Object userData);
+    public static OpjStream createFromByteBuffer(ByteBuffer buffer) {
+        Objects.requireNonNull(buffer, "buffer must not be null");
+        return createFromSource(new ByteBufferSource(buffer));
     }
 
-    /* --------------------------------------------------------------------- */
-    /* Event manager stub (opj_event_mgr_t / opj_event_msg)                  */
-    /* --------------------------------------------------------------------- */
-
     /**
-     * Minimal stub for the event manager struct.
-     * In real code you'd plug this into your logging system.
+     * Creates a jopj.OpjStream over a whole file that reads ahead of the
+     * decoder on background threads; for files on slow or remote
+     * storage, where createFromFile would stall on every page fault.
      */
-    public static final class OpjEventMgr {
-        public void info (String msg) { System.out.print (msg); }
-        public void warn (String msg) { System.err.print("WARNING: " + msg); }
-        public void error(String msg) { System.err.print("ERROR: " + msg); }
+    public static OpjStream createPrefetching(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return createPrefetching(channel::read, channel.size(),
+                PREFETCH_CHUNK_SIZE, PREFETCH_MAX_CHUNKS, channel);
     }
 
     /**
-     * C: opj_event_msg(event_mgr, EVT_*, "msg");
+     * Creates a read-ahead jopj.OpjStream over bytes [offset, offset +
+     * length) of a file. Stream positions are relative to offset.
      */
-    public static void opj_event_msg(OpjEventMgr mgr, int evt, String msg) {
-        if (mgr == null) return;
-        switch (evt) {
-            case EVT_INFO:    mgr.info(msg);  break;
-            case EVT_WARNING: mgr.warn(msg);  break;
-            case EVT_ERROR:   mgr.error(msg); break;
-            default: mgr.info(msg);           break;
+    public static OpjStream createPrefetching(Path path, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size = channel.size();
+        if (offset < 0 || length < 0 || offset > size || length > size - offset) {
+            channel.close();
+            throw new IllegalArgumentException("range [" + offset + ", " + (offset + length)
+                    + ") outside of file of size " + size);
         }
+        return createPrefetching((dst, position) -> channel.read(dst, offset + position), length,
+                PREFETCH_CHUNK_SIZE, PREFETCH_MAX_CHUNKS, channel);
     }
 
-    /* --------------------------------------------------------------------- */
-    /* Stream structure (opj_stream_private_t)                               */
-    /* --------------------------------------------------------------------- */
-
     /**
-     * Java equivalent of opj_stream_private_t / opj_stream_t.
-     *
-     * NOTE: We keep all fields for compatibility with the C layout, but the
-     * buffering/skip/seek logic is simplified. You can expand it later to
-     * mirror cio.c exactly (m_stored_data, m_bytes_in_buffer, etc.).
+     * Creates a read-ahead jopj.OpjStream over length bytes served by
+     * reader, fetched in chunkSize pieces at most maxChunks ahead of the
+     * decoder. resource, if not null, is closed with the stream.
      */
-    public static final class Stream {
+    public static OpjStream createPrefetching(ChunkReader reader, long length, int chunkSize,
+                                              int maxChunks, Closeable resource) {
+        Objects.requireNonNull(reader, "reader must not be null");
+        if (length < 0 || chunkSize <= 0 || maxChunks <= 0) {
+            throw new IllegalArgumentException("length must be >= 0, chunkSize and maxChunks > 0");
+        }
+        PrefetchSource src = new PrefetchSource(reader, length, chunkSize, maxChunks, resource);
 
-        /* User data, e.g., a RandomAccessFile, InputStream, etc. */
-        public Object userData;
+        OpjStream stream = new OpjStream();
+        Cio.opj_stream_init(stream, 0, true);
 
-        /* Optional deallocator for userData. */
-        public FreeUserDataFn freeUserDataFn;
+        Cio.opj_stream_set_user_data(stream, src, userData -> ((PrefetchSource) userData).close());
+        Cio.opj_stream_set_user_data_length(stream, src.length());
 
-        /* Total length of underlying data, if known. */
-        public long userDataLength;
+        Cio.opj_stream_set_read_function(stream, (buffer, nbBytes, userData) ->
+                ((PrefetchSource) userData).read(buffer, nbBytes));
+        Cio.opj_stream_set_skip_function(stream, (nbBytes, userData) ->
+                ((PrefetchSource) userData).skip(nbBytes));
+        Cio.opj_stream_set_seek_function(stream, (position, userData) ->
+                ((PrefetchSource) userData).seek(position));
 
-        /* Actual user-level callbacks. */
-        public ReadFn  readFn;
-        public WriteFn writeFn;
-        public SkipFn  skipFn;
-        public SeekFn  seekFn;
+        // No write support for decoding
+        Cio.opj_stream_set_write_function(stream, (buffer, nbBytes, userData) -> -1L);
 
-        /* Internal buffer (kept for future compatibility, not fully used
-           in the simplified implementation below). */
-        public byte[] storedData;
-        public int    currentOffset;   // index into storedData
-        public long   bytesInBuffer;   // bytes available (read) or pending (write)
+        return stream;
+    }
 
-        /* Byte offset since beginning of stream. */
-        public long byteOffset;
+    private static OpjStream createFromSource(ByteBufferSource src) {
+        OpjStream stream = new OpjStream();
+        Cio.opj_stream_init(stream, 0, true);
 
-        /* Buffer size used when internal buffering is implemented. */
-        public int bufferSize;
+        // Mapped buffers are released when src becomes unreachable
+        Cio.opj_stream_set_user_data(stream, src, userData -> {
+        });
+        Cio.opj_stream_set_user_data_length(stream, src.length());
 
-        /* Status flags (OPJ_STREAM_STATUS_*). */
-        public int status;
+        Cio.opj_stream_set_read_function(stream, (buffer, nbBytes, userData) ->
+                ((ByteBufferSource) userData).read(buffer, nbBytes));
+        Cio.opj_stream_set_skip_function(stream, (nbBytes, userData) ->
+                ((ByteBufferSource) userData).skip(nbBytes));
+        Cio.opj_stream_set_seek_function(stream, (position, userData) ->
+                ((ByteBufferSource) userData).seek(position));
 
-        /**
-         * Factory helper corresponding to opj_stream_create(bufferSize, isInput).
-         */
-        public static Stream opj_stream_create(long bufferSize, boolean isInput) {
-            Stream s = new Stream();
-            s.bufferSize = (bufferSize <= 0 || bufferSize > Integer.MAX_VALUE)
-                    ? 8192
-                    : (int) bufferSize;
-            s.storedData    = new byte[s.bufferSize];
-            s.currentOffset = 0;
-            s.bytesInBuffer = 0L;
-            s.byteOffset    = 0L;
-            s.status        = 0;
-            if (isInput) {
-                s.status |= OPJ_STREAM_STATUS_INPUT;
-            } else {
-                s.status |= OPJ_STREAM_STATUS_OUTPUT;
-            }
-            return s;
-        }
+        // No write support for decoding
+        Cio.opj_stream_set_write_function(stream, (buffer, nbBytes, userData) -> -1L);
 
-        /**
-         * Destroy stream; frees userData via freeUserDataFn (if non-null).
-         * C: opj_stream_destroy(opj_stream_private_t*).
-         */
-        public void opj_stream_destroy(OpjEventMgr eventMgr) {
-            // Flush if we were writing (simplified: no internal buffering used):
-            if ((status & OPJ_STREAM_STATUS_OUTPUT) != 0) {
-                opj_stream_flush(this, eventMgr);
-            }
+        return stream;
+    }
 
-            if (freeUserDataFn != null && userData != null) {
-                freeUserDataFn.free(userData);
-            }
+    /**
+     * Utility to create a jopj.OpjStream over a byte[] code stream.
+     */
+    public static OpjStream createFromByteArray(byte[] data) {
+        Objects.requireNonNull(data, "data must not be null");
+        return createFromByteArray(data, 0, data.length);
+    }
 
-            userData       = null;
-            freeUserDataFn = null;
-            readFn         = null;
-            writeFn        = null;
-            skipFn         = null;
-            seekFn         = null;
-            storedData     = null;
-            bytesInBuffer  = 0;
-            bufferSize     = 0;
-            status         = 0;
-        }
+    /**
+     * Creates a jopj.OpjStream over bytes [offset, offset + length) of
+     * data, read in place; e.g. the jp2c box of a JP2 file held in memory,
+     * located with Jp2Parser.findCodestream(byte[]). Stream positions are
+     * relative to offset.
+     */
+    public static OpjStream createFromByteArray(byte[] data, int offset, int length) {
+        ByteArraySource src = new ByteArraySource(data, offset, length);
+
+        // Our public stream type extends OpjStreamPrivate; a buffer size
+        // of 0 lets the engine size its buffer from the data length
+        OpjStream stream = new OpjStream();
+        Cio.opj_stream_init(stream, 0, true);
+
+        // Attach the user data
+        Cio.opj_stream_set_user_data(stream, src, userData -> {
+            // nothing to free
+        });
+        Cio.opj_stream_set_user_data_length(stream, src.length());
+
+        // Wire callbacks to ByteArraySource
+        Cio.opj_stream_set_read_function(stream, (buffer, nbBytes, userData) -> {
+            return ((ByteArraySource) userData).read(buffer, nbBytes);
+        });
+        Cio.opj_stream_set_skip_function(stream, (nbBytes, userData) -> {
+            return ((ByteArraySource) userData).skip(nbBytes);
+        });
+        Cio.opj_stream_set_seek_function(stream, (position, userData) -> {
+            return ((ByteArraySource) userData).seek(position);
+        });
+
+        // No write support for decoding
+        Cio.opj_stream_set_write_function(stream, (buffer, nbBytes, userData) -> -1L);
+
+        return stream;
     }
 
     /* --------------------------------------------------------------------- */
@@ -467,279 +715,4 @@ public final class OpjStream extends Cio.OpjStreamPrivate {
     public static float opj_read_float_LE(byte[] buffer) {
         return opj_read_float_LE(buffer, 0);
     }
-
-    /* --------------------------------------------------------------------- */
-    /* Stream data I/O (simplified)                                         */
-    /* --------------------------------------------------------------------- */
-
-    /**
-     * C: OPJ_SIZE_T opj_stream_read_data(opj_stream_private_t *p_stream,
-     *                                    OPJ_BYTE *p_buffer,
-     *                                    OPJ_SIZE_T p_size,
-     *                                    opj_event_mgr_t *p_event_mgr);
-     *
-     * Java: reads up to p_size bytes into p_buffer. Returns number of bytes
-     * read, or -1 on error or if the stream is at end (matching C contract).
-     *
-     * This implementation simply delegates to stream.readFn.
-     */
-    public static long opj_stream_read_data(Stream stream,
-                                            byte[] buffer,
-                                            long size,
-                                            OpjEventMgr eventMgr) {
-        if (stream == null || buffer == null || size < 0) {
-            return -1;
-        }
-        if ((stream.status & OPJ_STREAM_STATUS_INPUT) == 0) {
-            return -1;
-        }
-        if (stream.readFn == null) {
-            return -1;
-        }
-
-        long toRead = size;
-        if (toRead > buffer.length) {
-            toRead = buffer.length;
-        }
-
-        long n = stream.readFn.read(buffer, toRead, stream.userData);
-        if (n < 0) {
-            stream.status |= OPJ_STREAM_STATUS_ERROR;
-            opj_event_msg(eventMgr, EVT_ERROR, "Read error in opj_stream_read_data\n");
-            return -1;
-        } else if (n == 0) {
-            stream.status |= OPJ_STREAM_STATUS_END;
-            opj_event_msg(eventMgr, EVT_INFO, "Stream reached its end !\n");
-            return -1;
-        }
-
-        stream.byteOffset += n;
-        return n;
-    }
-
-    /**
-     * C: OPJ_SIZE_T opj_stream_write_data(opj_stream_private_t *p_stream,
-     *                                     const OPJ_BYTE *p_buffer,
-     *                                     OPJ_SIZE_T p_size,
-     *                                     opj_event_mgr_t *p_event_mgr);
-     *
-     * Java: writes up to p_size bytes from p_buffer. Returns number of bytes
-     * written or -1 on error.
-     */
-    public static long opj_stream_write_data(Stream stream,
-                                             byte[] buffer,
-                                             long size,
-                                             OpjEventMgr eventMgr) {
-        if (stream == null || buffer == null || size < 0) {
-            return -1;
-        }
-        if ((stream.status & OPJ_STREAM_STATUS_OUTPUT) == 0) {
-            return -1;
-        }
-        if (stream.writeFn == null) {
-            return -1;
-        }
-
-        long toWrite = size;
-        if (toWrite > buffer.length) {
-            toWrite = buffer.length;
-        }
-
-        long n = stream.writeFn.write(buffer, toWrite, stream.userData);
-        if (n < 0) {
-            stream.status |= OPJ_STREAM_STATUS_ERROR;
-            opj_event_msg(eventMgr, EVT_ERROR, "Write error in opj_stream_write_data\n");
-            return -1;
-        }
-
-        stream.byteOffset += n;
-        return n;
-    }
-
-    /**
-     * C: OPJ_OFF_T opj_stream_skip(opj_stream_private_t *p_stream,
-     *                              OPJ_OFF_T p_size,
-     *                              opj_event_mgr_t *p_event_mgr);
-     *
-     * Java: delegates to skipFn if present; otherwise performs a dumb
-     * skip by reading and discarding bytes.
-     */
-    public static long opj_stream_skip(Stream stream,
-                                       long size,
-                                       OpjEventMgr eventMgr) {
-        if (stream == null || size < 0) return -1;
-
-        // If the underlying source supports a native skip, use it.
-        if (stream.skipFn != null) {
-            long n = stream.skipFn.skip(size, stream.userData);
-            if (n < 0) {
-                stream.status |= OPJ_STREAM_STATUS_ERROR;
-                opj_event_msg(eventMgr, EVT_ERROR, "Skip error in opj_stream_skip\n");
-                return -1;
-            }
-            stream.byteOffset += n;
-            return n;
-        }
-
-        // Fallback: read and discard.
-        byte[] tmp = new byte[(int) Math.min(size, (stream.bufferSize > 0 ? stream.bufferSize : 4096))];
-        long remaining = size;
-        long totalSkipped = 0;
-
-        while (remaining > 0) {
-            long chunk = Math.min(tmp.length, remaining);
-            long n = opj_stream_read_data(stream, tmp, chunk, eventMgr);
-            if (n <= 0) break; // EOF or error
-            remaining -= n;
-            totalSkipped += n;
-        }
-
-        return totalSkipped > 0 ? totalSkipped : -1;
-    }
-
-    /**
-     * C: OPJ_OFF_T opj_stream_tell(opj_stream_private_t *p_stream);
-     */
-    public static long opj_stream_tell(Stream stream) {
-        if (stream == null) return -1;
-        return stream.byteOffset;
-    }
-
-    /**
-     * C: OPJ_SIZE_T opj_stream_get_number_byte_left(opj_stream_private_t* p_stream);
-     */
-    public static long opj_stream_get_number_byte_left(Stream stream) {
-        if (stream == null || stream.userDataLength <= 0) return -1;
-        long remaining = stream.userDataLength - stream.byteOffset;
-        return Math.max(remaining, 0L);
-    }
-
-    /**
-     * C: OPJ_BOOL opj_stream_flush(opj_stream_private_t *p_stream,
-     *                              opj_event_mgr_t *p_event_mgr);
-     *
-     * Simplified version: nothing to flush since we don't buffer writes.
-     */
-    public static boolean opj_stream_flush(Stream stream, OpjEventMgr eventMgr) {
-        if (stream == null) return false;
-        // If later you implement buffered writes, flush them here.
-        return true;
-    }
-
-    /* --------------------------------------------------------------------- */
-    /* User-data and callback setup (opj_stream_set_*)                       */
-    /* --------------------------------------------------------------------- */
-
-    public static void opj_stream_set_user_data(Stream stream,
-                                                Object data,
-                                                FreeUserDataFn freeFn) {
-        if (stream == null) return;
-        stream.userData = data;
-        stream.freeUserDataFn = freeFn;
-    }
-
-    public static void opj_stream_set_user_data_length(Stream stream,
-                                                       long dataLength) {
-        if (stream == null) return;
-        stream.userDataLength = dataLength;
-    }
-
-    public static void opj_stream_set_read_function(Stream stream, ReadFn fn) {
-        if (stream == null) return;
-        if ((stream.status & OPJ_STREAM_STATUS_INPUT) == 0) return;
-        stream.readFn = fn;
-    }
-
-    public static void opj_stream_set_write_function(Stream stream, WriteFn fn) {
-        if (stream == null) return;
-        if ((stream.status & OPJ_STREAM_STATUS_OUTPUT) == 0) return;
-        stream.writeFn = fn;
-    }
-
-    public static void opj_stream_set_skip_function(Stream stream, SkipFn fn) {
-        if (stream == null) return;
-        stream.skipFn = fn;
-    }
-
-    public static void opj_stream_set_seek_function(Stream stream, SeekFn fn) {
-        if (stream == null) return;
-        stream.seekFn = fn;
-    }
-
-    /* --------------------------------------------------------------------- */
-    /* Default skip/seek helpers (cio.h declares default_* prototypes)       */
-    /* --------------------------------------------------------------------- */
-
-    /**
-     * C equivalent: OPJ_OFF_T opj_stream_read_skip(opj_stream_private_t *p_stream,...)
-     *
-     * Here we just call opj_stream_skip() for input streams.
-     */
-    public static long opj_stream_read_skip(Stream stream,
-                                            long size,
-                                            OpjEventMgr eventMgr) {
-        if (stream == null ||
-                (stream.status & OPJ_STREAM_STATUS_INPUT) == 0) {
-            return -1;
-        }
-        return opj_stream_skip(stream, size, eventMgr);
-    }
-
-    /**
-     * C: OPJ_BOOL opj_stream_read_seek(opj_stream_private_t *p_stream, OPJ_OFF_T p_size,...)
-     */
-    public static boolean opj_stream_read_seek(Stream stream,
-                                               long offset,
-                                               OpjEventMgr eventMgr) {
-        if (stream == null ||
-                (stream.status & OPJ_STREAM_STATUS_INPUT) == 0) {
-            return false;
-        }
-        if (stream.seekFn == null) {
-            opj_event_msg(eventMgr, EVT_ERROR, "No seekFn set for read stream\n");
-            return false;
-        }
-        boolean ok = stream.seekFn.seek(offset, stream.userData);
-        if (ok) {
-            stream.byteOffset = offset;
-            stream.status &= ~OPJ_STREAM_STATUS_END;
-        } else {
-            stream.status |= OPJ_STREAM_STATUS_ERROR;
-        }
-        return ok;
-    }
-
-    /**
-     * C: OPJ_BOOL opj_stream_write_seek(opj_stream_private_t *p_stream, OPJ_OFF_T p_size,...)
-     */
-    public static boolean opj_stream_write_seek(Stream stream,
-                                                long offset,
-                                                OpjEventMgr eventMgr) {
-        if (stream == null ||
-                (stream.status & OPJ_STREAM_STATUS_OUTPUT) == 0) {
-            return false;
-        }
-        if (stream.seekFn == null) {
-            opj_event_msg(eventMgr, EVT_ERROR, "No seekFn set for write stream\n");
-            return false;
-        }
-        boolean ok = stream.seekFn.seek(offset, stream.userData);
-        if (ok) {
-            stream.byteOffset = offset;
-        } else {
-            stream.status |= OPJ_STREAM_STATUS_ERROR;
-        }
-        return ok;
-    }
-
-    /**
-     * C: OPJ_BOOL opj_stream_default_seek(OPJ_OFF_T p_nb_bytes, void * p_user_data);
-     *
-     * Fully generic "do nothing" implementation; useful as a placeholder if
-     * a seek function is required but not supported by the underlying source.
-     */
-    public static boolean opj_stream_default_seek(long nbBytes, Object userData) {
-        // Default: cannot seek, return false.
-        return false;
-    }
 }
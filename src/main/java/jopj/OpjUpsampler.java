@@ -0,0 +1,327 @@
+package jopj;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jopj.OpjIntMath.opj_int_ceildivpow2;
+
+/**
+ * Nearest-neighbour expansion of a component subsampled by dx / dy to
+ * the (reduced) reference grid, e.g. the chroma planes of 4:2:0 or 4:2:2
+ * images (C: upsample_image_components of opj_decompress). The decoder
+ * applies it while copying each tile row out, in the same pass as the
+ * narrowing or float conversion, so no subsampled plane is kept: a
+ * source row is expanded once and stored to every output row it covers.
+ *
+ * Columns go through a precomputed column map. For the common dx = 2,
+ * where every source sample is stored twice, the map is replaced by a
+ * pair loop that runs on vector shuffles when the jdk.incubator.vector
+ * module is present (--add-modules jdk.incubator.vector) and on scalar
+ * stores otherwise.
+ */
+final class OpjUpsampler {
+    /** Whether jdk.incubator.vector can be used; decided once. */
+    private static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    final int srcWidth;
+    final int srcHeight;
+    final int width;
+    final int height;
+    /**
+     * Geometry of the source component (dx, dy, x0, y0, w, h, factor)
+     * when created for an image component, whose own fields then describe
+     * the output; null otherwise.
+     */
+    final OpjImage.OpjImageComp source;
+    /** Source column of each output column. */
+    final int[] columns;
+    /** Source row of each output row. */
+    final int[] rows;
+    /**
+     * Inverses of columns and rows: source position s feeds output
+     * positions starts[s] .. starts[s + 1] - 1 (none if equal).
+     */
+    final int[] columnStarts;
+    final int[] rowStarts;
+    /**
+     * dx == 2: output columns lead .. pairEnd - 1 take every source sample
+     * twice; the columns outside, where the map is clamped to the
+     * component's edges, are gathered.
+     */
+    final boolean pairs;
+    final int lead;
+    final int pairEnd;
+
+    /** Expands comp of image to width x height samples of the (reduced) reference grid. */
+    OpjUpsampler(OpjImage image, OpjImage.OpjImageComp comp, int width, int height) {
+        this(comp.w, comp.h, comp.dx, comp.dy,
+                opj_int_ceildivpow2(image.x0, comp.factor), opj_int_ceildivpow2(image.y0, comp.factor),
+                opj_int_ceildivpow2(comp.x0, comp.factor), opj_int_ceildivpow2(comp.y0, comp.factor),
+                width, height, opj_upsampler_geometry(comp));
+    }
+
+    /**
+     * Output position (0, 0) is at (originX, originY) of the (reduced)
+     * reference grid; source sample (0, 0) is at (compOriginX,
+     * compOriginY) of the (reduced) component grid.
+     */
+    OpjUpsampler(int srcWidth, int srcHeight, int dx, int dy, int originX, int originY,
+                 int compOriginX, int compOriginY, int width, int height) {
+        this(srcWidth, srcHeight, dx, dy, originX, originY, compOriginX, compOriginY, width, height, null);
+    }
+
+    private OpjUpsampler(int srcWidth, int srcHeight, int dx, int dy, int originX, int originY,
+                         int compOriginX, int compOriginY, int width, int height,
+                         OpjImage.OpjImageComp source) {
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.width = width;
+        this.height = height;
+        this.source = source;
+        this.columns = map(width, originX, dx, compOriginX, srcWidth);
+        this.rows = map(height, originY, dy, compOriginY, srcHeight);
+        this.columnStarts = starts(columns, srcWidth);
+        this.rowStarts = starts(rows, srcHeight);
+        // The pairs start with the first full pair after the clamped (or
+        // odd) lead, and end where the map stops being "each sample twice"
+        int r = 1;
+        while (r < width && columns[r] == columns[r - 1]) {
+            ++r;
+        }
+        int l = r >= 2 && columns[r - 2] == columns[r - 1] ? r - 2 : r;
+        int e = l;
+        while (dx == 2 && e < width && columns[e] == columns[l] + ((e - l) >> 1)) {
+            ++e;
+        }
+        this.pairs = e - l >= 2;
+        this.lead = l;
+        this.pairEnd = e;
+    }
+
+    private static OpjImage.OpjImageComp opj_upsampler_geometry(OpjImage.OpjImageComp comp) {
+        OpjImage.OpjImageComp g = new OpjImage.OpjImageComp();
+        g.dx = comp.dx;
+        g.dy = comp.dy;
+        g.x0 = comp.x0;
+        g.y0 = comp.y0;
+        g.w = comp.w;
+        g.h = comp.h;
+        g.factor = comp.factor;
+        return g;
+    }
+
+    /** Source index (clamped) of every output position along one axis. */
+    private static int[] map(int size, int origin, int d, int compOrigin, int compSize) {
+        int[] m = new int[size];
+        for (int i = 0; i < size; ++i) {
+            int s = Math.floorDiv(origin + i, d) - compOrigin;
+            m[i] = Math.max(0, Math.min(compSize - 1, s));
+        }
+        return m;
+    }
+
+    private static int[] starts(int[] m, int srcSize) {
+        int[] st = new int[srcSize + 1];
+        int i = 0;
+        for (int s = 0; s <= srcSize; ++s) {
+            while (i < m.length && m[i] < s) {
+                ++i;
+            }
+            st[s] = i;
+        }
+        st[srcSize] = m.length;
+        return st;
+    }
+
+    /**
+     * Expands source columns x .. x + n of one row, whose column x is at
+     * src[srcOffset], into output columns columnStarts[x] ..
+     * columnStarts[x + n], stored from dst[dstOffset] on. Returns the
+     * number of output samples stored.
+     */
+    int expand(int[] src, int srcOffset, int x, int n, int[] dst, int dstOffset) {
+        return expand(src, srcOffset, x, n, dst, dstOffset, VECTOR);
+    }
+
+    int expand(int[] src, int srcOffset, int x, int n, int[] dst, int dstOffset, boolean vector) {
+        int o0 = columnStarts[x];
+        int o1 = columnStarts[x + n];
+        int s = srcOffset - x;
+        int d = dstOffset - o0;
+        int o = o0;
+        if (pairs) {
+            int pe = Math.min(o1, pairEnd);
+            for (; o < pe && (o < lead || ((o - lead) & 1) != 0); ++o) {
+                dst[d + o] = src[s + columns[o]];
+            }
+            int k = (pe - o) >> 1;
+            if (k > 0) {
+                int p = s + columns[o];
+                int i = vector ? Vectors.pairs(src, p, dst, d + o, k) : 0;
+                for (; i < k; ++i) {
+                    int v = src[p + i];
+                    dst[d + o + 2 * i] = v;
+                    dst[d + o + 2 * i + 1] = v;
+                }
+                o += 2 * k;
+            }
+        }
+        for (; o < o1; ++o) {
+            dst[d + o] = src[s + columns[o]];
+        }
+        return o1 - o0;
+    }
+
+    /** expand for float rows. */
+    int expand(float[] src, int srcOffset, int x, int n, float[] dst, int dstOffset) {
+        return expand(src, srcOffset, x, n, dst, dstOffset, VECTOR);
+    }
+
+    int expand(float[] src, int srcOffset, int x, int n, float[] dst, int dstOffset, boolean vector) {
+        int o0 = columnStarts[x];
+        int o1 = columnStarts[x + n];
+        int s = srcOffset - x;
+        int d = dstOffset - o0;
+        int o = o0;
+        if (pairs) {
+            int pe = Math.min(o1, pairEnd);
+            for (; o < pe && (o < lead || ((o - lead) & 1) != 0); ++o) {
+                dst[d + o] = src[s + columns[o]];
+            }
+            int k = (pe - o) >> 1;
+            if (k > 0) {
+                int p = s + columns[o];
+                int i = vector ? Vectors.pairs(src, p, dst, d + o, k) : 0;
+                for (; i < k; ++i) {
+                    float v = src[p + i];
+                    dst[d + o + 2 * i] = v;
+                    dst[d + o + 2 * i + 1] = v;
+                }
+                o += 2 * k;
+            }
+        }
+        for (; o < o1; ++o) {
+            dst[d + o] = src[s + columns[o]];
+        }
+        return o1 - o0;
+    }
+
+    /**
+     * Expands the whole plane of src (srcWidth x srcHeight samples, rows
+     * srcWidth apart) into the plane of dst (width x height), both of one
+     * type: int, short, byte, off-heap or float.
+     */
+    void run(OpjImage.OpjImageComp src, OpjImage.OpjImageComp dst) {
+        if (src.floatData != null) {
+            float[] in = src.floatData;
+            float[] out = dst.floatData;
+            for (int y = 0; y < srcHeight; ++y) {
+                int o = rowStarts[y] * width;
+                if (rowStarts[y] == rowStarts[y + 1]) {
+                    continue;
+                }
+                expand(in, y * srcWidth, 0, srcWidth, out, o);
+                for (int oy = rowStarts[y] + 1; oy < rowStarts[y + 1]; ++oy) {
+                    System.arraycopy(out, o, out, oy * width, width);
+                }
+            }
+            return;
+        }
+        // Other planes through int rows, widened and narrowed as stored
+        int[] in = src.data != null ? src.data : new int[srcWidth];
+        int[] row = new int[width];
+        for (int y = 0; y < srcHeight; ++y) {
+            if (rowStarts[y] == rowStarts[y + 1]) {
+                continue;
+            }
+            int s = 0;
+            if (src.data != null) {
+                s = y * srcWidth;
+            } else {
+                OpjImage.opj_image_comp_get_row(src, (long) y * srcWidth, in, 0, srcWidth);
+            }
+            expand(in, s, 0, srcWidth, row, 0);
+            for (int oy = rowStarts[y]; oy < rowStarts[y + 1]; ++oy) {
+                OpjImage.opj_image_comp_put_row(dst, (long) oy * width, row, 0, width);
+            }
+        }
+    }
+
+    /**
+     * Returns comp of image expanded to width x height samples of the
+     * (reduced) reference grid, as a new component with a plane of the
+     * same type (from the buffer pool, or off-heap). comp is left as is.
+     */
+    static OpjImage.OpjImageComp opj_upsample_component(OpjImage image, OpjImage.OpjImageComp comp,
+                                                        int width, int height) {
+        OpjUpsampler up = new OpjUpsampler(image, comp, width, height);
+        OpjImage.OpjImageComp out = new OpjImage.OpjImageComp();
+        out.dx = 1;
+        out.dy = 1;
+        out.x0 = image.x0;
+        out.y0 = image.y0;
+        out.w = width;
+        out.h = height;
+        out.prec = comp.prec;
+        out.bpp = comp.bpp;
+        out.sgnd = comp.sgnd;
+        out.factor = comp.factor;
+        out.resnoDecoded = comp.resnoDecoded;
+        if (comp.floatData != null) {
+            out.floatData = OpjImage.opj_image_data_alloc_float(width, height, false);
+        } else if (comp.offHeapData != null) {
+            out.offHeapData = OpjImage.opj_image_data_alloc_offheap(width, height,
+                    comp.offHeapData.bytesPerSample(), comp.sgnd);
+        } else if (comp.byteData != null) {
+            out.byteData = OpjImage.opj_image_data_alloc_byte(width, height, false);
+        } else if (comp.shortData != null) {
+            out.shortData = OpjImage.opj_image_data_alloc_short(width, height, false);
+        } else {
+            out.data = OpjImage.opj_image_data_alloc_int(width, height, false);
+        }
+        up.run(comp, out);
+        return out;
+    }
+
+    /**
+     * The dx = 2 pair loop on vector shuffles: each source vector is
+     * stored as its lower half, every lane twice, then its upper half.
+     * Only loaded when the module is present.
+     */
+    private static final class Vectors {
+        static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+        static final VectorShuffle<Integer> INTS_LOW = VectorShuffle.fromOp(INTS, i -> i >> 1);
+        static final VectorShuffle<Integer> INTS_HIGH = VectorShuffle.fromOp(INTS, i -> (i + INTS.length()) >> 1);
+        static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+        static final VectorShuffle<Float> FLOATS_LOW = VectorShuffle.fromOp(FLOATS, i -> i >> 1);
+        static final VectorShuffle<Float> FLOATS_HIGH = VectorShuffle.fromOp(FLOATS, i -> (i + FLOATS.length()) >> 1);
+
+        /**
+         * Stores src[s + i] at dst[d + 2i] and dst[d + 2i + 1] for the
+         * leading i < n that fill whole vectors; returns how many.
+         */
+        static int pairs(int[] src, int s, int[] dst, int d, int n) {
+            int l = INTS.length();
+            int i = 0;
+            for (; i + l <= n; i += l) {
+                IntVector v = IntVector.fromArray(INTS, src, s + i);
+                v.rearrange(INTS_LOW).intoArray(dst, d + 2 * i);
+                v.rearrange(INTS_HIGH).intoArray(dst, d + 2 * i + l);
+            }
+            return i;
+        }
+
+        static int pairs(float[] src, int s, float[] dst, int d, int n) {
+            int l = FLOATS.length();
+            int i = 0;
+            for (; i + l <= n; i += l) {
+                FloatVector v = FloatVector.fromArray(FLOATS, src, s + i);
+                v.rearrange(FLOATS_LOW).intoArray(dst, d + 2 * i);
+                v.rearrange(FLOATS_HIGH).intoArray(dst, d + 2 * i + l);
+            }
+            return i;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package jopj;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static jopj.OpjIntMath.opj_int_ceildiv;
+import static jopj.OpjIntMath.opj_int_ceildivpow2;
+import static jopj.OpjIntMath.opj_int_floordivpow2;
+
+/**
+ * Java port of pi.c / pi.h (decoder side)
+ *
+ * Packet iteration. Instead of the C nested-loop iterator, which recomputes
+ * resolution and precinct bounds for every packet, the packet order of a
+ * tile is built once into an OpjPiPlan: a flat int[] of
+ * (layno, resno, compno, precno) tuples that tier-2 walks linearly.
+ *
+ * The order only depends on the progression parameters and on the
+ * precinct layout of the tile, so plans are cached in an OpjPiPlanCache
+ * keyed on exactly that; all tiles with the same geometry share one plan.
+ */
+public final class Pi {
+
+    private Pi() {
+    }
+
+    /** Offsets of the fields of one packet inside OpjPiPlan.packets. */
+    public static final int PI_LAYNO  = 0;
+    public static final int PI_RESNO  = 1;
+    public static final int PI_COMPNO = 2;
+    public static final int PI_PRECNO = 3;
+    public static final int PI_STRIDE = 4;
+
+    /** Beyond this many distinct geometries the cache starts over. */
+    private static final int OPJ_PI_PLAN_CACHE_MAX = 256;
+
+    /**
+     * Packet decoding order of one tile.
+     */
+    public static final class OpjPiPlan {
+        /** Packets in decoding order, PI_STRIDE ints each. */
+        public final int[] packets;
+        public final int numpackets;
+
+        OpjPiPlan(int[] packets, int numpackets) {
+            this.packets = packets;
+            this.numpackets = numpackets;
+        }
+    }
+
+    /**
+     * Plans shared between tiles (and threads) of a codec.
+     */
+    public static final class OpjPiPlanCache {
+        final ConcurrentHashMap<PlanKey, OpjPiPlan> plans = new ConcurrentHashMap<>();
+    }
+
+    public static OpjPiPlanCache opj_pi_create_plan_cache() {
+        return new OpjPiPlanCache();
+    }
+
+    /**
+     * Returns the packet order of tile tileno, building it on first use.
+     *
+     * @param cache may be null, in which case the plan is always built
+     */
+    public static OpjPiPlan opj_pi_get_decode_plan(OpjImage image,
+                                                   OpjJ2k.OpjCp cp,
+                                                   int tileno,
+                                                   OpjPiPlanCache cache) {
+        int[] signature = opj_pi_geometry_signature(image, cp, tileno);
+        if (cache == null) {
+            return opj_pi_build_plan(signature);
+        }
+        PlanKey key = new PlanKey(signature);
+        OpjPiPlan plan = cache.plans.get(key);
+        if (plan == null) {
+            if (cache.plans.size() >= OPJ_PI_PLAN_CACHE_MAX) {
+                cache.plans.clear();
+            }
+            plan = cache.plans.computeIfAbsent(key, k -> opj_pi_build_plan(k.signature));
+        }
+        return plan;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Geometry signature                                                 */
+    /* ------------------------------------------------------------------ */
+
+    /*
+     * The signature holds every input of opj_pi_build_plan:
+     *
+     *   numlayers, numcomps, maxres, numpocs, then 6 ints per progression
+     *   (prg, layno1, resno0, resno1, compno0, compno1), then per component
+     *   numresolutions followed by 8 ints per resolution:
+     *   pw, ph, relX0, relY0, relX1, relY1, periodX, periodY.
+     *
+     * relX0 / relY0 are the reference-grid distances from the tile origin
+     * to the position at which the first precinct column / row is visited
+     * (non-zero only when the resolution is precinct-aligned but the tile
+     * origin is not, B.12.1.3), relX1 / relY1 the same for the second
+     * column / row and periodX / periodY the precinct size on the
+     * reference grid. They are only recorded for position-driven
+     * progressions, and relX1 / periodX only when there is more than one
+     * precinct in that direction, so tiles that differ merely by their
+     * offset still share a plan.
+     */
+    private static final int SIG_HEADER = 4;
+    private static final int SIG_PER_PROG = 6;
+    private static final int SIG_PER_RES = 8;
+
+    private static int[] opj_pi_geometry_signature(OpjImage image,
+                                                   OpjJ2k.OpjCp cp,
+                                                   int tileno) {
+        OpjJ2k.OpjTcp tcp = cp.tcps[tileno];
+        int numcomps = image.numcomps;
+
+        int p = tileno % cp.tw;
+        int q = tileno / cp.tw;
+        int tx0 = Math.max(cp.tx0 + p * cp.tdx, image.x0);
+        int ty0 = Math.max(cp.ty0 + q * cp.tdy, image.y0);
+        int tx1 = (int) Math.min((long) cp.tx0 + (long) (p + 1) * cp.tdx, image.x1);
+        int ty1 = (int) Math.min((long) cp.ty0 + (long) (q + 1) * cp.tdy, image.y1);
+
+        int maxres = 0;
+        int size = SIG_HEADER + numcomps;
+        for (int compno = 0; compno < numcomps; ++compno) {
+            int numres = tcp.tccps[compno].numresolutions;
+            maxres = Math.max(maxres, numres);
+            size += numres * SIG_PER_RES;
+        }
+
+        int numprogs = tcp.poc ? tcp.numpocs + 1 : 1;
+        size += numprogs * SIG_PER_PROG;
+        int[] sig = new int[size];
+
+        int k = 0;
+        sig[k++] = tcp.numlayers;
+        sig[k++] = numcomps;
+        sig[k++] = maxres;
+        sig[k++] = numprogs;
+
+        boolean positional = false;
+        for (int pino = 0; pino < numprogs; ++pino) {
+            OpjJ2k.OpjProgOrder prg;
+            if (tcp.poc) {
+                OpjJ2k.OpjPoc poc = tcp.pocs[pino];
+                prg = poc.prg;
+                sig[k++] = prg.ordinal();
+                sig[k++] = Math.min(poc.layno1, tcp.numlayers);
+                sig[k++] = poc.resno0;
+                sig[k++] = Math.min(poc.resno1, maxres);
+                sig[k++] = poc.compno0;
+                sig[k++] = Math.min(poc.compno1, numcomps);
+            } else {
+                prg = tcp.prg;
+                sig[k++] = prg.ordinal();
+                sig[k++] = tcp.numlayers;
+                sig[k++] = 0;
+                sig[k++] = maxres;
+                sig[k++] = 0;
+                sig[k++] = numcomps;
+            }
+            positional |= prg == OpjJ2k.OpjProgOrder.RPCL
+                    || prg == OpjJ2k.OpjProgOrder.PCRL
+                    || prg == OpjJ2k.OpjProgOrder.CPRL;
+        }
+
+        for (int compno = 0; compno < numcomps; ++compno) {
+            OpjImage.OpjImageComp comp = image.comps[compno];
+            OpjJ2k.OpjTccp tccp = tcp.tccps[compno];
+
+            int tcx0 = opj_int_ceildiv(tx0, comp.dx);
+            int tcy0 = opj_int_ceildiv(ty0, comp.dy);
+            int tcx1 = opj_int_ceildiv(tx1, comp.dx);
+            int tcy1 = opj_int_ceildiv(ty1, comp.dy);
+
+            sig[k++] = tccp.numresolutions;
+            for (int resno = 0; resno < tccp.numresolutions; ++resno) {
+                int levelno = tccp.numresolutions - 1 - resno;
+                int pdx = tccp.prcw[resno];
+                int pdy = tccp.prch[resno];
+
+                int rx0 = opj_int_ceildivpow2(tcx0, levelno);
+                int ry0 = opj_int_ceildivpow2(tcy0, levelno);
+                int rx1 = opj_int_ceildivpow2(tcx1, levelno);
+                int ry1 = opj_int_ceildivpow2(tcy1, levelno);
+
+                int px0 = opj_int_floordivpow2(rx0, pdx) << pdx;
+                int py0 = opj_int_floordivpow2(ry0, pdy) << pdy;
+                long px1 = (long) opj_int_ceildivpow2(rx1, pdx) << pdx;
+                long py1 = (long) opj_int_ceildivpow2(ry1, pdy) << pdy;
+
+                int pw = (rx0 == rx1) ? 0 : (int) ((px1 - px0) >> pdx);
+                int ph = (ry0 == ry1) ? 0 : (int) ((py1 - py0) >> pdy);
+
+                int relX0 = 0, relY0 = 0, relX1 = 0, relY1 = 0, periodX = 0, periodY = 0;
+                if (positional && pw > 0 && rx0 == px0) {
+                    relX0 = (int) (((long) px0 * comp.dx << levelno) - tx0);
+                }
+                if (positional && ph > 0 && ry0 == py0) {
+                    relY0 = (int) (((long) py0 * comp.dy << levelno) - ty0);
+                }
+                if (positional && pw > 1) {
+                    relX1 = (int) ((((long) px0 + (1L << pdx)) * comp.dx << levelno) - tx0);
+                    periodX = (int) ((long) comp.dx << (pdx + levelno));
+                }
+                if (positional && ph > 1) {
+                    relY1 = (int) ((((long) py0 + (1L << pdy)) * comp.dy << levelno) - ty0);
+                    periodY = (int) ((long) comp.dy << (pdy + levelno));
+                }
+                sig[k++] = pw;
+                sig[k++] = ph;
+                sig[k++] = relX0;
+                sig[k++] = relY0;
+                sig[k++] = relX1;
+                sig[k++] = relY1;
+                sig[k++] = periodX;
+                sig[k++] = periodY;
+            }
+        }
+        return sig;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Plan construction                                                  */
+    /* ------------------------------------------------------------------ */
+
+    private static OpjPiPlan opj_pi_build_plan(int[] sig) {
+        final int numlayers = sig[0];
+        final int numcomps = sig[1];
+        final int numprogs = sig[3];
+
+        // Locate the per-component / per-resolution descriptors
+        int k = SIG_HEADER + numprogs * SIG_PER_PROG;
+        int[] numres = new int[numcomps];
+        int[] resBase = new int[numcomps];
+        int[] precBase = new int[numcomps + 1];
+        int totalPrec = 0;
+        for (int compno = 0; compno < numcomps; ++compno) {
+            numres[compno] = sig[k++];
+            resBase[compno] = k;
+            k += numres[compno] * SIG_PER_RES;
+        }
+        // precOffset[compno][resno]: first flat precinct index of that resolution
+        int[][] precOffset = new int[numcomps][];
+        for (int compno = 0; compno < numcomps; ++compno) {
+            precOffset[compno] = new int[numres[compno]];
+            for (int resno = 0; resno < numres[compno]; ++resno) {
+                int d = resBase[compno] + resno * SIG_PER_RES;
+                precOffset[compno][resno] = totalPrec;
+                totalPrec += sig[d] * sig[d + 1];
+            }
+            precBase[compno + 1] = totalPrec;
+        }
+
+        boolean[] include = new boolean[Math.max(1, numlayers * totalPrec)];
+        int[] packets = new int[Math.max(1, numlayers * totalPrec) * PI_STRIDE];
+        int n = 0;
+
+        for (int pino = 0; pino < numprogs; ++pino) {
+            int pk = SIG_HEADER + pino * SIG_PER_PROG;
+            OpjJ2k.OpjProgOrder prg = OpjJ2k.OpjProgOrder.values()[sig[pk]];
+            int layno1 = sig[pk + 1];
+            int resno0 = sig[pk + 2];
+            int resno1 = sig[pk + 3];
+            int compno0 = sig[pk + 4];
+            int compno1 = sig[pk + 5];
+
+            switch (prg) {
+                case LRCP:
+                    for (int layno = 0; layno < layno1; ++layno) {
+                        for (int resno = resno0; resno < resno1; ++resno) {
+                            for (int compno = compno0; compno < compno1; ++compno) {
+                                if (resno >= numres[compno]) continue;
+                                int d = resBase[compno] + resno * SIG_PER_RES;
+                                int numprec = sig[d] * sig[d + 1];
+                                for (int precno = 0; precno < numprec; ++precno) {
+                                    n = opj_pi_emit(packets, n, include, totalPrec,
+                                            precOffset, layno, resno, compno, precno);
+                                }
+                            }
+                        }
+                    }
+                    break;
+                case RLCP:
+                    for (int resno = resno0; resno < resno1; ++resno) {
+                        for (int layno = 0; layno < layno1; ++layno) {
+                            for (int compno = compno0; compno < compno1; ++compno) {
+                                if (resno >= numres[compno]) continue;
+                                int d = resBase[compno] + resno * SIG_PER_RES;
+                                int numprec = sig[d] * sig[d + 1];
+                                for (int precno = 0; precno < numprec; ++precno) {
+                                    n = opj_pi_emit(packets, n, include, totalPrec,
+                                            precOffset, layno, resno, compno, precno);
+                                }
+                            }
+                        }
+                    }
+                    break;
+                default: {
+                    // Position-driven orders: sort (comp, res, precinct) by the
+                    // reference-grid position at which B.12.1.3 visits them.
+                    int count = 0;
+                    for (int compno = compno0; compno < compno1; ++compno) {
+                        for (int resno = resno0; resno < Math.min(resno1, numres[compno]); ++resno) {
+                            int d = resBase[compno] + resno * SIG_PER_RES;
+                            count += sig[d] * sig[d + 1];
+                        }
+                    }
+                    // Each entry: y, x, compno, resno, precno
+                    int[][] visits = new int[count][];
+                    int v = 0;
+                    for (int compno = compno0; compno < compno1; ++compno) {
+                        for (int resno = resno0; resno < Math.min(resno1, numres[compno]); ++resno) {
+                            int d = resBase[compno] + resno * SIG_PER_RES;
+                            int pw = sig[d];
+                            int ph = sig[d + 1];
+                            for (int precno = 0; precno < pw * ph; ++precno) {
+                                int prci = precno % pw;
+                                int prcj = precno / pw;
+                                int x = prci == 0 ? sig[d + 2] : sig[d + 4] + (prci - 1) * sig[d + 6];
+                                int y = prcj == 0 ? sig[d + 3] : sig[d + 5] + (prcj - 1) * sig[d + 7];
+                                visits[v++] = new int[] {y, x, compno, resno, precno};
+                            }
+                        }
+                    }
+                    Arrays.sort(visits, opj_pi_visit_order(prg));
+                    for (int[] visit : visits) {
+                        for (int layno = 0; layno < layno1; ++layno) {
+                            n = opj_pi_emit(packets, n, include, totalPrec,
+                                    precOffset, layno, visit[3], visit[2], visit[4]);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+        return new OpjPiPlan(n == packets.length ? packets : Arrays.copyOf(packets, n), n / PI_STRIDE);
+    }
+
+    private static int opj_pi_emit(int[] packets, int n, boolean[] include, int totalPrec,
+                                   int[][] precOffset,
+                                   int layno, int resno, int compno, int precno) {
+        int index = layno * totalPrec + precOffset[compno][resno] + precno;
+        if (include[index]) {
+            return n;
+        }
+        include[index] = true;
+        packets[n + PI_LAYNO] = layno;
+        packets[n + PI_RESNO] = resno;
+        packets[n + PI_COMPNO] = compno;
+        packets[n + PI_PRECNO] = precno;
+        return n + PI_STRIDE;
+    }
+
+    private static Comparator<int[]> opj_pi_visit_order(OpjJ2k.OpjProgOrder prg) {
+        // visit = {y, x, compno, resno, precno}
+        Comparator<int[]> byPosition = Comparator.<int[]>comparingInt(a -> a[0]).thenComparingInt(a -> a[1]);
+        switch (prg) {
+            case RPCL:
+                return Comparator.<int[]>comparingInt(a -> a[3]).thenComparing(byPosition)
+                        .thenComparingInt(a -> a[2]);
+            case PCRL:
+                return byPosition.thenComparingInt(a -> a[2]).thenComparingInt(a -> a[3]);
+            case CPRL:
+                return Comparator.<int[]>comparingInt(a -> a[2]).thenComparing(byPosition)
+                        .thenComparingInt(a -> a[3]);
+            default:
+                throw new IllegalArgumentException("Not a position-driven progression: " + prg);
+        }
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Cache key                                                          */
+    /* ------------------------------------------------------------------ */
+
+    private static final class PlanKey {
+        final int[] signature;
+        final int hash;
+
+        PlanKey(int[] signature) {
+            this.signature = signature;
+            this.hash = Arrays.hashCode(signature);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PlanKey other
+                    && hash == other.hash
+                    && Arrays.equals(signature, other.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
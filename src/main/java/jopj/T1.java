@@ -1,27 +1,103 @@
 package jopj;
 
+import java.util.Arrays;
+
 /**
- * Java skeleton for t1.c / t1.h
+ * Java port of t1.c / t1.h (decoder side)
+ *
+ * Tier-1 decoder for JPEG2000 (code-block level): the significance
+ * propagation, magnitude refinement and cleanup passes of ISO 15444-1
+ * Annex D over the MQ (or raw, in bypass mode) decoder of jopj.Mqc.
  *
- * Tier-1 coder / decoder for JPEG2000 (codeblock-level).
+ * The flags follow OpenJPEG 2.1: one word per sample with the state of
+ * its eight neighbours, in a (w + 2) x (h + 2) array whose border keeps
+ * the edge samples from needing bounds checks. The context lookup tables
+ * of t1_luts.h are built once, as t1_generate_luts.c does.
  */
 public final class T1 {
 
     private T1() {
     }
 
+    /* Flags (C: T1_SIG_*, T1_SGN_*, ...) */
+    static final int T1_SIG_NE = 0x0001;
+    static final int T1_SIG_SE = 0x0002;
+    static final int T1_SIG_SW = 0x0004;
+    static final int T1_SIG_NW = 0x0008;
+    static final int T1_SIG_N = 0x0010;
+    static final int T1_SIG_E = 0x0020;
+    static final int T1_SIG_S = 0x0040;
+    static final int T1_SIG_W = 0x0080;
+    static final int T1_SIG_OTH = T1_SIG_N | T1_SIG_NE | T1_SIG_E | T1_SIG_SE
+            | T1_SIG_S | T1_SIG_SW | T1_SIG_W | T1_SIG_NW;
+    static final int T1_SIG_PRIM = T1_SIG_N | T1_SIG_E | T1_SIG_S | T1_SIG_W;
+
+    static final int T1_SGN_N = 0x0100;
+    static final int T1_SGN_E = 0x0200;
+    static final int T1_SGN_S = 0x0400;
+    static final int T1_SGN_W = 0x0800;
+    static final int T1_SGN = T1_SGN_N | T1_SGN_E | T1_SGN_S | T1_SGN_W;
+
+    /** The sample itself is significant. */
+    static final int T1_SIG = 0x1000;
+    /** The sample has been refined at least once. */
+    static final int T1_REFINE = 0x2000;
+    /** The sample was visited by the significance pass of this bit-plane. */
+    static final int T1_VISIT = 0x4000;
+
+    /* Contexts */
+    static final int T1_NUMCTXS_ZC = 9;
+    static final int T1_NUMCTXS_SC = 5;
+    static final int T1_NUMCTXS_MAG = 3;
+    static final int T1_NUMCTXS_AGG = 1;
+    static final int T1_NUMCTXS_UNI = 1;
+
+    static final int T1_CTXNO_ZC = 0;
+    static final int T1_CTXNO_SC = T1_CTXNO_ZC + T1_NUMCTXS_ZC;
+    static final int T1_CTXNO_MAG = T1_CTXNO_SC + T1_NUMCTXS_SC;
+    static final int T1_CTXNO_AGG = T1_CTXNO_MAG + T1_NUMCTXS_MAG;
+    static final int T1_CTXNO_UNI = T1_CTXNO_AGG + T1_NUMCTXS_AGG;
+    static final int T1_NUMCTXS = T1_CTXNO_UNI + T1_NUMCTXS_UNI;
+
+    /** Normal coding using the MQ coder. */
+    static final byte T1_TYPE_MQ = 0;
+    /** Bypass (lazy) mode: raw bits. */
+    static final byte T1_TYPE_RAW = 1;
+
+    /* C: lut_ctxno_zc (4 orientations x 256), lut_ctxno_sc, lut_spb */
+    private static final byte[] LUT_CTXNO_ZC = new byte[4 * 256];
+    private static final byte[] LUT_CTXNO_SC = new byte[256];
+    private static final byte[] LUT_SPB = new byte[256];
+
+    static {
+        for (int orient = 0; orient < 4; ++orient) {
+            for (int f = 0; f < 256; ++f) {
+                LUT_CTXNO_ZC[(orient << 8) | f] = (byte) t1_init_ctxno_zc(f, orient);
+            }
+        }
+        for (int i = 0; i < 256; ++i) {
+            LUT_CTXNO_SC[i] = (byte) t1_init_ctxno_sc(i << 4);
+            LUT_SPB[i] = (byte) t1_init_spb(i << 4);
+        }
+    }
+
     /**
      * Java equivalent of opj_t1_t.
-     * Extend with fields like:
-     *  - codeblock size
-     *  - coefficient buffers
-     *  - MQ coder state, etc.
      */
     public static final class OpjT1 {
         public boolean isEncoder;
-        // e.g. int width, height;
-        // int[] coeffs;
-        // jopj.Mqc.OpjMqc mqc;
+        /** MQ / raw decoder of the current segment. */
+        public final Mqc.OpjMqc mqc = new Mqc.OpjMqc();
+        /** Decoded coefficients of the current code-block, w * h. */
+        public int[] data;
+        /** Flags of the current code-block, (w + 2) * (h + 2). */
+        public int[] flags;
+        public int w;
+        public int h;
+        public int flagsStride;
+        /** Concatenation of the chunks of a code-block spread over several packets. */
+        public byte[] cblkDataBuffer;
+        public int cblkDataBufferSize;
     }
 
     /**
@@ -40,6 +116,517 @@ public final class T1 {
         // Nothing special in pure Java; add cleanup if you allocate native resources.
     }
 
+    /* ------------------------------------------------------------------ */
+    /* Lookup tables (t1_generate_luts.c)                                 */
+    /* ------------------------------------------------------------------ */
+
+    /** Zero coding context of a sample with neighbourhood f in band orient (Table D.1). */
+    private static int t1_init_ctxno_zc(int f, int orient) {
+        int h = ((f & T1_SIG_W) != 0 ? 1 : 0) + ((f & T1_SIG_E) != 0 ? 1 : 0);
+        int v = ((f & T1_SIG_N) != 0 ? 1 : 0) + ((f & T1_SIG_S) != 0 ? 1 : 0);
+        int d = ((f & T1_SIG_NW) != 0 ? 1 : 0) + ((f & T1_SIG_NE) != 0 ? 1 : 0)
+                + ((f & T1_SIG_SE) != 0 ? 1 : 0) + ((f & T1_SIG_SW) != 0 ? 1 : 0);
+        int n;
+
+        if (orient == 3) {
+            int hv = h + v;
+            if (d == 0) {
+                n = hv == 0 ? 0 : hv == 1 ? 1 : 2;
+            } else if (d == 1) {
+                n = hv == 0 ? 3 : hv == 1 ? 4 : 5;
+            } else if (d == 2) {
+                n = hv == 0 ? 6 : 7;
+            } else {
+                n = 8;
+            }
+        } else {
+            // HL (horizontally high-pass): h and v swap roles
+            if (orient == 1) {
+                int t = h;
+                h = v;
+                v = t;
+            }
+            if (h == 0) {
+                if (v == 0) {
+                    n = d == 0 ? 0 : d == 1 ? 1 : 2;
+                } else {
+                    n = v == 1 ? 3 : 4;
+                }
+            } else if (h == 1) {
+                n = v != 0 ? 7 : d == 0 ? 5 : 6;
+            } else {
+                n = 8;
+            }
+        }
+        return T1_CTXNO_ZC + n;
+    }
+
+    /** Horizontal sign contribution of the neighbourhood f, in -1..1. */
+    private static int t1_sign_contribution_h(int f) {
+        int pos = ((f & (T1_SIG_E | T1_SGN_E)) == T1_SIG_E ? 1 : 0)
+                + ((f & (T1_SIG_W | T1_SGN_W)) == T1_SIG_W ? 1 : 0);
+        int neg = ((f & (T1_SIG_E | T1_SGN_E)) == (T1_SIG_E | T1_SGN_E) ? 1 : 0)
+                + ((f & (T1_SIG_W | T1_SGN_W)) == (T1_SIG_W | T1_SGN_W) ? 1 : 0);
+        return Math.min(pos, 1) - Math.min(neg, 1);
+    }
+
+    /** Vertical sign contribution of the neighbourhood f, in -1..1. */
+    private static int t1_sign_contribution_v(int f) {
+        int pos = ((f & (T1_SIG_N | T1_SGN_N)) == T1_SIG_N ? 1 : 0)
+                + ((f & (T1_SIG_S | T1_SGN_S)) == T1_SIG_S ? 1 : 0);
+        int neg = ((f & (T1_SIG_N | T1_SGN_N)) == (T1_SIG_N | T1_SGN_N) ? 1 : 0)
+                + ((f & (T1_SIG_S | T1_SGN_S)) == (T1_SIG_S | T1_SGN_S) ? 1 : 0);
+        return Math.min(pos, 1) - Math.min(neg, 1);
+    }
+
+    /** Sign coding context (Table D.3). */
+    private static int t1_init_ctxno_sc(int f) {
+        int hc = t1_sign_contribution_h(f);
+        int vc = t1_sign_contribution_v(f);
+        if (hc < 0) {
+            hc = -hc;
+            vc = -vc;
+        }
+        int n;
+        if (hc == 0) {
+            n = vc == 0 ? 0 : 1;
+        } else {
+            n = vc == -1 ? 2 : vc == 0 ? 3 : 4;
+        }
+        return T1_CTXNO_SC + n;
+    }
+
+    /** Sign prediction bit (Table D.3, XORbit). */
+    private static int t1_init_spb(int f) {
+        int hc = t1_sign_contribution_h(f);
+        int vc = t1_sign_contribution_v(f);
+        if (hc == 0 && vc == 0) {
+            return 0;
+        }
+        return (hc > 0 || (hc == 0 && vc > 0)) ? 0 : 1;
+    }
+
+    private static int opj_t1_getctxno_sc(int f) {
+        return LUT_CTXNO_SC[(f & (T1_SIG_PRIM | T1_SGN)) >> 4];
+    }
+
+    private static int opj_t1_getspb(int f) {
+        return LUT_SPB[(f & (T1_SIG_PRIM | T1_SGN)) >> 4];
+    }
+
+    private static int opj_t1_getctxno_mag(int f) {
+        if ((f & T1_REFINE) != 0) {
+            return T1_CTXNO_MAG + 2;
+        }
+        return (f & T1_SIG_OTH) != 0 ? T1_CTXNO_MAG + 1 : T1_CTXNO_MAG;
+    }
+
+    /**
+     * C: void opj_t1_decode_cblks(opj_tcd_t* tcd, volatile OPJ_BOOL* pret,
+     *                             opj_tcd_tilecomp_t* tilec, opj_tccp_t* tccp, ...);
+     *
+     * Decodes the code-blocks of the first tilec.minimumNumResolutions
+     * resolutions into tilec.data (5-3) or tilec.dataReal (9-7), already
+     * dequantised. Code-blocks of resolutions discarded by the reduce
+     * factor are never decoded. Code-blocks without any data are written
+     * as zeros, so every sample of those resolutions is written and
+     * tilec's buffer need not be cleared beforehand.
+     */
+    public static boolean opj_t1_decode_cblks(OpjT1 t1,
+                                              Tcd.OpjTcdTilecomp tilec,
+                                              OpjJ2k.OpjTccp tccp,
+                                              Cio.OpjEventMgr eventMgr,
+                                              boolean checkPterm) {
+        Tcd.OpjTcdResolution top = tilec.resolutions[tilec.minimumNumResolutions - 1];
+        final int tileW = top.x1 - top.x0;
+
+        for (int resno = 0; resno < tilec.minimumNumResolutions; ++resno) {
+            Tcd.OpjTcdResolution res = tilec.resolutions[resno];
+            int numprec = res.pw * res.ph;
+
+            for (int bandno = 0; bandno < res.numbands; ++bandno) {
+                Tcd.OpjTcdBand band = res.bands[bandno];
+                if (Tcd.opj_tcd_is_band_empty(band)) {
+                    continue;
+                }
+
+                for (int precno = 0; precno < numprec; ++precno) {
+                    Tcd.OpjTcdPrecinct prc = band.precincts[precno];
+                    int numcblks = prc.cw * prc.ch;
+
+                    for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                        Tcd.OpjTcdCblkDec cblk = prc.cblks[cblkno];
+
+                        // Position of the code-block in the [low | high] tile layout
+                        int x = cblk.x0 - band.x0;
+                        int y = cblk.y0 - band.y0;
+                        if ((band.bandno & 1) != 0) {
+                            Tcd.OpjTcdResolution pres = tilec.resolutions[resno - 1];
+                            x += pres.x1 - pres.x0;
+                        }
+                        if ((band.bandno & 2) != 0) {
+                            Tcd.OpjTcdResolution pres = tilec.resolutions[resno - 1];
+                            y += pres.y1 - pres.y0;
+                        }
+                        if (cblk.numchunks == 0) {
+                            opj_t1_clear_cblk(cblk, tccp, tilec, y * tileW + x, tileW);
+                            continue;
+                        }
+                        if (!opj_t1_decode_cblk(t1, cblk, band.bandno, tccp.roishift,
+                                tccp.cblksty, eventMgr, checkPterm)) {
+                            return false;
+                        }
+                        opj_t1_copy_cblk(t1, cblk, band, tccp, tilec, y * tileW + x, tileW);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * C: the copy-out half of opj_t1_clbl_decode_processor: undoes the ROI
+     * shift and dequantises the code-block into the tile-component buffer.
+     */
+    private static void opj_t1_copy_cblk(OpjT1 t1,
+                                         Tcd.OpjTcdCblkDec cblk,
+                                         Tcd.OpjTcdBand band,
+                                         OpjJ2k.OpjTccp tccp,
+                                         Tcd.OpjTcdTilecomp tilec,
+                                         int tileIndex, int tileW) {
+        final int cblkW = cblk.x1 - cblk.x0;
+        final int cblkH = cblk.y1 - cblk.y0;
+        int[] datap = cblk.decodedData != null ? cblk.decodedData : t1.data;
+
+        if (tccp.roishift != 0) {
+            int thresh = 1 << tccp.roishift;
+            for (int i = 0, n = cblkW * cblkH; i < n; ++i) {
+                int val = datap[i];
+                int mag = Math.abs(val);
+                if (mag >= thresh) {
+                    mag >>= tccp.roishift;
+                    datap[i] = val < 0 ? -mag : mag;
+                }
+            }
+        }
+
+        if (tccp.qmfbid == 1) {
+            int[] tiledp = tilec.data;
+            for (int j = 0; j < cblkH; ++j) {
+                int src = j * cblkW;
+                int dst = tileIndex + j * tileW;
+                for (int i = 0; i < cblkW; ++i) {
+                    tiledp[dst + i] = datap[src + i] / 2;
+                }
+            }
+        } else {
+            float[] tiledp = tilec.dataReal;
+            float stepsize = 0.5f * band.stepsize;
+            for (int j = 0; j < cblkH; ++j) {
+                int src = j * cblkW;
+                int dst = tileIndex + j * tileW;
+                for (int i = 0; i < cblkW; ++i) {
+                    tiledp[dst + i] = datap[src + i] * stepsize;
+                }
+            }
+        }
+    }
+
+    /** Zeroes the area of a code-block that no packet contributed to. */
+    private static void opj_t1_clear_cblk(Tcd.OpjTcdCblkDec cblk,
+                                          OpjJ2k.OpjTccp tccp,
+                                          Tcd.OpjTcdTilecomp tilec,
+                                          int tileIndex, int tileW) {
+        final int cblkW = cblk.x1 - cblk.x0;
+        final int cblkH = cblk.y1 - cblk.y0;
+        for (int j = 0; j < cblkH; ++j) {
+            int dst = tileIndex + j * tileW;
+            if (tccp.qmfbid == 1) {
+                Arrays.fill(tilec.data, dst, dst + cblkW, 0);
+            } else {
+                Arrays.fill(tilec.dataReal, dst, dst + cblkW, 0f);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Code-block decoding                                                */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: static OPJ_BOOL opj_t1_allocate_buffers(opj_t1_t *t1, OPJ_UINT32 w, OPJ_UINT32 h);
+     *
+     * Sizes and clears data and flags for a w x h code-block; the arrays
+     * only grow.
+     */
+    private static boolean opj_t1_allocate_buffers(OpjT1 t1, int w, int h) {
+        if (w < 0 || h < 0 || w > 1024 || h > 1024 || w * h > 4096) {
+            return false;
+        }
+        int datasize = w * h;
+        if (t1.data == null || t1.data.length < datasize) {
+            t1.data = new int[datasize];
+        } else {
+            Arrays.fill(t1.data, 0, datasize, 0);
+        }
+
+        int flagsStride = w + 2;
+        int flagssize = flagsStride * (h + 2);
+        if (t1.flags == null || t1.flags.length < flagssize) {
+            t1.flags = new int[flagssize];
+        } else {
+            Arrays.fill(t1.flags, 0, flagssize, 0);
+        }
+
+        t1.w = w;
+        t1.h = h;
+        t1.flagsStride = flagsStride;
+        return true;
+    }
+
+    /**
+     * C: static INLINE void opj_t1_update_flags(opj_flag_t *flagsp, OPJ_UINT32 ci, OPJ_UINT32 s,
+     *                                          OPJ_UINT32 stride, OPJ_UINT32 vsc);
+     *
+     * Records that the sample at fi became significant with sign s
+     * (1 = negative) in the flags of its neighbours. With vsc (vertically
+     * causal contexts), a sample on the first row of a stripe is kept out
+     * of the contexts of the stripe above.
+     */
+    private static void opj_t1_updateflags(int[] flags, int fi, int s, int stride, boolean vsc) {
+        if (!vsc) {
+            int np = fi - stride;
+            flags[np - 1] |= T1_SIG_SE;
+            flags[np] |= s != 0 ? T1_SIG_S | T1_SGN_S : T1_SIG_S;
+            flags[np + 1] |= T1_SIG_SW;
+        }
+
+        flags[fi - 1] |= s != 0 ? T1_SIG_E | T1_SGN_E : T1_SIG_E;
+        flags[fi] |= T1_SIG;
+        flags[fi + 1] |= s != 0 ? T1_SIG_W | T1_SGN_W : T1_SIG_W;
+
+        int sp = fi + stride;
+        flags[sp - 1] |= T1_SIG_NE;
+        flags[sp] |= s != 0 ? T1_SIG_N | T1_SGN_N : T1_SIG_N;
+        flags[sp + 1] |= T1_SIG_NW;
+    }
+
+    /**
+     * C: static void opj_t1_dec_sigpass_mqc(opj_t1_t *t1, OPJ_INT32 bpno, OPJ_INT32 cblksty);
+     *
+     * Significance propagation pass: samples that are not yet significant
+     * but have a significant neighbour. The scan goes down stripes of four
+     * rows, column by column.
+     */
+    private static void opj_t1_dec_sigpass_mqc(OpjT1 t1, int bpno, int cblksty) {
+        final Mqc.OpjMqc mqc = t1.mqc;
+        final int[] data = t1.data;
+        final int[] flags = t1.flags;
+        final int w = t1.w;
+        final int h = t1.h;
+        final int stride = t1.flagsStride;
+        final int one = 1 << bpno;
+        final int oneplushalf = one | (one >> 1);
+        final boolean vsc = (cblksty & OpjJ2k.J2K_CCP_CBLKSTY_VSC) != 0;
+
+        for (int k = 0; k < h; k += 4) {
+            int kend = Math.min(k + 4, h);
+            for (int i = 0; i < w; ++i) {
+                for (int j = k; j < kend; ++j) {
+                    int fi = (j + 1) * stride + i + 1;
+                    int flag = flags[fi];
+                    if ((flag & T1_SIG_OTH) != 0 && (flag & (T1_SIG | T1_VISIT)) == 0) {
+                        Mqc.opj_mqc_setcurctx(mqc, LUT_CTXNO_ZC[mqc.lutCtxnoZcOrient + (flag & T1_SIG_OTH)]);
+                        if (Mqc.opj_mqc_decode(mqc) != 0) {
+                            Mqc.opj_mqc_setcurctx(mqc, opj_t1_getctxno_sc(flag));
+                            int v = Mqc.opj_mqc_decode(mqc) ^ opj_t1_getspb(flag);
+                            data[j * w + i] = v != 0 ? -oneplushalf : oneplushalf;
+                            opj_t1_updateflags(flags, fi, v, stride, vsc && j == k);
+                        }
+                        flags[fi] |= T1_VISIT;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C: static void opj_t1_dec_sigpass_raw(opj_t1_t *t1, OPJ_INT32 bpno, OPJ_INT32 cblksty);
+     *
+     * Significance propagation pass in bypass mode.
+     */
+    private static void opj_t1_dec_sigpass_raw(OpjT1 t1, int bpno, int cblksty) {
+        final Mqc.OpjMqc mqc = t1.mqc;
+        final int[] data = t1.data;
+        final int[] flags = t1.flags;
+        final int w = t1.w;
+        final int h = t1.h;
+        final int stride = t1.flagsStride;
+        final int one = 1 << bpno;
+        final int oneplushalf = one | (one >> 1);
+        final boolean vsc = (cblksty & OpjJ2k.J2K_CCP_CBLKSTY_VSC) != 0;
+
+        for (int k = 0; k < h; k += 4) {
+            int kend = Math.min(k + 4, h);
+            for (int i = 0; i < w; ++i) {
+                for (int j = k; j < kend; ++j) {
+                    int fi = (j + 1) * stride + i + 1;
+                    int flag = flags[fi];
+                    if ((flag & T1_SIG_OTH) != 0 && (flag & (T1_SIG | T1_VISIT)) == 0) {
+                        if (Mqc.opj_mqc_raw_decode(mqc) != 0) {
+                            int v = Mqc.opj_mqc_raw_decode(mqc);
+                            data[j * w + i] = v != 0 ? -oneplushalf : oneplushalf;
+                            opj_t1_updateflags(flags, fi, v, stride, vsc && j == k);
+                        }
+                        flags[fi] |= T1_VISIT;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C: static void opj_t1_dec_refpass_mqc(opj_t1_t *t1, OPJ_INT32 bpno);
+     *
+     * Magnitude refinement pass: one more bit of every sample that was
+     * significant before this bit-plane.
+     */
+    private static void opj_t1_dec_refpass_mqc(OpjT1 t1, int bpno) {
+        final Mqc.OpjMqc mqc = t1.mqc;
+        final int[] data = t1.data;
+        final int[] flags = t1.flags;
+        final int w = t1.w;
+        final int h = t1.h;
+        final int stride = t1.flagsStride;
+        final int poshalf = (1 << bpno) >> 1;
+
+        for (int k = 0; k < h; k += 4) {
+            int kend = Math.min(k + 4, h);
+            for (int i = 0; i < w; ++i) {
+                for (int j = k; j < kend; ++j) {
+                    int fi = (j + 1) * stride + i + 1;
+                    int flag = flags[fi];
+                    if ((flag & (T1_SIG | T1_VISIT)) == T1_SIG) {
+                        Mqc.opj_mqc_setcurctx(mqc, opj_t1_getctxno_mag(flag));
+                        int v = Mqc.opj_mqc_decode(mqc);
+                        int di = j * w + i;
+                        data[di] += (v ^ (data[di] < 0 ? 1 : 0)) != 0 ? poshalf : -poshalf;
+                        flags[fi] |= T1_REFINE;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C: static void opj_t1_dec_refpass_raw(opj_t1_t *t1, OPJ_INT32 bpno);
+     *
+     * Magnitude refinement pass in bypass mode.
+     */
+    private static void opj_t1_dec_refpass_raw(OpjT1 t1, int bpno) {
+        final Mqc.OpjMqc mqc = t1.mqc;
+        final int[] data = t1.data;
+        final int[] flags = t1.flags;
+        final int w = t1.w;
+        final int h = t1.h;
+        final int stride = t1.flagsStride;
+        final int poshalf = (1 << bpno) >> 1;
+
+        for (int k = 0; k < h; k += 4) {
+            int kend = Math.min(k + 4, h);
+            for (int i = 0; i < w; ++i) {
+                for (int j = k; j < kend; ++j) {
+                    int fi = (j + 1) * stride + i + 1;
+                    if ((flags[fi] & (T1_SIG | T1_VISIT)) == T1_SIG) {
+                        int v = Mqc.opj_mqc_raw_decode(mqc);
+                        int di = j * w + i;
+                        data[di] += (v ^ (data[di] < 0 ? 1 : 0)) != 0 ? poshalf : -poshalf;
+                        flags[fi] |= T1_REFINE;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C: static void opj_t1_dec_clnpass(opj_t1_t *t1, OPJ_INT32 bpno, OPJ_INT32 cblksty);
+     *
+     * Cleanup pass: every sample the significance pass did not visit. A
+     * full stripe column with an all-insignificant neighbourhood is coded
+     * in run-length mode (aggregation context, then the position of the
+     * first significant sample).
+     */
+    private static void opj_t1_dec_clnpass(OpjT1 t1, int bpno, int cblksty) {
+        final Mqc.OpjMqc mqc = t1.mqc;
+        final int[] data = t1.data;
+        final int[] flags = t1.flags;
+        final int w = t1.w;
+        final int h = t1.h;
+        final int stride = t1.flagsStride;
+        final int one = 1 << bpno;
+        final int oneplushalf = one | (one >> 1);
+        final boolean vsc = (cblksty & OpjJ2k.J2K_CCP_CBLKSTY_VSC) != 0;
+
+        for (int k = 0; k < h; k += 4) {
+            int kend = Math.min(k + 4, h);
+            for (int i = 0; i < w; ++i) {
+                int fi = (k + 1) * stride + i + 1;
+                boolean agg = false;
+                int runlen = 0;
+                if (k + 3 < h) {
+                    agg = ((flags[fi] | flags[fi + stride] | flags[fi + 2 * stride] | flags[fi + 3 * stride])
+                            & (T1_SIG | T1_VISIT | T1_SIG_OTH)) == 0;
+                }
+                if (agg) {
+                    Mqc.opj_mqc_setcurctx(mqc, T1_CTXNO_AGG);
+                    if (Mqc.opj_mqc_decode(mqc) == 0) {
+                        continue;
+                    }
+                    Mqc.opj_mqc_setcurctx(mqc, T1_CTXNO_UNI);
+                    runlen = Mqc.opj_mqc_decode(mqc);
+                    runlen = (runlen << 1) | Mqc.opj_mqc_decode(mqc);
+                }
+
+                for (int j = k + runlen; j < kend; ++j) {
+                    fi = (j + 1) * stride + i + 1;
+                    int flag = flags[fi];
+                    // The first sample after a run is known to be significant
+                    boolean partial = agg && j == k + runlen;
+                    if (partial || (flag & (T1_SIG | T1_VISIT)) == 0) {
+                        boolean sig = partial;
+                        if (!partial) {
+                            Mqc.opj_mqc_setcurctx(mqc, LUT_CTXNO_ZC[mqc.lutCtxnoZcOrient + (flag & T1_SIG_OTH)]);
+                            sig = Mqc.opj_mqc_decode(mqc) != 0;
+                        }
+                        if (sig) {
+                            Mqc.opj_mqc_setcurctx(mqc, opj_t1_getctxno_sc(flag));
+                            int v = Mqc.opj_mqc_decode(mqc) ^ opj_t1_getspb(flag);
+                            data[j * w + i] = v != 0 ? -oneplushalf : oneplushalf;
+                            opj_t1_updateflags(flags, fi, v, stride, vsc && j == k);
+                        }
+                    }
+                    flags[fi] &= ~T1_VISIT;
+                }
+            }
+        }
+
+        if ((cblksty & OpjJ2k.J2K_CCP_CBLKSTY_SEGSYM) != 0) {
+            // Segmentation symbol 0xa; its value is not checked, as in C
+            Mqc.opj_mqc_setcurctx(mqc, T1_CTXNO_UNI);
+            Mqc.opj_mqc_decode(mqc);
+            Mqc.opj_mqc_decode(mqc);
+            Mqc.opj_mqc_decode(mqc);
+            Mqc.opj_mqc_decode(mqc);
+        }
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t1_decode_cblk(opj_t1_t *t1, opj_tcd_cblk_dec_t* cblk, OPJ_UINT32 orient,
+     *                                      OPJ_UINT32 roishift, OPJ_UINT32 cblksty, ...);
+     *
+     * Decodes the passes of cblk into t1.data (or cblk.decodedData), with
+     * one extra fractional bit: opj_t1_copy_cblk halves the values.
+     */
     public static boolean opj_t1_decode_cblk(
             OpjT1 t1,
             Tcd.OpjTcdCblkDec cblk,
@@ -58,13 +645,13 @@ public final class T1 {
         int bpnoPlusOne;
         int passtype;
         int segno, passno;
-        byte[] cblkdata = null;
-        int cblkdataIndex = 0;
-        byte type = T1_TYPE_MQ;   // BYPASS vs MQ; default MQ
+        byte[] cblkdata;
+        int cblkdataIndex;
+        int cblkdataEnd;
+        byte type;
         int[] originalT1Data = null;
 
-        // If you eventually port the LUTs, you can cache them here
-        // mqc.lutCtxnoZcOrient = ... based on orient;
+        mqc.lutCtxnoZcOrient = (int) orient << 8;
 
         // Allocate coefficient / flag buffers for this codeblock
         int w = cblk.x1 - cblk.x0;
@@ -103,20 +690,18 @@ public final class T1 {
         }
 
         /*
-         * Concatenate chunk data if:
-         *  - more than one chunk, OR
-         *  - we are forced to use a private buffer (multithread/subtiles)
+         * Concatenate the chunks if there are several. A single chunk is
+         * decoded in place: unlike C, the MQ decoder never writes to it.
          */
-        if (cblk.numchunks > 1 || (t1.mustUseCblkDataBuffer && cblk.numchunks > 0)) {
+        if (cblk.numchunks > 1) {
             int cblkLen = 0;
             for (int i = 0; i < cblk.numchunks; ++i) {
                 cblkLen += cblk.chunks[i].len;
             }
 
-            int needed = cblkLen + OPJ_COMMON_CBLK_DATA_EXTRA;
-            if (t1.cblkDataBuffer == null || needed > t1.cblkDataBufferSize) {
-                t1.cblkDataBuffer = new byte[needed];
-                t1.cblkDataBufferSize = needed;
+            if (t1.cblkDataBuffer == null || cblkLen > t1.cblkDataBufferSize) {
+                t1.cblkDataBuffer = new byte[cblkLen];
+                t1.cblkDataBufferSize = cblkLen;
             }
 
             cblkdata = t1.cblkDataBuffer;
@@ -124,21 +709,18 @@ public final class T1 {
             for (int i = 0; i < cblk.numchunks; ++i) {
                 Tcd.OpjTcdSegDataChunk chunk = cblk.chunks[i];
                 if (chunk.data != null && chunk.len > 0) {
-                    System.arraycopy(chunk.data, 0, cblkdata, dst, chunk.len);
+                    System.arraycopy(chunk.data, chunk.offset, cblkdata, dst, chunk.len);
                     dst += chunk.len;
                 }
             }
-            // zero the extra guard bytes
-            for (int i = 0; i < OPJ_COMMON_CBLK_DATA_EXTRA; ++i) {
-                cblkdata[dst + i] = 0;
-            }
+            cblkdataIndex = 0;
+            cblkdataEnd = dst;
         } else if (cblk.numchunks == 1 && cblk.chunks[0].data != null) {
             // Simple case: single chunk, no need to copy
             Tcd.OpjTcdSegDataChunk chunk0 = cblk.chunks[0];
             cblkdata = chunk0.data;
-            cblkdataIndex = 0;
-            // We assume the chunk already has enough guard bytes, or you can
-            // copy into t1.cblkDataBuffer as above if you want strict safety.
+            cblkdataIndex = chunk0.offset;
+            cblkdataEnd = chunk0.offset + chunk0.len;
         } else {
             // Nothing to decode – avoid null dereference
             return true;
@@ -153,34 +735,23 @@ public final class T1 {
         // --- Main segment loop ---
         for (segno = 0; segno < cblk.realNumSegs; ++segno) {
             Tcd.OpjTcdSeg seg = cblk.segs[segno];
+            int segLen = Math.max(0, Math.min(seg.len, cblkdataEnd - cblkdataIndex));
 
             // Decide BYPASS vs MQ coding for this segment
-            boolean lazy = ( (cblksty & J2K_CCP_CBLKSTY_LAZY) != 0 );
+            boolean lazy = ( (cblksty & OpjJ2k.J2K_CCP_CBLKSTY_LAZY) != 0 );
             boolean bypassCondition = (bpnoPlusOne <= (cblk.numbps - 4)) &&
                     (passtype < 2) &&
                     lazy;
-            type = (byte) (bypassCondition ? T1_TYPE_RAW : T1_TYPE_MQ);
+            type = bypassCondition ? T1_TYPE_RAW : T1_TYPE_MQ;
 
             if (type == T1_TYPE_RAW) {
                 // RAW (bypass) mode: bit-IO based decode
-                Mqc.opj_mqc_raw_init_dec(
-                        mqc,
-                        cblkdata,
-                        cblkdataIndex,
-                        seg.len,
-                        OPJ_COMMON_CBLK_DATA_EXTRA
-                );
+                Mqc.opj_mqc_raw_init_dec(mqc, cblkdata, cblkdataIndex, segLen);
             } else {
                 // MQ arithmetic decoder initialization
-                Mqc.opj_mqc_init_dec(
-                        mqc,
-                        cblkdata,
-                        cblkdataIndex,
-                        seg.len,
-                        OPJ_COMMON_CBLK_DATA_EXTRA
-                );
+                Mqc.opj_mqc_init_dec(mqc, cblkdata, cblkdataIndex, segLen);
             }
-            cblkdataIndex += seg.len;
+            cblkdataIndex += segLen;
 
             // --- Pass loop within this segment ---
             for (passno = 0;
@@ -211,7 +782,7 @@ public final class T1 {
                 }
 
                 // RESET coding style: reset MQ contexts at each pass
-                if ( ( (cblksty & J2K_CCP_CBLKSTY_RESET) != 0 ) &&
+                if ( ( (cblksty & OpjJ2k.J2K_CCP_CBLKSTY_RESET) != 0 ) &&
                         type == T1_TYPE_MQ ) {
                     Mqc.opj_mqc_resetstates(mqc);
                     Mqc.opj_mqc_setstate(mqc, T1_CTXNO_UNI, 0, 46);
@@ -266,4 +837,5 @@ public final class T1 {
         }
 
         return true;
-    }}
\ No newline at end of file
+    }
+}
@@ -0,0 +1,614 @@
+package jopj;
+
+import java.util.BitSet;
+
+/**
+ * Java port of t2.c / t2.h (decoder side)
+ *
+ * Tier-2: reads packet headers and attaches the packet bodies to the
+ * code-blocks of the current tile. Packet headers are read with a single
+ * re-used Bio bit reader, inclusion / zero bit-plane information comes
+ * from the precinct tag trees, and code-block bytes are referenced in
+ * place (OpjTcdSegDataChunk) rather than copied.
+ *
+ * PPM / PPT packed packet headers are not supported yet.
+ */
+public final class T2 {
+
+    private T2() {
+    }
+
+    /**
+     * Java equivalent of opj_t2_t.
+     */
+    public static final class OpjT2 {
+        public OpjImage image;
+        public OpjJ2k.OpjCp cp;
+
+        /** Bit reader re-used for every packet header. */
+        final Bio.OpjBio bio = Bio.opj_bio_create();
+
+        /** Set by opj_t2_read_packet_header: true if the packet has a body. */
+        boolean isDataPresent;
+    }
+
+    /**
+     * C: opj_t2_t* opj_t2_create(opj_image_t *p_image, opj_cp_t *p_cp);
+     */
+    public static OpjT2 opj_t2_create(OpjImage image, OpjJ2k.OpjCp cp) {
+        OpjT2 t2 = new OpjT2();
+        t2.image = image;
+        t2.cp = cp;
+        return t2;
+    }
+
+    /**
+     * C: void opj_t2_destroy(opj_t2_t *t2);
+     */
+    public static void opj_t2_destroy(OpjT2 t2) {
+        if (t2 == null) return;
+        t2.image = null;
+        t2.cp = null;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Packet decoding                                                    */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: OPJ_BOOL opj_t2_decode_packets(opj_tcd_t* tcd, opj_t2_t *t2, OPJ_UINT32 tileno,
+     *                                   opj_tcd_tile_t *tile, OPJ_BYTE *src,
+     *                                   OPJ_UINT32 * p_data_read, OPJ_UINT32 len, ...);
+     *
+     * Decodes the packets of a tile in the order given by plan. Packets
+     * that opj_t2_is_packet_needed rejects are stepped over by their
+     * header only, or not at all when they are in elided (their bytes
+     * were skipped while reading the stream). Decoding stops after the
+     * last needed packet.
+     *
+     * @param elided plan indices of packets absent from src, or null
+     * @return number of bytes consumed, or -1 on error
+     */
+    public static int opj_t2_decode_packets(OpjT2 t2,
+                                            int tileno,
+                                            Tcd.OpjTcdTile tile,
+                                            Pi.OpjPiPlan plan,
+                                            BitSet elided,
+                                            byte[] src, int offset, int len,
+                                            Cio.OpjEventMgr mgr) {
+        OpjJ2k.OpjTcp tcp = t2.cp.tcps[tileno];
+        final int[] packets = plan.packets;
+
+        // Nothing after the last needed packet can affect the image
+        int end = plan.numpackets * Pi.PI_STRIDE;
+        while (end > 0) {
+            int last = end - Pi.PI_STRIDE;
+            if (opj_t2_is_packet_needed(t2.cp, tcp, packets[last + Pi.PI_LAYNO],
+                    packets[last + Pi.PI_RESNO], packets[last + Pi.PI_COMPNO])) {
+                break;
+            }
+            end = last;
+        }
+
+        int current = offset;
+        for (int i = 0, packetno = 0; i < end; i += Pi.PI_STRIDE, ++packetno) {
+            if (elided != null && elided.get(packetno)) {
+                continue;
+            }
+            int layno = packets[i + Pi.PI_LAYNO];
+            int resno = packets[i + Pi.PI_RESNO];
+            int compno = packets[i + Pi.PI_COMPNO];
+            int precno = packets[i + Pi.PI_PRECNO];
+            int remaining = offset + len - current;
+            if (remaining <= 0) {
+                // Truncated tile: the packets that follow are absent
+                break;
+            }
+
+            int n;
+            if (!opj_t2_is_packet_needed(t2.cp, tcp, layno, resno, compno)) {
+                n = opj_t2_skip_packet(t2, tile, tcp, layno, resno, compno, precno,
+                        src, current, remaining, mgr);
+            } else {
+                n = opj_t2_decode_packet(t2, tile, tcp, layno, resno, compno, precno,
+                        src, current, remaining, mgr);
+                OpjImage.OpjImageComp comp = t2.image.comps[compno];
+                if (comp.resnoDecoded < resno) {
+                    comp.resnoDecoded = resno;
+                }
+            }
+            if (n < 0) {
+                return -1;
+            }
+            current += n;
+        }
+
+        return current - offset;
+    }
+
+    /**
+     * True if packet (layno, resno, compno) contributes to the decoded
+     * image: its component is selected (cp.usedComponent), its layer is
+     * below tcp.numLayersToDecode and its resolution is not discarded by
+     * cp.reduce. Packets failing this test never reach
+     * tier-1, and their bodies need not even be read.
+     */
+    public static boolean opj_t2_is_packet_needed(OpjJ2k.OpjCp cp, OpjJ2k.OpjTcp tcp,
+                                                  int layno, int resno, int compno) {
+        if (cp.usedComponent != null && !cp.usedComponent[compno]) {
+            return false;
+        }
+        if (layno >= tcp.numLayersToDecode) {
+            return false;
+        }
+        int numresolutions = tcp.tccps[compno].numresolutions;
+        int minimumNumResolutions = numresolutions < cp.reduce ? 1 : numresolutions - cp.reduce;
+        return resno < minimumNumResolutions;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t2_decode_packet(opj_t2_t* p_t2, opj_tcd_tile_t *p_tile,
+     *                                         opj_tcp_t *p_tcp, opj_pi_iterator_t *p_pi,
+     *                                         OPJ_BYTE *p_src, OPJ_UINT32 * p_data_read,
+     *                                         OPJ_UINT32 p_max_length, ...);
+     *
+     * Reads the header of packet (layno, resno, compno, precno) starting at
+     * src[offset] and attaches its body to the code-blocks.
+     *
+     * @return number of bytes consumed (header and body), or -1 on error
+     */
+    public static int opj_t2_decode_packet(OpjT2 t2,
+                                           Tcd.OpjTcdTile tile,
+                                           OpjJ2k.OpjTcp tcp,
+                                           int layno, int resno, int compno, int precno,
+                                           byte[] src, int offset, int maxLength,
+                                           Cio.OpjEventMgr mgr) {
+        int headerLength = opj_t2_read_packet_header(t2, tile, tcp,
+                layno, resno, compno, precno, src, offset, maxLength, mgr);
+        if (headerLength < 0) {
+            return -1;
+        }
+        if (!t2.isDataPresent) {
+            return headerLength;
+        }
+        int dataLength = opj_t2_read_packet_data(t2, tile,
+                resno, compno, precno, src, offset + headerLength, maxLength - headerLength, mgr);
+        if (dataLength < 0) {
+            return -1;
+        }
+        return headerLength + dataLength;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t2_skip_packet(opj_t2_t* p_t2, opj_tcd_tile_t *p_tile,
+     *                                       opj_tcp_t *p_tcp, opj_pi_iterator_t *p_pi,
+     *                                       OPJ_BYTE *p_src, OPJ_UINT32 * p_data_read,
+     *                                       OPJ_UINT32 p_max_length, ...);
+     *
+     * Reads the header of a packet so that the tag trees stay in sync, but
+     * steps over its body without attaching it to the code-blocks.
+     *
+     * @return number of bytes consumed (header and body), or -1 on error
+     */
+    public static int opj_t2_skip_packet(OpjT2 t2,
+                                         Tcd.OpjTcdTile tile,
+                                         OpjJ2k.OpjTcp tcp,
+                                         int layno, int resno, int compno, int precno,
+                                         byte[] src, int offset, int maxLength,
+                                         Cio.OpjEventMgr mgr) {
+        int headerLength = opj_t2_read_packet_header(t2, tile, tcp,
+                layno, resno, compno, precno, src, offset, maxLength, mgr);
+        if (headerLength < 0) {
+            return -1;
+        }
+        if (!t2.isDataPresent) {
+            return headerLength;
+        }
+        int dataLength = opj_t2_skip_packet_data(tile,
+                resno, compno, precno, maxLength - headerLength, mgr);
+        if (dataLength < 0) {
+            return -1;
+        }
+        return headerLength + dataLength;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t2_read_packet_header(...);
+     *
+     * Fills numnewpasses of every code-block of the precinct and
+     * numnewpasses / newlen of the segments they go to. Sets
+     * t2.isDataPresent.
+     *
+     * @return length of the packet header (including SOP / EPH markers),
+     *         or -1 on error
+     */
+    static int opj_t2_read_packet_header(OpjT2 t2,
+                                         Tcd.OpjTcdTile tile,
+                                         OpjJ2k.OpjTcp tcp,
+                                         int layno, int resno, int compno, int precno,
+                                         byte[] src, int offset, int maxLength,
+                                         Cio.OpjEventMgr mgr) {
+        Tcd.OpjTcdResolution res = tile.comps[compno].resolutions[resno];
+        int cblksty = tcp.tccps[compno].cblksty;
+        int current = offset;
+        final int end = offset + maxLength;
+
+        if (layno == 0) {
+            // First packet of the precinct: reset tag trees and code-blocks
+            for (int bandno = 0; bandno < res.numbands; ++bandno) {
+                Tcd.OpjTcdBand band = res.bands[bandno];
+                if (Tcd.opj_tcd_is_band_empty(band)) {
+                    continue;
+                }
+                if (precno >= res.pw * res.ph) {
+                    Cio.opj_event_msg(mgr, Cio.EVT_ERROR, "Invalid precinct\n");
+                    return -1;
+                }
+                Tcd.OpjTcdPrecinct prc = band.precincts[precno];
+                Tgt.opj_tgt_reset(prc.incltree);
+                Tgt.opj_tgt_reset(prc.imsbtree);
+                int numcblks = prc.cw * prc.ch;
+                for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                    Tcd.OpjTcdCblkDec cblk = prc.cblks[cblkno];
+                    cblk.numsegs = 0;
+                    cblk.realNumSegs = 0;
+                }
+            }
+        }
+
+        // SOP marker
+        if ((tcp.csty & OpjJ2k.J2K_CP_CSTY_SOP) != 0) {
+            if (end - current < 6) {
+                Cio.opj_event_msg(mgr, Cio.EVT_WARNING, "Not enough space for expected SOP marker\n");
+            } else if ((src[current] & 0xff) != 0xff || (src[current + 1] & 0xff) != 0x91) {
+                Cio.opj_event_msg(mgr, Cio.EVT_WARNING, "Expected SOP marker\n");
+            } else {
+                current += 6;
+            }
+        }
+
+        Bio.OpjBio bio = t2.bio;
+        Bio.opj_bio_init_dec(bio, src, current, end - current);
+
+        int present = Bio.opj_bio_read(bio, 1);
+        if (present != 0) {
+            for (int bandno = 0; bandno < res.numbands; ++bandno) {
+                Tcd.OpjTcdBand band = res.bands[bandno];
+                if (Tcd.opj_tcd_is_band_empty(band)) {
+                    continue;
+                }
+                Tcd.OpjTcdPrecinct prc = band.precincts[precno];
+                int numcblks = prc.cw * prc.ch;
+
+                for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                    Tcd.OpjTcdCblkDec cblk = prc.cblks[cblkno];
+                    int included;
+
+                    // Not yet included: inclusion tag tree, otherwise one bit
+                    if (cblk.numsegs == 0) {
+                        included = Tgt.opj_tgt_decode(bio, prc.incltree, cblkno, layno + 1);
+                    } else {
+                        included = Bio.opj_bio_read(bio, 1);
+                    }
+                    if (included == 0) {
+                        cblk.numnewpasses = 0;
+                        continue;
+                    }
+
+                    // First inclusion: zero bit-plane tag tree
+                    if (cblk.numsegs == 0) {
+                        int i = 0;
+                        while (Tgt.opj_tgt_decode(bio, prc.imsbtree, cblkno, i) == 0) {
+                            ++i;
+                        }
+                        // numbps is in 0..N, not the same as band.numbps
+                        cblk.numbps = band.numbps + 1 - i;
+                        cblk.numlenbits = 3;
+                    }
+
+                    cblk.numnewpasses = opj_t2_getnumpasses(bio);
+                    cblk.numlenbits += opj_t2_getcommacode(bio);
+
+                    int segno = 0;
+                    if (cblk.numsegs == 0) {
+                        opj_t2_init_seg(cblk, segno, cblksty, true);
+                    } else {
+                        segno = cblk.numsegs - 1;
+                        if (cblk.segs[segno].numpasses == cblk.segs[segno].maxpasses) {
+                            ++segno;
+                            opj_t2_init_seg(cblk, segno, cblksty, false);
+                        }
+                    }
+
+                    int n = cblk.numnewpasses;
+                    do {
+                        Tcd.OpjTcdSeg seg = cblk.segs[segno];
+                        seg.numnewpasses = Math.min(seg.maxpasses - seg.numpasses, n);
+                        int bitNumber = cblk.numlenbits + OpjIntMath.opj_uint_floorlog2(seg.numnewpasses);
+                        if (bitNumber > 32) {
+                            Cio.opj_event_msg(mgr, Cio.EVT_ERROR, String.format(
+                                    "Invalid bit number %d in opj_t2_read_packet_header()\n", bitNumber));
+                            return -1;
+                        }
+                        seg.newlen = Bio.opj_bio_read(bio, bitNumber);
+                        n -= seg.numnewpasses;
+                        if (n > 0) {
+                            ++segno;
+                            opj_t2_init_seg(cblk, segno, cblksty, false);
+                        }
+                    } while (n > 0);
+                }
+            }
+        }
+
+        Bio.opj_bio_inalign(bio);
+        current += Bio.opj_bio_numbytes(bio);
+
+        // EPH marker
+        if ((tcp.csty & OpjJ2k.J2K_CP_CSTY_EPH) != 0) {
+            if (end - current < 2) {
+                Cio.opj_event_msg(mgr, Cio.EVT_WARNING, "Not enough space for expected EPH marker\n");
+            } else if ((src[current] & 0xff) != 0xff || (src[current + 1] & 0xff) != 0x92) {
+                Cio.opj_event_msg(mgr, Cio.EVT_WARNING, "Expected EPH marker\n");
+            } else {
+                current += 2;
+            }
+        }
+
+        if (present != 0 && current == offset) {
+            return -1;
+        }
+        t2.isDataPresent = present != 0;
+        return current - offset;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t2_read_packet_data(...);
+     *
+     * Attaches the body of the packet whose header was just read to the
+     * code-blocks of the precinct. If src ends inside the body (a truncated
+     * codestream, or one still arriving), the passes from there on are
+     * counted but get no data, so every code-block decodes what arrived in
+     * its earlier packets.
+     *
+     * @return number of bytes consumed, or -1 on error
+     */
+    static int opj_t2_read_packet_data(OpjT2 t2,
+                                       Tcd.OpjTcdTile tile,
+                                       int resno, int compno, int precno,
+                                       byte[] src, int offset, int maxLength,
+                                       Cio.OpjEventMgr mgr) {
+        Tcd.OpjTcdResolution res = tile.comps[compno].resolutions[resno];
+        int current = offset;
+        final int end = offset + maxLength;
+        boolean partialBuffer = false;
+
+        for (int bandno = 0; bandno < res.numbands; ++bandno) {
+            Tcd.OpjTcdBand band = res.bands[bandno];
+            if (Tcd.opj_tcd_is_band_empty(band)) {
+                continue;
+            }
+            Tcd.OpjTcdPrecinct prc = band.precincts[precno];
+            int numcblks = prc.cw * prc.ch;
+
+            for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                Tcd.OpjTcdCblkDec cblk = prc.cblks[cblkno];
+                if (cblk.numnewpasses == 0) {
+                    continue;
+                }
+
+                int segno;
+                if (cblk.numsegs == 0) {
+                    segno = 0;
+                    ++cblk.numsegs;
+                } else {
+                    segno = cblk.numsegs - 1;
+                    if (cblk.segs[segno].numpasses == cblk.segs[segno].maxpasses) {
+                        ++segno;
+                        ++cblk.numsegs;
+                    }
+                }
+
+                do {
+                    Tcd.OpjTcdSeg seg = cblk.segs[segno];
+                    if (partialBuffer || (long) current + seg.newlen > end) {
+                        if (t2.cp.strict) {
+                            Cio.opj_event_msg(mgr, Cio.EVT_ERROR, String.format(
+                                    "read: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d)\n",
+                                    seg.newlen, end - current, cblkno, precno, bandno, resno, compno));
+                            return -1;
+                        }
+                        Cio.opj_event_msg(mgr, Cio.EVT_WARNING, String.format(
+                                "read: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d)\n",
+                                seg.newlen, end - current, cblkno, precno, bandno, resno, compno));
+                        /*
+                         * Count the passes as C does, so that the segments of
+                         * later packets line up, but attach none of their
+                         * bytes: realNumPasses stays at the passes whose data
+                         * arrived in earlier packets, and those still decode.
+                         */
+                        partialBuffer = true;
+                        seg.numpasses += seg.numnewpasses;
+                        cblk.numnewpasses -= seg.numnewpasses;
+                        if (cblk.numnewpasses > 0) {
+                            ++segno;
+                            ++cblk.numsegs;
+                        }
+                        continue;
+                    }
+
+                    if (cblk.numchunks == cblk.numchunksalloc) {
+                        opj_t2_grow_chunks(cblk);
+                    }
+                    Tcd.OpjTcdSegDataChunk chunk = cblk.chunks[cblk.numchunks++];
+                    chunk.data = src;
+                    chunk.offset = current;
+                    chunk.len = seg.newlen;
+
+                    current += seg.newlen;
+                    seg.len += seg.newlen;
+                    seg.numpasses += seg.numnewpasses;
+                    cblk.numnewpasses -= seg.numnewpasses;
+                    seg.realNumPasses = seg.numpasses;
+
+                    if (cblk.numnewpasses > 0) {
+                        ++segno;
+                        ++cblk.numsegs;
+                    }
+                } while (cblk.numnewpasses > 0);
+
+                cblk.realNumSegs = cblk.numsegs;
+            }
+        }
+
+        return partialBuffer ? maxLength : current - offset;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_t2_skip_packet_data(...);
+     *
+     * Accounts for the passes of a packet body without referencing its bytes.
+     *
+     * @return length of the packet body, or -1 on error
+     */
+    static int opj_t2_skip_packet_data(Tcd.OpjTcdTile tile,
+                                       int resno, int compno, int precno,
+                                       int maxLength,
+                                       Cio.OpjEventMgr mgr) {
+        Tcd.OpjTcdResolution res = tile.comps[compno].resolutions[resno];
+        long dataRead = 0;
+
+        for (int bandno = 0; bandno < res.numbands; ++bandno) {
+            Tcd.OpjTcdBand band = res.bands[bandno];
+            if (Tcd.opj_tcd_is_band_empty(band)) {
+                continue;
+            }
+            Tcd.OpjTcdPrecinct prc = band.precincts[precno];
+            int numcblks = prc.cw * prc.ch;
+
+            for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                Tcd.OpjTcdCblkDec cblk = prc.cblks[cblkno];
+                if (cblk.numnewpasses == 0) {
+                    continue;
+                }
+
+                int segno;
+                if (cblk.numsegs == 0) {
+                    segno = 0;
+                    ++cblk.numsegs;
+                } else {
+                    segno = cblk.numsegs - 1;
+                    if (cblk.segs[segno].numpasses == cblk.segs[segno].maxpasses) {
+                        ++segno;
+                        ++cblk.numsegs;
+                    }
+                }
+
+                do {
+                    Tcd.OpjTcdSeg seg = cblk.segs[segno];
+                    if (dataRead + seg.newlen > maxLength) {
+                        Cio.opj_event_msg(mgr, Cio.EVT_ERROR, String.format(
+                                "skip: segment too long (%d) with max (%d) for codeblock %d (p=%d, b=%d, r=%d, c=%d)\n",
+                                seg.newlen, maxLength, cblkno, precno, bandno, resno, compno));
+                        return -1;
+                    }
+                    dataRead += seg.newlen;
+                    seg.numpasses += seg.numnewpasses;
+                    cblk.numnewpasses -= seg.numnewpasses;
+                    if (cblk.numnewpasses > 0) {
+                        ++segno;
+                        ++cblk.numsegs;
+                    }
+                } while (cblk.numnewpasses > 0);
+            }
+        }
+
+        return (int) dataRead;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Local helpers                                                      */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: static OPJ_BOOL opj_t2_init_seg(opj_tcd_cblk_dec_t* cblk, OPJ_UINT32 index,
+     *                                    OPJ_UINT32 cblksty, OPJ_UINT32 first);
+     */
+    private static void opj_t2_init_seg(Tcd.OpjTcdCblkDec cblk, int index,
+                                        int cblksty, boolean first) {
+        int numsegs = index + 1;
+        if (numsegs > cblk.currentMaxSegs) {
+            int newSize = cblk.currentMaxSegs + Tcd.OPJ_J2K_DEFAULT_NB_SEGS;
+            Tcd.OpjTcdSeg[] segs = new Tcd.OpjTcdSeg[newSize];
+            if (cblk.segs != null) {
+                System.arraycopy(cblk.segs, 0, segs, 0, cblk.currentMaxSegs);
+            }
+            for (int i = cblk.currentMaxSegs; i < newSize; ++i) {
+                segs[i] = new Tcd.OpjTcdSeg();
+            }
+            cblk.segs = segs;
+            cblk.currentMaxSegs = newSize;
+        }
+
+        Tcd.OpjTcdSeg seg = cblk.segs[index];
+        Tcd.opj_tcd_reinit_segment(seg);
+
+        if ((cblksty & OpjJ2k.J2K_CCP_CBLKSTY_TERMALL) != 0) {
+            seg.maxpasses = 1;
+        } else if ((cblksty & OpjJ2k.J2K_CCP_CBLKSTY_LAZY) != 0) {
+            if (first) {
+                seg.maxpasses = 10;
+            } else {
+                int prev = cblk.segs[index - 1].maxpasses;
+                seg.maxpasses = (prev == 1 || prev == 10) ? 2 : 1;
+            }
+        } else {
+            // B.10.6: (Mb - 1) * 3 + 1 passes with Mb = 37 bit-planes
+            seg.maxpasses = 109;
+        }
+    }
+
+    private static void opj_t2_grow_chunks(Tcd.OpjTcdCblkDec cblk) {
+        int newSize = cblk.numchunksalloc * 2 + 1;
+        Tcd.OpjTcdSegDataChunk[] chunks = new Tcd.OpjTcdSegDataChunk[newSize];
+        if (cblk.chunks != null) {
+            System.arraycopy(cblk.chunks, 0, chunks, 0, cblk.numchunksalloc);
+        }
+        for (int i = cblk.numchunksalloc; i < newSize; ++i) {
+            chunks[i] = new Tcd.OpjTcdSegDataChunk();
+        }
+        cblk.chunks = chunks;
+        cblk.numchunksalloc = newSize;
+    }
+
+    /**
+     * C: static OPJ_UINT32 opj_t2_getnumpasses(opj_bio_t *bio);
+     */
+    private static int opj_t2_getnumpasses(Bio.OpjBio bio) {
+        int n;
+        if (Bio.opj_bio_read(bio, 1) == 0) {
+            return 1;
+        }
+        if (Bio.opj_bio_read(bio, 1) == 0) {
+            return 2;
+        }
+        if ((n = Bio.opj_bio_read(bio, 2)) != 3) {
+            return 3 + n;
+        }
+        if ((n = Bio.opj_bio_read(bio, 5)) != 31) {
+            return 6 + n;
+        }
+        return 37 + Bio.opj_bio_read(bio, 7);
+    }
+
+    /**
+     * C: static OPJ_UINT32 opj_t2_getcommacode(opj_bio_t *bio);
+     */
+    private static int opj_t2_getcommacode(Bio.OpjBio bio) {
+        int n = 0;
+        while (Bio.opj_bio_read(bio, 1) != 0) {
+            ++n;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,877 @@
+package jopj;
+
+import java.util.BitSet;
+
+import static jopj.OpjIntMath.opj_int_ceildiv;
+import static jopj.OpjIntMath.opj_int_ceildivpow2;
+import static jopj.OpjIntMath.opj_int_floordivpow2;
+
+/**
+ * Java port of tcd.c / tcd.h (decoder side)
+ *
+ * Tile coder/decoder: the tile -> component -> resolution -> band ->
+ * precinct -> code-block hierarchy filled by tier-2 and consumed by
+ * tier-1.
+ *
+ * The structures are re-used from one tile to the next: opj_tcd_init_decode_tile
+ * only allocates when a tile needs more resolutions, precincts, code-blocks
+ * or segments than any tile decoded before it with the same OpjTcd.
+ */
+public final class Tcd {
+
+    private Tcd() {
+    }
+
+    /** C: OPJ_J2K_DEFAULT_NB_SEGS */
+    public static final int OPJ_J2K_DEFAULT_NB_SEGS = 10;
+
+    /* ------------------------------------------------------------------ */
+    /* Structures (tcd.h)                                                 */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * Java equivalent of opj_tcd_seg_data_chunk_t: a run of code-block
+     * bytes inside the tile data. The bytes are never copied by tier-2.
+     */
+    public static final class OpjTcdSegDataChunk {
+        public byte[] data;
+        public int offset;
+        public int len;
+    }
+
+    /** Java equivalent of opj_tcd_seg_t (a code-block codeword segment). */
+    public static final class OpjTcdSeg {
+        public int len;
+        public int numpasses;
+        public int realNumPasses;
+        public int maxpasses;
+        public int numnewpasses;
+        public int newlen;
+    }
+
+    /** Java equivalent of opj_tcd_cblk_dec_t. */
+    public static final class OpjTcdCblkDec {
+        public OpjTcdSeg[] segs;
+        public OpjTcdSegDataChunk[] chunks;
+        public int x0, y0, x1, y1;
+        /** Number of significant bit-planes, from the zero bit-plane tag tree. */
+        public int numbps;
+        public int numlenbits;
+        /** Passes added by the packet currently being read. */
+        public int numnewpasses;
+        public int numsegs;
+        public int realNumSegs;
+        public int currentMaxSegs;
+        public int numchunks;
+        public int numchunksalloc;
+        public boolean corrupted;
+        /** Optional per code-block output, used for sub-tile decoding. */
+        public int[] decodedData;
+    }
+
+    /** Java equivalent of opj_tcd_precinct_t. */
+    public static final class OpjTcdPrecinct {
+        public int x0, y0, x1, y1;
+        /** Number of code-blocks across / down. */
+        public int cw;
+        public int ch;
+        /** Code-blocks; only the first cw * ch entries are in use. */
+        public OpjTcdCblkDec[] cblks;
+        public Tgt.OpjTgtTree incltree;
+        public Tgt.OpjTgtTree imsbtree;
+    }
+
+    /** Java equivalent of opj_tcd_band_t. */
+    public static final class OpjTcdBand {
+        public int x0, y0, x1, y1;
+        /** 0 = LL, 1 = HL, 2 = LH, 3 = HH. */
+        public int bandno;
+        /** Precincts; only the first pw * ph entries of the resolution are in use. */
+        public OpjTcdPrecinct[] precincts;
+        public int numbps;
+        public float stepsize;
+    }
+
+    /** Java equivalent of opj_tcd_resolution_t. */
+    public static final class OpjTcdResolution {
+        public int x0, y0, x1, y1;
+        /** Number of precincts across / down. */
+        public int pw;
+        public int ph;
+        public int numbands;
+        public OpjTcdBand[] bands = new OpjTcdBand[3];
+    }
+
+    /** Java equivalent of opj_tcd_tilecomp_t. */
+    public static final class OpjTcdTilecomp {
+        public int x0, y0, x1, y1;
+        public int compno;
+        public int numresolutions;
+        /** Number of resolutions actually decoded (numresolutions - reduce). */
+        public int minimumNumResolutions;
+        public OpjTcdResolution[] resolutions;
+        /**
+         * Sample data of the decoded resolution (resolutions[minimumNumResolutions - 1]),
+         * so a reduced decode only allocates the reduced tile-component.
+         */
+        public int[] data;
+        /** Same layout as data, used by the 9-7 path up to the DC level shift. */
+        public float[] dataReal;
+    }
+
+    /** Java equivalent of opj_tcd_tile_t. */
+    public static final class OpjTcdTile {
+        public int x0, y0, x1, y1;
+        public int numcomps;
+        public OpjTcdTilecomp[] comps;
+    }
+
+    /** Java equivalent of opj_tcd_t. */
+    public static final class OpjTcd {
+        public boolean isDecoder;
+        public OpjImage image;
+        public OpjJ2k.OpjCp cp;
+        public OpjJ2k.OpjTcp tcp;
+        public int tcdTileno;
+        /** The one tile this OpjTcd works on; re-initialised per tile. */
+        public OpjTcdTile tile = new OpjTcdTile();
+        /** Tier-1 / tier-2 state, created on first use and kept across tiles. */
+        public T1.OpjT1 t1;
+        public T2.OpjT2 t2;
+        /** Row scratch for upsampling on output, grown as needed. */
+        int[] upsampleRow;
+        float[] upsampleRowReal;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Creation / destruction                                             */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: opj_tcd_t* opj_tcd_create(OPJ_BOOL p_is_decoder);
+     */
+    public static OpjTcd opj_tcd_create(boolean isDecoder) {
+        OpjTcd tcd = new OpjTcd();
+        tcd.isDecoder = isDecoder;
+        return tcd;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_tcd_init(opj_tcd_t *p_tcd, opj_image_t * p_image, opj_cp_t * p_cp, ...);
+     */
+    public static boolean opj_tcd_init(OpjTcd tcd, OpjImage image, OpjJ2k.OpjCp cp) {
+        if (tcd == null || image == null || cp == null) {
+            return false;
+        }
+        tcd.image = image;
+        tcd.cp = cp;
+        if (tcd.t2 != null) {
+            // Re-initialised for another codestream: keep the bit reader
+            tcd.t2.image = image;
+            tcd.t2.cp = cp;
+        }
+        return true;
+    }
+
+    /**
+     * C: void opj_tcd_destroy(opj_tcd_t *tcd);
+     */
+    public static void opj_tcd_destroy(OpjTcd tcd) {
+        if (tcd == null) return;
+        if (tcd.tile != null && tcd.tile.comps != null) {
+            OpjBufferPool pool = OpjBufferPool.getDefault();
+            for (OpjTcdTilecomp tilec : tcd.tile.comps) {
+                if (tilec != null) {
+                    pool.release(tilec.data);
+                    pool.release(tilec.dataReal);
+                    tilec.data = null;
+                    tilec.dataReal = null;
+                }
+            }
+        }
+        tcd.tile = null;
+        tcd.t1 = null;
+        tcd.t2 = null;
+        tcd.image = null;
+        tcd.cp = null;
+        tcd.tcp = null;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Tile initialisation                                                */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: OPJ_BOOL opj_tcd_init_decode_tile(opj_tcd_t *p_tcd, OPJ_UINT32 p_tile_no, ...);
+     *
+     * Computes the geometry of every resolution, band, precinct and
+     * code-block of the tile and resets the per code-block decoding state.
+     * Tag trees and code-block arrays left over from a previous tile are
+     * reset and re-used rather than re-allocated.
+     */
+    public static boolean opj_tcd_init_decode_tile(OpjTcd tcd, int tileno,
+                                                   Cio.OpjEventMgr mgr) {
+        OpjJ2k.OpjCp cp = tcd.cp;
+        OpjImage image = tcd.image;
+        OpjJ2k.OpjTcp tcp = cp.tcps[tileno];
+        OpjTcdTile tile = tcd.tile;
+
+        int p = tileno % cp.tw;
+        int q = tileno / cp.tw;
+
+        tile.x0 = Math.max(cp.tx0 + p * cp.tdx, image.x0);
+        tile.y0 = Math.max(cp.ty0 + q * cp.tdy, image.y0);
+        tile.x1 = (int) Math.min((long) cp.tx0 + (long) (p + 1) * cp.tdx, image.x1);
+        tile.y1 = (int) Math.min((long) cp.ty0 + (long) (q + 1) * cp.tdy, image.y1);
+        if (tile.x0 >= tile.x1 || tile.y0 >= tile.y1) {
+            Cio.opj_event_msg(mgr, Cio.EVT_ERROR, "Tile " + tileno + " has an empty area\n");
+            return false;
+        }
+
+        if (tile.comps == null || tile.comps.length < image.numcomps) {
+            OpjTcdTilecomp[] comps = new OpjTcdTilecomp[image.numcomps];
+            if (tile.comps != null) {
+                System.arraycopy(tile.comps, 0, comps, 0, tile.comps.length);
+            }
+            for (int i = 0; i < comps.length; ++i) {
+                if (comps[i] == null) comps[i] = new OpjTcdTilecomp();
+            }
+            tile.comps = comps;
+        }
+        tile.numcomps = image.numcomps;
+
+        for (int compno = 0; compno < image.numcomps; ++compno) {
+            OpjImage.OpjImageComp imageComp = image.comps[compno];
+            OpjJ2k.OpjTccp tccp = tcp.tccps[compno];
+            OpjTcdTilecomp tilec = tile.comps[compno];
+
+            if (imageComp.dx == 0 || imageComp.dy == 0) {
+                return false;
+            }
+
+            tilec.compno = compno;
+            tilec.x0 = opj_int_ceildiv(tile.x0, imageComp.dx);
+            tilec.y0 = opj_int_ceildiv(tile.y0, imageComp.dy);
+            tilec.x1 = opj_int_ceildiv(tile.x1, imageComp.dx);
+            tilec.y1 = opj_int_ceildiv(tile.y1, imageComp.dy);
+
+            tilec.numresolutions = tccp.numresolutions;
+            if (tccp.numresolutions < cp.reduce) {
+                tilec.minimumNumResolutions = 1;
+            } else {
+                tilec.minimumNumResolutions = tccp.numresolutions - cp.reduce;
+            }
+
+            if (tilec.resolutions == null || tilec.resolutions.length < tilec.numresolutions) {
+                OpjTcdResolution[] res = new OpjTcdResolution[tilec.numresolutions];
+                if (tilec.resolutions != null) {
+                    System.arraycopy(tilec.resolutions, 0, res, 0, tilec.resolutions.length);
+                }
+                for (int i = 0; i < res.length; ++i) {
+                    if (res[i] == null) res[i] = new OpjTcdResolution();
+                }
+                tilec.resolutions = res;
+            }
+
+            if (!opj_tcd_init_tilecomp_resolutions(tilec, tccp, imageComp, mgr)) {
+                return false;
+            }
+        }
+
+        tcd.tcp = tcp;
+        tcd.tcdTileno = tileno;
+        return true;
+    }
+
+    private static boolean opj_tcd_init_tilecomp_resolutions(OpjTcdTilecomp tilec,
+                                                             OpjJ2k.OpjTccp tccp,
+                                                             OpjImage.OpjImageComp imageComp,
+                                                             Cio.OpjEventMgr mgr) {
+        for (int resno = 0; resno < tilec.numresolutions; ++resno) {
+            OpjTcdResolution res = tilec.resolutions[resno];
+            int levelno = tilec.numresolutions - 1 - resno;
+
+            res.x0 = opj_int_ceildivpow2(tilec.x0, levelno);
+            res.y0 = opj_int_ceildivpow2(tilec.y0, levelno);
+            res.x1 = opj_int_ceildivpow2(tilec.x1, levelno);
+            res.y1 = opj_int_ceildivpow2(tilec.y1, levelno);
+
+            int pdx = tccp.prcw[resno];
+            int pdy = tccp.prch[resno];
+
+            // Precinct grid of this resolution
+            int tprcXStart = opj_int_floordivpow2(res.x0, pdx) << pdx;
+            int tprcYStart = opj_int_floordivpow2(res.y0, pdy) << pdy;
+            long brprcXEnd = (long) opj_int_ceildivpow2(res.x1, pdx) << pdx;
+            long brprcYEnd = (long) opj_int_ceildivpow2(res.y1, pdy) << pdy;
+
+            res.pw = (res.x0 == res.x1) ? 0 : (int) ((brprcXEnd - tprcXStart) >> pdx);
+            res.ph = (res.y0 == res.y1) ? 0 : (int) ((brprcYEnd - tprcYStart) >> pdy);
+            if ((long) res.pw * res.ph > Integer.MAX_VALUE / 2) {
+                Cio.opj_event_msg(mgr, Cio.EVT_ERROR, "Too many precincts in tile-component\n");
+                return false;
+            }
+            int numprec = res.pw * res.ph;
+
+            int tlcbgXStart, tlcbgYStart, cbgWidthExpn, cbgHeightExpn;
+            if (resno == 0) {
+                tlcbgXStart = tprcXStart;
+                tlcbgYStart = tprcYStart;
+                cbgWidthExpn = pdx;
+                cbgHeightExpn = pdy;
+                res.numbands = 1;
+            } else {
+                tlcbgXStart = opj_int_ceildivpow2(tprcXStart, 1);
+                tlcbgYStart = opj_int_ceildivpow2(tprcYStart, 1);
+                cbgWidthExpn = pdx - 1;
+                cbgHeightExpn = pdy - 1;
+                res.numbands = 3;
+            }
+
+            int cblkWidthExpn = Math.min(tccp.cblkw, cbgWidthExpn);
+            int cblkHeightExpn = Math.min(tccp.cblkh, cbgHeightExpn);
+
+            for (int bandno = 0; bandno < res.numbands; ++bandno) {
+                OpjTcdBand band = res.bands[bandno];
+                if (band == null) {
+                    band = new OpjTcdBand();
+                    res.bands[bandno] = band;
+                }
+
+                if (resno == 0) {
+                    band.bandno = 0;
+                    band.x0 = opj_int_ceildivpow2(tilec.x0, levelno);
+                    band.y0 = opj_int_ceildivpow2(tilec.y0, levelno);
+                    band.x1 = opj_int_ceildivpow2(tilec.x1, levelno);
+                    band.y1 = opj_int_ceildivpow2(tilec.y1, levelno);
+                } else {
+                    band.bandno = bandno + 1;
+                    int x0b = band.bandno & 1;
+                    int y0b = band.bandno >> 1;
+                    band.x0 = (int) (((long) tilec.x0 - ((long) x0b << levelno) + (1L << (levelno + 1)) - 1) >> (levelno + 1));
+                    band.y0 = (int) (((long) tilec.y0 - ((long) y0b << levelno) + (1L << (levelno + 1)) - 1) >> (levelno + 1));
+                    band.x1 = (int) (((long) tilec.x1 - ((long) x0b << levelno) + (1L << (levelno + 1)) - 1) >> (levelno + 1));
+                    band.y1 = (int) (((long) tilec.y1 - ((long) y0b << levelno) + (1L << (levelno + 1)) - 1) >> (levelno + 1));
+                }
+
+                // Quantisation
+                OpjJ2k.OpjStepsize stepsize =
+                        tccp.stepsizes[resno == 0 ? 0 : 3 * (resno - 1) + bandno + 1];
+                int gain = (tccp.qmfbid == 0)
+                        ? Dwt.opj_dwt_getgain_real(band.bandno)
+                        : Dwt.opj_dwt_getgain(band.bandno);
+                int numbps = imageComp.prec + gain;
+                band.stepsize = (float) ((1.0 + stepsize.mant / 2048.0)
+                        * Math.pow(2.0, numbps - stepsize.expn));
+                band.numbps = stepsize.expn + tccp.numgbits - 1;
+
+                if (band.precincts == null || band.precincts.length < numprec) {
+                    OpjTcdPrecinct[] precincts = new OpjTcdPrecinct[numprec];
+                    if (band.precincts != null) {
+                        System.arraycopy(band.precincts, 0, precincts, 0, band.precincts.length);
+                    }
+                    for (int i = 0; i < numprec; ++i) {
+                        if (precincts[i] == null) precincts[i] = new OpjTcdPrecinct();
+                    }
+                    band.precincts = precincts;
+                }
+
+                for (int precno = 0; precno < numprec; ++precno) {
+                    OpjTcdPrecinct prc = band.precincts[precno];
+
+                    int cbgXStart = tlcbgXStart + (precno % res.pw) * (1 << cbgWidthExpn);
+                    int cbgYStart = tlcbgYStart + (precno / res.pw) * (1 << cbgHeightExpn);
+                    int cbgXEnd = cbgXStart + (1 << cbgWidthExpn);
+                    int cbgYEnd = cbgYStart + (1 << cbgHeightExpn);
+
+                    prc.x0 = Math.max(cbgXStart, band.x0);
+                    prc.y0 = Math.max(cbgYStart, band.y0);
+                    prc.x1 = Math.min(cbgXEnd, band.x1);
+                    prc.y1 = Math.min(cbgYEnd, band.y1);
+
+                    int tlcblkXStart = opj_int_floordivpow2(prc.x0, cblkWidthExpn) << cblkWidthExpn;
+                    int tlcblkYStart = opj_int_floordivpow2(prc.y0, cblkHeightExpn) << cblkHeightExpn;
+                    int brcblkXEnd = opj_int_ceildivpow2(prc.x1, cblkWidthExpn) << cblkWidthExpn;
+                    int brcblkYEnd = opj_int_ceildivpow2(prc.y1, cblkHeightExpn) << cblkHeightExpn;
+
+                    if (prc.x0 >= prc.x1 || prc.y0 >= prc.y1) {
+                        prc.cw = 0;
+                        prc.ch = 0;
+                    } else {
+                        prc.cw = (brcblkXEnd - tlcblkXStart) >> cblkWidthExpn;
+                        prc.ch = (brcblkYEnd - tlcblkYStart) >> cblkHeightExpn;
+                    }
+                    int numcblks = prc.cw * prc.ch;
+
+                    if (prc.cblks == null || prc.cblks.length < numcblks) {
+                        OpjTcdCblkDec[] cblks = new OpjTcdCblkDec[numcblks];
+                        if (prc.cblks != null) {
+                            System.arraycopy(prc.cblks, 0, cblks, 0, prc.cblks.length);
+                        }
+                        for (int i = 0; i < numcblks; ++i) {
+                            if (cblks[i] == null) cblks[i] = new OpjTcdCblkDec();
+                        }
+                        prc.cblks = cblks;
+                    }
+
+                    for (int cblkno = 0; cblkno < numcblks; ++cblkno) {
+                        OpjTcdCblkDec cblk = prc.cblks[cblkno];
+                        int cblkXStart = tlcblkXStart + (cblkno % prc.cw) * (1 << cblkWidthExpn);
+                        int cblkYStart = tlcblkYStart + (cblkno / prc.cw) * (1 << cblkHeightExpn);
+                        int cblkXEnd = cblkXStart + (1 << cblkWidthExpn);
+                        int cblkYEnd = cblkYStart + (1 << cblkHeightExpn);
+
+                        cblk.x0 = Math.max(cblkXStart, prc.x0);
+                        cblk.y0 = Math.max(cblkYStart, prc.y0);
+                        cblk.x1 = Math.min(cblkXEnd, prc.x1);
+                        cblk.y1 = Math.min(cblkYEnd, prc.y1);
+                        opj_tcd_reinit_cblk(cblk);
+                    }
+
+                    if (numcblks > 0) {
+                        prc.incltree = Tgt.opj_tgt_init(prc.incltree, prc.cw, prc.ch);
+                        prc.imsbtree = Tgt.opj_tgt_init(prc.imsbtree, prc.cw, prc.ch);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------------ */
+    /* Tile decoding                                                      */
+    /* ------------------------------------------------------------------ */
+
+    /**
+     * C: OPJ_BOOL opj_tcd_decode_tile(opj_tcd_t *p_tcd, ..., OPJ_BYTE *p_src,
+     *                                 OPJ_UINT32 p_max_length, OPJ_UINT32 p_tile_no, ...);
+     *
+     * Decodes one tile from the concatenated bodies of its tile-parts:
+     * tier-2, tier-1, inverse DWT, inverse MCT and DC level shift. Only
+     * the first minimumNumResolutions resolutions of each component go
+     * through tier-1 and the DWT, and components not selected by
+     * cp.usedComponent are skipped altogether.
+     *
+     * @param elided plan indices of packets that are not in src at all
+     *               (skipped while reading the stream), or null
+     */
+    public static boolean opj_tcd_decode_tile(OpjTcd tcd,
+                                              byte[] src, int len,
+                                              BitSet elided,
+                                              Pi.OpjPiPlan plan,
+                                              int tileno,
+                                              Cio.OpjEventMgr mgr) {
+        return opj_tcd_t2_decode_tile(tcd, src, len, elided, plan, tileno, mgr)
+                && opj_tcd_t1_decode_tile(tcd, mgr);
+    }
+
+    /**
+     * First half of opj_tcd_decode_tile: sets the tile up and runs tier-2,
+     * which leaves the code-block segments in tcd.tile. They point into
+     * src, which must stay untouched until opj_tcd_t1_decode_tile.
+     */
+    public static boolean opj_tcd_t2_decode_tile(OpjTcd tcd,
+                                                 byte[] src, int len,
+                                                 BitSet elided,
+                                                 Pi.OpjPiPlan plan,
+                                                 int tileno,
+                                                 Cio.OpjEventMgr mgr) {
+        if (!opj_tcd_init_decode_tile(tcd, tileno, mgr)) {
+            return false;
+        }
+
+        // Tier-2
+        if (tcd.t2 == null) {
+            tcd.t2 = T2.opj_t2_create(tcd.image, tcd.cp);
+        }
+        if (T2.opj_t2_decode_packets(tcd.t2, tileno, tcd.tile, plan, elided,
+                src == null ? new byte[0] : src, 0, len, mgr) < 0) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Second half of opj_tcd_decode_tile: tier-1, inverse DWT, inverse
+     * MCT and DC level shift of the tile prepared by
+     * opj_tcd_t2_decode_tile.
+     */
+    public static boolean opj_tcd_t1_decode_tile(OpjTcd tcd, Cio.OpjEventMgr mgr) {
+        // Tier-1
+        if (tcd.t1 == null) {
+            tcd.t1 = T1.opj_t1_create(false);
+        }
+        OpjJ2k.OpjTcp tcp = tcd.tcp;
+        for (int compno = 0; compno < tcd.tile.numcomps; ++compno) {
+            if (!opj_tcd_is_component_used(tcd, compno)) {
+                continue;
+            }
+            OpjTcdTilecomp tilec = tcd.tile.comps[compno];
+            OpjJ2k.OpjTccp tccp = tcp.tccps[compno];
+            if (!opj_tcd_alloc_tile_component_data(tilec, tccp.qmfbid == 0, mgr)) {
+                return false;
+            }
+
+            // Only check PTERM when every layer is decoded
+            boolean checkPterm = tcp.numLayersToDecode == tcp.numlayers
+                    && (tccp.cblksty & OpjJ2k.J2K_CCP_CBLKSTY_PTERM) != 0;
+            if (!T1.opj_t1_decode_cblks(tcd.t1, tilec, tccp, mgr, checkPterm)) {
+                return false;
+            }
+        }
+
+        // Inverse DWT
+        for (int compno = 0; compno < tcd.tile.numcomps; ++compno) {
+            if (!opj_tcd_is_component_used(tcd, compno)) {
+                continue;
+            }
+            OpjTcdTilecomp tilec = tcd.tile.comps[compno];
+            boolean ok = tcp.tccps[compno].qmfbid == 1
+                    ? Dwt.opj_dwt_decode(tilec, tilec.minimumNumResolutions)
+                    : Dwt.opj_dwt_decode_real(tilec, tilec.minimumNumResolutions);
+            if (!ok) {
+                return false;
+            }
+        }
+
+        // The MCT may take the DC level shift of its components along
+        opj_tcd_dc_level_shift_decode(tcd, opj_tcd_mct_decode(tcd, mgr));
+        return true;
+    }
+
+    private static boolean opj_tcd_is_component_used(OpjTcd tcd, int compno) {
+        return tcd.cp.usedComponent == null || tcd.cp.usedComponent[compno];
+    }
+
+    /**
+     * C: OPJ_BOOL opj_alloc_tile_component_data(opj_tcd_tilecomp_t *l_tilec);
+     *
+     * Sizes the buffers for the decoded resolution only. Buffers left by a
+     * previous tile are re-used as they are, and pooled ones are taken
+     * uncleared: tier-1 writes every code-block of the decoded resolutions,
+     * empty ones included, and the DC level shift then writes all of data.
+     *
+     * The tile stages work on arrays, so a tile-component is limited to
+     * 2^31 - 1 samples even when the output planes are off-heap; larger
+     * ones are rejected here rather than overflowing the size.
+     */
+    private static boolean opj_tcd_alloc_tile_component_data(OpjTcdTilecomp tilec, boolean real,
+                                                             Cio.OpjEventMgr mgr) {
+        OpjTcdResolution res = opj_tcd_decoded_resolution(tilec);
+        long samples = (long) (res.x1 - res.x0) * (res.y1 - res.y0);
+        if (samples > Integer.MAX_VALUE - 8) {
+            Cio.opj_event_msg(mgr, Cio.EVT_ERROR, String.format(
+                    "Tile-component of %dx%d samples is too large to decode; at most 2^31 samples per tile-component\n",
+                    res.x1 - res.x0, res.y1 - res.y0));
+            return false;
+        }
+        int size = (int) samples;
+        OpjBufferPool pool = OpjBufferPool.getDefault();
+        if (tilec.data == null || tilec.data.length < size) {
+            pool.release(tilec.data);
+            tilec.data = pool.acquireInts(size, false);
+        }
+        if (real && (tilec.dataReal == null || tilec.dataReal.length < size)) {
+            pool.release(tilec.dataReal);
+            tilec.dataReal = pool.acquireFloats(size, false);
+        }
+        return true;
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_tcd_mcd_decode(opj_tcd_t *p_tcd, opj_event_mgr_t *p_manager);
+     *
+     * Where it can, the inverse transform writes the DC level shifted,
+     * clamped output samples of its three components in the same pass
+     * (see opj_tcd_mct_dc_level_shift_decode); it returns how many
+     * components it finished that way (0 or 3).
+     */
+    private static int opj_tcd_mct_decode(OpjTcd tcd, Cio.OpjEventMgr mgr) {
+        OpjJ2k.OpjTcp tcp = tcd.tcp;
+        OpjTcdTile tile = tcd.tile;
+        if (tcp.mct == 0) {
+            return 0;
+        }
+        if (tile.numcomps < 3) {
+            Cio.opj_event_msg(mgr, Cio.EVT_WARNING,
+                    "Number of components (" + tile.numcomps + ") is inconsistent with a MCT. Skip the MCT step.\n");
+            return 0;
+        }
+        // The inverse transform needs all three components; a subset that
+        // leaves one out is returned untransformed (e.g. Y alone)
+        for (int compno = 0; compno < 3; ++compno) {
+            if (!opj_tcd_is_component_used(tcd, compno)) {
+                return 0;
+            }
+        }
+
+        OpjTcdResolution r0 = opj_tcd_decoded_resolution(tile.comps[0]);
+        int n = (r0.x1 - r0.x0) * (r0.y1 - r0.y0);
+        for (int compno = 1; compno < 3; ++compno) {
+            OpjTcdResolution r = opj_tcd_decoded_resolution(tile.comps[compno]);
+            if (r.x1 - r.x0 != r0.x1 - r0.x0 || r.y1 - r.y0 != r0.y1 - r0.y0) {
+                Cio.opj_event_msg(mgr, Cio.EVT_WARNING,
+                        "Cannot perform MCT on components with different sizes. Disabling MCT.\n");
+                return 0;
+            }
+        }
+
+        boolean reversible = tcp.tccps[0].qmfbid == 1;
+        if (reversible || !tcd.cp.floatOutput) {
+            OpjTcdSampleConversion[] conv = new OpjTcdSampleConversion[3];
+            boolean fused = true;
+            for (int compno = 0; compno < 3; ++compno) {
+                conv[compno] = opj_tcd_sample_conversion(tcd, compno);
+                fused &= !conv[compno].up && tcp.tccps[compno].qmfbid == tcp.tccps[0].qmfbid;
+            }
+            if (fused) {
+                opj_tcd_mct_dc_level_shift_decode(tile, reversible, conv, n);
+                return 3;
+            }
+        }
+        if (reversible) {
+            Mct.opj_mct_decode(tile.comps[0].data, tile.comps[1].data, tile.comps[2].data, n);
+        } else {
+            Mct.opj_mct_decode_real(tile.comps[0].dataReal, tile.comps[1].dataReal,
+                    tile.comps[2].dataReal, n);
+        }
+        return 0;
+    }
+
+    /**
+     * opj_mct_decode or opj_mct_decode_real followed by the DC level shift
+     * and clamp (and a precision cut by shift) of the three components,
+     * in one pass over the tile instead of four. The 9-7 samples are
+     * rounded from dataReal into data as they are transformed.
+     */
+    private static void opj_tcd_mct_dc_level_shift_decode(OpjTcdTile tile, boolean reversible,
+                                                          OpjTcdSampleConversion[] conv, int n) {
+        int[] c0 = tile.comps[0].data;
+        int[] c1 = tile.comps[1].data;
+        int[] c2 = tile.comps[2].data;
+        int shift0 = conv[0].shift, min0 = conv[0].min, max0 = conv[0].max, down0 = conv[0].down;
+        int shift1 = conv[1].shift, min1 = conv[1].min, max1 = conv[1].max, down1 = conv[1].down;
+        int shift2 = conv[2].shift, min2 = conv[2].min, max2 = conv[2].max, down2 = conv[2].down;
+        if (reversible) {
+            for (int i = 0; i < n; ++i) {
+                int y = c0[i];
+                int u = c1[i];
+                int v = c2[i];
+                int g = y - ((u + v) >> 2);
+                int r = v + g;
+                int b = u + g;
+                c0[i] = Math.max(min0, Math.min(max0, r + shift0)) >> down0;
+                c1[i] = Math.max(min1, Math.min(max1, g + shift1)) >> down1;
+                c2[i] = Math.max(min2, Math.min(max2, b + shift2)) >> down2;
+            }
+            return;
+        }
+        float[] f0 = tile.comps[0].dataReal;
+        float[] f1 = tile.comps[1].dataReal;
+        float[] f2 = tile.comps[2].dataReal;
+        for (int i = 0; i < n; ++i) {
+            float y = f0[i];
+            float u = f1[i];
+            float v = f2[i];
+            float r = y + (v * 1.402f);
+            float g = y - (u * 0.34413f) - (v * (0.71414f));
+            float b = y + (u * 1.772f);
+            c0[i] = opj_tcd_rint_clamp(r, shift0, min0, max0) >> down0;
+            c1[i] = opj_tcd_rint_clamp(g, shift1, min1, max1) >> down1;
+            c2[i] = opj_tcd_rint_clamp(b, shift2, min2, max2) >> down2;
+        }
+    }
+
+    /**
+     * How the decoded samples of one tile-component become output
+     * samples: DC level shift, clamp to [min, max], then a precision
+     * change, down by a shift or up in proportion.
+     *
+     * Scaling up from prec to prec' bits computes, like C opj_decompress,
+     * u * (2^prec' - 1) / (2^prec - 1) with u the clamped sample from the
+     * minimum, but without the per-sample division: with D = 2^prec - 1
+     * and (2^prec' - 1) = Q * D + R it is u * Q + (t + (t >> prec) + 1)
+     * >> prec for t = u * R, which is exact since t < D^2. For 8 to 16
+     * bits R is 0 and this is u * 257; for 12 to 16 bits it is u * 16 +
+     * u / 4095.
+     */
+    static final class OpjTcdSampleConversion {
+        int shift;
+        int min;
+        int max;
+        /** Bits dropped (SCALE to a lower precision). */
+        int down;
+        /** SCALE to a higher precision: u = v + offsetIn, v' = u * scaleQ + ... - offsetOut. */
+        boolean up;
+        int offsetIn;
+        int offsetOut;
+        int scaleQ;
+        int scaleR;
+        /** The source precision, the shift of the division by 2^prec - 1. */
+        int scaleBits;
+    }
+
+    private static OpjTcdSampleConversion opj_tcd_sample_conversion(OpjTcd tcd, int compno) {
+        OpjImage.OpjImageComp imgComp = tcd.image.comps[compno];
+        OpjTcdSampleConversion conv = new OpjTcdSampleConversion();
+        conv.shift = tcd.tcp.tccps[compno].dcLevelShift;
+        if (imgComp.sgnd) {
+            conv.min = -(1 << (imgComp.prec - 1));
+            conv.max = (1 << (imgComp.prec - 1)) - 1;
+        } else {
+            conv.min = 0;
+            conv.max = (int) ((1L << imgComp.prec) - 1);
+        }
+
+        OpjPrecision target = tcd.cp.precision != null ? tcd.cp.precision[compno] : null;
+        if (target == null) {
+            return conv;
+        }
+        int prec = target.getPrec();
+        if (target.getMode() != OpjPrecision.OpjPrecisionMode.OPJ_PREC_MODE_SCALE) {
+            if (imgComp.sgnd) {
+                conv.min = Math.max(conv.min, -(1 << (prec - 1)));
+                conv.max = Math.min(conv.max, (1 << (prec - 1)) - 1);
+            } else {
+                conv.max = (int) Math.min(conv.max, (1L << prec) - 1);
+            }
+        } else if (prec < imgComp.prec) {
+            conv.down = imgComp.prec - prec;
+        } else if (prec > imgComp.prec) {
+            // v' = (v - min) * (2^prec' - 1) / (2^prec - 1) + min'
+            long k = (1L << prec) - 1;
+            long d = (1L << imgComp.prec) - 1;
+            conv.up = true;
+            conv.scaleQ = (int) (k / d);
+            conv.scaleR = (int) (k % d);
+            conv.scaleBits = imgComp.prec;
+            if (imgComp.sgnd) {
+                conv.offsetIn = 1 << (imgComp.prec - 1);
+                conv.offsetOut = (int) (1L << (prec - 1));
+            }
+        }
+        return conv;
+    }
+
+    /** lrintf(value) + shift, saturated to [min, max]. */
+    private static int opj_tcd_rint_clamp(float value, int shift, int min, int max) {
+        // Saturate in long: lrintf(value) + shift can overflow
+        long v = (long) Math.rint(Math.max(-0x1p31f, Math.min(0x1p31f, value))) + shift;
+        return (int) Math.max(min, Math.min(max, v));
+    }
+
+    /**
+     * C: static OPJ_BOOL opj_tcd_dc_level_shift_decode(opj_tcd_t *p_tcd);
+     *
+     * Adds the DC level shift and clamps to the component range, from
+     * component first on (the MCT did the ones before). For 9-7
+     * components this is also where dataReal is rounded into data.
+     *
+     * A requested output precision (cp.precision) is folded into the same
+     * pass: CLIP narrows the clamp range, SCALE shifts the clamped sample
+     * down (e.g. 16 to 8 bits for display) or stretches it up in
+     * proportion (e.g. 12 to 16 bits), so the old maximum becomes the new
+     * one. Signed samples are stretched from their minimum. The loops only
+     * add, clamp, multiply and shift (see OpjTcdSampleConversion), which
+     * the JIT vectorizes.
+     */
+    private static void opj_tcd_dc_level_shift_decode(OpjTcd tcd, int first) {
+        OpjTcdTile tile = tcd.tile;
+        for (int compno = first; compno < tile.numcomps; ++compno) {
+            if (!opj_tcd_is_component_used(tcd, compno)) {
+                continue;
+            }
+            OpjTcdTilecomp tilec = tile.comps[compno];
+            OpjJ2k.OpjTccp tccp = tcd.tcp.tccps[compno];
+            if (tcd.cp.floatOutput && tccp.qmfbid != 1) {
+                // Float output takes dataReal as it is
+                continue;
+            }
+
+            OpjTcdResolution res = opj_tcd_decoded_resolution(tilec);
+            int n = (res.x1 - res.x0) * (res.y1 - res.y0);
+            OpjTcdSampleConversion conv = opj_tcd_sample_conversion(tcd, compno);
+            int shift = conv.shift;
+            int min = conv.min;
+            int max = conv.max;
+            int down = conv.down;
+            int[] data = tilec.data;
+
+            if (tccp.qmfbid != 1) {
+                float[] dataReal = tilec.dataReal;
+                for (int i = 0; i < n; ++i) {
+                    data[i] = opj_tcd_rint_clamp(dataReal[i], shift, min, max) >> down;
+                }
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    data[i] = Math.max(min, Math.min(max, data[i] + shift)) >> down;
+                }
+            }
+            if (conv.up) {
+                opj_tcd_scale_up(data, n, conv);
+            }
+        }
+    }
+
+    /** Stretches n clamped samples to the higher precision of conv. */
+    private static void opj_tcd_scale_up(int[] data, int n, OpjTcdSampleConversion conv) {
+        int offsetIn = conv.offsetIn;
+        int offsetOut = conv.offsetOut;
+        int q = conv.scaleQ;
+        int r = conv.scaleR;
+        int bits = conv.scaleBits;
+        if (bits <= 15) {
+            // u * r < 2^30: all in int
+            for (int i = 0; i < n; ++i) {
+                int u = data[i] + offsetIn;
+                int t = u * r;
+                data[i] = u * q + ((t + (t >>> bits) + 1) >>> bits) - offsetOut;
+            }
+        } else {
+            for (int i = 0; i < n; ++i) {
+                int u = data[i] + offsetIn;
+                long t = (long) u * r;
+                data[i] = u * q + (int) ((t + (t >>> bits) + 1) >>> bits) - offsetOut;
+            }
+        }
+    }
+
+    /** The resolution a tile-component is decoded at (its data layout). */
+    static OpjTcdResolution opj_tcd_decoded_resolution(OpjTcdTilecomp tilec) {
+        return tilec.resolutions[tilec.minimumNumResolutions - 1];
+    }
+
+    /**
+     * Clears the decoding state of a code-block while keeping its segment
+     * and chunk arrays for re-use.
+     */
+    private static void opj_tcd_reinit_cblk(OpjTcdCblkDec cblk) {
+        cblk.numbps = 0;
+        cblk.numlenbits = 0;
+        cblk.numnewpasses = 0;
+        cblk.numsegs = 0;
+        cblk.realNumSegs = 0;
+        cblk.numchunks = 0;
+        cblk.corrupted = false;
+        cblk.decodedData = null;
+    }
+
+    /**
+     * C: void opj_tcd_reinit_segment(opj_tcd_seg_t* seg);
+     */
+    public static void opj_tcd_reinit_segment(OpjTcdSeg seg) {
+        seg.len = 0;
+        seg.numpasses = 0;
+        seg.realNumPasses = 0;
+        seg.maxpasses = 0;
+        seg.numnewpasses = 0;
+        seg.newlen = 0;
+    }
+
+    /**
+     * C: OPJ_BOOL opj_tcd_is_band_empty(opj_tcd_band_t* band);
+     */
+    public static boolean opj_tcd_is_band_empty(OpjTcdBand band) {
+        return (band.x1 - band.x0 == 0) || (band.y1 - band.y0 == 0);
+    }
+}
@@ -0,0 +1,182 @@
+package jopj;
+
+import java.util.Arrays;
+
+/**
+ * Java port of tgt.c / tgt.h
+ *
+ * Tag trees used by tier-2 for code-block inclusion and zero bit-plane
+ * information. Unlike the C version, which allocates one opj_tgt_node_t
+ * per node, a tree here is a set of flat int[] arrays indexed by node
+ * number: leaves first (row-major), then each coarser level in turn.
+ *
+ * A tree is created once per precinct and then only re-shaped with
+ * opj_tgt_init / cleared with opj_tgt_reset; the arrays are re-used as
+ * long as they are large enough.
+ */
+public final class Tgt {
+
+    private Tgt() {
+    }
+
+    /** Value of an unknown node after a reset (same as the C code). */
+    private static final int OPJ_TGT_UNKNOWN = 999;
+
+    /** A tag tree over at most 2^31 leaves never has more than 32 levels. */
+    private static final int OPJ_TGT_MAX_LEVELS = 32;
+
+    /**
+     * Java equivalent of opj_tgt_tree_t.
+     */
+    public static final class OpjTgtTree {
+        public int numleafsh;
+        public int numleafsv;
+        public int numnodes;
+
+        /** parent[n] is the index of the parent of node n, -1 for the root. */
+        public int[] parent;
+        public int[] value;
+        public int[] low;
+
+        /** Scratch path from a leaf to the root, used by opj_tgt_decode. */
+        int[] stack = new int[OPJ_TGT_MAX_LEVELS];
+    }
+
+    /**
+     * C: opj_tgt_tree_t *opj_tgt_create(OPJ_UINT32 numleafsh, OPJ_UINT32 numleafsv, ...);
+     *
+     * Returns null when the tree would be empty (no leaves), like the C code.
+     */
+    public static OpjTgtTree opj_tgt_create(int numleafsh, int numleafsv) {
+        if (numleafsh <= 0 || numleafsv <= 0) {
+            return null;
+        }
+        return opj_tgt_init(new OpjTgtTree(), numleafsh, numleafsv);
+    }
+
+    /**
+     * C: opj_tgt_tree_t *opj_tgt_init(opj_tgt_tree_t * p_tree, OPJ_UINT32 p_num_leafs_h,
+     *                                 OPJ_UINT32 p_num_leafs_v, ...);
+     *
+     * Re-shapes an existing tree for a new leaf grid and resets it. The
+     * node arrays are only re-allocated when they are too small. A null
+     * tree is created.
+     */
+    public static OpjTgtTree opj_tgt_init(OpjTgtTree tree, int numleafsh, int numleafsv) {
+        if (tree == null) {
+            return opj_tgt_create(numleafsh, numleafsv);
+        }
+
+        if (tree.parent == null
+                || tree.numleafsh != numleafsh
+                || tree.numleafsv != numleafsv) {
+
+            int numnodes = 0;
+            int w = numleafsh;
+            int h = numleafsv;
+            int n;
+            do {
+                n = w * h;
+                numnodes += n;
+                w = (w + 1) >> 1;
+                h = (h + 1) >> 1;
+            } while (n > 1);
+
+            if (tree.parent == null || tree.parent.length < numnodes) {
+                tree.parent = new int[numnodes];
+                tree.value  = new int[numnodes];
+                tree.low    = new int[numnodes];
+            }
+
+            // Link every node to its parent, level by level.
+            int levelStart = 0;
+            w = numleafsh;
+            h = numleafsv;
+            while (w * h > 1) {
+                int pw = (w + 1) >> 1;
+                int parentStart = levelStart + w * h;
+                for (int y = 0; y < h; ++y) {
+                    int row = levelStart + y * w;
+                    int parentRow = parentStart + (y >> 1) * pw;
+                    for (int x = 0; x < w; ++x) {
+                        tree.parent[row + x] = parentRow + (x >> 1);
+                    }
+                }
+                levelStart = parentStart;
+                w = pw;
+                h = (h + 1) >> 1;
+            }
+            tree.parent[levelStart] = -1;
+
+            tree.numleafsh = numleafsh;
+            tree.numleafsv = numleafsv;
+            tree.numnodes  = numnodes;
+        }
+
+        opj_tgt_reset(tree);
+        return tree;
+    }
+
+    /**
+     * C: void opj_tgt_destroy(opj_tgt_tree_t *tree);
+     */
+    public static void opj_tgt_destroy(OpjTgtTree tree) {
+        if (tree == null) return;
+        tree.parent = null;
+        tree.value  = null;
+        tree.low    = null;
+    }
+
+    /**
+     * C: void opj_tgt_reset(opj_tgt_tree_t *tree);
+     */
+    public static void opj_tgt_reset(OpjTgtTree tree) {
+        if (tree == null) return;
+        Arrays.fill(tree.value, 0, tree.numnodes, OPJ_TGT_UNKNOWN);
+        Arrays.fill(tree.low, 0, tree.numnodes, 0);
+    }
+
+    /**
+     * C: OPJ_UINT32 opj_tgt_decode(opj_bio_t *bio, opj_tgt_tree_t *tree,
+     *                              OPJ_UINT32 leafno, OPJ_INT32 threshold);
+     *
+     * Returns 1 if the value of the leaf is below threshold, 0 otherwise.
+     */
+    public static int opj_tgt_decode(Bio.OpjBio bio, OpjTgtTree tree,
+                                     int leafno, int threshold) {
+        final int[] parent = tree.parent;
+        final int[] value = tree.value;
+        final int[] lows = tree.low;
+        final int[] stk = tree.stack;
+
+        int stkptr = 0;
+        int node = leafno;
+        while (parent[node] >= 0) {
+            stk[stkptr++] = node;
+            node = parent[node];
+        }
+
+        int low = 0;
+        for (;;) {
+            if (low > lows[node]) {
+                lows[node] = low;
+            } else {
+                low = lows[node];
+            }
+            while (low < threshold && low < value[node]) {
+                if (Bio.opj_bio_read(bio, 1) != 0) {
+                    value[node] = low;
+                } else {
+                    ++low;
+                }
+            }
+            lows[node] = low;
+            if (stkptr == 0) {
+                break;
+            }
+            node = stk[--stkptr];
+        }
+
+        return (value[node] < threshold) ? 1 : 0;
+    }
+}
@@ -0,0 +1,1514 @@
+package jopj;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.jaiimageio.jpeg2000.J2KImageWriteParam;
+
+/**
+ * Round trips through the JJ2000 encoder of jai-imageio: an image is
+ * encoded losslessly (5-3) and must decode to exactly the same samples.
+ * Lossy (9-7) streams are checked against JJ2000's own decoder.
+ */
+class OpjDecompressTest {
+
+    /** A noisy gradient, different in every component. */
+    static BufferedImage testImage(int width, int height, int numComps) {
+        BufferedImage img = new BufferedImage(width, height,
+                numComps == 3 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY);
+        Random random = new Random(width * 31L + height);
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                for (int c = 0; c < numComps; ++c) {
+                    img.getRaster().setSample(x, y, c, (x * (c + 1) + y * (3 - c) + random.nextInt(40)) & 0xFF);
+                }
+            }
+        }
+        return img;
+    }
+
+    /** Encodes img with JJ2000; setup adjusts the (lossless) defaults. */
+    static byte[] encode(BufferedImage img, Consumer<J2KImageWriteParam> setup) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+        J2KImageWriteParam param = (J2KImageWriteParam) writer.getDefaultWriteParam();
+        param.setLossless(true);
+        setup.accept(param);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    static void assertSameSamples(BufferedImage expected, OpjDecompress.DecodedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(width, actual.width);
+        assertEquals(height, actual.height);
+        assertEquals(expected.getRaster().getNumBands(), actual.numComponents);
+        for (int c = 0; c < actual.numComponents; ++c) {
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    int i = y * width + x;
+                    assertEquals(expected.getRaster().getSample(x, y, c), actual.sample(c, i),
+                            "component " + c + " at (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    void losslessGrey() throws IOException {
+        BufferedImage img = testImage(123, 97, 1);
+        byte[] jp2 = encode(img, p -> { });
+        assertSameSamples(img, OpjDecompress.decode(jp2, new OpjDecompressParameters()));
+    }
+
+    @Test
+    void losslessRgbCodestream() throws IOException {
+        BufferedImage img = testImage(123, 97, 3);
+        byte[] j2k = encode(img, p -> p.setWriteCodeStreamOnly(true));
+        assertSameSamples(img, OpjDecompress.decode(j2k, new OpjDecompressParameters()));
+    }
+
+    @Test
+    void losslessTiledMultiThreaded() throws IOException {
+        BufferedImage img = testImage(150, 111, 3);
+        byte[] jp2 = encode(img, p -> {
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(40, 40, 0, 0);
+            p.setSOP(true);
+            p.setEPH(true);
+            p.setCodeBlockSize(new int[] {16, 16});
+        });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setNumThreads(4);
+        assertSameSamples(img, OpjDecompress.decode(jp2, parameters));
+    }
+
+    @Test
+    void tileWorkersLiveAsLongAsTheCodec() throws Exception {
+        byte[] j2k = encode(testImage(96, 96, 1), p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+        });
+        Set<Thread> before = Thread.getAllStackTraces().keySet();
+        OpjCodec codec = OpenJpeg.opj_create_decompress(OpenJpeg.OpjCodecFormat.OPJ_CODEC_J2K);
+        OpenJpeg.OpjDParameters params = new OpenJpeg.OpjDParameters();
+        OpenJpeg.opj_set_default_decoder_parameters(params);
+        assertTrue(OpenJpeg.opj_setup_decoder(codec, params));
+        assertTrue(OpenJpeg.opj_codec_set_threads(codec, 3));
+        OpjStream stream = OpjStream.createFromByteArray(j2k);
+        OpjImage image = new OpjImage();
+        assertTrue(OpenJpeg.opj_read_header(stream, codec, image));
+        assertTrue(OpenJpeg.opj_decode(codec, stream, image));
+
+        List<Thread> workers = new ArrayList<>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("jopj-tile") && !before.contains(t)) {
+                workers.add(t);
+            }
+        }
+        // Nine tiles keep all three workers busy; they stay for the next decode
+        assertEquals(3, workers.size());
+        for (Thread t : workers) {
+            t.join(100);
+            assertTrue(t.isAlive());
+        }
+        OpenJpeg.opj_destroy_codec(codec);
+        for (Thread t : workers) {
+            t.join(5000);
+            assertFalse(t.isAlive());
+        }
+    }
+
+    @Test
+    void manyTilesPipelineThroughFewTileDecoders() throws IOException {
+        BufferedImage img = testImage(200, 150, 3);
+        byte[] j2k = encode(img, p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(24, 24, 0, 0);
+        });
+        // 63 tiles share the four tile decoders of two workers
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setNumThreads(2);
+        assertSameSamples(img, OpjDecompress.decode(j2k, parameters));
+    }
+    /** Two 32x32 tiles of two components, 2 layers, 2 resolutions, one precinct each. */
+    static OpjJ2k.OpjCp planTestCodingParameters(OpjImage image) {
+        image.x1 = 64;
+        image.y1 = 32;
+        image.numcomps = 2;
+        image.comps = new OpjImage.OpjImageComp[2];
+        OpjJ2k.OpjCp cp = new OpjJ2k.OpjCp();
+        cp.tdx = 32;
+        cp.tdy = 32;
+        cp.tw = 2;
+        cp.th = 1;
+        cp.tcps = new OpjJ2k.OpjTcp[2];
+        for (int compno = 0; compno < 2; ++compno) {
+            image.comps[compno] = new OpjImage.OpjImageComp();
+            image.comps[compno].dx = 1;
+            image.comps[compno].dy = 1;
+        }
+        for (int tileno = 0; tileno < 2; ++tileno) {
+            OpjJ2k.OpjTcp tcp = new OpjJ2k.OpjTcp();
+            tcp.numlayers = 2;
+            tcp.tccps = new OpjJ2k.OpjTccp[2];
+            for (int compno = 0; compno < 2; ++compno) {
+                tcp.tccps[compno] = new OpjJ2k.OpjTccp();
+                tcp.tccps[compno].numresolutions = 2;
+                Arrays.fill(tcp.tccps[compno].prcw, 15);
+                Arrays.fill(tcp.tccps[compno].prch, 15);
+            }
+            cp.tcps[tileno] = tcp;
+        }
+        return cp;
+    }
+
+    static OpjJ2k.OpjPoc poc(OpjJ2k.OpjProgOrder prg, int layno1, int resno0, int resno1, int compno0, int compno1) {
+        OpjJ2k.OpjPoc poc = new OpjJ2k.OpjPoc();
+        poc.prg = prg;
+        poc.layno1 = layno1;
+        poc.resno0 = resno0;
+        poc.resno1 = resno1;
+        poc.compno0 = compno0;
+        poc.compno1 = compno1;
+        return poc;
+    }
+
+    /** The plan's packets as "layno resno compno precno" lines. */
+    static List<String> packets(Pi.OpjPiPlan plan) {
+        List<String> packets = new ArrayList<>();
+        for (int i = 0; i < plan.numpackets; ++i) {
+            int k = i * Pi.PI_STRIDE;
+            packets.add(plan.packets[k + Pi.PI_LAYNO] + " " + plan.packets[k + Pi.PI_RESNO] + " "
+                    + plan.packets[k + Pi.PI_COMPNO] + " " + plan.packets[k + Pi.PI_PRECNO]);
+        }
+        return packets;
+    }
+
+    @Test
+    void packetPlansAreSharedAndListEveryPacketOnce() {
+        OpjImage image = new OpjImage();
+        OpjJ2k.OpjCp cp = planTestCodingParameters(image);
+        Pi.OpjPiPlanCache cache = Pi.opj_pi_create_plan_cache();
+        Pi.OpjPiPlan plan = Pi.opj_pi_get_decode_plan(image, cp, 0, cache);
+        assertEquals(List.of("0 0 0 0", "0 0 1 0", "0 1 0 0", "0 1 1 0",
+                "1 0 0 0", "1 0 1 0", "1 1 0 0", "1 1 1 0"), packets(plan));
+        // Same geometry: the second tile walks the same plan
+        assertSame(plan, Pi.opj_pi_get_decode_plan(image, cp, 1, cache));
+
+        // A POC that revisits resolution 0: its packets are not listed twice
+        OpjJ2k.OpjTcp tcp = cp.tcps[1];
+        tcp.poc = true;
+        tcp.numpocs = 1;
+        tcp.pocs[0] = poc(OpjJ2k.OpjProgOrder.RLCP, 2, 0, 1, 0, 2);
+        tcp.pocs[1] = poc(OpjJ2k.OpjProgOrder.LRCP, 2, 0, 2, 0, 2);
+        Pi.OpjPiPlan changed = Pi.opj_pi_get_decode_plan(image, cp, 1, cache);
+        assertEquals(List.of("0 0 0 0", "0 0 1 0", "1 0 0 0", "1 0 1 0",
+                "0 1 0 0", "0 1 1 0", "1 1 0 0", "1 1 1 0"), packets(changed));
+        assertSame(plan, Pi.opj_pi_get_decode_plan(image, cp, 0, cache));
+        assertSame(changed, Pi.opj_pi_get_decode_plan(image, cp, 1, cache));
+    }
+
+    @Test
+    void irreversibleMatchesReferenceDecoder() throws IOException {
+        BufferedImage img = testImage(128, 100, 1);
+        byte[] jp2 = encode(img, p -> {
+            p.setLossless(false);
+            p.setFilter(J2KImageWriteParam.FILTER_97);
+            p.setEncodingRate(2);
+        });
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jp2));
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(jp2, new OpjDecompressParameters());
+        for (int y = 0; y < img.getHeight(); ++y) {
+            for (int x = 0; x < img.getWidth(); ++x) {
+                // The two float pipelines may round differently
+                int diff = reference.getRaster().getSample(x, y, 0) - decoded.sample(0, y * img.getWidth() + x);
+                assertTrue(Math.abs(diff) <= 1, "at (" + x + ", " + y + "): off by " + diff);
+            }
+        }
+    }
+
+    @Test
+    void truncatedCodestreamKeepsCompletePasses() throws IOException {
+        BufferedImage img = testImage(128, 128, 1);
+        byte[] j2k = encode(img, p -> p.setWriteCodeStreamOnly(true));
+        byte[] truncated = Arrays.copyOf(j2k, j2k.length * 3 / 4);
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(truncated, new OpjDecompressParameters());
+        double squaredError = 0;
+        for (int y = 0; y < 128; ++y) {
+            for (int x = 0; x < 128; ++x) {
+                int diff = img.getRaster().getSample(x, y, 0) - decoded.sample(0, y * 128 + x);
+                squaredError += diff * diff;
+            }
+        }
+        // Dropping the code-blocks hit by the cut entirely gives an MSE above 100
+        assertTrue(squaredError / (128 * 128) < 10, "MSE " + squaredError / (128 * 128));
+    }
+
+    /**
+     * Leaves 1 and 2 under a root of 1, as "01" for the root, "1" for leaf 0
+     * and "01" for leaf 1.
+     */
+    @Test
+    void tagTreeIsReshapedAndResetInPlace() {
+        Tgt.OpjTgtTree tree = Tgt.opj_tgt_create(3, 2);
+        int[] parent = tree.parent;
+        assertSame(tree, Tgt.opj_tgt_init(tree, 2, 1));
+        assertSame(parent, tree.parent);
+        assertEquals(3, tree.numnodes);
+        Bio.OpjBio bio = Bio.opj_bio_create();
+        for (int pass = 0; pass < 2; ++pass) {
+            Bio.opj_bio_init_dec(bio, new byte[] {0x68}, 0, 1);
+            assertEquals(1, Tgt.opj_tgt_decode(bio, tree, 0, 3));
+            assertEquals(1, Tgt.opj_tgt_decode(bio, tree, 1, 3));
+            assertEquals(1, tree.value[0]);
+            assertEquals(2, tree.value[1]);
+            assertEquals(1, tree.value[2]);
+            Tgt.opj_tgt_reset(tree);
+        }
+    }
+
+    /** A tile with one component, one resolution and a single 8x8 code-block. */
+    static Tcd.OpjTcdTile oneCodeBlockTile() {
+        Tcd.OpjTcdPrecinct prc = new Tcd.OpjTcdPrecinct();
+        prc.cw = 1;
+        prc.ch = 1;
+        prc.cblks = new Tcd.OpjTcdCblkDec[] {new Tcd.OpjTcdCblkDec()};
+        prc.incltree = Tgt.opj_tgt_create(1, 1);
+        prc.imsbtree = Tgt.opj_tgt_create(1, 1);
+        Tcd.OpjTcdBand band = new Tcd.OpjTcdBand();
+        band.x1 = 8;
+        band.y1 = 8;
+        band.numbps = 8;
+        band.precincts = new Tcd.OpjTcdPrecinct[] {prc};
+        Tcd.OpjTcdResolution res = new Tcd.OpjTcdResolution();
+        res.pw = 1;
+        res.ph = 1;
+        res.numbands = 1;
+        res.bands[0] = band;
+        Tcd.OpjTcdTilecomp tilec = new Tcd.OpjTcdTilecomp();
+        tilec.numresolutions = 1;
+        tilec.resolutions = new Tcd.OpjTcdResolution[] {res};
+        Tcd.OpjTcdTile tile = new Tcd.OpjTcdTile();
+        tile.numcomps = 1;
+        tile.comps = new Tcd.OpjTcdTilecomp[] {tilec};
+        return tile;
+    }
+
+    @Test
+    void cutPacketBodyCountsItsPassesWithoutData() {
+        OpjJ2k.OpjTcp tcp = new OpjJ2k.OpjTcp();
+        tcp.tccps = new OpjJ2k.OpjTccp[] {new OpjJ2k.OpjTccp()};
+        T2.OpjT2 t2 = T2.opj_t2_create(new OpjImage(), new OpjJ2k.OpjCp());
+        // Present, included, no missing bit-plane, 1 pass, 5 bytes in 3 bits
+        byte[] packet = {(byte) 0xE5, 1, 2, 3, 4, 5};
+
+        Tcd.OpjTcdTile tile = oneCodeBlockTile();
+        assertEquals(6, T2.opj_t2_decode_packet(t2, tile, tcp, 0, 0, 0, 0, packet, 0, 6, null));
+        Tcd.OpjTcdCblkDec cblk = tile.comps[0].resolutions[0].bands[0].precincts[0].cblks[0];
+        assertEquals(8, cblk.numbps);
+        assertEquals(1, cblk.numchunks);
+        assertEquals(1, cblk.chunks[0].offset);
+        assertEquals(5, cblk.chunks[0].len);
+        assertEquals(1, cblk.segs[0].realNumPasses);
+
+        // Cut inside the body: the pass is counted, but has no data
+        tile = oneCodeBlockTile();
+        assertEquals(4, T2.opj_t2_decode_packet(t2, tile, tcp, 0, 0, 0, 0, packet, 0, 4, null));
+        cblk = tile.comps[0].resolutions[0].bands[0].precincts[0].cblks[0];
+        assertEquals(0, cblk.numchunks);
+        assertEquals(1, cblk.segs[0].numpasses);
+        assertEquals(0, cblk.segs[0].realNumPasses);
+    }
+    @Test
+    void componentSubsetSkipsTheInverseMct() throws IOException {
+        BufferedImage img = testImage(61, 43, 3);
+        byte[] j2k = encode(img, p -> p.setWriteCodeStreamOnly(true));
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setCompsIndices(new int[] {0});
+        OpjDecompress.DecodedImage luma = OpjDecompress.decode(j2k, parameters);
+        assertEquals(1, luma.numComponents);
+        // Without the inverse RCT the first component is the codestream's Y
+        for (int y = 0; y < 43; ++y) {
+            for (int x = 0; x < 61; ++x) {
+                int r = img.getRaster().getSample(x, y, 0);
+                int g = img.getRaster().getSample(x, y, 1);
+                int b = img.getRaster().getSample(x, y, 2);
+                assertEquals(Math.floorDiv(r + 2 * g + b, 4), luma.sample(0, y * 61 + x),
+                        "at (" + x + ", " + y + ")");
+            }
+        }
+
+        parameters.setCompsIndices(new int[] {0, 1, 2});
+        assertSameSamples(img, OpjDecompress.decode(j2k, parameters));
+    }
+
+    @Test
+    void mappedFileIsReadAcrossMappings() throws IOException {
+        BufferedImage img = testImage(77, 50, 3);
+        byte[] jp2 = encode(img, p -> { });
+        Path file = Files.createTempFile("jopj", ".jp2");
+        try {
+            Files.write(file, jp2);
+            assertSameSamples(img, OpjDecompress.decode(file, new OpjDecompressParameters()));
+
+            // 100-byte mappings: reads, skips and seeks run from one into the next
+            int offset = 5;
+            int length = jp2.length - offset;
+            OpjStream.ByteBufferSource src = OpjStream.ByteBufferSource.map(file, offset, length, 100);
+            assertEquals(length, src.length());
+            byte[] buffer = new byte[250];
+            assertEquals(250, src.read(buffer, 250));
+            assertArrayEquals(Arrays.copyOfRange(jp2, offset, offset + 250), buffer);
+            assertEquals(30, src.skip(30));
+            assertEquals(250, src.read(buffer, 250));
+            assertArrayEquals(Arrays.copyOfRange(jp2, offset + 280, offset + 530), buffer);
+            assertTrue(src.seek(95));
+            assertEquals(10, src.read(buffer, 10));
+            assertArrayEquals(Arrays.copyOfRange(jp2, offset + 95, offset + 105), Arrays.copyOf(buffer, 10));
+            assertTrue(src.seek(length - 3));
+            assertEquals(3, src.read(buffer, 250));
+            assertArrayEquals(Arrays.copyOfRange(jp2, jp2.length - 3, jp2.length), Arrays.copyOf(buffer, 3));
+            assertEquals(-1, src.read(buffer, 250));
+            assertFalse(src.seek(length + 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void directBufferIsDecodedInPlace() throws IOException {
+        BufferedImage img = testImage(70, 45, 3);
+        for (byte[] input : List.of(encode(img, p -> { }), encode(img, p -> p.setWriteCodeStreamOnly(true)))) {
+            // The image sits between unrelated bytes, as in a network or DICOM buffer
+            ByteBuffer buffer = ByteBuffer.allocateDirect(input.length + 64);
+            buffer.put(new byte[16]).put(input).put(new byte[48]);
+            buffer.position(16).limit(16 + input.length);
+            assertSameSamples(img, OpjDecompress.decode(buffer, new OpjDecompressParameters()));
+            assertEquals(16, buffer.position());
+            assertEquals(16 + input.length, buffer.limit());
+        }
+    }
+
+    @Test
+    void smallReadsSkipsAndSeeksAreServedFromTheStreamBuffer() {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        OpjStream.ByteArraySource src = new OpjStream.ByteArraySource(data);
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger seeks = new AtomicInteger();
+        Cio.OpjStreamPrivate s = Cio.opj_stream_create(16, true);
+        Cio.opj_stream_set_read_function(s, (buffer, n, user) -> {
+            reads.incrementAndGet();
+            return src.read(buffer, n);
+        });
+        Cio.opj_stream_set_skip_function(s, (n, user) -> src.skip(n));
+        Cio.opj_stream_set_seek_function(s, (offset, user) -> {
+            seeks.incrementAndGet();
+            return src.seek(offset);
+        });
+        Cio.opj_stream_set_user_data_length(s, data.length);
+
+        // Marker-sized reads: one fill of 16 bytes serves eight of them
+        byte[] two = new byte[2];
+        for (int i = 0; i < 8; ++i) {
+            assertEquals(2, Cio.opj_stream_read_data(s, two, 2, null));
+            assertEquals(2 * i, two[0]);
+            assertEquals(2 * i + 1, two[1]);
+        }
+        assertEquals(1, reads.get());
+
+        // A skip and a seek back within the buffered bytes call no callback
+        assertEquals(16, Cio.opj_stream_read_data(s, new byte[16], 16, null));
+        assertEquals(2, reads.get());
+        assertTrue(Cio.opj_stream_seek(s, 20, null));
+        assertEquals(4, Cio.opj_stream_skip(s, 4, null));
+        assertEquals(2, Cio.opj_stream_read_data(s, two, 2, null));
+        assertEquals(24, two[0]);
+        assertEquals(2, reads.get());
+        assertEquals(0, seeks.get());
+
+        // Outside of them, the source is asked
+        assertTrue(Cio.opj_stream_seek(s, 90, null));
+        assertEquals(1, seeks.get());
+        assertEquals(10, Cio.opj_stream_read_data(s, new byte[16], 16, null));
+        assertEquals(-1, Cio.opj_stream_read_data(s, two, 2, null));
+    }
+
+    @Test
+    void jp2CodestreamIsReadInPlace() throws IOException {
+        BufferedImage img = testImage(66, 40, 1);
+        byte[] encoded = encode(img, p -> { });
+        // A box after jp2c: the codestream view must end with the jp2c box
+        byte[] jp2 = Arrays.copyOf(encoded, encoded.length + 16);
+        byte[] xml = {0, 0, 0, 16, 'x', 'm', 'l', ' ', (byte) 0xFF, 0x4F, (byte) 0xFF, 0x51, 0, 0, 0, 0};
+        System.arraycopy(xml, 0, jp2, encoded.length, xml.length);
+
+        Jp2Parser.CodestreamRange range = Jp2Parser.findCodestream(jp2);
+        assertEquals(encoded.length, range.offset + range.length);
+        assertEquals((byte) 0xFF, jp2[(int) range.offset]);
+        assertEquals((byte) 0x4F, jp2[(int) range.offset + 1]);
+        assertEquals((byte) 0xFF, jp2[(int) (range.offset + range.length - 2)]);
+        assertEquals((byte) 0xD9, jp2[(int) (range.offset + range.length - 1)]);
+        assertArrayEquals(Arrays.copyOfRange(jp2, (int) range.offset, (int) (range.offset + range.length)),
+                Jp2Parser.extractCodestream(jp2));
+        assertSameSamples(img, OpjDecompress.decode(jp2, new OpjDecompressParameters()));
+    }
+
+    /**
+     * A 5 GB JP2 file that is never materialized: signature, ftyp, jp2h
+     * with ihdr, a 5 GB XL free box, then a jp2c box running to the end.
+     */
+    static final long HUGE_FREE_BOX = 5L << 30;
+
+    static byte[] hugeJp2Head() {
+        ByteBuffer head = ByteBuffer.allocate(78);
+        head.putInt(12).putInt(0x6A502020).putInt(0x0D0A870A);
+        head.putInt(20).put("ftypjp2 ".getBytes()).putInt(0).put("jp2 ".getBytes());
+        head.putInt(30).put("jp2h".getBytes()).putInt(22).put("ihdr".getBytes()).put(new byte[14]);
+        head.putInt(1).put("free".getBytes()).putLong(HUGE_FREE_BOX);
+        return head.array();
+    }
+
+    @Test
+    void boxTreeIsWalkedWith64BitOffsets() {
+        byte[] head = hugeJp2Head();
+        long jp2cOffset = 62 + HUGE_FREE_BOX;
+        byte[] tail = new byte[8 + 100];
+        tail[4] = 'j';
+        tail[5] = 'p';
+        tail[6] = '2';
+        tail[7] = 'c';
+        long length = jp2cOffset + tail.length;
+        AtomicLong bytesRead = new AtomicLong();
+        OpjStream.ChunkReader reader = (dst, position) -> {
+            int n = (int) Math.min(dst.remaining(), length - position);
+            for (int i = 0; i < n; ++i) {
+                long at = position + i;
+                dst.put(at < head.length ? head[(int) at]
+                        : at >= jp2cOffset ? tail[(int) (at - jp2cOffset)] : 0);
+            }
+            bytesRead.addAndGet(n);
+            return n;
+        };
+
+        List<String> boxes = new ArrayList<>();
+        OpjStream stream = OpjStream.createPrefetching(reader, length, 4096, 2, null);
+        try {
+            Jp2Parser.walkBoxes(stream, box -> {
+                boxes.add(new String(new byte[] {(byte) (box.type >> 24), (byte) (box.type >> 16),
+                        (byte) (box.type >> 8), (byte) box.type}) + " " + box.offset + " " + box.length
+                        + " " + box.depth);
+                return true;
+            });
+        } finally {
+            Cio.opj_stream_destroy(stream);
+        }
+        assertEquals(List.of("jP   0 12 0", "ftyp 12 20 0", "jp2h 32 30 0", "ihdr 40 22 1",
+                "free 62 " + HUGE_FREE_BOX + " 0", "jp2c " + jp2cOffset + " 108 0"), boxes);
+
+        stream = OpjStream.createPrefetching(reader, length, 4096, 2, null);
+        try {
+            Jp2Parser.CodestreamRange range = Jp2Parser.findCodestream(stream);
+            assertEquals(jp2cOffset + 8, range.offset);
+            assertEquals(100, range.length);
+        } finally {
+            Cio.opj_stream_destroy(stream);
+        }
+        // Only box headers were read, not the 5 GB in between
+        assertTrue(bytesRead.get() < 1 << 20, bytesRead.get() + " bytes read");
+    }
+
+    static OpjImage twoComponentImage() {
+        OpjImage.OpjImageCmptParm[] parms = new OpjImage.OpjImageCmptParm[2];
+        for (int c = 0; c < 2; ++c) {
+            parms[c] = new OpjImage.OpjImageCmptParm();
+            parms[c].dx = 1;
+            parms[c].dy = 1;
+            parms[c].w = 5;
+            parms[c].h = 3;
+            parms[c].prec = 8;
+            parms[c].bpp = 8;
+        }
+        OpjImage img = OpjImage.opj_image_create(2, parms, OpjImage.OpjColorSpace.OPJ_CLRSPC_UNKNOWN);
+        for (int c = 0; c < 2; ++c) {
+            for (int i = 0; i < 15; ++i) {
+                img.comps[c].data[i] = 10 * c + i;
+            }
+        }
+        return img;
+    }
+
+    @Test
+    void decodedImageTakesThePlanesUnlessAskedToCopy() {
+        OpjImage img = twoComponentImage();
+        int[] plane0 = img.comps[0].data;
+        OpjDecompress.DecodedImage taken = OpjDecompress.toDecodedImage(img, false);
+        // Handed over: no copy, and img no longer holds them
+        assertSame(plane0, taken.components[0]);
+        assertNull(img.comps[0].data);
+        assertNull(img.comps[1].data);
+        assertEquals(17, taken.sample(1, 7));
+
+        img = twoComponentImage();
+        plane0 = img.comps[0].data;
+        OpjDecompress.DecodedImage copied = OpjDecompress.toDecodedImage(img, true);
+        assertSame(plane0, img.comps[0].data);
+        assertTrue(copied.components[0] != plane0);
+        assertArrayEquals(plane0, copied.components[0]);
+        // The copy does not follow later changes of img
+        img.comps[1].data[7] = -1;
+        assertEquals(17, copied.sample(1, 7));
+    }
+
+    @Test
+    void decodeIntoWritesTheCallersLayout() throws IOException {
+        BufferedImage img = testImage(50, 37, 3);
+        byte[] j2k = encode(img, p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(16, 16, 0, 0);
+        });
+
+        // Interleaved BGR after a 7-byte prefix, rows padded to 160 bytes
+        byte[] bgr = new byte[7 + 37 * 160];
+        Arrays.fill(bgr, (byte) 0x5A);
+        OpjDecompress.DecodedImage info = OpjDecompress.decodeInto(j2k, new OpjDecompressParameters(),
+                OpjDecompress.Destination.of(bgr, 7, 160, 3, 2, 1, 0));
+        assertEquals(50, info.width);
+        assertEquals(37, info.height);
+        for (int y = 0; y < 37; ++y) {
+            for (int x = 0; x < 160; ++x) {
+                int i = 7 + y * 160 + x;
+                if (x < 150) {
+                    int c = 2 - x % 3;
+                    assertEquals(img.getRaster().getSample(x / 3, y, c), bgr[i] & 0xFF,
+                            "component " + c + " at (" + x / 3 + ", " + y + ")");
+                } else {
+                    assertEquals(0x5A, bgr[i], "padding at " + i);
+                }
+            }
+        }
+        for (int i = 0; i < 7; ++i) {
+            assertEquals(0x5A, bgr[i]);
+        }
+
+        // Planar 16-bit samples in a direct buffer, green and blue only
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setCompsIndices(new int[] {1, 2});
+        ByteBuffer planar = ByteBuffer.allocateDirect(2 * 2 * 50 * 37);
+        OpjDecompress.decodeInto(j2k, parameters,
+                OpjDecompress.Destination.of(planar, 2, 0, 50, 1, 0, 50 * 37));
+        for (int c = 0; c < 2; ++c) {
+            for (int y = 0; y < 37; ++y) {
+                for (int x = 0; x < 50; ++x) {
+                    int i = c * 50 * 37 + y * 50 + x;
+                    // Without the red component the inverse RCT is skipped: compare to Cb / Cr
+                    int r = img.getRaster().getSample(x, y, 0);
+                    int g = img.getRaster().getSample(x, y, 1);
+                    int b = img.getRaster().getSample(x, y, 2);
+                    int expected = c == 0 ? b - g + 128 : r - g + 128;
+                    assertEquals(Math.max(0, Math.min(255, expected)), planar.getShort(2 * i),
+                            "component " + c + " at (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    @Test
+    void floatOutputKeepsTheUnroundedIrreversibleSamples() throws IOException {
+        BufferedImage img = testImage(72, 56, 1);
+        byte[] jp2 = encode(img, p -> {
+            p.setLossless(false);
+            p.setFilter(J2KImageWriteParam.FILTER_97);
+            p.setEncodingRate(1.5);
+        });
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jp2));
+        OpjDecompress.DecodedImage ints = OpjDecompress.decode(jp2, new OpjDecompressParameters());
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.FLOAT);
+        float[] floats = OpjDecompress.decode(jp2, parameters).floatComponents[0];
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.FLOAT_NORMALIZED);
+        float[] normalized = OpjDecompress.decode(jp2, parameters).floatComponents[0];
+
+        int fractional = 0;
+        for (int i = 0; i < 72 * 56; ++i) {
+            float f = floats[i];
+            // Rounding and clamping the float sample gives the int output
+            int rounded = (int) Math.max(0, Math.min(255, Math.rint(f)));
+            assertEquals(ints.sample(0, i), rounded, "at " + i);
+            int diff = reference.getRaster().getSample(i % 72, i / 72, 0) - rounded;
+            assertTrue(Math.abs(diff) <= 1, "at " + i + ": off by " + diff);
+            assertEquals(f / 255, normalized[i], 1e-6f);
+            if (f != Math.rint(f)) {
+                ++fractional;
+            }
+        }
+        assertTrue(fractional > 72 * 56 / 2, fractional + " fractional samples");
+
+        // Reversible samples are integers already
+        BufferedImage lossless = testImage(40, 30, 1);
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.FLOAT);
+        float[] exact = OpjDecompress.decode(encode(lossless, p -> { }), parameters).floatComponents[0];
+        for (int i = 0; i < 40 * 30; ++i) {
+            assertEquals(lossless.getRaster().getSample(i % 40, i / 40, 0), exact[i]);
+        }
+    }
+
+    @Test
+    void reducedResolution() throws IOException {
+        BufferedImage img = testImage(64, 48, 1);
+        byte[] jp2 = encode(img, p -> p.setNumDecompositionLevels(3));
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.getCore().setCpReduce(1);
+        OpjDecompress.DecodedImage reduced = OpjDecompress.decode(jp2, parameters);
+        assertEquals(32, reduced.width);
+        assertEquals(24, reduced.height);
+    }
+
+    @Test
+    void tileSubscriberCancels() throws Exception {
+        BufferedImage img = testImage(160, 160, 1);
+        byte[] jp2 = encode(img, p -> {
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+        });
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setNumThreads(2);
+        OpjDecompress.decodeTiles(jp2, parameters, new Flow.Subscriber<OpjDecompress.DecodedTile>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(OpjDecompress.DecodedTile tile) {
+                received.incrementAndGet();
+                subscription.cancel();
+                cancelled.countDown();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        // decodeTiles returned without failing, and nothing arrived past the cancel
+        assertEquals(1, received.get());
+    }
+
+    @Test
+    void prefetchReadErrorIsThrown() {
+        OpjStream stream = OpjStream.createPrefetching((dst, position) -> {
+            if (position >= 64) {
+                throw new IOException("disk gone");
+            }
+            int n = (int) Math.min(dst.remaining(), 64 - position);
+            dst.position(dst.position() + n);
+            return n;
+        }, 256, 64, 4, null);
+        try {
+            byte[] buffer = new byte[64];
+            assertEquals(64, Cio.opj_stream_read_data(stream, buffer, 64, null));
+            // Not the end of the data: the failure reaches the caller
+            UncheckedIOException e = assertThrows(UncheckedIOException.class,
+                    () -> Cio.opj_stream_read_data(stream, buffer, 64, null));
+            assertEquals("disk gone", e.getCause().getMessage());
+        } finally {
+            Cio.opj_stream_destroy(stream);
+        }
+    }
+
+    @Test
+    void seekingAwayCancelsPrefetches() throws InterruptedException {
+        // Chunk i holds bytes i, i + 1, ...; the first fetch of chunk 1 hangs until released
+        Map<Long, AtomicInteger> fetches = new ConcurrentHashMap<>();
+        CountDownLatch firstFetchStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        OpjStream.PrefetchSource src = new OpjStream.PrefetchSource((dst, position) -> {
+            if (position % 10 == 0
+                    && fetches.computeIfAbsent(position / 10, k -> new AtomicInteger()).incrementAndGet() == 1
+                    && position == 10) {
+                firstFetchStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            int n = (int) Math.min(dst.remaining(), 200 - position);
+            for (int i = 0; i < n; ++i) {
+                dst.put((byte) (position + i));
+            }
+            return n;
+        }, 200, 10, 2, null);
+        try {
+            byte[] buffer = new byte[10];
+            assertEquals(10, src.read(buffer, 10));
+            assertTrue(firstFetchStarted.await(5, TimeUnit.SECONDS));
+            // A seek to chunk 15 drops the fetch of chunk 1: coming back fetches it again
+            assertTrue(src.seek(150));
+            assertTrue(src.seek(10));
+            assertEquals(10, src.read(buffer, 10));
+            assertEquals(2, fetches.get(1L).get());
+            assertEquals(10, buffer[0]);
+            assertEquals(19, buffer[9]);
+        } finally {
+            release.countDown();
+            src.close();
+        }
+    }
+
+    @Test
+    void signednessIsPerComponent() {
+        OpjImage img = new OpjImage();
+        img.x1 = 1;
+        img.y1 = 1;
+        img.numcomps = 2;
+        img.comps = new OpjImage.OpjImageComp[2];
+        for (int c = 0; c < 2; ++c) {
+            OpjImage.OpjImageComp comp = new OpjImage.OpjImageComp();
+            comp.dx = 1;
+            comp.dy = 1;
+            comp.w = 1;
+            comp.h = 1;
+            comp.prec = 8;
+            comp.sgnd = c == 0;
+            comp.byteData = new byte[] {(byte) 0xF0};
+            img.comps[c] = comp;
+        }
+        OpjDecompress.DecodedImage decoded = OpjDecompress.toDecodedImage(img, true);
+        assertEquals(-16, decoded.sample(0, 0));
+        assertEquals(240, decoded.sample(1, 0));
+    }
+
+    @Test
+    void narrowOutputHasBytePlanes() throws IOException {
+        BufferedImage img = testImage(57, 33, 3);
+        byte[] jp2 = encode(img, p -> { });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.NARROW);
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(jp2, parameters);
+        assertNull(decoded.components);
+        assertNull(decoded.shortComponents);
+        assertEquals(57 * 33, decoded.byteComponents[2].length);
+        assertSameSamples(img, decoded);
+    }
+
+    /**
+     * A two-component codestream whose second component is subsampled by
+     * 2 in both directions, spliced together from two JJ2000 encodings
+     * (one per component) with one packet per SOP marker: the main header
+     * is the first one's with a second component added to SIZ, and each
+     * tile's packets alternate between the two in LRCP order. half must
+     * need no more quality layers than full.
+     */
+    static byte[] subsampledCodestream(BufferedImage full, BufferedImage half, int tile) throws IOException {
+        Consumer<J2KImageWriteParam> setup = p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setSOP(true);
+            p.setNumDecompositionLevels(2);
+            p.setProgressionType("layer");
+            if (tile > 0) {
+                p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                p.setTiling(tile, tile, 0, 0);
+            }
+        };
+        byte[] a = encode(full, setup);
+        byte[] b = encode(half, p -> {
+            setup.accept(p);
+            if (tile > 0) {
+                p.setTiling(tile / 2, tile / 2, 0, 0);
+            }
+        });
+        int mainA = indexOf(a, 0xFF90, 2);
+        int mainB = indexOf(b, 0xFF90, 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // SIZ follows SOC: add a component with XRsiz = YRsiz = 2
+        int lsiz = ((a[4] & 0xFF) << 8) | (a[5] & 0xFF);
+        out.write(a, 0, 4);
+        out.write((lsiz + 3) >> 8);
+        out.write(lsiz + 3);
+        out.write(a, 6, 34);
+        out.write(0);
+        out.write(2);
+        out.write(a, 42, 3);
+        out.write(a[42]);
+        out.write(2);
+        out.write(2);
+        out.write(a, 45, mainA - 45);
+
+        int posA = mainA;
+        int posB = mainB;
+        int nsop = 0;
+        while ((a[posA] & 0xFF) == 0xFF && (a[posA + 1] & 0xFF) == 0x90) {
+            List<byte[]> packetsA = new ArrayList<>();
+            List<byte[]> packetsB = new ArrayList<>();
+            int bodyA = tileBody(a, posA, packetsA);
+            int bodyB = tileBody(b, posB, packetsB);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            // The half-size image has fewer layers: its last ones are empty packets
+            int resolutions = 3;
+            byte[] empty = {(byte) 0xFF, (byte) 0x91, 0, 4, 0, 0, 0};
+            for (int i = 0; i < packetsA.size(); i += resolutions) {
+                for (int r = 0; r < resolutions; ++r) {
+                    byte[] packetB = i < packetsB.size() ? packetsB.get(i + r) : empty.clone();
+                    for (byte[] packet : List.of(packetsA.get(i + r), packetB)) {
+                        packet[4] = (byte) (nsop >> 8);
+                        packet[5] = (byte) nsop;
+                        nsop = (nsop + 1) & 0xFFFF;
+                        body.write(packet);
+                    }
+                }
+            }
+            int psot = 14 + body.size();
+            out.write(a, posA, 6);
+            out.write(psot >>> 24);
+            out.write(psot >> 16);
+            out.write(psot >> 8);
+            out.write(psot);
+            out.write(a, posA + 10, 4);
+            body.writeTo(out);
+            posA = bodyA;
+            posB = bodyB;
+        }
+        out.write(0xFF);
+        out.write(0xD9);
+        return out.toByteArray();
+    }
+
+    /** Splits the tile-part at pos (SOT, SOD, no other markers) into its packets; returns its end. */
+    private static int tileBody(byte[] cs, int pos, List<byte[]> packets) {
+        int psot = ((cs[pos + 6] & 0xFF) << 24) | ((cs[pos + 7] & 0xFF) << 16)
+                | ((cs[pos + 8] & 0xFF) << 8) | (cs[pos + 9] & 0xFF);
+        int end = pos + psot;
+        int start = indexOf(cs, 0xFF93, pos) + 2;
+        while (start < end) {
+            int next = indexOf(cs, 0xFF91, start + 2);
+            next = next < 0 || next > end ? end : next;
+            packets.add(Arrays.copyOfRange(cs, start, next));
+            start = next;
+        }
+        return end;
+    }
+
+    private static int indexOf(byte[] cs, int marker, int from) {
+        for (int i = from; i + 1 < cs.length; ++i) {
+            if ((cs[i] & 0xFF) == marker >> 8 && (cs[i + 1] & 0xFF) == (marker & 0xFF)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    void subsampledComponentsAreUpsampled() throws IOException {
+        BufferedImage full = testImage(60, 44, 1);
+        BufferedImage half = testImage(30, 22, 1);
+        for (int tile : new int[] {0, 32}) {
+            byte[] j2k = subsampledCodestream(full, half, tile);
+            OpjDecompressParameters parameters = new OpjDecompressParameters();
+            parameters.setUpsample(true);
+
+            OpjDecompress.DecodedImage decoded = OpjDecompress.decode(j2k, parameters);
+            assertEquals(60, decoded.width);
+            assertEquals(44, decoded.height);
+            for (int y = 0; y < 44; ++y) {
+                for (int x = 0; x < 60; ++x) {
+                    assertEquals(full.getRaster().getSample(x, y, 0), decoded.sample(0, y * 60 + x));
+                    assertEquals(half.getRaster().getSample(x / 2, y / 2, 0), decoded.sample(1, y * 60 + x),
+                            "tile " + tile + " at (" + x + ", " + y + ")");
+                }
+            }
+
+            int[] interleaved = new int[60 * 44 * 2];
+            OpjDecompress.decodeInto(j2k, parameters, OpjDecompress.Destination.of(interleaved, 0, 120, 2, 0, 1));
+            for (int i = 0; i < 60 * 44; ++i) {
+                assertEquals(decoded.sample(0, i), interleaved[2 * i]);
+                assertEquals(decoded.sample(1, i), interleaved[2 * i + 1]);
+            }
+
+            int[][] tiled = new int[2][60 * 44];
+            OpjDecompress.decodeTiles(j2k, parameters, t -> {
+                for (int c = 0; c < 2; ++c) {
+                    for (int y = 0; y < t.height; ++y) {
+                        System.arraycopy(t.components[c], y * t.width, tiled[c], (t.y0 + y) * 60 + t.x0, t.width);
+                    }
+                }
+            });
+            for (int i = 0; i < 60 * 44; ++i) {
+                assertEquals(decoded.sample(0, i), tiled[0][i]);
+                assertEquals(decoded.sample(1, i), tiled[1][i]);
+            }
+
+            OpjDecompress.ProgressiveSession session = OpjDecompress.openProgressive(parameters);
+            session.feed(j2k, 0, j2k.length);
+            OpjDecompress.DecodedImage preview = session.preview();
+            for (int i = 0; i < 60 * 44; ++i) {
+                assertEquals(decoded.sample(0, i), preview.sample(0, i));
+                assertEquals(decoded.sample(1, i), preview.sample(1, i));
+            }
+
+            parameters.setUpsample(false);
+            assertThrows(IllegalStateException.class, () -> OpjDecompress.decodeInto(j2k, parameters,
+                    OpjDecompress.Destination.of(interleaved, 0, 120, 2, 0, 1)));
+        }
+    }
+
+    @Test
+    void upsamplingIsFusedWithTheOutputConversion() throws IOException {
+        BufferedImage full = testImage(60, 44, 1);
+        BufferedImage half = testImage(30, 22, 1);
+        byte[] j2k = subsampledCodestream(full, half, 32);
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setUpsample(true);
+        OpjDecompress.DecodedImage reference = OpjDecompress.decode(j2k, parameters);
+
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.NARROW);
+        OpjDecompress.DecodedImage narrow = OpjDecompress.decode(j2k, parameters);
+        assertNotNull(narrow.byteComponents);
+        parameters.setSampleFormat(OpjDecompressParameters.SampleFormat.FLOAT);
+        OpjDecompress.DecodedImage real = OpjDecompress.decode(j2k, parameters);
+        assertNotNull(real.floatComponents);
+        for (int c = 0; c < 2; ++c) {
+            assertEquals(60 * 44, narrow.byteComponents[c].length);
+            assertEquals(60 * 44, real.floatComponents[c].length);
+            for (int i = 0; i < 60 * 44; ++i) {
+                assertEquals(reference.sample(c, i), narrow.sample(c, i));
+                assertEquals(reference.sample(c, i), real.floatComponents[c][i]);
+            }
+        }
+    }
+
+    @Test
+    void upsamplerVectorPathMatchesTheColumnMap() {
+        Random random = new Random(45);
+        // { dx, grid origin, extra output columns, component origin }: 2x
+        // with even and odd origins and clamped edges (pair path), and 3x
+        for (int[] g : new int[][] {{2, 0, 0, 0}, {2, 1, 0, 0}, {2, 3, 1, 0}, {2, 0, 4, 1}, {3, 1, 0, 0}}) {
+            int srcWidth = 157;
+            int width = g[0] * srcWidth - g[1] + g[2];
+            OpjUpsampler up = new OpjUpsampler(srcWidth, 1, g[0], 1, g[1], 0, g[3], 0, width, 1);
+            assertEquals(g[0] == 2, up.pairs);
+            int[] src = random.ints(srcWidth + 7).toArray();
+            float[] srcReal = new float[src.length];
+            for (int i = 0; i < src.length; ++i) {
+                srcReal[i] = src[i] / 3f;
+            }
+            // Every sub-row, as the tiles hand them over
+            for (int x = 0; x < srcWidth; x += 13) {
+                int n = Math.min(srcWidth - x, 1 + random.nextInt(90));
+                int o = up.columnStarts[x];
+                int m = up.columnStarts[x + n] - o;
+                int[] vector = new int[m + 5];
+                int[] scalar = new int[m + 5];
+                float[] vectorReal = new float[m + 5];
+                assertEquals(m, up.expand(src, 7 + x, x, n, vector, 5, true));
+                assertEquals(m, up.expand(src, 7 + x, x, n, scalar, 5, false));
+                assertEquals(m, up.expand(srcReal, 7 + x, x, n, vectorReal, 5, true));
+                for (int i = 0; i < m; ++i) {
+                    int s = 7 + Math.max(0, Math.min(srcWidth - 1, Math.floorDiv(g[1] + o + i, g[0]) - g[3]));
+                    assertEquals(src[s], vector[5 + i], "factor " + g[0] + " at " + (o + i));
+                    assertEquals(src[s], scalar[5 + i]);
+                    assertEquals(srcReal[s], vectorReal[5 + i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void scaleUpIsProportional() throws IOException {
+        BufferedImage img = testImage(40, 30, 1);
+        byte[] jp2 = encode(img, p -> { });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setPrecision(new OpjPrecision[] {
+                new OpjPrecision(16, OpjPrecision.OpjPrecisionMode.OPJ_PREC_MODE_SCALE)});
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(jp2, parameters);
+        for (int y = 0; y < 30; ++y) {
+            for (int x = 0; x < 40; ++x) {
+                // 255 * 257 = 65535: full scale stays full scale
+                assertEquals(img.getRaster().getSample(x, y, 0) * 257, decoded.sample(0, y * 40 + x));
+            }
+        }
+    }
+
+    @Test
+    void precisionChangesMatchTheDividingFormula() throws IOException {
+        BufferedImage img = testImage(40, 30, 3);
+        byte[] j2k = encode(img, p -> p.setWriteCodeStreamOnly(true));
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        // Down: fused with the inverse RCT; up: a separate pass
+        for (int prec : new int[] {5, 12, 16, 31}) {
+            parameters.setPrecision(new OpjPrecision[] {
+                    new OpjPrecision(prec, OpjPrecision.OpjPrecisionMode.OPJ_PREC_MODE_SCALE)});
+            OpjDecompress.DecodedImage decoded = OpjDecompress.decode(j2k, parameters);
+            for (int c = 0; c < 3; ++c) {
+                for (int y = 0; y < 30; ++y) {
+                    for (int x = 0; x < 40; ++x) {
+                        long v = img.getRaster().getSample(x, y, c);
+                        long expected = prec < 8 ? v >> (8 - prec) : v * ((1L << prec) - 1) / 255;
+                        assertEquals(expected, decoded.sample(c, y * 40 + x),
+                                prec + " bits, component " + c + " at (" + x + ", " + y + ")");
+                    }
+                }
+            }
+        }
+
+        // 9-7 with the ICT, rounded and shifted in the same pass
+        byte[] lossy = encode(img, p -> {
+            p.setLossless(false);
+            p.setFilter(J2KImageWriteParam.FILTER_97);
+            p.setEncodingRate(4);
+        });
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(lossy));
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(lossy, new OpjDecompressParameters());
+        for (int c = 0; c < 3; ++c) {
+            for (int y = 0; y < 30; ++y) {
+                for (int x = 0; x < 40; ++x) {
+                    int diff = reference.getRaster().getSample(x, y, c) - decoded.sample(c, y * 40 + x);
+                    assertTrue(Math.abs(diff) <= 1, "component " + c + " at (" + x + ", " + y + "): off by " + diff);
+                }
+            }
+        }
+    }
+
+    @Test
+    void asyncDecodesCompleteOrFailTheirFutures() throws Exception {
+        BufferedImage img = testImage(48, 40, 3);
+        byte[] jp2 = encode(img, p -> { });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+
+        // Many virtual threads waiting at once
+        List<CompletableFuture<OpjDecompress.DecodedImage>> decodes = new ArrayList<>();
+        try (var handlers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 16; ++i) {
+                decodes.add(CompletableFuture.supplyAsync(
+                        () -> OpjDecompress.decodeAsync(jp2, parameters).join(), handlers));
+            }
+            for (CompletableFuture<OpjDecompress.DecodedImage> f : decodes) {
+                assertSameSamples(img, f.get(30, TimeUnit.SECONDS));
+            }
+        }
+
+        // Streams are read on a virtual thread
+        AtomicInteger platformReads = new AtomicInteger();
+        InputStream bytes = new FilterInputStream(new ByteArrayInputStream(jp2)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!Thread.currentThread().isVirtual()) {
+                    platformReads.incrementAndGet();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        assertSameSamples(img, OpjDecompress.decodeAsync(bytes, parameters).get(30, TimeUnit.SECONDS));
+        assertEquals(0, platformReads.get());
+
+        Path file = Files.createTempFile("jopj", ".jp2");
+        try {
+            Files.write(file, jp2);
+            assertSameSamples(img, OpjDecompress.decodeAsync(file, parameters).get(30, TimeUnit.SECONDS));
+        } finally {
+            Files.delete(file);
+        }
+
+        // Failures complete the future exceptionally
+        ExecutionException notJpeg = assertThrows(ExecutionException.class,
+                () -> OpjDecompress.decodeAsync(new byte[] {1, 2, 3, 4}, parameters).get(30, TimeUnit.SECONDS));
+        assertTrue(notJpeg.getCause() instanceof UnsupportedOperationException, notJpeg.getCause().toString());
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        ExecutionException readFailed = assertThrows(ExecutionException.class,
+                () -> OpjDecompress.decodeAsync(broken, parameters).get(30, TimeUnit.SECONDS));
+        assertTrue(readFailed.getCause() instanceof UncheckedIOException, readFailed.getCause().toString());
+        assertEquals("connection reset", readFailed.getCause().getCause().getMessage());
+    }
+
+    @Test
+    void decoderIsReusedAcrossImagesOfAnySize() throws IOException {
+        BufferedImage small = testImage(40, 30, 1);
+        BufferedImage large = testImage(131, 77, 3);
+        byte[] smallJ2k = encode(small, p -> p.setWriteCodeStreamOnly(true));
+        byte[] largeJp2 = encode(large, p -> {
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(64, 64, 0, 0);
+        });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        OpjDecompress.Decoder decoder = OpjDecompress.newDecoder(parameters);
+        try (decoder) {
+            for (int round = 0; round < 2; ++round) {
+                assertSameSamples(small, decoder.decode(smallJ2k));
+                assertSameSamples(large, decoder.decode(largeJp2));
+            }
+            // A failed decode leaves the decoder usable
+            byte[] truncated = Arrays.copyOf(smallJ2k, 20);
+            assertThrows(RuntimeException.class, () -> decoder.decode(truncated));
+            assertSameSamples(small, decoder.decode(smallJ2k));
+            // Parameters are read again at every decode
+            parameters.getCore().setCpReduce(1);
+            OpjDecompress.DecodedImage reduced = decoder.decode(largeJp2);
+            assertEquals(66, reduced.width);
+            assertEquals(39, reduced.height);
+        }
+        assertThrows(IllegalStateException.class, () -> decoder.decode(smallJ2k));
+    }
+
+    @Test
+    void framesArriveInOrderWithinTheMemoryCap() throws IOException {
+        List<BufferedImage> images = new ArrayList<>();
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            BufferedImage img = testImage(40 + i, 30, 1);
+            images.add(img);
+            frames.add(encode(img, p -> { }));
+        }
+        AtomicInteger expected = new AtomicInteger();
+        // Room for about two decoded frames (int samples) at a time
+        OpjDecompress.decodeFrames(frames, new OpjDecompressParameters(), 2 * 51 * 30 * 4,
+                (frameIndex, image) -> {
+                    assertEquals(expected.getAndIncrement(), frameIndex);
+                    assertSameSamples(images.get(frameIndex), image);
+                    image.close();
+                });
+        assertEquals(12, expected.get());
+    }
+
+    @Test
+    void nestedDecodeFramesRunsOnTheCallingPoolThread() throws Exception {
+        BufferedImage img = testImage(40, 30, 1);
+        byte[] frame = encode(img, p -> { });
+        List<byte[]> frames = List.of(frame, frame, frame);
+        // Every pool thread starts a batch of its own: queued behind them, it would never run
+        int threads = Runtime.getRuntime().availableProcessors();
+        CountDownLatch allBusy = new CountDownLatch(threads);
+        List<CompletableFuture<Integer>> outer = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            outer.add(OpjDecompress.decodeAsync(frame, new OpjDecompressParameters()).thenApply(image -> {
+                allBusy.countDown();
+                try {
+                    allBusy.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                AtomicInteger delivered = new AtomicInteger();
+                OpjDecompress.decodeFrames(frames, new OpjDecompressParameters(), Long.MAX_VALUE,
+                        (frameIndex, decoded) -> {
+                            assertEquals(delivered.getAndIncrement(), frameIndex);
+                            assertSameSamples(img, decoded);
+                        });
+                return delivered.get();
+            }));
+        }
+        for (CompletableFuture<Integer> f : outer) {
+            assertEquals(3, f.get(30, TimeUnit.SECONDS));
+        }
+
+        // Likewise from within a batch's consumer
+        AtomicInteger nested = new AtomicInteger();
+        OpjDecompress.decodeFrames(frames, new OpjDecompressParameters(), Long.MAX_VALUE,
+                (frameIndex, image) -> OpjDecompress.decodeFrames(frames, new OpjDecompressParameters(),
+                        Long.MAX_VALUE, (i, decoded) -> nested.incrementAndGet()));
+        assertEquals(9, nested.get());
+    }
+
+    @Test
+    void bufferPoolKeepsWithinItsCap() throws InterruptedException {
+        OpjBufferPool pool = new OpjBufferPool(3 * 4096 * 4, 60_000);
+        int[] a = pool.acquireInts(4096);
+        a[7] = 42;
+        pool.release(a);
+        assertEquals(4096 * 4, pool.retainedBytes());
+        // A hit hands the same array back, cleared unless asked not to
+        assertSame(a, pool.acquireInts(4096, false));
+        assertEquals(42, a[7]);
+        pool.release(a);
+        assertSame(a, pool.acquireInts(4096));
+        assertEquals(0, a[7]);
+        assertEquals(0, pool.retainedBytes());
+
+        for (int i = 0; i < 4; ++i) {
+            pool.release(new int[4096]);
+        }
+        assertEquals(3 * 4096 * 4, pool.retainedBytes());
+
+        OpjBufferPool idle = new OpjBufferPool(1 << 20, 1);
+        idle.release(new int[4096]);
+        Thread.sleep(5);
+        idle.acquireInts(2048);
+        assertEquals(0, idle.retainedBytes());
+    }
+
+    @Test
+    void closedTilesLendTheirPlanesToTheNextTiles() throws IOException {
+        BufferedImage img = testImage(96, 64, 1);
+        byte[] j2k = encode(img, p -> {
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+        });
+        OpjBufferPool previous = OpjBufferPool.getDefault();
+        OpjBufferPool.setDefault(new OpjBufferPool(64 << 20, 60_000));
+        try {
+            List<int[]> planes = new ArrayList<>();
+            OpjDecompress.decodeTiles(j2k, new OpjDecompressParameters(), tile -> {
+                for (int y = 0; y < tile.height; ++y) {
+                    for (int x = 0; x < tile.width; ++x) {
+                        assertEquals(img.getRaster().getSample(tile.x0 + x, tile.y0 + y, 0),
+                                tile.components[0][y * tile.width + x]);
+                    }
+                }
+                planes.add(tile.components[0]);
+                tile.close();
+                assertNull(tile.components);
+            });
+            assertEquals(6, planes.size());
+            for (int[] plane : planes) {
+                assertSame(planes.get(0), plane);
+            }
+        } finally {
+            OpjBufferPool.setDefault(previous);
+        }
+    }
+
+    @Test
+    void progressivePreviewOnlyRedecodesGrowingTiles() throws IOException {
+        BufferedImage img = testImage(64, 64, 1);
+        byte[] j2k = encode(img, p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+            p.setProgressionType("layer");
+        });
+        // Tile decodes show up as int buffers taken from the pool
+        AtomicInteger acquired = new AtomicInteger();
+        OpjBufferPool previous = OpjBufferPool.getDefault();
+        OpjBufferPool.setDefault(new OpjBufferPool(64 << 20, 60_000) {
+            @Override
+            protected Object acquire(Class<?> type, int length, int elementSize) {
+                if (type == int[].class) {
+                    acquired.incrementAndGet();
+                }
+                return super.acquire(type, length, elementSize);
+            }
+        });
+        try {
+            OpjDecompressParameters parameters = new OpjDecompressParameters();
+            OpjDecompress.ProgressiveSession session = OpjDecompress.openProgressive(parameters);
+            int fed = 0;
+            for (int step = 1; step <= 7; ++step) {
+                int end = step == 7 ? j2k.length : j2k.length * step / 7;
+                session.feed(j2k, fed, end - fed);
+                fed = end;
+                OpjDecompress.DecodedImage preview = session.preview();
+                if (preview == null) {
+                    continue;
+                }
+                // Cached tiles give what a fresh session decodes from the same bytes
+                OpjDecompress.ProgressiveSession fresh = OpjDecompress.openProgressive(parameters);
+                fresh.feed(j2k, 0, end);
+                OpjDecompress.DecodedImage expected = fresh.preview();
+                for (int i = 0; i < 64 * 64; ++i) {
+                    assertEquals(expected.sample(0, i), preview.sample(0, i), "step " + step + " at " + i);
+                }
+
+                // No new bytes: nothing is decoded again
+                acquired.set(0);
+                OpjDecompress.DecodedImage again = session.preview();
+                assertEquals(0, acquired.get(), "step " + step);
+                for (int i = 0; i < 64 * 64; ++i) {
+                    assertEquals(preview.sample(0, i), again.sample(0, i));
+                }
+            }
+            assertTrue(session.isComplete());
+            assertSameSamples(img, session.preview());
+        } finally {
+            OpjBufferPool.setDefault(previous);
+        }
+    }
+
+    @Test
+    void progressiveSessionReturnsReplacedTilesToThePool() throws IOException {
+        BufferedImage img = testImage(64, 64, 1);
+        byte[] j2k = encode(img, p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+            p.setProgressionType("layer");
+        });
+        // Tile-sized int buffers handed out and not given back yet
+        AtomicInteger outstanding = new AtomicInteger();
+        OpjBufferPool previous = OpjBufferPool.getDefault();
+        OpjBufferPool.setDefault(new OpjBufferPool(64 << 20, 60_000) {
+            @Override
+            protected Object acquire(Class<?> type, int length, int elementSize) {
+                if (type == int[].class && length == 32 * 32) {
+                    outstanding.incrementAndGet();
+                }
+                return super.acquire(type, length, elementSize);
+            }
+
+            @Override
+            protected void release(Object a, int length, int elementSize) {
+                if (a instanceof int[] && length == 32 * 32) {
+                    outstanding.decrementAndGet();
+                }
+                super.release(a, length, elementSize);
+            }
+        });
+        try {
+            OpjDecompress.ProgressiveSession session = OpjDecompress.openProgressive(new OpjDecompressParameters());
+            int fed = 0;
+            for (int step = 1; step <= 7; ++step) {
+                int end = step == 7 ? j2k.length : j2k.length * step / 7;
+                session.feed(j2k, fed, end - fed);
+                fed = end;
+                if (session.preview() != null) {
+                    // One cached plane per tile, whatever the number of decodes
+                    assertTrue(outstanding.get() <= 4, "step " + step + ": " + outstanding.get());
+                }
+            }
+            session.close();
+            assertEquals(0, outstanding.get());
+            assertThrows(IllegalStateException.class, session::preview);
+        } finally {
+            OpjBufferPool.setDefault(previous);
+        }
+    }
+
+    @Test
+    void unclearedPoolBuffersAreFullyWritten() throws IOException {
+        BufferedImage img = testImage(64, 64, 1);
+        // A flat quarter: its code-blocks carry no coding passes at all
+        for (int y = 0; y < 32; ++y) {
+            for (int x = 0; x < 32; ++x) {
+                img.getRaster().setSample(x, y, 0, 128);
+            }
+        }
+        byte[] j2k = encode(img, p -> {
+            p.setWriteCodeStreamOnly(true);
+            p.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            p.setTiling(32, 32, 0, 0);
+        });
+        // Only the first tile: the three others never arrive
+        byte[] firstTile = Arrays.copyOf(j2k, indexOf(j2k, 0xFF90, indexOf(j2k, 0xFF90, 0) + 2));
+
+        OpjBufferPool previous = OpjBufferPool.getDefault();
+        OpjBufferPool.setDefault(new OpjBufferPool(64 << 20, 60_000));
+        try {
+            for (int round = 0; round < 2; ++round) {
+                // Leave garbage in every buffer the decoder may be handed
+                for (int length : new int[] {32 * 32, 64 * 64}) {
+                    int[] garbage = new int[length];
+                    Arrays.fill(garbage, 0x5A5A5A5A);
+                    OpjBufferPool.getDefault().release(garbage);
+                }
+                assertSameSamples(img, OpjDecompress.decode(j2k, new OpjDecompressParameters()));
+
+                OpjDecompress.DecodedImage partial = OpjDecompress.decode(firstTile, new OpjDecompressParameters());
+                for (int y = 0; y < 64; ++y) {
+                    for (int x = 0; x < 64; ++x) {
+                        int expected = x < 32 && y < 32 ? 128 : 0;
+                        assertEquals(expected, partial.sample(0, y * 64 + x), "at (" + x + ", " + y + ")");
+                    }
+                }
+                partial.close();
+            }
+        } finally {
+            OpjBufferPool.setDefault(previous);
+        }
+    }
+
+    @Test
+    void offHeapPlanesAreLongIndexedAndFreedOnClose() throws IOException {
+        BufferedImage img = testImage(300, 200, 3);
+        byte[] jp2 = encode(img, p -> { });
+        OpjDecompressParameters parameters = new OpjDecompressParameters();
+        parameters.setComponentStorage(OpjDecompressParameters.ComponentStorage.OFF_HEAP);
+        BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(b -> b.getName().equals("direct")).findFirst().orElseThrow();
+
+        OpjDecompress.DecodedImage decoded = OpjDecompress.decode(jp2, parameters);
+        long planeBytes = 3L * 300 * 200 * 4;
+        for (int c = 0; c < 3; ++c) {
+            for (int y = 0; y < 200; ++y) {
+                for (int x = 0; x < 300; ++x) {
+                    assertEquals(img.getRaster().getSample(x, y, c), decoded.sample(c, (long) y * 300 + x));
+                }
+            }
+        }
+        OpjImage.OpjOffHeapPlane plane = decoded.offHeapComponents[0];
+        long used = direct.getMemoryUsed();
+        decoded.close();
+        // Returned at once, not when the GC gets round to the buffers
+        assertTrue(direct.getMemoryUsed() <= used - planeBytes,
+                used + " bytes before close, " + direct.getMemoryUsed() + " after");
+        assertTrue(plane.isFreed());
+        assertThrows(IllegalStateException.class, () -> plane.get(0L));
+    }
+}